@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.api;
+
+/**
+ * A {@link DocIdStream} that stores some terms as bitmaps and can hand them out a word at a time
+ */
+public interface BitmapDocIdStream extends DocIdStream {
+    /**
+     * @return true if the current term is a bitmap, in which case {@link #fillBitmapWords(long[])} can be used
+     *         instead of {@link #fillDocIdBuffer(int[])}
+     */
+    boolean isBitmap();
+
+    /**
+     * Copies the next words of the current term's bitmap, bit i of word w being set if doc 64 * w + i matches the
+     * term. Must not be mixed with {@link #fillDocIdBuffer(int[])} for the same term.
+     *
+     * @param words the buffer into which to put the words
+     * @return How many words were put into the buffer, if this is less than the length of the buffer, the Stream is considered finished
+     */
+    int fillBitmapWords(long[] words);
+}
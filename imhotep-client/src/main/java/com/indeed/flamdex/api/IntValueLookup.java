@@ -32,4 +32,13 @@ public interface IntValueLookup extends MemoryMeasured {
      * @param n Only lookup values for the first n docIds
      */
     void lookup(int[] docIds, long[] values, int n);
+
+    /**
+     * Same as {@link #lookup(int[], long[], int)} for the docIds start, start + 1, ..., start + n - 1,
+     * but without the indirection through a docId buffer
+     * @param start The first docId for which to lookup values
+     * @param values  The buffer in which to store retrieved values
+     * @param n The number of consecutive docIds to lookup
+     */
+    void lookupRange(int start, long[] values, int n);
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.api;
+
+/**
+ * A {@link DocIdStream} that can skip over docs without decoding them
+ */
+public interface SeekableDocIdStream extends DocIdStream {
+    /**
+     * Skips forward so that the next {@link #fillDocIdBuffer(int[])} starts at the first doc greater than or equal
+     * to target. Docs already returned are never returned again, so a target at or before the last doc returned
+     * has no effect.
+     *
+     * @param target the doc to skip to
+     * @return true if the stream has a doc greater than or equal to target
+     */
+    boolean advance(int target);
+}
@@ -338,6 +338,58 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
         return mergeTermCountLists(termCountListBuf, field, isIntField, k);
     }
 
+    @Override
+    public HyperLogLog[] getGroupDistinctCounts(final String field, final boolean isIntField, final int precision) throws ImhotepOutOfMemoryException {
+        final HyperLogLog[][] sketchesBuf = new HyperLogLog[sessions.length][];
+        executeMemoryException(sketchesBuf, new ThrowingFunction<ImhotepSession, HyperLogLog[]>() {
+            @Override
+            public HyperLogLog[] apply(ImhotepSession session) throws Exception {
+                return session.getGroupDistinctCounts(field, isIntField, precision);
+            }
+        });
+
+        int numGroups = 0;
+        for (final HyperLogLog[] sketches : sketchesBuf) {
+            numGroups = Math.max(numGroups, sketches.length);
+        }
+        final HyperLogLog[] ret = new HyperLogLog[numGroups];
+        for (int group = 0; group < numGroups; group++) {
+            ret[group] = new HyperLogLog(precision);
+        }
+        for (final HyperLogLog[] sketches : sketchesBuf) {
+            for (int group = 1; group < sketches.length; group++) {
+                ret[group].merge(sketches[group]);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public QuantileSketch[] getGroupPercentiles(final int stat) throws ImhotepOutOfMemoryException {
+        final QuantileSketch[][] sketchesBuf = new QuantileSketch[sessions.length][];
+        executeMemoryException(sketchesBuf, new ThrowingFunction<ImhotepSession, QuantileSketch[]>() {
+            @Override
+            public QuantileSketch[] apply(ImhotepSession session) throws Exception {
+                return session.getGroupPercentiles(stat);
+            }
+        });
+
+        int numGroups = 0;
+        for (final QuantileSketch[] sketches : sketchesBuf) {
+            numGroups = Math.max(numGroups, sketches.length);
+        }
+        final QuantileSketch[] ret = new QuantileSketch[numGroups];
+        for (int group = 0; group < numGroups; group++) {
+            ret[group] = new QuantileSketch();
+        }
+        for (final QuantileSketch[] sketches : sketchesBuf) {
+            for (int group = 1; group < sketches.length; group++) {
+                ret[group].merge(sketches[group]);
+            }
+        }
+        return ret;
+    }
+
     private static List<TermCount> mergeTermCountLists(List<TermCount>[] termCountListBuf, String field, boolean isIntField, int k) {
         final List<TermCount> ret;
         if (isIntField) {
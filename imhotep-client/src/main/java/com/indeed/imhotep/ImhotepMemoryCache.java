@@ -13,6 +13,10 @@
  */
  package com.indeed.imhotep;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.indeed.util.varexport.Export;
+
 import javax.annotation.Nullable;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -20,47 +24,133 @@ import java.util.Map;
 
 /**
  * @author jsadun
+ *
+ * Holds values that nobody references anymore but that are kept around in case they are asked for again. Entries
+ * are kept in the order they were last released, and {@link #poll()} evicts whichever of the least recently released
+ * entries has been idle longest relative to its size, so large cold values go before small ones that are about as cold.
  */
 public class ImhotepMemoryCache<K, V extends MemoryMeasured> implements MemoryMeasured {
-    private final Map<K, V> cache = new LinkedHashMap<K, V>();
+    /**
+     * number of least recently released entries considered by each {@link #poll()}
+     */
+    private static final int EVICTION_CANDIDATES = 16;
+
+    private final Map<K, Entry<V>> cache = new LinkedHashMap<K, Entry<V>>();
+    private final Ticker ticker;
     private long memoryUsed = 0;
 
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long evictedBytes = 0;
+
+    public ImhotepMemoryCache() {
+        this(Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    ImhotepMemoryCache(Ticker ticker) {
+        this.ticker = ticker;
+    }
+
     public synchronized @Nullable V tryRemove(K key) {
-        final V val = cache.remove(key);
-        if (val != null) {
-            memoryUsed -= val.memoryUsed();
+        final Entry<V> entry = cache.remove(key);
+        if (entry == null) {
+            misses++;
+            return null;
         }
-        return val;
+        hits++;
+        memoryUsed -= entry.value.memoryUsed();
+        return entry.value;
     }
 
-    public synchronized void put(K key, V value)  {
+    /**
+     * @return the value previously cached under key, which the caller now owns and has to release, or null
+     */
+    public synchronized @Nullable V put(K key, V value)  {
         memoryUsed += value.memoryUsed();
-        cache.put(key, value);
+        final Entry<V> previous = cache.remove(key);
+        cache.put(key, new Entry<V>(value, ticker.read()));
+        if (previous == null) {
+            return null;
+        }
+        memoryUsed -= previous.value.memoryUsed();
+        return previous.value;
     }
 
     public synchronized @Nullable V poll() {
-        final Iterator<V> iterator = cache.values().iterator();
-        if (!iterator.hasNext()) {
+        final long now = ticker.read();
+        final Iterator<Map.Entry<K, Entry<V>>> iterator = cache.entrySet().iterator();
+        K victimKey = null;
+        double victimScore = -1;
+        for (int i = 0; i < EVICTION_CANDIDATES && iterator.hasNext(); i++) {
+            final Map.Entry<K, Entry<V>> candidate = iterator.next();
+            final Entry<V> entry = candidate.getValue();
+            // the +1s keep entries released in the same tick ordered by size and empty entries ordered by age
+            final double score = (double) (now - entry.lastAccess + 1) * (entry.value.memoryUsed() + 1);
+            if (score > victimScore) {
+                victimKey = candidate.getKey();
+                victimScore = score;
+            }
+        }
+        if (victimScore < 0) {
             return null;
         }
-        final V val = iterator.next();
-        iterator.remove();
-        memoryUsed -= val.memoryUsed();
-        return val;
+        final Entry<V> victim = cache.remove(victimKey);
+        final long size = victim.value.memoryUsed();
+        memoryUsed -= size;
+        evictions++;
+        evictedBytes += size;
+        return victim.value;
     }
 
     @Override
-    public long memoryUsed() {
+    @Export(name = "cached-memory", doc = "memory held by unreferenced values in bytes")
+    public synchronized long memoryUsed() {
         return memoryUsed;
     }
 
+    @Export(name = "entries", doc = "number of unreferenced values held")
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    @Export(name = "hits", doc = "number of lookups that found an unreferenced value")
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Export(name = "misses", doc = "number of lookups that had to load the value")
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Export(name = "evictions", doc = "number of values evicted to make room for others")
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Export(name = "evicted-bytes", doc = "total size of evicted values in bytes")
+    public synchronized long getEvictedBytes() {
+        return evictedBytes;
+    }
+
     @Override
     public synchronized void close() {
-        for (final V val : cache.values()) {
-            val.close();
+        for (final Entry<V> entry : cache.values()) {
+            entry.value.close();
         }
         cache.clear();
         memoryUsed = 0;
     }
 
+    private static final class Entry<V> {
+        private final V value;
+        private final long lastAccess;
+
+        private Entry(V value, long lastAccess) {
+            this.value = value;
+            this.lastAccess = lastAccess;
+        }
+    }
 }
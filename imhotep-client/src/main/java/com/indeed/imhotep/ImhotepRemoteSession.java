@@ -21,6 +21,7 @@ import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
 import com.indeed.imhotep.api.DocIterator;
 import com.indeed.imhotep.api.FTGSIterator;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
@@ -641,6 +642,48 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         }
     }
 
+    @Override
+    public HyperLogLog[] getGroupDistinctCounts(String field, boolean isIntField, int precision) throws ImhotepOutOfMemoryException {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_GROUP_DISTINCT_COUNTS)
+                .setSessionId(sessionId)
+                .setField(field)
+                .setIsIntField(isIntField)
+                .setSketchPrecision(precision)
+                .build();
+
+        try {
+            final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
+            final List<ByteString> groupSketches = response.getGroupSketchList();
+            final HyperLogLog[] ret = new HyperLogLog[groupSketches.size()];
+            for (int i = 0; i < ret.length; ++i) {
+                ret[i] = HyperLogLog.fromBytes(groupSketches.get(i).toByteArray());
+            }
+            return ret;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public QuantileSketch[] getGroupPercentiles(int stat) throws ImhotepOutOfMemoryException {
+        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_GROUP_PERCENTILES)
+                .setSessionId(sessionId)
+                .setStat(stat)
+                .build();
+
+        try {
+            final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
+            final List<ByteString> groupSketches = response.getGroupSketchList();
+            final QuantileSketch[] ret = new QuantileSketch[groupSketches.size()];
+            for (int i = 0; i < ret.length; ++i) {
+                ret[i] = QuantileSketch.fromBytes(groupSketches.get(i).toByteArray());
+            }
+            return ret;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public int pushStat(String statName) throws ImhotepOutOfMemoryException {
         final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.PUSH_STAT)
@@ -29,12 +29,27 @@ public class ImhotepStatusDump {
     public final long totalMemory;
     public final List<SessionDump> openSessions;
     public final List<ShardDump> shards;
+    /**
+     * files mapped by the daemon's flamdex readers, their total size and how many idle mappings were unmapped to
+     * stay within the mapping budget
+     */
+    public final int mappedFiles;
+    public final long mappedBytes;
+    public final long mappingEvictions;
 
     public ImhotepStatusDump(long usedMemory, long totalMemory, List<SessionDump> openSessions, List<ShardDump> shards) {
+        this(usedMemory, totalMemory, openSessions, shards, 0, 0, 0);
+    }
+
+    public ImhotepStatusDump(long usedMemory, long totalMemory, List<SessionDump> openSessions, List<ShardDump> shards,
+                             int mappedFiles, long mappedBytes, long mappingEvictions) {
         this.usedMemory = usedMemory;
         this.totalMemory = totalMemory;
         this.openSessions = openSessions;
         this.shards = shards;
+        this.mappedFiles = mappedFiles;
+        this.mappedBytes = mappedBytes;
+        this.mappingEvictions = mappingEvictions;
     }
 
     public long getUsedMemory() {
@@ -53,10 +68,25 @@ public class ImhotepStatusDump {
         return shards;
     }
 
+    public int getMappedFiles() {
+        return mappedFiles;
+    }
+
+    public long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    public long getMappingEvictions() {
+        return mappingEvictions;
+    }
+
     public StatusDumpMessage toProto() {
         final StatusDumpMessage.Builder builder = StatusDumpMessage.newBuilder()
                 .setUsedMemory(usedMemory)
-                .setTotalMemory(totalMemory);
+                .setTotalMemory(totalMemory)
+                .setMappedFiles(mappedFiles)
+                .setMappedBytes(mappedBytes)
+                .setMappingEvictions(mappingEvictions);
 
         for (final SessionDump sessionDump : openSessions) {
             builder.addOpenSession(sessionDump.toProto());
@@ -80,7 +110,8 @@ public class ImhotepStatusDump {
         for (final ShardDumpMessage shardDump : protoDump.getLoadedShardList()) {
             shards.add(ShardDump.fromProto(shardDump));
         }
-        return new ImhotepStatusDump(usedMemory, totalMemory, openSessions, shards);
+        return new ImhotepStatusDump(usedMemory, totalMemory, openSessions, shards,
+                protoDump.getMappedFiles(), protoDump.getMappedBytes(), protoDump.getMappingEvictions());
     }
 
     public static class SessionDump {
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.google.common.base.Throwables;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * KLL quantile sketch over long values. Level h holds items that each stand for 2^h inputs; when a level
+ * overflows it is sorted and every other item is promoted to the next level. Sketches with the same k can be
+ * merged, so per shard sketches can be combined into a sketch for the whole dataset.
+ * <p>
+ * Which half of a level gets promoted is chosen by a pseudo random generator. Sketches built with the same seed
+ * from the same inputs are identical, so results are reproducible.
+ */
+public final class QuantileSketch {
+    public static final int DEFAULT_K = 200;
+    public static final long DEFAULT_SEED = 0x5eed5eed5eedL;
+
+    private static final double CAPACITY_DECAY = 2.0 / 3.0;
+
+    private final int k;
+    private final List<LongArrayList> levels = new ArrayList<LongArrayList>();
+    private final Random random;
+
+    private long count = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    private int size = 0;
+    private int maxSize;
+    // length of all level backing arrays, which never shrink
+    private long allocated = 0;
+
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    public QuantileSketch(int k) {
+        this(k, DEFAULT_SEED);
+    }
+
+    public QuantileSketch(int k, long seed) {
+        if (k < 8) {
+            throw new IllegalArgumentException("k must be at least 8, was " + k);
+        }
+        this.k = k;
+        random = new Random(seed);
+        addLevel();
+    }
+
+    public void update(long value) {
+        add(levels.get(0), value);
+        size++;
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        if (size > maxSize) {
+            compress();
+        }
+    }
+
+    public void merge(QuantileSketch other) {
+        if (other.k != k) {
+            throw new IllegalArgumentException("cannot merge sketches with different k: " + k + " and " + other.k);
+        }
+        if (other.count == 0) {
+            return;
+        }
+        while (levels.size() < other.levels.size()) {
+            addLevel();
+        }
+        for (int h = 0; h < other.levels.size(); h++) {
+            final LongArrayList otherLevel = other.levels.get(h);
+            final LongArrayList level = levels.get(h);
+            final int before = level.elements().length;
+            level.addAll(otherLevel);
+            allocated += level.elements().length - before;
+            size += otherLevel.size();
+        }
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        while (size > maxSize) {
+            compress();
+        }
+    }
+
+    /**
+     * @param fraction a value in [0, 1], e.g. 0.5 for the median
+     * @return an approximation of the value at the given rank, or 0 if no values have been added
+     */
+    public long quantile(double fraction) {
+        return quantiles(new double[] { fraction })[0];
+    }
+
+    public long[] quantiles(double[] fractions) {
+        final long[] ret = new long[fractions.length];
+        if (count == 0) {
+            return ret;
+        }
+        final long[] values = new long[size];
+        final long[] weights = new long[size];
+        sortedValuesAndWeights(values, weights);
+        for (int i = 0; i < fractions.length; i++) {
+            final double fraction = fractions[i];
+            if (fraction < 0 || fraction > 1) {
+                throw new IllegalArgumentException("fraction must be between 0 and 1, was " + fraction);
+            }
+            if (fraction == 0) {
+                ret[i] = min;
+            } else if (fraction == 1) {
+                ret[i] = max;
+            } else {
+                final double rank = fraction * count;
+                long cumulative = 0;
+                long value = max;
+                for (int j = 0; j < values.length; j++) {
+                    cumulative += weights[j];
+                    if (cumulative >= rank) {
+                        value = values[j];
+                        break;
+                    }
+                }
+                ret[i] = value;
+            }
+        }
+        return ret;
+    }
+
+    private void sortedValuesAndWeights(long[] values, long[] weights) {
+        // merge of per level sorted runs would be cheaper but this is only called once per group
+        final long[][] pairs = new long[size][];
+        int n = 0;
+        for (int h = 0; h < levels.size(); h++) {
+            final LongArrayList level = levels.get(h);
+            for (int i = 0; i < level.size(); i++) {
+                pairs[n++] = new long[] { level.getLong(i), 1L << h };
+            }
+        }
+        Arrays.sort(pairs, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return Long.compare(o1[0], o2[0]);
+            }
+        });
+        for (int i = 0; i < n; i++) {
+            values[i] = pairs[i][0];
+            weights[i] = pairs[i][1];
+        }
+    }
+
+    private void add(LongArrayList level, long value) {
+        final int before = level.elements().length;
+        level.add(value);
+        allocated += level.elements().length - before;
+    }
+
+    private void addLevel() {
+        final LongArrayList level = new LongArrayList();
+        levels.add(level);
+        allocated += level.elements().length;
+        maxSize = 0;
+        for (int h = 0; h < levels.size(); h++) {
+            maxSize += capacity(h);
+        }
+    }
+
+    private int capacity(int level) {
+        final int depth = levels.size() - level - 1;
+        return Math.max(2, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+    }
+
+    private void compress() {
+        for (int h = 0; h < levels.size(); h++) {
+            final LongArrayList level = levels.get(h);
+            if (level.size() >= capacity(h)) {
+                if (h + 1 == levels.size()) {
+                    addLevel();
+                }
+                final LongArrayList next = levels.get(h + 1);
+                final long[] items = level.toLongArray();
+                Arrays.sort(items);
+                // an odd item out stays on this level
+                final int start = items.length % 2;
+                level.clear();
+                if (start == 1) {
+                    add(level, items[0]);
+                }
+                final int offset = random.nextBoolean() ? 1 : 0;
+                for (int i = start + offset; i < items.length; i += 2) {
+                    add(next, items[i]);
+                }
+                size -= (items.length - start) / 2;
+                return;
+            }
+        }
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    int getRetainedItems() {
+        return size;
+    }
+
+    /**
+     * @return bytes held by the retained items, including spare capacity of the level arrays. This only grows, so
+     * callers can claim the difference after updating the sketch.
+     */
+    public long memoryUsage() {
+        return allocated * 8;
+    }
+
+    public byte[] toBytes() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(k);
+            out.writeLong(count);
+            out.writeLong(min);
+            out.writeLong(max);
+            out.writeInt(levels.size());
+            for (final LongArrayList level : levels) {
+                out.writeInt(level.size());
+                for (int i = 0; i < level.size(); i++) {
+                    out.writeLong(level.getLong(i));
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static QuantileSketch fromBytes(byte[] bytes) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            final QuantileSketch ret = new QuantileSketch(in.readInt());
+            ret.count = in.readLong();
+            ret.min = in.readLong();
+            ret.max = in.readLong();
+            final int numLevels = in.readInt();
+            while (ret.levels.size() < numLevels) {
+                ret.addLevel();
+            }
+            for (int h = 0; h < numLevels; h++) {
+                final int levelSize = in.readInt();
+                final LongArrayList level = ret.levels.get(h);
+                for (int i = 0; i < levelSize; i++) {
+                    ret.add(level, in.readLong());
+                }
+                ret.size += levelSize;
+            }
+            return ret;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("invalid serialized QuantileSketch", e);
+        }
+    }
+}
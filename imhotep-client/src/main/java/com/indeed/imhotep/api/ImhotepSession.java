@@ -15,6 +15,8 @@
 
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.HyperLogLog;
+import com.indeed.imhotep.QuantileSketch;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.TermCount;
@@ -260,6 +262,28 @@ public interface ImhotepSession extends Closeable {
      */
     List<TermCount> approximateTopTerms(String field, boolean isIntField, int k);
 
+    /**
+     * Estimate the number of distinct terms of a field in each group.
+     * The returned sketches can be merged with the results from other sessions over the same field.
+     *
+     * @param field the field to count distinct terms in
+     * @param isIntField whether or not the field is an int field
+     * @param precision the HyperLogLog precision, see {@link HyperLogLog#MIN_PRECISION} and {@link HyperLogLog#MAX_PRECISION}
+     * @return an array with one sketch per group, indexed by group
+     * @throws ImhotepOutOfMemoryException if performing this operation would cause imhotep to run out of memory
+     */
+    HyperLogLog[] getGroupDistinctCounts(String field, boolean isIntField, int precision) throws ImhotepOutOfMemoryException;
+
+    /**
+     * Build a quantile sketch of the values of a metric in each group.
+     * The returned sketches can be merged with the results from other sessions.
+     *
+     * @param stat the index of the metric
+     * @return an array with one sketch per group, indexed by group
+     * @throws ImhotepOutOfMemoryException if performing this operation would cause imhotep to run out of memory
+     */
+    QuantileSketch[] getGroupPercentiles(int stat) throws ImhotepOutOfMemoryException;
+
     /**
      * push the metric specified by statName
      * @param statName the metric to push
@@ -316,9 +340,9 @@ public interface ImhotepSession extends Closeable {
      * @param conditions conditions to match against
      * @param deltas deltas to adjust document by if the corresponding condition matches
      */
-    void conditionalUpdateDynamicMetric(String name, RegroupCondition[] conditions, int[] deltas);
+    void conditionalUpdateDynamicMetric(String name, RegroupCondition[] conditions, int[] deltas) throws ImhotepOutOfMemoryException;
 
-    void groupConditionalUpdateDynamicMetric(String name, int[] groups, RegroupCondition[] conditions, int[] deltas);
+    void groupConditionalUpdateDynamicMetric(String name, int[] groups, RegroupCondition[] conditions, int[] deltas) throws ImhotepOutOfMemoryException;
 
     /**
      * close the session and free up any associated resources
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TestImhotepMemoryCache {
+    @Test
+    public void testHitsAndMisses() {
+        final ImhotepMemoryCache<String, Value> cache = new ImhotepMemoryCache<String, Value>(new FakeTicker());
+        final Value a = new Value(10);
+        cache.put("a", a);
+        assertEquals(10, cache.memoryUsed());
+        assertNull(cache.tryRemove("b"));
+        assertSame(a, cache.tryRemove("a"));
+        assertNull(cache.tryRemove("a"));
+        assertEquals(0, cache.memoryUsed());
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void testEvictsLargeColdValuesFirst() {
+        final FakeTicker ticker = new FakeTicker();
+        final ImhotepMemoryCache<String, Value> cache = new ImhotepMemoryCache<String, Value>(ticker);
+        final Value oldSmall = new Value(10);
+        final Value large = new Value(1000);
+        final Value newSmall = new Value(10);
+        cache.put("oldSmall", oldSmall);
+        ticker.time += 10;
+        cache.put("large", large);
+        ticker.time += 10;
+        cache.put("newSmall", newSmall);
+        ticker.time += 10;
+
+        // large has been idle for 20 ticks, oldSmall for 30, but large is 100 times the size
+        assertSame(large, cache.poll());
+        assertSame(oldSmall, cache.poll());
+        assertSame(newSmall, cache.poll());
+        assertNull(cache.poll());
+        assertEquals(3, cache.getEvictions());
+        assertEquals(1020, cache.getEvictedBytes());
+        assertEquals(0, cache.memoryUsed());
+    }
+
+    @Test
+    public void testPutRefreshesAccessTime() {
+        final FakeTicker ticker = new FakeTicker();
+        final ImhotepMemoryCache<String, Value> cache = new ImhotepMemoryCache<String, Value>(ticker);
+        final Value a = new Value(10);
+        final Value b = new Value(10);
+        cache.put("a", a);
+        ticker.time += 10;
+        cache.put("b", b);
+        ticker.time += 10;
+        assertSame(a, cache.tryRemove("a"));
+        cache.put("a", a);
+        ticker.time += 1;
+        assertSame(b, cache.poll());
+        assertSame(a, cache.poll());
+    }
+
+    private static final class FakeTicker extends Ticker {
+        private long time = 0;
+
+        @Override
+        public long read() {
+            return time;
+        }
+    }
+
+    private static final class Value implements MemoryMeasured {
+        private final long size;
+
+        private Value(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public long memoryUsed() {
+            return size;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
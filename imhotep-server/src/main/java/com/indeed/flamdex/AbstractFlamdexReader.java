@@ -15,6 +15,7 @@
 
 import com.google.common.base.Throwables;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.GenericIntTermDocIterator;
@@ -24,11 +25,17 @@ import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.StringTermDocIterator;
 import com.indeed.flamdex.api.StringValueLookup;
 import com.indeed.flamdex.fieldcache.FieldCacher;
+import com.indeed.flamdex.fieldcache.ParallelFieldCacheBuilder;
 import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIterator;
 import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIteratorImpl;
+import com.indeed.flamdex.fieldcache.ZoneMap;
+import com.indeed.flamdex.fieldcache.ZoneMappedIntValueLookup;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author jsgroth
@@ -38,22 +45,48 @@ import java.util.Map;
  * at the moment of this comment's writing, {@link FlamdexReader#getMetric} and {@link FlamdexReader#memoryRequired} are implemented here
  */
 public abstract class AbstractFlamdexReader implements FlamdexReader {
+    /**
+     * shared by all readers, null unless -Dflamdex.fieldcache.threads asks for more than one thread
+     */
+    private static final ParallelFieldCacheBuilder PARALLEL_BUILDER = createParallelBuilder();
+
     protected final String directory;
     protected final int numDocs;
     private final boolean useMMapMetrics;
+    private final boolean useEncodedMetrics;
 
-    private final Map<String, FieldCacher> intFieldCachers;
+    private final Map<String, FieldCacher.Selection> intFieldCachers;
+    /**
+     * cachers of the fields whose caches were written with the index, these are always mapped rather than loaded
+     */
+    private final Map<String, FieldCacher.Selection> precomputedCachers;
 
     protected AbstractFlamdexReader(String directory, int numDocs) {
         this(directory, numDocs, System.getProperty("flamdex.mmap.fieldcache") != null);
     }
 
     protected AbstractFlamdexReader(String directory, int numDocs, boolean useMMapMetrics) {
+        this(directory, numDocs, useMMapMetrics, Collections.<String, FieldCacher.Selection>emptyMap());
+    }
+
+    protected AbstractFlamdexReader(String directory, int numDocs, boolean useMMapMetrics, Map<String, FieldCacher.Selection> precomputedCachers) {
         this.directory = directory;
         this.numDocs = numDocs;
         this.useMMapMetrics = useMMapMetrics;
+        this.useEncodedMetrics = FieldCacher.encodedMetricsEnabled();
 
-        this.intFieldCachers = Maps.newHashMap();
+        this.intFieldCachers = Maps.newHashMap(precomputedCachers);
+        this.precomputedCachers = precomputedCachers;
+    }
+
+    private static ParallelFieldCacheBuilder createParallelBuilder() {
+        final int numThreads = Integer.getInteger("flamdex.fieldcache.threads", 1);
+        if (numThreads <= 1) {
+            return null;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("FieldCacheBuilder-%d").build());
+        return new ParallelFieldCacheBuilder(executor, numThreads);
     }
 
     // this implementation will be correct for any FlamdexReader, but
@@ -64,25 +97,48 @@ public abstract class AbstractFlamdexReader implements FlamdexReader {
 
     @Override
     public final IntValueLookup getMetric(String metric) throws FlamdexOutOfMemoryException {
-        final FieldCacher fieldCacher = getMetricCacher(metric);
-        final UnsortedIntTermDocIterator iterator = createUnsortedIntTermDocIterator(metric);
+        final FieldCacher.Selection fieldCacher = getMetricCacher(metric);
+        final boolean precomputed = precomputedCachers.containsKey(metric);
+        final boolean mmap = useMMapMetrics || precomputed;
+        final IntValueLookup lookup;
+        if (PARALLEL_BUILDER != null && fieldCacher.getCacher().supportsParallelBuild()) {
+            lookup = cacheFieldInParallel(metric, fieldCacher.getCacher(), mmap);
+        } else {
+            final UnsortedIntTermDocIterator iterator = createUnsortedIntTermDocIterator(metric);
+            try {
+                lookup = cacheField(iterator, metric, fieldCacher, mmap);
+            } finally {
+                iterator.close();
+            }
+        }
+        return precomputed ? withStoredZoneMap(metric, lookup) : lookup;
+    }
+
+    /**
+     * precomputed caches may have had their {@link ZoneMap} written with them, which saves range filters from
+     * building one
+     */
+    private IntValueLookup withStoredZoneMap(String metric, IntValueLookup lookup) {
+        final ZoneMap zoneMap;
         try {
-            return cacheField(iterator, metric, fieldCacher);
-        } finally {
-            iterator.close();
+            zoneMap = ZoneMap.read(directory, metric, numDocs);
+        } catch (IOException e) {
+            lookup.close();
+            throw new RuntimeException(e);
         }
+        return zoneMap != null ? new ZoneMappedIntValueLookup(lookup, zoneMap) : lookup;
     }
 
     public StringValueLookup getStringLookup(final String field) throws FlamdexOutOfMemoryException {
         try {
-            return FieldCacher.newStringValueLookup(field, this, directory);
+            return FieldCacher.newStringValueLookup(field, this);
         } catch (IOException e) {
             throw Throwables.propagate(e);
         }
     }
 
-    private IntValueLookup cacheField(UnsortedIntTermDocIterator iterator, String metric, FieldCacher fieldCacher) {
-        if (useMMapMetrics) {
+    private IntValueLookup cacheField(UnsortedIntTermDocIterator iterator, String metric, FieldCacher.Selection fieldCacher, boolean mmap) {
+        if (mmap) {
             try {
                 return fieldCacher.newMMapFieldCache(iterator, numDocs, metric, directory);
             } catch (IOException e) {
@@ -92,18 +148,47 @@ public abstract class AbstractFlamdexReader implements FlamdexReader {
         return fieldCacher.newFieldCache(iterator, numDocs);
     }
 
+    private IntValueLookup cacheFieldInParallel(String metric, FieldCacher fieldCacher, boolean mmap) {
+        if (mmap) {
+            try {
+                return fieldCacher.newMMapFieldCache(metric, this, directory, PARALLEL_BUILDER);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return fieldCacher.newFieldCache(metric, this, PARALLEL_BUILDER);
+    }
+
     @Override
     public final long memoryRequired(String metric) {
+        if (precomputedCachers.containsKey(metric)) {
+            // the cache itself is mapped, only a stored zone map is loaded
+            return hasStoredZoneMap(metric) ? ZoneMap.memoryRequired(numDocs) : 0;
+        }
         if (useMMapMetrics) return 0;
 
-        final FieldCacher fieldCacher = getMetricCacher(metric);
+        final FieldCacher.Selection fieldCacher = getMetricCacher(metric);
         return fieldCacher.memoryRequired(numDocs);
     }
 
-    private FieldCacher getMetricCacher(String metric) {
+    /**
+     * @return true if {@link #getMetric} returns metric with the zone map that was written with its cache
+     */
+    public final boolean hasStoredZoneMap(String metric) {
+        if (!precomputedCachers.containsKey(metric)) {
+            return false;
+        }
+        try {
+            return ZoneMap.exists(directory, metric, numDocs);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private FieldCacher.Selection getMetricCacher(String metric) {
         synchronized (intFieldCachers) {
             if (!intFieldCachers.containsKey(metric)) {
-                final FieldCacher cacher = FieldCacher.getCacherForField(metric, this);
+                final FieldCacher.Selection cacher = FieldCacher.selectCacherForField(metric, this, useEncodedMetrics);
                 intFieldCachers.put(metric, cacher);
             }
             return intFieldCachers.get(metric);
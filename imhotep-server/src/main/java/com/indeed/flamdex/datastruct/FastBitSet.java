@@ -113,6 +113,34 @@ public final class FastBitSet {
             bits[i] ^= other.bits[i];
     }
 
+    /**
+     * ors n words into this bitset starting at word start, bit i of words[j] being bit 64 * (start + j) + i
+     */
+    public final void orWords(final int start, final long[] words, final int n) {
+        final int end = Math.min(start + n, bits.length);
+        for (int i = start; i < end; ++i)
+            bits[i] |= words[i - start];
+    }
+
+    public final void andWords(final int start, final long[] words, final int n) {
+        final int end = Math.min(start + n, bits.length);
+        for (int i = start; i < end; ++i)
+            bits[i] &= words[i - start];
+    }
+
+    /**
+     * like {@link #orWords}, but sets the words to the complement of the given ones. Bits past {@link #size()} stay
+     * clear.
+     */
+    public final void setWordsInverted(final int start, final long[] words, final int n) {
+        final int end = Math.min(start + n, bits.length);
+        for (int i = start; i < end; ++i)
+            bits[i] = ~words[i - start];
+        if (end == bits.length) {
+            bits[bits.length - 1] &= ~(-1L << (size & 0x3F));
+        }
+    }
+
     public final int cardinality() {
         if (size == 0) return 0;
         int count = 0;
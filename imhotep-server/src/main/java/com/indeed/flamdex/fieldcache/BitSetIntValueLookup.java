@@ -51,6 +51,13 @@ public final class BitSetIntValueLookup implements IntValueLookup {
         }
     }
 
+    @Override
+    public final void lookupRange(int start, long[] values, int n) {
+        for (int i = 0; i < n; ++i) {
+            values[i] = lookupBitSet.get(start + i) ? 1 : 0;
+        }
+    }
+
     @Override
     public long memoryUsed() {
         return lookupBitSet.memoryUsage();
@@ -59,6 +59,13 @@ public final class ByteArrayIntValueLookup implements IntValueLookup {
         }
     }
 
+    @Override
+    public final void lookupRange(int start, long[] values, int n) {
+        for (int i = 0; i < n; ++i) {
+            values[i] = lookupArray[start + i] & 0xFF;
+        }
+    }
+
     @Override
     public long memoryUsed() {
         return lookupArray.length;
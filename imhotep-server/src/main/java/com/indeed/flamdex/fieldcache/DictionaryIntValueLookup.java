@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+/**
+ * Field cache for fields with few distinct values: a sorted dictionary of the terms plus a byte or char ordinal
+ * per doc. The dictionary always contains 0, which is what docs without a term read as.
+ */
+public final class DictionaryIntValueLookup implements OrdinalIntValueLookup {
+    public static final int MAX_TERMS = 65536;
+
+    private long[] dictionary;
+    private byte[] byteOrdinals;
+    private char[] charOrdinals;
+
+    public DictionaryIntValueLookup(long[] dictionary, byte[] ordinals) {
+        this.dictionary = dictionary;
+        this.byteOrdinals = ordinals;
+    }
+
+    public DictionaryIntValueLookup(long[] dictionary, char[] ordinals) {
+        this.dictionary = dictionary;
+        this.charOrdinals = ordinals;
+    }
+
+    public static int ordinalWidth(int numTerms) {
+        return numTerms <= 256 ? 1 : 2;
+    }
+
+    public static long memoryRequired(int numDocs, int numTerms) {
+        return 8L * numTerms + (long) numDocs * ordinalWidth(numTerms);
+    }
+
+    @Override
+    public long getMin() {
+        return dictionary[0];
+    }
+
+    @Override
+    public long getMax() {
+        return dictionary[dictionary.length - 1];
+    }
+
+    @Override
+    public int getNumTerms() {
+        return dictionary.length;
+    }
+
+    @Override
+    public long getTerm(int ordinal) {
+        return dictionary[ordinal];
+    }
+
+    @Override
+    public void lookup(int[] docIds, long[] values, int n) {
+        final long[] dictionary = this.dictionary;
+        if (byteOrdinals != null) {
+            final byte[] ordinals = byteOrdinals;
+            for (int i = 0; i < n; ++i) {
+                values[i] = dictionary[ordinals[docIds[i]] & 0xFF];
+            }
+        } else {
+            final char[] ordinals = charOrdinals;
+            for (int i = 0; i < n; ++i) {
+                values[i] = dictionary[ordinals[docIds[i]]];
+            }
+        }
+    }
+
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        final long[] dictionary = this.dictionary;
+        if (byteOrdinals != null) {
+            final byte[] ordinals = byteOrdinals;
+            for (int i = 0; i < n; ++i) {
+                values[i] = dictionary[ordinals[start + i] & 0xFF];
+            }
+        } else {
+            final char[] ordinals = charOrdinals;
+            for (int i = 0; i < n; ++i) {
+                values[i] = dictionary[ordinals[start + i]];
+            }
+        }
+    }
+
+    @Override
+    public void lookupOrdinals(int[] docIds, int[] ordinals, int n) {
+        if (byteOrdinals != null) {
+            for (int i = 0; i < n; ++i) {
+                ordinals[i] = byteOrdinals[docIds[i]] & 0xFF;
+            }
+        } else {
+            for (int i = 0; i < n; ++i) {
+                ordinals[i] = charOrdinals[docIds[i]];
+            }
+        }
+    }
+
+    @Override
+    public long memoryUsed() {
+        final long ordinalBytes = byteOrdinals != null ? byteOrdinals.length : 2L * charOrdinals.length;
+        return 8L * dictionary.length + ordinalBytes;
+    }
+
+    @Override
+    public void close() {
+        dictionary = null;
+        byteOrdinals = null;
+        charOrdinals = null;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.indeed.imhotep.io.caching.CachedFile;
+
+import org.yaml.snakeyaml.JavaBeanDumper;
+import org.yaml.snakeyaml.JavaBeanLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Describes the field caches that were written along with a shard, so that readers can map them without scanning
+ * the field to pick a cacher, and a hash of each field's contents, so that lookups can be shared between versions of
+ * a shard in which the field did not change. Kept out of metadata.txt so that shards stay readable by older versions.
+ */
+public class FieldCacheMetadata {
+    public static final String FILENAME = "fieldcaches.txt";
+
+    public List<CachedField> fields;
+    public Map<String, String> contentHashes;
+
+    public FieldCacheMetadata() {
+        this(new ArrayList<CachedField>(), new TreeMap<String, String>());
+    }
+
+    public FieldCacheMetadata(List<CachedField> fields, Map<String, String> contentHashes) {
+        this.fields = fields;
+        this.contentHashes = contentHashes;
+    }
+
+    public List<CachedField> getFields() {
+        return fields;
+    }
+
+    public void setFields(final List<CachedField> fields) {
+        this.fields = fields;
+    }
+
+    public Map<String, String> getContentHashes() {
+        return contentHashes;
+    }
+
+    public void setContentHashes(final Map<String, String> contentHashes) {
+        this.contentHashes = contentHashes;
+    }
+
+    public void put(String field, FieldCacher.Selection selection) {
+        removeCache(field);
+        fields.add(new CachedField(field, selection));
+    }
+
+    public void putContentHash(String field, String contentHash) {
+        contentHashes.put(field, contentHash);
+    }
+
+    /**
+     * forgets both the cache and the content hash of the field
+     */
+    public void remove(String field) {
+        removeCache(field);
+        contentHashes.remove(field);
+    }
+
+    private void removeCache(String field) {
+        for (final Iterator<CachedField> it = fields.iterator(); it.hasNext(); ) {
+            if (it.next().field.equals(field)) {
+                it.remove();
+            }
+        }
+    }
+
+    public Map<String, FieldCacher.Selection> toSelections() {
+        final Map<String, FieldCacher.Selection> ret = Maps.newHashMap();
+        for (final CachedField cachedField : fields) {
+            ret.put(cachedField.field, cachedField.toSelection());
+        }
+        return ret;
+    }
+
+    public static Map<String, FieldCacher.Selection> readSelections(final String directory) throws IOException {
+        final FieldCacheMetadata metadata = readMetadata(directory);
+        return metadata == null ? Collections.<String, FieldCacher.Selection>emptyMap() : metadata.toSelections();
+    }
+
+    /**
+     * @return field name to content hash for the fields that have one, empty if the shard has no hashes
+     */
+    public static Map<String, String> readContentHashes(final String directory) throws IOException {
+        final FieldCacheMetadata metadata = readMetadata(directory);
+        return metadata == null ? Collections.<String, String>emptyMap() : metadata.contentHashes;
+    }
+
+    /**
+     * @return the shard's field cache metadata, or null if none was written
+     */
+    public static FieldCacheMetadata readMetadata(final String directory) throws IOException {
+        final CachedFile cachedFile = CachedFile.create(CachedFile.buildPath(directory, FILENAME));
+        if (!cachedFile.exists()) {
+            return null;
+        }
+        final JavaBeanLoader<FieldCacheMetadata> loader = new JavaBeanLoader<FieldCacheMetadata>(FieldCacheMetadata.class);
+        final FieldCacheMetadata ret = loader.load(Files.toString(cachedFile.loadFile(), Charsets.UTF_8));
+        if (ret.fields == null) {
+            ret.fields = new ArrayList<CachedField>();
+        }
+        if (ret.contentHashes == null) {
+            ret.contentHashes = new TreeMap<String, String>();
+        }
+        return ret;
+    }
+
+    public static void writeMetadata(final String directory, FieldCacheMetadata metadata) throws IOException {
+        final File file = new File(directory, FILENAME);
+        if (metadata.fields.isEmpty() && metadata.contentHashes.isEmpty()) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("unable to delete " + file);
+            }
+            return;
+        }
+        final JavaBeanDumper dumper = new JavaBeanDumper(false);
+        Files.write(dumper.dump(metadata).getBytes(Charsets.UTF_8), file);
+    }
+
+    public static final class CachedField {
+        public String field;
+        public String cacher;
+        public long min;
+        public long max;
+        public int numTerms;
+
+        public CachedField() {
+        }
+
+        public CachedField(String field, FieldCacher.Selection selection) {
+            this.field = field;
+            this.cacher = selection.getCacher().name();
+            this.min = selection.getMin();
+            this.max = selection.getMax();
+            this.numTerms = selection.getNumTerms();
+        }
+
+        FieldCacher.Selection toSelection() {
+            return new FieldCacher.Selection(FieldCacher.valueOf(cacher), min, max, numTerms);
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public void setField(final String field) {
+            this.field = field;
+        }
+
+        public String getCacher() {
+            return cacher;
+        }
+
+        public void setCacher(final String cacher) {
+            this.cacher = cacher;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public void setMin(final long min) {
+            this.min = min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public void setMax(final long max) {
+            this.max = max;
+        }
+
+        public int getNumTerms() {
+            return numTerms;
+        }
+
+        public void setNumTerms(final int numTerms) {
+            this.numTerms = numTerms;
+        }
+    }
+}
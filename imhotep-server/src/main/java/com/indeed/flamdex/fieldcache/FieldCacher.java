@@ -18,18 +18,20 @@ import com.google.common.base.Charsets;
 import com.google.common.io.Closer;
 import com.google.common.io.CountingOutputStream;
 import com.google.common.io.LittleEndianDataOutputStream;
-import com.indeed.util.core.Pair;
+import com.google.common.primitives.Ints;
 import com.indeed.util.core.Throwables2;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntTermIterator;
 import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.StringTermDocIterator;
+import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.api.StringValueLookup;
 import com.indeed.flamdex.datastruct.MMapFastBitSet;
+import com.indeed.flamdex.reader.FlamdexStats;
 import com.indeed.flamdex.utils.FlamdexUtils;
-import com.indeed.util.mmap.BufferResource;
-import com.indeed.util.mmap.IntArray;
 import com.indeed.util.mmap.MMapBuffer;
+import com.indeed.util.mmap.Memory;
 import com.indeed.util.mmap.NativeBuffer;
 import com.indeed.util.mmap.ZeroCopyOutputStream;
 
@@ -75,6 +77,30 @@ public enum FieldCacher {
             return new MMapLongArrayIntValueLookup(buffer, numDocs);
         }
         @Override
+        public boolean supportsParallelBuild() {
+            return true;
+        }
+        @Override
+        public IntValueLookup newFieldCache(String field, FlamdexReader r, ParallelFieldCacheBuilder builder) {
+            return new LongArrayIntValueLookup(FlamdexUtils.cacheLongField(r, field, builder));
+        }
+        @Override
+        public IntValueLookup newMMapFieldCache(final String field, final FlamdexReader r, String directory, final ParallelFieldCacheBuilder builder) throws IOException {
+            final File cacheFile = new File(directory, getMMapFileName(field));
+            MMapBuffer buffer;
+            try {
+                buffer = new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+            } catch (FileNotFoundException e) {
+                buffer = cacheToFileAtomically(field, directory, cacheFile, new FileOperation<MMapBuffer>() {
+                    @Override
+                    public MMapBuffer execute(File f) throws IOException {
+                        return FlamdexUtils.cacheLongFieldToFile(r, field, f, builder);
+                    }
+                });
+            }
+            return new MMapLongArrayIntValueLookup(buffer, r.getNumDocs());
+        }
+        @Override
         public String getMMapFileName(String field) {
             return "fld-" + field + ".longcache";
         }
@@ -105,6 +131,30 @@ public enum FieldCacher {
             return new MMapIntArrayIntValueLookup(buffer, numDocs);
         }
         @Override
+        public boolean supportsParallelBuild() {
+            return true;
+        }
+        @Override
+        public IntValueLookup newFieldCache(String field, FlamdexReader r, ParallelFieldCacheBuilder builder) {
+            return new IntArrayIntValueLookup(FlamdexUtils.cacheIntField(r, field, builder));
+        }
+        @Override
+        public IntValueLookup newMMapFieldCache(final String field, final FlamdexReader r, String directory, final ParallelFieldCacheBuilder builder) throws IOException {
+            final File cacheFile = new File(directory, getMMapFileName(field));
+            MMapBuffer buffer;
+            try {
+                buffer = new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+            } catch (FileNotFoundException e) {
+                buffer = cacheToFileAtomically(field, directory, cacheFile, new FileOperation<MMapBuffer>() {
+                    @Override
+                    public MMapBuffer execute(File f) throws IOException {
+                        return FlamdexUtils.cacheIntFieldToFile(r, field, f, builder);
+                    }
+                });
+            }
+            return new MMapIntArrayIntValueLookup(buffer, r.getNumDocs());
+        }
+        @Override
         public String getMMapFileName(String field) {
             return "fld-" + field + ".intcache";
         }
@@ -135,6 +185,30 @@ public enum FieldCacher {
             return new MMapCharArrayIntValueLookup(buffer, numDocs);
         }
         @Override
+        public boolean supportsParallelBuild() {
+            return true;
+        }
+        @Override
+        public IntValueLookup newFieldCache(String field, FlamdexReader r, ParallelFieldCacheBuilder builder) {
+            return new CharArrayIntValueLookup(FlamdexUtils.cacheCharField(r, field, builder));
+        }
+        @Override
+        public IntValueLookup newMMapFieldCache(final String field, final FlamdexReader r, String directory, final ParallelFieldCacheBuilder builder) throws IOException {
+            final File cacheFile = new File(directory, getMMapFileName(field));
+            MMapBuffer buffer;
+            try {
+                buffer = new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+            } catch (FileNotFoundException e) {
+                buffer = cacheToFileAtomically(field, directory, cacheFile, new FileOperation<MMapBuffer>() {
+                    @Override
+                    public MMapBuffer execute(File f) throws IOException {
+                        return FlamdexUtils.cacheCharFieldToFile(r, field, f, builder);
+                    }
+                });
+            }
+            return new MMapCharArrayIntValueLookup(buffer, r.getNumDocs());
+        }
+        @Override
         public String getMMapFileName(String field) {
             return "fld-" + field + ".charcache";
         }
@@ -165,6 +239,30 @@ public enum FieldCacher {
             return new MMapShortArrayIntValueLookup(buffer, numDocs);
         }
         @Override
+        public boolean supportsParallelBuild() {
+            return true;
+        }
+        @Override
+        public IntValueLookup newFieldCache(String field, FlamdexReader r, ParallelFieldCacheBuilder builder) {
+            return new ShortArrayIntValueLookup(FlamdexUtils.cacheShortField(r, field, builder));
+        }
+        @Override
+        public IntValueLookup newMMapFieldCache(final String field, final FlamdexReader r, String directory, final ParallelFieldCacheBuilder builder) throws IOException {
+            final File cacheFile = new File(directory, getMMapFileName(field));
+            MMapBuffer buffer;
+            try {
+                buffer = new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+            } catch (FileNotFoundException e) {
+                buffer = cacheToFileAtomically(field, directory, cacheFile, new FileOperation<MMapBuffer>() {
+                    @Override
+                    public MMapBuffer execute(File f) throws IOException {
+                        return FlamdexUtils.cacheShortFieldToFile(r, field, f, builder);
+                    }
+                });
+            }
+            return new MMapShortArrayIntValueLookup(buffer, r.getNumDocs());
+        }
+        @Override
         public String getMMapFileName(String field) {
             return "fld-" + field + ".shortcache";
         }
@@ -195,6 +293,30 @@ public enum FieldCacher {
             return new MMapByteArrayIntValueLookup(buffer, numDocs);
         }
         @Override
+        public boolean supportsParallelBuild() {
+            return true;
+        }
+        @Override
+        public IntValueLookup newFieldCache(String field, FlamdexReader r, ParallelFieldCacheBuilder builder) {
+            return new ByteArrayIntValueLookup(FlamdexUtils.cacheByteField(r, field, builder));
+        }
+        @Override
+        public IntValueLookup newMMapFieldCache(final String field, final FlamdexReader r, String directory, final ParallelFieldCacheBuilder builder) throws IOException {
+            final File cacheFile = new File(directory, getMMapFileName(field));
+            MMapBuffer buffer;
+            try {
+                buffer = new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+            } catch (FileNotFoundException e) {
+                buffer = cacheToFileAtomically(field, directory, cacheFile, new FileOperation<MMapBuffer>() {
+                    @Override
+                    public MMapBuffer execute(File f) throws IOException {
+                        return FlamdexUtils.cacheByteFieldToFile(r, field, f, builder);
+                    }
+                });
+            }
+            return new MMapByteArrayIntValueLookup(buffer, r.getNumDocs());
+        }
+        @Override
         public String getMMapFileName(String field) {
             return "fld-" + field + ".bytecache";
         }
@@ -225,6 +347,30 @@ public enum FieldCacher {
             return new MMapSignedByteArrayIntValueLookup(buffer, numDocs);
         }
         @Override
+        public boolean supportsParallelBuild() {
+            return true;
+        }
+        @Override
+        public IntValueLookup newFieldCache(String field, FlamdexReader r, ParallelFieldCacheBuilder builder) {
+            return new SignedByteArrayIntValueLookup(FlamdexUtils.cacheByteField(r, field, builder));
+        }
+        @Override
+        public IntValueLookup newMMapFieldCache(final String field, final FlamdexReader r, String directory, final ParallelFieldCacheBuilder builder) throws IOException {
+            final File cacheFile = new File(directory, getMMapFileName(field));
+            MMapBuffer buffer;
+            try {
+                buffer = new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+            } catch (FileNotFoundException e) {
+                buffer = cacheToFileAtomically(field, directory, cacheFile, new FileOperation<MMapBuffer>() {
+                    @Override
+                    public MMapBuffer execute(File f) throws IOException {
+                        return FlamdexUtils.cacheByteFieldToFile(r, field, f, builder);
+                    }
+                });
+            }
+            return new MMapSignedByteArrayIntValueLookup(buffer, r.getNumDocs());
+        }
+        @Override
         public String getMMapFileName(String field) {
             return "fld-" + field + ".sbytecache";
         }
@@ -258,12 +404,118 @@ public enum FieldCacher {
         public String getMMapFileName(String field) {
             return "fld-" + field + ".bitsetcache";
         }
+    },
+    /**
+     * Frame of reference encoding, only worth using through a {@link Selection}. The methods without one assume the
+     * full long range and so take slightly more space than {@link #LONG}.
+     */
+    PACKED {
+        @Override
+        public long memoryRequired(int numDocs) {
+            return memoryRequired(numDocs, new Selection(this, Long.MIN_VALUE, Long.MAX_VALUE, 0));
+        }
+        @Override
+        public long memoryRequired(int numDocs, Selection selection) {
+            return 8L * PackedIntValueLookup.numWords(numDocs, PackedIntValueLookup.bitsRequired(selection.getMin(), selection.getMax()));
+        }
+        @Override
+        public IntValueLookup newFieldCache(UnsortedIntTermDocIterator iterator, int numDocs) {
+            return newFieldCache(iterator, numDocs, new Selection(this, Long.MIN_VALUE, Long.MAX_VALUE, 0));
+        }
+        @Override
+        public IntValueLookup newFieldCache(UnsortedIntTermDocIterator iterator, int numDocs, Selection selection) {
+            final long min = selection.getMin();
+            final long max = selection.getMax();
+            final int bits = PackedIntValueLookup.bitsRequired(min, max);
+            return new PackedIntValueLookup(FlamdexUtils.cachePackedField(iterator, numDocs, min, bits), min, max, bits);
+        }
+        @Override
+        public IntValueLookup newMMapFieldCache(UnsortedIntTermDocIterator iterator, int numDocs, String field, String directory) throws IOException {
+            return newMMapFieldCache(iterator, numDocs, field, directory, new Selection(this, Long.MIN_VALUE, Long.MAX_VALUE, 0));
+        }
+        @Override
+        public IntValueLookup newMMapFieldCache(UnsortedIntTermDocIterator iterator, int numDocs, String field, String directory, Selection selection) throws IOException {
+            final long min = selection.getMin();
+            final long max = selection.getMax();
+            final File cacheFile = new File(directory, getMMapFileName(field));
+            MMapBuffer buffer;
+            try {
+                buffer = new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+            } catch (FileNotFoundException e) {
+                buffer = cacheToFileAtomically(iterator, numDocs, field, directory, cacheFile, new CacheToFileOperation<MMapBuffer>() {
+                    @Override
+                    public MMapBuffer execute(UnsortedIntTermDocIterator iterator, int numDocs, File f) throws IOException {
+                        return FlamdexUtils.cachePackedFieldToFile(iterator, numDocs, min, max, PackedIntValueLookup.bitsRequired(min, max), f);
+                    }
+                });
+            }
+            return new MMapPackedIntValueLookup(buffer);
+        }
+        @Override
+        public String getMMapFileName(String field) {
+            return "fld-" + field + ".packedcache";
+        }
+    },
+    /**
+     * Sorted dictionary of the field's terms plus a byte or char ordinal per doc, for fields with few distinct but
+     * large values. Only usable through a {@link Selection}, which supplies the number of terms, the methods without
+     * one fall back to {@link #PACKED} over the full long range.
+     */
+    DICTIONARY {
+        @Override
+        public long memoryRequired(int numDocs) {
+            return PACKED.memoryRequired(numDocs);
+        }
+        @Override
+        public long memoryRequired(int numDocs, Selection selection) {
+            return DictionaryIntValueLookup.memoryRequired(numDocs, selection.getNumTerms());
+        }
+        @Override
+        public IntValueLookup newFieldCache(UnsortedIntTermDocIterator iterator, int numDocs) {
+            return PACKED.newFieldCache(iterator, numDocs);
+        }
+        @Override
+        public IntValueLookup newFieldCache(UnsortedIntTermDocIterator iterator, int numDocs, Selection selection) {
+            return FlamdexUtils.cacheDictionaryField(iterator, numDocs, selection.getNumTerms());
+        }
+        @Override
+        public IntValueLookup newMMapFieldCache(UnsortedIntTermDocIterator iterator, int numDocs, String field, String directory) throws IOException {
+            return PACKED.newMMapFieldCache(iterator, numDocs, field, directory);
+        }
+        @Override
+        public IntValueLookup newMMapFieldCache(UnsortedIntTermDocIterator iterator, int numDocs, String field, String directory, final Selection selection) throws IOException {
+            final File cacheFile = new File(directory, getMMapFileName(field));
+            MMapBuffer buffer;
+            try {
+                buffer = new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+            } catch (FileNotFoundException e) {
+                buffer = cacheToFileAtomically(iterator, numDocs, field, directory, cacheFile, new CacheToFileOperation<MMapBuffer>() {
+                    @Override
+                    public MMapBuffer execute(UnsortedIntTermDocIterator iterator, int numDocs, File f) throws IOException {
+                        return FlamdexUtils.cacheDictionaryFieldToFile(iterator, numDocs, selection.getNumTerms(), f);
+                    }
+                });
+            }
+            return new MMapDictionaryIntValueLookup(buffer);
+        }
+        @Override
+        public String getMMapFileName(String field) {
+            return "fld-" + field + ".dictcache";
+        }
     };
 
     private static final Logger log = Logger.getLogger(FieldCacher.class);
 
     public abstract long memoryRequired(int numDocs);
 
+    /**
+     * Same as {@link #memoryRequired(int)} for the fixed width cachers, the encoded ones size themselves from the
+     * selection's range or number of terms
+     */
+    public long memoryRequired(int numDocs, Selection selection) {
+        return memoryRequired(numDocs);
+    }
+
     public final IntValueLookup newFieldCache(String field, FlamdexReader r) {
         final UnsortedIntTermDocIterator iterator = UnsortedIntTermDocIteratorImpl.create(r, field);
         try {
@@ -275,6 +527,26 @@ public enum FieldCacher {
 
     public abstract IntValueLookup newFieldCache(UnsortedIntTermDocIterator iterator, int numDocs);
 
+    public IntValueLookup newFieldCache(UnsortedIntTermDocIterator iterator, int numDocs, Selection selection) {
+        return newFieldCache(iterator, numDocs);
+    }
+
+    /**
+     * @return true if the methods taking a {@link ParallelFieldCacheBuilder} build the cache on several threads,
+     *         which is only possible for the caches that don't pack several docs into one word
+     */
+    public boolean supportsParallelBuild() {
+        return false;
+    }
+
+    public IntValueLookup newFieldCache(String field, FlamdexReader r, ParallelFieldCacheBuilder builder) {
+        return newFieldCache(field, r);
+    }
+
+    public IntValueLookup newMMapFieldCache(String field, FlamdexReader r, String directory, ParallelFieldCacheBuilder builder) throws IOException {
+        return newMMapFieldCache(field, r, directory);
+    }
+
     public final IntValueLookup newMMapFieldCache(String field, FlamdexReader r, String directory) throws IOException {
         final UnsortedIntTermDocIterator iterator = UnsortedIntTermDocIteratorImpl.create(r, field);
         try {
@@ -284,50 +556,78 @@ public enum FieldCacher {
         }
     }
 
-    public static StringValueLookup newStringValueLookup(String field, FlamdexReader r, String directory) throws IOException {
-        final Pair<? extends BufferResource, ? extends BufferResource> pair = buildStringValueLookup(field, r, directory);
-        return new MMapStringValueLookup(pair.getFirst(), pair.getSecond());
+    public static StringValueLookup newStringValueLookup(String field, FlamdexReader r) throws IOException {
+        return newFrontCodedStringValueLookup(field, r);
     }
 
-    private static Pair<? extends BufferResource, ? extends BufferResource> buildStringValueLookup(final String field,
-                                                                                                   final FlamdexReader r,
-                                                                                                   final String directory) throws IOException {
+    public static OrdinalStringValueLookup newFrontCodedStringValueLookup(final String field, final FlamdexReader r) throws IOException {
+        // ordinal 0 is the empty string for docs without a term
+        int numTerms = 1;
+        final StringTermIterator termIterator = r.getStringTermIterator(field);
+        try {
+            while (termIterator.next()) {
+                numTerms++;
+            }
+        } finally {
+            termIterator.close();
+        }
+
         final Closer closer = Closer.create();
         StringTermDocIterator stringTermDocIterator = null;
-        
         try {
-            final NativeBuffer offsets;
-
-            offsets = closer.register(new NativeBuffer(4*r.getNumDocs(), ByteOrder.LITTLE_ENDIAN));
-            final IntArray intArray = offsets.memory().intArray(0, r.getNumDocs());
-            final ZeroCopyOutputStream valuesFileOut = new ZeroCopyOutputStream();
-            final CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(valuesFileOut));
-            final LittleEndianDataOutputStream valuesOut = closer.register(new LittleEndianDataOutputStream(counter));
-            valuesOut.writeByte(0);
+            final int ordinalWidth = FrontCodedStringValueLookup.ordinalWidth(numTerms);
+            final NativeBuffer ordinalsBuffer = closer.register(new NativeBuffer((long) ordinalWidth * r.getNumDocs(), ByteOrder.LITTLE_ENDIAN));
+            final Memory ordinals = ordinalsBuffer.memory();
+            final int[] blockOffsets = new int[(numTerms + FrontCodedStringValueLookup.BLOCK_SIZE - 1) / FrontCodedStringValueLookup.BLOCK_SIZE];
+            final ZeroCopyOutputStream termsFileOut = new ZeroCopyOutputStream();
+            final CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(termsFileOut));
+            final LittleEndianDataOutputStream termsOut = closer.register(new LittleEndianDataOutputStream(counter));
+
+            byte[] previous = new byte[0];
+            int maxTermLength = 0;
+            writeFrontCodedTerm(termsOut, 0, previous, 0);
             stringTermDocIterator = closer.register(r.getStringTermDocIterator(field));
             final int[] docIdBuffer = new int[1024];
+            int ordinal = 0;
             while (stringTermDocIterator.nextTerm()) {
-                final int offset = (int) counter.getCount();
-                final String term = stringTermDocIterator.term();
-                final byte[] bytes = term.getBytes(Charsets.UTF_8);
-                if (bytes.length < 0xFF) {
-                    valuesOut.writeByte(bytes.length);
+                ordinal++;
+                if (ordinal >= numTerms) {
+                    throw new IllegalStateException("field " + field + " has more terms than its term iterator returned");
+                }
+                final byte[] bytes = stringTermDocIterator.term().getBytes(Charsets.UTF_8);
+                int shared = 0;
+                if (ordinal % FrontCodedStringValueLookup.BLOCK_SIZE == 0) {
+                    blockOffsets[ordinal / FrontCodedStringValueLookup.BLOCK_SIZE] = Ints.checkedCast(counter.getCount());
                 } else {
-                    valuesOut.writeByte(0xFF);
-                    valuesOut.writeInt(bytes.length);
+                    final int maxShared = Math.min(previous.length, bytes.length);
+                    while (shared < maxShared && previous[shared] == bytes[shared]) {
+                        shared++;
+                    }
                 }
-                valuesOut.write(bytes);
+                writeFrontCodedTerm(termsOut, shared, bytes, bytes.length - shared);
+                maxTermLength = Math.max(maxTermLength, bytes.length);
+                previous = bytes;
                 while (true) {
                     final int n = stringTermDocIterator.fillDocIdBuffer(docIdBuffer);
                     for (int i = 0; i < n; i++) {
-                        intArray.set(docIdBuffer[i], offset);
+                        final long doc = docIdBuffer[i];
+                        switch (ordinalWidth) {
+                            case 1:
+                                ordinals.putByte(doc, (byte) ordinal);
+                                break;
+                            case 2:
+                                ordinals.putChar(doc << 1, (char) ordinal);
+                                break;
+                            default:
+                                ordinals.putInt(doc << 2, ordinal);
+                        }
                     }
                     if (n < docIdBuffer.length) break;
                 }
             }
-            valuesOut.flush();
-            final NativeBuffer buffer = valuesFileOut.getBuffer().realloc(valuesFileOut.position());
-            return Pair.of(offsets, buffer);
+            termsOut.flush();
+            final NativeBuffer termsBuffer = termsFileOut.getBuffer().realloc(termsFileOut.position());
+            return new FrontCodedStringValueLookup(ordinalsBuffer, ordinalWidth, termsBuffer, blockOffsets, ordinal + 1, maxTermLength);
         } catch (Throwable t) {
             closer.close();
             throw Throwables2.propagate(t, IOException.class);
@@ -336,16 +636,103 @@ public enum FieldCacher {
         }
     }
 
+    private static void writeFrontCodedTerm(LittleEndianDataOutputStream out, int shared, byte[] bytes, int suffix) throws IOException {
+        writeFrontCodedLength(out, shared);
+        writeFrontCodedLength(out, suffix);
+        out.write(bytes, bytes.length - suffix, suffix);
+    }
+
+    private static void writeFrontCodedLength(LittleEndianDataOutputStream out, int length) throws IOException {
+        if (length < 0xFF) {
+            out.writeByte(length);
+        } else {
+            out.writeByte(0xFF);
+            out.writeInt(length);
+        }
+    }
+
     public abstract IntValueLookup newMMapFieldCache(UnsortedIntTermDocIterator iterator, int numDocs, String field, String directory) throws IOException;
 
+    public IntValueLookup newMMapFieldCache(UnsortedIntTermDocIterator iterator, int numDocs, String field, String directory, Selection selection) throws IOException {
+        return newMMapFieldCache(iterator, numDocs, field, directory);
+    }
+
     @VisibleForTesting
     abstract String getMMapFileName(String field);
 
     public static FieldCacher getCacherForField(String field, FlamdexReader r) {
         final long[] minMaxTerm = FlamdexUtils.getMinMaxTerm(field, r);
-        final long minTermVal = minMaxTerm[0];
-        final long maxTermVal = minMaxTerm[1];
+        return getCacherForRange(minMaxTerm[0], minMaxTerm[1]);
+    }
+
+    /**
+     * Encoded metrics are on unless -Dflamdex.encoded.metrics=false. The older name flamdex.packed.fieldcache is
+     * still accepted as an alias when the new property isn't set.
+     */
+    public static boolean encodedMetricsEnabled() {
+        final String value = System.getProperty("flamdex.encoded.metrics", System.getProperty("flamdex.packed.fieldcache"));
+        return !"false".equals(value);
+    }
+
+    /**
+     * Like {@link #getCacherForField(String, FlamdexReader)}, but if allowEncoded is set picks whichever of
+     * {@link #PACKED} and {@link #DICTIONARY} takes the least memory, as long as it saves at least a quarter of the
+     * memory of the smallest fixed width cache.
+     */
+    public static Selection selectCacherForField(String field, FlamdexReader r, boolean allowEncoded) {
+        long minTermVal = Long.MAX_VALUE;
+        long maxTermVal = Long.MIN_VALUE;
+        int numTerms = 0;
+        boolean hasZeroTerm = false;
+        final FlamdexStats.IntFieldStats stats = FlamdexUtils.getIntFieldStats(r, field);
+        final IntTermIterator termIterator = r.getIntTermIterator(field);
+        try {
+            if (stats != null) {
+                minTermVal = stats.getMinTerm();
+                maxTermVal = stats.getMaxTerm();
+                numTerms = Ints.checkedCast(stats.getNumTerms());
+                // a single seek instead of a scan
+                termIterator.reset(0);
+                hasZeroTerm = termIterator.next() && termIterator.term() == 0;
+            } else {
+                while (termIterator.next()) {
+                    final long term = termIterator.term();
+                    minTermVal = Math.min(minTermVal, term);
+                    maxTermVal = Math.max(maxTermVal, term);
+                    numTerms++;
+                    hasZeroTerm |= term == 0;
+                }
+            }
+        } finally {
+            termIterator.close();
+        }
+        final FieldCacher aligned = getCacherForRange(minTermVal, maxTermVal);
+        if (!allowEncoded || aligned == BITSET) {
+            return new Selection(aligned, minTermVal, maxTermVal, numTerms);
+        }
+
+        final int numDocs = r.getNumDocs();
+        Selection best = new Selection(aligned, minTermVal, maxTermVal, numTerms);
+        long bestMemory = aligned.memoryRequired(numDocs) * 3 / 4;
 
+        // docs without a term read as 0, so 0 always has to be in the range
+        final Selection packed = new Selection(PACKED, Math.min(minTermVal, 0), Math.max(maxTermVal, 0), numTerms);
+        if (packed.memoryRequired(numDocs) <= bestMemory) {
+            best = packed;
+            bestMemory = packed.memoryRequired(numDocs);
+        }
+        // the dictionary always has 0 in it, which is at most one extra term
+        final int numDictionaryTerms = hasZeroTerm ? numTerms : numTerms + 1;
+        if (numDictionaryTerms <= DictionaryIntValueLookup.MAX_TERMS) {
+            final Selection dictionary = new Selection(DICTIONARY, minTermVal, maxTermVal, numDictionaryTerms);
+            if (dictionary.memoryRequired(numDocs) < bestMemory) {
+                best = dictionary;
+            }
+        }
+        return best;
+    }
+
+    private static FieldCacher getCacherForRange(long minTermVal, long maxTermVal) {
         if (minTermVal >= 0 && maxTermVal <= 1) {
             return BITSET;
         } else if (minTermVal >= 0 && maxTermVal <= 255) {
@@ -363,17 +750,38 @@ public enum FieldCacher {
         }
     }
 
+    /**
+     * Deletes any mmapped cache of the field in the directory, which has to be done whenever the field is rewritten
+     */
+    public static void deleteMMapFieldCaches(String field, String directory) throws IOException {
+        for (final FieldCacher cacher : values()) {
+            final File cacheFile = new File(directory, cacher.getMMapFileName(field));
+            if (cacheFile.exists() && !cacheFile.delete()) {
+                throw new IOException("unable to delete " + cacheFile);
+            }
+        }
+    }
+
     private static void delete(File f) {
         if (!f.delete()) {
             log.error("unable to delete file " + f);
         }
     }
 
-    private static <T extends Closeable> T cacheToFileAtomically(UnsortedIntTermDocIterator iterator, int numDocs, String field, String directory, File cacheFile, CacheToFileOperation<T> op) throws IOException {
+    private static <T extends Closeable> T cacheToFileAtomically(final UnsortedIntTermDocIterator iterator, final int numDocs, String field, String directory, File cacheFile, final CacheToFileOperation<T> op) throws IOException {
+        return cacheToFileAtomically(field, directory, cacheFile, new FileOperation<T>() {
+            @Override
+            public T execute(File f) throws IOException {
+                return op.execute(iterator, numDocs, f);
+            }
+        });
+    }
+
+    private static <T extends Closeable> T cacheToFileAtomically(String field, String directory, File cacheFile, FileOperation<T> op) throws IOException {
         final File tmp = new File(directory, "fld-" + field + ".intcache." + UUID.randomUUID());
         final T ret;
         try {
-            ret = op.execute(iterator, numDocs, tmp);
+            ret = op.execute(tmp);
         } catch (RuntimeException e) {
             delete(tmp);
             throw e;
@@ -389,7 +797,57 @@ public enum FieldCacher {
         return ret;
     }
 
+    /**
+     * A {@link FieldCacher} together with what it needs to know about the field's values: the range of values it
+     * will be asked to cache and the number of distinct values
+     */
+    public static final class Selection {
+        private final FieldCacher cacher;
+        private final long min;
+        private final long max;
+        private final int numTerms;
+
+        Selection(FieldCacher cacher, long min, long max, int numTerms) {
+            this.cacher = cacher;
+            this.min = min;
+            this.max = max;
+            this.numTerms = numTerms;
+        }
+
+        public FieldCacher getCacher() {
+            return cacher;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public int getNumTerms() {
+            return numTerms;
+        }
+
+        public long memoryRequired(int numDocs) {
+            return cacher.memoryRequired(numDocs, this);
+        }
+
+        public IntValueLookup newFieldCache(UnsortedIntTermDocIterator iterator, int numDocs) {
+            return cacher.newFieldCache(iterator, numDocs, this);
+        }
+
+        public IntValueLookup newMMapFieldCache(UnsortedIntTermDocIterator iterator, int numDocs, String field, String directory) throws IOException {
+            return cacher.newMMapFieldCache(iterator, numDocs, field, directory, this);
+        }
+    }
+
     private static interface CacheToFileOperation<T> {
         T execute(UnsortedIntTermDocIterator iterator, int numDocs, File f) throws IOException;
     }
+
+    private static interface FileOperation<T> {
+        T execute(File f) throws IOException;
+    }
 }
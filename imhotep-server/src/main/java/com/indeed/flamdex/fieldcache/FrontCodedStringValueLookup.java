@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.google.common.base.Charsets;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.mmap.BufferResource;
+import com.indeed.util.mmap.Memory;
+import org.apache.log4j.Logger;
+
+import javax.annotation.WillCloseWhenClosed;
+
+/**
+ * Stores an ordinal per doc, one, two or four bytes wide depending on the number of terms, and the field's terms
+ * front coded in blocks of {@link #BLOCK_SIZE}. Every term is stored as the length of the prefix it shares with the
+ * previous term in its block followed by the rest of its bytes, so a term is decoded by replaying at most one block.
+ * Lengths take one byte, or 0xFF followed by a four byte length for lengths of 0xFF or more.
+ */
+public final class FrontCodedStringValueLookup implements OrdinalStringValueLookup {
+    private static final Logger log = Logger.getLogger(FrontCodedStringValueLookup.class);
+
+    static final int BLOCK_SIZE = 16;
+
+    private final BufferResource ordinalsBuffer;
+    private final BufferResource termsBuffer;
+    private final Memory ordinals;
+    private final Memory terms;
+    private final int ordinalWidth;
+    private final int[] blockOffsets;
+    private final int numTerms;
+    private final int maxTermLength;
+
+    FrontCodedStringValueLookup(@WillCloseWhenClosed final BufferResource ordinalsBuffer,
+                                final int ordinalWidth,
+                                @WillCloseWhenClosed final BufferResource termsBuffer,
+                                final int[] blockOffsets,
+                                final int numTerms,
+                                final int maxTermLength) {
+        this.ordinalsBuffer = ordinalsBuffer;
+        this.termsBuffer = termsBuffer;
+        this.ordinalWidth = ordinalWidth;
+        this.blockOffsets = blockOffsets;
+        this.numTerms = numTerms;
+        this.maxTermLength = maxTermLength;
+        ordinals = ordinalsBuffer.memory();
+        terms = termsBuffer.memory();
+    }
+
+    static int ordinalWidth(int numTerms) {
+        return numTerms <= 1 << 8 ? 1 : numTerms <= 1 << 16 ? 2 : 4;
+    }
+
+    @Override
+    public int getNumTerms() {
+        return numTerms;
+    }
+
+    @Override
+    public int getOrdinal(final int docId) {
+        switch (ordinalWidth) {
+            case 1:
+                return ordinals.getByte(docId) & 0xFF;
+            case 2:
+                return ordinals.getChar((long) docId << 1);
+            default:
+                return ordinals.getInt((long) docId << 2);
+        }
+    }
+
+    @Override
+    public int getMaxTermLength() {
+        return maxTermLength;
+    }
+
+    @Override
+    public int getTermBytes(final int ordinal, final byte[] dest) {
+        final int block = ordinal / BLOCK_SIZE;
+        long address = blockOffsets[block];
+        int length = 0;
+        for (int i = block * BLOCK_SIZE; i <= ordinal; i++) {
+            // dest already holds the previous term, so only the suffix has to be copied
+            int shared = terms.getByte(address++) & 0xFF;
+            if (shared == 0xFF) {
+                shared = terms.getInt(address);
+                address += 4;
+            }
+            int suffix = terms.getByte(address++) & 0xFF;
+            if (suffix == 0xFF) {
+                suffix = terms.getInt(address);
+                address += 4;
+            }
+            terms.getBytes(address, dest, shared, suffix);
+            address += suffix;
+            length = shared + suffix;
+        }
+        return length;
+    }
+
+    @Override
+    public String getTerm(final int ordinal) {
+        final byte[] bytes = new byte[decodedLength(ordinal)];
+        final int length = getTermBytes(ordinal, bytes);
+        return new String(bytes, 0, length, Charsets.UTF_8);
+    }
+
+    /**
+     * @return the longest of the terms that are replayed to decode ordinal, which is what getTermBytes needs room for
+     */
+    private int decodedLength(final int ordinal) {
+        final int block = ordinal / BLOCK_SIZE;
+        long address = blockOffsets[block];
+        int maxLength = 0;
+        for (int i = block * BLOCK_SIZE; i <= ordinal; i++) {
+            int shared = terms.getByte(address++) & 0xFF;
+            if (shared == 0xFF) {
+                shared = terms.getInt(address);
+                address += 4;
+            }
+            int suffix = terms.getByte(address++) & 0xFF;
+            if (suffix == 0xFF) {
+                suffix = terms.getInt(address);
+                address += 4;
+            }
+            address += suffix;
+            maxLength = Math.max(maxLength, shared + suffix);
+        }
+        return maxLength;
+    }
+
+    @Override
+    public String getString(final int docId) {
+        return getTerm(getOrdinal(docId));
+    }
+
+    @Override
+    public long memoryUsed() {
+        return ordinals.length() + terms.length() + 4L * blockOffsets.length;
+    }
+
+    @Override
+    public void close() {
+        Closeables2.closeQuietly(ordinalsBuffer, log);
+        Closeables2.closeQuietly(termsBuffer, log);
+    }
+}
@@ -58,6 +58,11 @@ public final class LongArrayIntValueLookup implements IntValueLookup {
         }
     }
 
+    @Override
+    public final void lookupRange(int start, long[] values, int n) {
+        System.arraycopy(lookupArray, start, values, 0, n);
+    }
+
     @Override
     public long memoryUsed() {
         return 8L * lookupArray.length;
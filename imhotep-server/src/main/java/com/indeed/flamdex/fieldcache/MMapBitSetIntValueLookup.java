@@ -55,6 +55,13 @@ public final class MMapBitSetIntValueLookup implements IntValueLookup {
         }
     }
 
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        for (int i = 0; i < n; ++i) {
+            values[i] = bitSet.get(start + i) ? 1 : 0;
+        }
+    }
+
     @Override
     public long memoryUsed() {
         return 0;
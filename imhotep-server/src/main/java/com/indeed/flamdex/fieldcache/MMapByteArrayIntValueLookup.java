@@ -27,10 +27,12 @@ public final class MMapByteArrayIntValueLookup implements IntValueLookup {
 
     private final MMapBuffer buffer;
     private final ByteArray byteArray;
+    private final MMapPrefetcher prefetcher;
 
     public MMapByteArrayIntValueLookup(MMapBuffer buffer, int length) {
         this.buffer = buffer;
         this.byteArray = buffer.memory().byteArray(0, length);
+        this.prefetcher = MMapPrefetcher.create(buffer.memory(), 1);
     }
 
     @Override
@@ -45,11 +47,24 @@ public final class MMapByteArrayIntValueLookup implements IntValueLookup {
 
     @Override
     public void lookup(int[] docIds, long[] values, int n) {
+        if (prefetcher != null && n > 0) {
+            prefetcher.prefetch(docIds[0], docIds[n - 1]);
+        }
         for (int i = 0; i < n; ++i) {
             values[i] = byteArray.get(docIds[i]) & 0xFF;
         }
     }
 
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        if (prefetcher != null && n > 0) {
+            prefetcher.prefetch(start, start + n - 1);
+        }
+        for (int i = 0; i < n; ++i) {
+            values[i] = byteArray.get(start + i) & 0xFF;
+        }
+    }
+
     @Override
     public long memoryUsed() {
         return 0;
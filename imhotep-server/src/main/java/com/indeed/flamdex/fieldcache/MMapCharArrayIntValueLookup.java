@@ -27,10 +27,12 @@ public final class MMapCharArrayIntValueLookup implements IntValueLookup {
 
     private final MMapBuffer buffer;
     private final CharArray charArray;
+    private final MMapPrefetcher prefetcher;
 
     public MMapCharArrayIntValueLookup(MMapBuffer buffer, int length) {
         this.buffer = buffer;
         this.charArray = buffer.memory().charArray(0, length);
+        this.prefetcher = MMapPrefetcher.create(buffer.memory(), 2);
     }
 
     @Override
@@ -45,11 +47,24 @@ public final class MMapCharArrayIntValueLookup implements IntValueLookup {
 
     @Override
     public void lookup(int[] docIds, long[] values, int n) {
+        if (prefetcher != null && n > 0) {
+            prefetcher.prefetch(docIds[0], docIds[n - 1]);
+        }
         for (int i = 0; i < n; ++i) {
             values[i] = charArray.get(docIds[i]);
         }
     }
 
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        if (prefetcher != null && n > 0) {
+            prefetcher.prefetch(start, start + n - 1);
+        }
+        for (int i = 0; i < n; ++i) {
+            values[i] = charArray.get(start + i);
+        }
+    }
+
     @Override
     public long memoryUsed() {
         return 0;
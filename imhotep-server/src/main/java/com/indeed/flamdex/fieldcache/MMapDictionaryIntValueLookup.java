@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.mmap.DirectMemory;
+import com.indeed.util.mmap.MMapBuffer;
+import org.apache.log4j.Logger;
+
+/**
+ * {@link DictionaryIntValueLookup} backed by a file: a header with the number of terms, the ordinal width and the
+ * number of dictionary slots, then the dictionary, then the ordinals.
+ */
+public final class MMapDictionaryIntValueLookup implements OrdinalIntValueLookup {
+    private static final Logger LOG = Logger.getLogger(MMapDictionaryIntValueLookup.class);
+
+    public static final int HEADER_SIZE = 16;
+
+    private final MMapBuffer buffer;
+    private final DirectMemory memory;
+    private final int numTerms;
+    private final int width;
+    private final long ordinalsOffset;
+
+    public MMapDictionaryIntValueLookup(MMapBuffer buffer) {
+        this.buffer = buffer;
+        this.memory = buffer.memory();
+        this.numTerms = memory.getInt(0);
+        this.width = memory.getInt(4);
+        this.ordinalsOffset = ordinalsOffset(memory.getInt(8));
+    }
+
+    public static long ordinalsOffset(int dictionarySlots) {
+        return HEADER_SIZE + 8L * dictionarySlots;
+    }
+
+    @Override
+    public long getMin() {
+        return getTerm(0);
+    }
+
+    @Override
+    public long getMax() {
+        return getTerm(numTerms - 1);
+    }
+
+    @Override
+    public int getNumTerms() {
+        return numTerms;
+    }
+
+    @Override
+    public long getTerm(int ordinal) {
+        return memory.getLong(HEADER_SIZE + 8L * ordinal);
+    }
+
+    private int ordinal(int doc) {
+        return width == 1 ? memory.getByte(ordinalsOffset + doc) & 0xFF : memory.getChar(ordinalsOffset + 2L * doc);
+    }
+
+    @Override
+    public void lookup(int[] docIds, long[] values, int n) {
+        for (int i = 0; i < n; ++i) {
+            values[i] = getTerm(ordinal(docIds[i]));
+        }
+    }
+
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        for (int i = 0; i < n; ++i) {
+            values[i] = getTerm(ordinal(start + i));
+        }
+    }
+
+    @Override
+    public void lookupOrdinals(int[] docIds, int[] ordinals, int n) {
+        for (int i = 0; i < n; ++i) {
+            ordinals[i] = ordinal(docIds[i]);
+        }
+    }
+
+    @Override
+    public long memoryUsed() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        Closeables2.closeQuietly(buffer, LOG);
+    }
+}
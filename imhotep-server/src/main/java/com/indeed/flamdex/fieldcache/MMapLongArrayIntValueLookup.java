@@ -27,10 +27,12 @@ public final class MMapLongArrayIntValueLookup implements IntValueLookup {
 
     private final MMapBuffer buffer;
     private final LongArray longArray;
+    private final MMapPrefetcher prefetcher;
 
     public MMapLongArrayIntValueLookup(MMapBuffer buffer, int length) {
         this.buffer = buffer;
         this.longArray = buffer.memory().longArray(0, length);
+        this.prefetcher = MMapPrefetcher.create(buffer.memory(), 8);
     }
 
     @Override
@@ -45,11 +47,24 @@ public final class MMapLongArrayIntValueLookup implements IntValueLookup {
 
     @Override
     public void lookup(int[] docIds, long[] values, int n) {
+        if (prefetcher != null && n > 0) {
+            prefetcher.prefetch(docIds[0], docIds[n - 1]);
+        }
         for (int i = 0; i < n; ++i) {
             values[i] = longArray.get(docIds[i]);
         }
     }
 
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        if (prefetcher != null && n > 0) {
+            prefetcher.prefetch(start, start + n - 1);
+        }
+        for (int i = 0; i < n; ++i) {
+            values[i] = longArray.get(start + i);
+        }
+    }
+
     @Override
     public long memoryUsed() {
         return 0;
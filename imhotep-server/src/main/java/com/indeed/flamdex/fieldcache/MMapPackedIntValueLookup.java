@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.util.mmap.DirectMemory;
+import com.indeed.util.mmap.MMapBuffer;
+import org.apache.log4j.Logger;
+
+/**
+ * {@link PackedIntValueLookup} backed by a file: a header with min, max and the number of bits followed by the
+ * packed longs.
+ */
+public final class MMapPackedIntValueLookup implements IntValueLookup {
+    private static final Logger LOG = Logger.getLogger(MMapPackedIntValueLookup.class);
+
+    public static final int HEADER_SIZE = 24;
+
+    private final MMapBuffer buffer;
+    private final DirectMemory memory;
+    private final long min;
+    private final long max;
+    private final int bits;
+    private final long mask;
+
+    public MMapPackedIntValueLookup(MMapBuffer buffer) {
+        this.buffer = buffer;
+        this.memory = buffer.memory();
+        this.min = memory.getLong(0);
+        this.max = memory.getLong(8);
+        this.bits = memory.getInt(16);
+        this.mask = PackedIntValueLookup.mask(bits);
+    }
+
+    public static long fileLength(int numDocs, int bits) {
+        return HEADER_SIZE + 8L * PackedIntValueLookup.numWords(numDocs, bits);
+    }
+
+    /**
+     * Same as {@link PackedIntValueLookup#set(long[], int, long, int, long)} but for the longs following the header
+     */
+    public static void set(DirectMemory memory, int bits, long min, int doc, long value) {
+        final long mask = PackedIntValueLookup.mask(bits);
+        final long delta = (value - min) & mask;
+        final long bitIndex = (long) doc * bits;
+        final long address = HEADER_SIZE + ((bitIndex >>> 6) << 3);
+        final int shift = (int) (bitIndex & 63);
+        memory.putLong(address, (memory.getLong(address) & ~(mask << shift)) | (delta << shift));
+        if (shift + bits > 64) {
+            final int highShift = 64 - shift;
+            memory.putLong(address + 8, (memory.getLong(address + 8) & ~(mask >>> highShift)) | (delta >>> highShift));
+        }
+    }
+
+    @Override
+    public long getMin() {
+        return min;
+    }
+
+    @Override
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public void lookup(int[] docIds, long[] values, int n) {
+        for (int i = 0; i < n; ++i) {
+            final long bitIndex = (long) docIds[i] * bits;
+            final long address = HEADER_SIZE + ((bitIndex >>> 6) << 3);
+            final int shift = (int) (bitIndex & 63);
+            // the second shift is split in two so that it is 0 rather than a no-op when shift is 0
+            final long packed = (memory.getLong(address) >>> shift) | ((memory.getLong(address + 8) << 1) << (63 - shift));
+            values[i] = min + (packed & mask);
+        }
+    }
+
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        long bitIndex = (long) start * bits;
+        for (int i = 0; i < n; ++i, bitIndex += bits) {
+            final long address = HEADER_SIZE + ((bitIndex >>> 6) << 3);
+            final int shift = (int) (bitIndex & 63);
+            final long packed = (memory.getLong(address) >>> shift) | ((memory.getLong(address + 8) << 1) << (63 - shift));
+            values[i] = min + (packed & mask);
+        }
+    }
+
+    @Override
+    public long memoryUsed() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        Closeables2.closeQuietly(buffer, LOG);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.util.mmap.DirectMemory;
+
+/**
+ * Issues MADV_WILLNEED for the window of a fixed width mmapped field cache that a sorted stream of lookups is about
+ * to read, so that page faults on cold caches overlap with work on the current buffer of docs instead of stalling
+ * every lookup. Advice is issued at most once per window, and a lookup that moves backwards (a new pass over the
+ * docs) starts over. Lookups are shared between sessions so the position is tracked without synchronization; a
+ * lost update only costs a redundant or a missing hint.
+ *
+ * Enabled with -Dflamdex.mmap.prefetch; -Dflamdex.mmap.prefetch.window sets the window in bytes and
+ * -Dflamdex.mmap.hugepages additionally advises the whole mapping to use transparent huge pages.
+ */
+final class MMapPrefetcher {
+    static final boolean PREFETCH_ENABLED = System.getProperty("flamdex.mmap.prefetch") != null;
+    static final boolean HUGE_PAGES_ENABLED = System.getProperty("flamdex.mmap.hugepages") != null;
+    static final long DEFAULT_WINDOW = 1 << 20;
+
+    private final long address;
+    private final long length;
+    private final int bytesPerDoc;
+    private final long window;
+
+    private long lastStart = 0;
+    private long advisedEnd = 0;
+    private int numAdvised = 0;
+
+    MMapPrefetcher(long address, long length, int bytesPerDoc, long window) {
+        this.address = address;
+        this.length = length;
+        this.bytesPerDoc = bytesPerDoc;
+        this.window = window;
+    }
+
+    /**
+     * @return a prefetcher for memory, or null if prefetching is disabled or libmadvise is unavailable
+     */
+    static MMapPrefetcher create(DirectMemory memory, int bytesPerDoc) {
+        if (HUGE_PAGES_ENABLED) {
+            NativeMemoryAdvice.hugePages(memory.getAddress(), memory.length());
+        }
+        if (!PREFETCH_ENABLED || !NativeMemoryAdvice.isAvailable()) {
+            return null;
+        }
+        return new MMapPrefetcher(memory.getAddress(), memory.length(), bytesPerDoc, getWindow());
+    }
+
+    private static long getWindow() {
+        final String window = System.getProperty("flamdex.mmap.prefetch.window");
+        return window != null ? Long.parseLong(window) : DEFAULT_WINDOW;
+    }
+
+    /**
+     * @param firstDoc the first doc of the upcoming lookup
+     * @param lastDoc the last doc of the upcoming lookup, lookups of unsorted docs are ignored
+     */
+    void prefetch(int firstDoc, int lastDoc) {
+        if (lastDoc < firstDoc) {
+            return;
+        }
+        final long start = (long) firstDoc * bytesPerDoc;
+        final long end = Math.min(length, ((long) lastDoc + 1) * bytesPerDoc);
+        if (start < lastStart) {
+            advisedEnd = start;
+        }
+        lastStart = start;
+        if (end <= advisedEnd) {
+            return;
+        }
+        final long adviseStart = Math.max(start, advisedEnd);
+        final long adviseEnd = Math.min(length, end + window);
+        advisedEnd = adviseEnd;
+        numAdvised++;
+        NativeMemoryAdvice.willNeed(address + adviseStart, adviseEnd - adviseStart);
+    }
+
+    int getNumAdvised() {
+        return numAdvised;
+    }
+}
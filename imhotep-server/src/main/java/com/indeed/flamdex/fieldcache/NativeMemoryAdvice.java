@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.google.common.io.ByteStreams;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * madvise(2) hints for mmapped field caches. If libmadvise can't be loaded every call is a no-op that returns false.
+ */
+final class NativeMemoryAdvice {
+    private static final Logger log = Logger.getLogger(NativeMemoryAdvice.class);
+
+    // values from linux/mman.h
+    private static final int MADV_WILLNEED = 3;
+    private static final int MADV_HUGEPAGE = 14;
+
+    private static final boolean available;
+
+    static {
+        available = loadNativeLibrary();
+    }
+
+    private NativeMemoryAdvice() {
+    }
+
+    private static boolean loadNativeLibrary() {
+        try {
+            final String osName = System.getProperty("os.name");
+            final String arch = System.getProperty("os.arch");
+            final String resourcePath = "/native/" + osName + "-" + arch + "/libmadvise.so.1.0.1";
+            final InputStream is = NativeMemoryAdvice.class.getResourceAsStream(resourcePath);
+            if (is == null) {
+                throw new FileNotFoundException("unable to find libmadvise.so.1.0.1 at resource path "+resourcePath);
+            }
+            final File tempFile = File.createTempFile("libmadvise", ".so");
+            final OutputStream os = new FileOutputStream(tempFile);
+            ByteStreams.copy(is, os);
+            os.close();
+            is.close();
+            System.load(tempFile.getAbsolutePath());
+            // noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return true;
+        } catch (Throwable e) {
+            log.warn("unable to load libmadvise using class loader, looking in java.library.path", e);
+        }
+        try {
+            System.loadLibrary("madvise");
+            return true;
+        } catch (Throwable e) {
+            log.warn("unable to load libmadvise, mmapped field caches will not be advised", e);
+            return false;
+        }
+    }
+
+    static boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * asks the kernel to start reading [address, address+length) in ahead of use
+     */
+    static boolean willNeed(long address, long length) {
+        return available && length > 0 && madvise(address, length, MADV_WILLNEED) == 0;
+    }
+
+    /**
+     * asks the kernel to back [address, address+length) with transparent huge pages. for file backed mappings this
+     * only has an effect on kernels that support read only THP for page cache pages.
+     */
+    static boolean hugePages(long address, long length) {
+        return available && length > 0 && madvise(address, length, MADV_HUGEPAGE) == 0;
+    }
+
+    // rounds address down to a page boundary, returns 0 or errno
+    private static native int madvise(long address, long length, int advice);
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.flamdex.api.IntValueLookup;
+
+/**
+ * An {@link IntValueLookup} that can also give each doc's term as an ordinal into the field's terms in ascending
+ * order, for code that wants to bucket docs by term rather than by value.
+ */
+public interface OrdinalIntValueLookup extends IntValueLookup {
+    int getNumTerms();
+
+    /**
+     * @param ordinal a value in [0, {@link #getNumTerms()})
+     * @return the term with the given ordinal, terms with higher ordinals are larger
+     */
+    long getTerm(int ordinal);
+
+    void lookupOrdinals(int[] docIds, int[] ordinals, int n);
+}
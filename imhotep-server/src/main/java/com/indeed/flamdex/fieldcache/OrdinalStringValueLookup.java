@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.flamdex.api.StringValueLookup;
+
+/**
+ * A {@link StringValueLookup} that can also give each doc's term as an ordinal into the field's terms in ascending
+ * order and copy terms into a caller supplied buffer, so that callers iterating over many docs don't have to
+ * allocate a String per doc.
+ */
+public interface OrdinalStringValueLookup extends StringValueLookup {
+    /**
+     * @return the number of ordinals, including ordinal 0, the empty string given to docs without a term
+     */
+    int getNumTerms();
+
+    int getOrdinal(int docId);
+
+    /**
+     * @return the length in bytes of the longest UTF-8 encoded term, a buffer this size fits any term
+     */
+    int getMaxTermLength();
+
+    /**
+     * @param ordinal a value in [0, {@link #getNumTerms()})
+     * @param dest buffer of at least {@link #getMaxTermLength()} bytes
+     * @return the number of UTF-8 bytes of the term copied into dest
+     */
+    int getTermBytes(int ordinal, byte[] dest);
+
+    String getTerm(int ordinal);
+}
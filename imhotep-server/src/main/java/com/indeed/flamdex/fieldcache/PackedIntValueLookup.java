@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.flamdex.api.IntValueLookup;
+
+/**
+ * Frame of reference field cache: each doc stores value - min in the smallest number of bits that holds
+ * max - min, packed into longs. Values may straddle two longs, and the array has one long of padding at the
+ * end so that lookups don't need to branch on that.
+ */
+public final class PackedIntValueLookup implements IntValueLookup {
+    private long[] words;
+    private final long min;
+    private final long max;
+    private final int bits;
+    private final long mask;
+
+    public PackedIntValueLookup(long[] words, long min, long max, int bits) {
+        this.words = words;
+        this.min = min;
+        this.max = max;
+        this.bits = bits;
+        this.mask = mask(bits);
+    }
+
+    public static int bitsRequired(long min, long max) {
+        // max - min is treated as unsigned so that the full long range works
+        return Math.max(1, 64 - Long.numberOfLeadingZeros(max - min));
+    }
+
+    public static int numWords(int numDocs, int bits) {
+        return (int) (((long) numDocs * bits + 63) >>> 6) + 1;
+    }
+
+    static long mask(int bits) {
+        return bits == 64 ? -1L : (1L << bits) - 1;
+    }
+
+    /**
+     * Stores value - min for doc in words, replacing whatever was there
+     */
+    public static void set(long[] words, int bits, long min, int doc, long value) {
+        final long mask = mask(bits);
+        final long delta = (value - min) & mask;
+        final long bitIndex = (long) doc * bits;
+        final int index = (int) (bitIndex >>> 6);
+        final int shift = (int) (bitIndex & 63);
+        words[index] = (words[index] & ~(mask << shift)) | (delta << shift);
+        if (shift + bits > 64) {
+            final int highShift = 64 - shift;
+            words[index + 1] = (words[index + 1] & ~(mask >>> highShift)) | (delta >>> highShift);
+        }
+    }
+
+    @Override
+    public long getMin() {
+        return min;
+    }
+
+    @Override
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public void lookup(int[] docIds, long[] values, int n) {
+        final long[] words = this.words;
+        final int bits = this.bits;
+        for (int i = 0; i < n; ++i) {
+            final long bitIndex = (long) docIds[i] * bits;
+            final int index = (int) (bitIndex >>> 6);
+            final int shift = (int) (bitIndex & 63);
+            // the second shift is split in two so that it is 0 rather than a no-op when shift is 0
+            final long packed = (words[index] >>> shift) | ((words[index + 1] << 1) << (63 - shift));
+            values[i] = min + (packed & mask);
+        }
+    }
+
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        final long[] words = this.words;
+        final int bits = this.bits;
+        long bitIndex = (long) start * bits;
+        for (int i = 0; i < n; ++i, bitIndex += bits) {
+            final int index = (int) (bitIndex >>> 6);
+            final int shift = (int) (bitIndex & 63);
+            final long packed = (words[index] >>> shift) | ((words[index + 1] << 1) << (63 - shift));
+            values[i] = min + (packed & mask);
+        }
+    }
+
+    @Override
+    public long memoryUsed() {
+        return 8L * words.length;
+    }
+
+    @Override
+    public void close() {
+        words = null;
+    }
+}
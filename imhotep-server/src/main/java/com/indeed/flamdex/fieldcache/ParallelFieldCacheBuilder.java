@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntTermIterator;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Builds field caches on several threads by splitting a field's terms into ranges with roughly the same number
+ * of postings and filling the cache from each range concurrently. Every range writes different docs of the same
+ * target, so this only works for caches where each doc has its own array element.
+ */
+public final class ParallelFieldCacheBuilder {
+    private static final int BUFFER_SIZE = 1024;
+
+    public interface DocValueWriter {
+        /**
+         * called concurrently for different docs
+         */
+        void set(int doc, long value);
+    }
+
+    private final ExecutorService executor;
+    private final int numPartitions;
+
+    public ParallelFieldCacheBuilder(ExecutorService executor, int numPartitions) {
+        this.executor = executor;
+        this.numPartitions = numPartitions;
+    }
+
+    /**
+     * Calls writer.set for every term of every doc in field. The reader must support several term iterators and
+     * doc id streams being used at the same time. For a doc with several terms it is unspecified which one is
+     * written last, same as with an {@link UnsortedIntTermDocIterator}.
+     */
+    public void fill(final FlamdexReader r, final String field, final DocValueWriter writer) {
+        final long[] splitTerms = splitTerms(r, field, numPartitions);
+        if (splitTerms.length == 0) {
+            fillRange(r, field, Long.MIN_VALUE, false, Long.MAX_VALUE, false, writer);
+            return;
+        }
+        final List<Future<Void>> futures = Lists.newArrayList();
+        try {
+            for (int i = 0; i <= splitTerms.length; i++) {
+                final boolean hasStart = i > 0;
+                final long start = hasStart ? splitTerms[i - 1] : Long.MIN_VALUE;
+                final boolean hasEnd = i < splitTerms.length;
+                final long end = hasEnd ? splitTerms[i] : Long.MAX_VALUE;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        fillRange(r, field, start, hasStart, end, hasEnd, writer);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            for (final Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return up to numPartitions - 1 ascending terms that split the field's postings into ranges of about the same
+     *         size, each range starting at one of the terms
+     */
+    static long[] splitTerms(FlamdexReader r, String field, int numPartitions) {
+        long totalDocFreq = 0;
+        final IntTermIterator iterator = r.getIntTermIterator(field);
+        try {
+            while (iterator.next()) {
+                totalDocFreq += iterator.docFreq();
+            }
+        } finally {
+            iterator.close();
+        }
+
+        final long[] ret = new long[Math.max(numPartitions - 1, 0)];
+        int numSplits = 0;
+        long docFreqSoFar = 0;
+        final IntTermIterator splitIterator = r.getIntTermIterator(field);
+        try {
+            while (numSplits < ret.length && splitIterator.next()) {
+                if (docFreqSoFar >= totalDocFreq * (numSplits + 1) / numPartitions && docFreqSoFar > 0) {
+                    ret[numSplits++] = splitIterator.term();
+                }
+                docFreqSoFar += splitIterator.docFreq();
+            }
+        } finally {
+            splitIterator.close();
+        }
+        final long[] trimmed = new long[numSplits];
+        System.arraycopy(ret, 0, trimmed, 0, numSplits);
+        return trimmed;
+    }
+
+    private static void fillRange(FlamdexReader r, String field, long start, boolean hasStart, long end, boolean hasEnd, DocValueWriter writer) {
+        final int[] docIdBuf = new int[BUFFER_SIZE];
+        final IntTermIterator iterator = r.getIntTermIterator(field);
+        try {
+            final DocIdStream docIdStream = r.getDocIdStream();
+            try {
+                if (hasStart) {
+                    iterator.reset(start);
+                }
+                while (iterator.next()) {
+                    final long term = iterator.term();
+                    if (hasEnd && term >= end) {
+                        break;
+                    }
+                    docIdStream.reset(iterator);
+                    while (true) {
+                        final int n = docIdStream.fillDocIdBuffer(docIdBuf);
+                        for (int i = 0; i < n; ++i) {
+                            writer.set(docIdBuf[i], term);
+                        }
+                        if (n < BUFFER_SIZE) break;
+                    }
+                }
+            } finally {
+                docIdStream.close();
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+}
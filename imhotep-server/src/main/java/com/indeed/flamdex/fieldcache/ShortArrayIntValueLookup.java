@@ -58,6 +58,13 @@ public final class ShortArrayIntValueLookup implements IntValueLookup {
         }
     }
 
+    @Override
+    public final void lookupRange(int start, long[] values, int n) {
+        for (int i = 0; i < n; ++i) {
+            values[i] = lookupArray[start + i];
+        }
+    }
+
     @Override
     public long memoryUsed() {
         return 2L * lookupArray.length;
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.google.common.io.LittleEndianDataInputStream;
+import com.google.common.io.LittleEndianDataOutputStream;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.imhotep.io.caching.CachedFile;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Min and max value of every block of {@link #BLOCK_SIZE} consecutive docs of a metric, so that range filters can
+ * accept or reject whole blocks without looking up their values.
+ */
+public final class ZoneMap {
+    public static final int BLOCK_SHIFT = 10;
+    public static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    private static final int BUFFER_SIZE = BLOCK_SIZE;
+
+    private final int numDocs;
+    private final long[] mins;
+    private final long[] maxes;
+
+    private ZoneMap(int numDocs, long[] mins, long[] maxes) {
+        this.numDocs = numDocs;
+        this.mins = mins;
+        this.maxes = maxes;
+    }
+
+    public static ZoneMap build(IntValueLookup lookup, int numDocs) {
+        final int numBlocks = numBlocks(numDocs);
+        final long[] mins = new long[numBlocks];
+        final long[] maxes = new long[numBlocks];
+        final long[] valueBuf = new long[BUFFER_SIZE];
+        for (int block = 0; block < numBlocks; ++block) {
+            final int start = block << BLOCK_SHIFT;
+            final int n = Math.min(numDocs, start + BLOCK_SIZE) - start;
+            lookup.lookupRange(start, valueBuf, n);
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < n; ++i) {
+                min = Math.min(min, valueBuf[i]);
+                max = Math.max(max, valueBuf[i]);
+            }
+            mins[block] = min;
+            maxes[block] = max;
+        }
+        return new ZoneMap(numDocs, mins, maxes);
+    }
+
+    /**
+     * @return the zone map of lookup, or null if it doesn't have one
+     */
+    public static @Nullable ZoneMap of(IntValueLookup lookup) {
+        return lookup instanceof ZoneMapped ? ((ZoneMapped) lookup).getZoneMap() : null;
+    }
+
+    public static String getFilename(String field) {
+        return "fld-" + field + ".zonemap";
+    }
+
+    /**
+     * writes the zone map next to the field's precomputed cache: block shift and number of docs followed by the
+     * min and max of every block, all little endian
+     */
+    public void write(String directory, String field) throws IOException {
+        final File file = new File(directory, getFilename(field));
+        final File tmpFile = new File(directory, getFilename(field) + ".tmp");
+        final LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+        try {
+            out.writeInt(BLOCK_SHIFT);
+            out.writeInt(numDocs);
+            for (int block = 0; block < mins.length; ++block) {
+                out.writeLong(mins[block]);
+                out.writeLong(maxes[block]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("unable to rename " + tmpFile + " to " + file);
+        }
+    }
+
+    /**
+     * @return the zone map written for field, or null if there is none or it was written for other blocks or docs
+     */
+    public static @Nullable ZoneMap read(String directory, String field, int numDocs) throws IOException {
+        final CachedFile cachedFile = CachedFile.create(CachedFile.buildPath(directory, getFilename(field)));
+        if (!cachedFile.exists()) {
+            return null;
+        }
+        final LittleEndianDataInputStream in = new LittleEndianDataInputStream(new BufferedInputStream(new FileInputStream(cachedFile.loadFile()), 65536));
+        try {
+            if (in.readInt() != BLOCK_SHIFT || in.readInt() != numDocs) {
+                return null;
+            }
+            final int numBlocks = numBlocks(numDocs);
+            final long[] mins = new long[numBlocks];
+            final long[] maxes = new long[numBlocks];
+            for (int block = 0; block < numBlocks; ++block) {
+                mins[block] = in.readLong();
+                maxes[block] = in.readLong();
+            }
+            return new ZoneMap(numDocs, mins, maxes);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return true if {@link #read} would return a zone map, which only takes reading the header
+     */
+    public static boolean exists(String directory, String field, int numDocs) throws IOException {
+        final CachedFile cachedFile = CachedFile.create(CachedFile.buildPath(directory, getFilename(field)));
+        if (!cachedFile.exists()) {
+            return false;
+        }
+        final LittleEndianDataInputStream in = new LittleEndianDataInputStream(new FileInputStream(cachedFile.loadFile()));
+        try {
+            return in.readInt() == BLOCK_SHIFT && in.readInt() == numDocs;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void delete(String directory, String field) throws IOException {
+        final File file = new File(directory, getFilename(field));
+        if (file.exists() && !file.delete()) {
+            throw new IOException("unable to delete " + file);
+        }
+    }
+
+    private static int numBlocks(int numDocs) {
+        return (numDocs + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+    }
+
+    public int getNumBlocks() {
+        return mins.length;
+    }
+
+    public int getBlockStart(int block) {
+        return block << BLOCK_SHIFT;
+    }
+
+    public int getBlockEnd(int block) {
+        return Math.min(numDocs, (block + 1) << BLOCK_SHIFT);
+    }
+
+    public long getBlockMin(int block) {
+        return mins[block];
+    }
+
+    public long getBlockMax(int block) {
+        return maxes[block];
+    }
+
+    /**
+     * @return true if no value in block is in [min, max]
+     */
+    public boolean isDisjoint(int block, long min, long max) {
+        return maxes[block] < min || mins[block] > max;
+    }
+
+    /**
+     * @return true if every value in block is in [min, max]
+     */
+    public boolean isContained(int block, long min, long max) {
+        return mins[block] >= min && maxes[block] <= max;
+    }
+
+    public long memoryUsed() {
+        return 16L * mins.length;
+    }
+
+    public static long memoryRequired(int numDocs) {
+        return 16L * numBlocks(numDocs);
+    }
+}
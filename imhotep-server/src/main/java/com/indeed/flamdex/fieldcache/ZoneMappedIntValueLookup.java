@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.flamdex.api.IntValueLookup;
+
+/**
+ * An {@link IntValueLookup} together with its {@link ZoneMap}. Closing it closes the wrapped lookup.
+ */
+public final class ZoneMappedIntValueLookup implements IntValueLookup, ZoneMapped {
+    private final IntValueLookup lookup;
+    private final ZoneMap zoneMap;
+
+    public ZoneMappedIntValueLookup(IntValueLookup lookup, int numDocs) {
+        this(lookup, ZoneMap.build(lookup, numDocs));
+    }
+
+    public ZoneMappedIntValueLookup(IntValueLookup lookup, ZoneMap zoneMap) {
+        this.lookup = lookup;
+        this.zoneMap = zoneMap;
+    }
+
+    @Override
+    public ZoneMap getZoneMap() {
+        return zoneMap;
+    }
+
+    @Override
+    public long getMin() {
+        return lookup.getMin();
+    }
+
+    @Override
+    public long getMax() {
+        return lookup.getMax();
+    }
+
+    @Override
+    public void lookup(int[] docIds, long[] values, int n) {
+        lookup.lookup(docIds, values, n);
+    }
+
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        lookup.lookupRange(start, values, n);
+    }
+
+    @Override
+    public long memoryUsed() {
+        return lookup.memoryUsed() + zoneMap.memoryUsed();
+    }
+
+    @Override
+    public void close() {
+        lookup.close();
+    }
+}
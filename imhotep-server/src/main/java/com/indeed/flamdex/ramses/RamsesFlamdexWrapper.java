@@ -135,7 +135,7 @@ public class RamsesFlamdexWrapper implements FlamdexReader {
 
     public StringValueLookup getStringLookup(final String field) throws FlamdexOutOfMemoryException {
         try {
-            return FieldCacher.newStringValueLookup(field, this, directory);
+            return FieldCacher.newStringValueLookup(field, this);
         } catch (IOException e) {
             throw Throwables.propagate(e);
         }
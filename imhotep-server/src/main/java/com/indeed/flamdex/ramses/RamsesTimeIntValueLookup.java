@@ -51,6 +51,21 @@ public class RamsesTimeIntValueLookup implements IntValueLookup {
         }
     }
 
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        if (n <= 0) return;
+        final int lastBoundary = docIdBoundaries.length - 1;
+        // search once, then walk the boundaries forward since the docIds are increasing
+        int index = start >= docIdBoundaries[lastBoundary] ? lastBoundary : gteBinarySearch(docIdBoundaries, start);
+        for (int i = 0; i < n; ++i) {
+            final int docId = start + i;
+            while (index < lastBoundary && docId >= docIdBoundaries[index + 1]) {
+                ++index;
+            }
+            values[i] = (timeUpperBits[index] << 8) | (128 + timeLowerBits[docId]);
+        }
+    }
+
     @Override
     public long memoryUsed() {
         return memoryOverhead;
@@ -40,6 +40,16 @@ public class ScalingMetric implements IntValueLookup {
     @Override
     public void lookup(int[] docIds, long[] values, int n) {
         metric.lookup(docIds, values, n);
+        transform(values, n);
+    }
+
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        metric.lookupRange(start, values, n);
+        transform(values, n);
+    }
+
+    private void transform(long[] values, int n) {
         for (int i = 0; i < n; ++i) {
             values[i] *= scaleFactor;
         }
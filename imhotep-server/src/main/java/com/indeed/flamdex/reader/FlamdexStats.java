@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.reader;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Ints;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.imhotep.io.caching.CachedFile;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Per field statistics of a shard computed when it is written, so that planning calls such as total doc freqs,
+ * min and max terms and approximate top terms don't have to scan the term files. Shards written without a stats
+ * file, or whose file doesn't match their number of docs, fall back to scanning.
+ */
+public final class FlamdexStats {
+    public static final String FILENAME = "stats.bin";
+
+    /**
+     * number of most frequent terms kept per field
+     */
+    public static final int TOP_TERMS = 100;
+
+    /**
+     * bucket b of a histogram counts the terms with a doc freq in [2^b, 2^(b+1))
+     */
+    public static final int NUM_HISTOGRAM_BUCKETS = 32;
+
+    private static final int VERSION = 1;
+
+    private final int numDocs;
+    private final Map<String, IntFieldStats> intFields = new TreeMap<String, IntFieldStats>();
+    private final Map<String, StringFieldStats> stringFields = new TreeMap<String, StringFieldStats>();
+
+    public FlamdexStats(int numDocs) {
+        this.numDocs = numDocs;
+    }
+
+    /**
+     * @return the stats of r, or null if it doesn't have any
+     */
+    public static @Nullable FlamdexStats of(FlamdexReader r) {
+        return r instanceof FlamdexStatsSource ? ((FlamdexStatsSource) r).getFlamdexStats() : null;
+    }
+
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    public @Nullable IntFieldStats getIntFieldStats(String field) {
+        return intFields.get(field);
+    }
+
+    public @Nullable StringFieldStats getStringFieldStats(String field) {
+        return stringFields.get(field);
+    }
+
+    public void putIntFieldStats(String field, IntFieldStats stats) {
+        intFields.put(field, stats);
+    }
+
+    public void putStringFieldStats(String field, StringFieldStats stats) {
+        stringFields.put(field, stats);
+    }
+
+    private static <T> void offer(PriorityQueue<TermWithFreq<T>> topTerms, T term, int docFreq) {
+        if (topTerms.size() < TOP_TERMS) {
+            topTerms.add(new TermWithFreq<T>(term, docFreq));
+        } else if (docFreq > topTerms.peek().docFreq) {
+            topTerms.poll();
+            topTerms.add(new TermWithFreq<T>(term, docFreq));
+        }
+    }
+
+    /**
+     * @return the shard's stats, or null if none were written or they were written for a different number of docs
+     */
+    public static @Nullable FlamdexStats read(String directory, int numDocs) throws IOException {
+        final CachedFile cachedFile = CachedFile.create(CachedFile.buildPath(directory, FILENAME));
+        if (!cachedFile.exists()) {
+            return null;
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cachedFile.loadFile()), 65536));
+        try {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            final FlamdexStats ret = new FlamdexStats(in.readInt());
+            if (ret.numDocs != numDocs) {
+                return null;
+            }
+            final int numIntFields = in.readInt();
+            for (int i = 0; i < numIntFields; ++i) {
+                final String field = readString(in);
+                final long numTerms = in.readLong();
+                final long totalDocFreq = in.readLong();
+                final long[] histogram = readHistogram(in);
+                final long minTerm = in.readLong();
+                final long maxTerm = in.readLong();
+                final int k = in.readInt();
+                final long[] terms = new long[k];
+                final int[] docFreqs = new int[k];
+                for (int j = 0; j < k; ++j) {
+                    terms[j] = in.readLong();
+                    docFreqs[j] = in.readInt();
+                }
+                ret.putIntFieldStats(field, new IntFieldStats(numTerms, totalDocFreq, histogram, minTerm, maxTerm, terms, docFreqs));
+            }
+            final int numStringFields = in.readInt();
+            for (int i = 0; i < numStringFields; ++i) {
+                final String field = readString(in);
+                final long numTerms = in.readLong();
+                final long totalDocFreq = in.readLong();
+                final long[] histogram = readHistogram(in);
+                final String minTerm = numTerms > 0 ? readString(in) : null;
+                final String maxTerm = numTerms > 0 ? readString(in) : null;
+                final int k = in.readInt();
+                final String[] terms = new String[k];
+                final int[] docFreqs = new int[k];
+                for (int j = 0; j < k; ++j) {
+                    terms[j] = readString(in);
+                    docFreqs[j] = in.readInt();
+                }
+                ret.putStringFieldStats(field, new StringFieldStats(numTerms, totalDocFreq, histogram, minTerm, maxTerm, terms, docFreqs));
+            }
+            return ret;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void write(String directory, FlamdexStats stats) throws IOException {
+        final File file = new File(directory, FILENAME);
+        final File tmpFile = new File(directory, FILENAME + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(stats.numDocs);
+            out.writeInt(stats.intFields.size());
+            for (final Map.Entry<String, IntFieldStats> entry : stats.intFields.entrySet()) {
+                final IntFieldStats fieldStats = entry.getValue();
+                writeString(out, entry.getKey());
+                writeCommon(out, fieldStats);
+                out.writeLong(fieldStats.minTerm);
+                out.writeLong(fieldStats.maxTerm);
+                out.writeInt(fieldStats.topTerms.length);
+                for (int i = 0; i < fieldStats.topTerms.length; ++i) {
+                    out.writeLong(fieldStats.topTerms[i]);
+                    out.writeInt(fieldStats.getTopTermDocFreq(i));
+                }
+            }
+            out.writeInt(stats.stringFields.size());
+            for (final Map.Entry<String, StringFieldStats> entry : stats.stringFields.entrySet()) {
+                final StringFieldStats fieldStats = entry.getValue();
+                writeString(out, entry.getKey());
+                writeCommon(out, fieldStats);
+                if (fieldStats.getNumTerms() > 0) {
+                    writeString(out, fieldStats.minTerm);
+                    writeString(out, fieldStats.maxTerm);
+                }
+                out.writeInt(fieldStats.topTerms.length);
+                for (int i = 0; i < fieldStats.topTerms.length; ++i) {
+                    writeString(out, fieldStats.topTerms[i]);
+                    out.writeInt(fieldStats.getTopTermDocFreq(i));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("unable to rename " + tmpFile + " to " + file);
+        }
+    }
+
+    private static void writeCommon(DataOutputStream out, FieldStats fieldStats) throws IOException {
+        out.writeLong(fieldStats.numTerms);
+        out.writeLong(fieldStats.totalDocFreq);
+        // trailing empty buckets are left out
+        int numBuckets = NUM_HISTOGRAM_BUCKETS;
+        while (numBuckets > 0 && fieldStats.docFreqHistogram[numBuckets - 1] == 0) {
+            numBuckets--;
+        }
+        out.writeByte(numBuckets);
+        for (int i = 0; i < numBuckets; ++i) {
+            out.writeLong(fieldStats.docFreqHistogram[i]);
+        }
+    }
+
+    private static long[] readHistogram(DataInputStream in) throws IOException {
+        final long[] ret = new long[NUM_HISTOGRAM_BUCKETS];
+        final int numBuckets = in.readUnsignedByte();
+        for (int i = 0; i < numBuckets; ++i) {
+            ret[i] = in.readLong();
+        }
+        return ret;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    public abstract static class FieldStats {
+        private final long numTerms;
+        private final long totalDocFreq;
+        private final long[] docFreqHistogram;
+        private final int[] topTermDocFreqs;
+
+        FieldStats(long numTerms, long totalDocFreq, long[] docFreqHistogram, int[] topTermDocFreqs) {
+            this.numTerms = numTerms;
+            this.totalDocFreq = totalDocFreq;
+            this.docFreqHistogram = docFreqHistogram;
+            this.topTermDocFreqs = topTermDocFreqs;
+        }
+
+        public long getNumTerms() {
+            return numTerms;
+        }
+
+        public long getTotalDocFreq() {
+            return totalDocFreq;
+        }
+
+        /**
+         * @return {@link #NUM_HISTOGRAM_BUCKETS} counts, see {@link #NUM_HISTOGRAM_BUCKETS}
+         */
+        public long[] getDocFreqHistogram() {
+            return Arrays.copyOf(docFreqHistogram, docFreqHistogram.length);
+        }
+
+        /**
+         * @return the number of top terms stored, {@link #TOP_TERMS} unless the field has fewer terms
+         */
+        public int getNumTopTerms() {
+            return topTermDocFreqs.length;
+        }
+
+        /**
+         * @return the doc freq of the i-th most frequent term
+         */
+        public int getTopTermDocFreq(int i) {
+            return topTermDocFreqs[i];
+        }
+
+        /**
+         * @return true if the stored top terms are the k most frequent terms of the field
+         */
+        public boolean hasTopTerms(int k) {
+            return k <= topTermDocFreqs.length || topTermDocFreqs.length == numTerms;
+        }
+    }
+
+    public static final class IntFieldStats extends FieldStats {
+        private final long minTerm;
+        private final long maxTerm;
+        private final long[] topTerms;
+
+        IntFieldStats(long numTerms, long totalDocFreq, long[] docFreqHistogram, long minTerm, long maxTerm, long[] topTerms, int[] topTermDocFreqs) {
+            super(numTerms, totalDocFreq, docFreqHistogram, topTermDocFreqs);
+            this.minTerm = minTerm;
+            this.maxTerm = maxTerm;
+            this.topTerms = topTerms;
+        }
+
+        /**
+         * @return the smallest term, Long.MAX_VALUE if the field has no terms
+         */
+        public long getMinTerm() {
+            return minTerm;
+        }
+
+        /**
+         * @return the largest term, Long.MIN_VALUE if the field has no terms
+         */
+        public long getMaxTerm() {
+            return maxTerm;
+        }
+
+        /**
+         * @return the i-th most frequent term
+         */
+        public long getTopTerm(int i) {
+            return topTerms[i];
+        }
+    }
+
+    public static final class StringFieldStats extends FieldStats {
+        private final String minTerm;
+        private final String maxTerm;
+        private final String[] topTerms;
+
+        StringFieldStats(long numTerms, long totalDocFreq, long[] docFreqHistogram, @Nullable String minTerm, @Nullable String maxTerm, String[] topTerms, int[] topTermDocFreqs) {
+            super(numTerms, totalDocFreq, docFreqHistogram, topTermDocFreqs);
+            this.minTerm = minTerm;
+            this.maxTerm = maxTerm;
+            this.topTerms = topTerms;
+        }
+
+        /**
+         * @return the smallest term, null if the field has no terms
+         */
+        public @Nullable String getMinTerm() {
+            return minTerm;
+        }
+
+        /**
+         * @return the largest term, null if the field has no terms
+         */
+        public @Nullable String getMaxTerm() {
+            return maxTerm;
+        }
+
+        /**
+         * @return the i-th most frequent term
+         */
+        public String getTopTerm(int i) {
+            return topTerms[i];
+        }
+    }
+
+    /**
+     * collects the stats of an int field from its terms, so writers can compute them as they go
+     */
+    public static final class IntFieldStatsBuilder {
+        private final HistogramBuilder histogram = new HistogramBuilder();
+        private final PriorityQueue<TermWithFreq<Long>> topTerms = new PriorityQueue<TermWithFreq<Long>>();
+        private long minTerm = Long.MAX_VALUE;
+        private long maxTerm = Long.MIN_VALUE;
+
+        public void add(long term, int docFreq) {
+            minTerm = Math.min(minTerm, term);
+            maxTerm = Math.max(maxTerm, term);
+            histogram.add(docFreq);
+            offer(topTerms, term, docFreq);
+        }
+
+        public IntFieldStats build() {
+            final PriorityQueue<TermWithFreq<Long>> queue = new PriorityQueue<TermWithFreq<Long>>(topTerms);
+            final int k = queue.size();
+            final long[] terms = new long[k];
+            final int[] docFreqs = new int[k];
+            for (int i = k - 1; i >= 0; --i) {
+                final TermWithFreq<Long> term = queue.poll();
+                terms[i] = term.term;
+                docFreqs[i] = term.docFreq;
+            }
+            return new IntFieldStats(histogram.numTerms, histogram.totalDocFreq, histogram.buckets.clone(), minTerm, maxTerm, terms, docFreqs);
+        }
+    }
+
+    /**
+     * collects the stats of a string field from its terms, which have to be added in sorted order
+     */
+    public static final class StringFieldStatsBuilder {
+        private final HistogramBuilder histogram = new HistogramBuilder();
+        private final PriorityQueue<TermWithFreq<String>> topTerms = new PriorityQueue<TermWithFreq<String>>();
+        private String minTerm = null;
+        private String maxTerm = null;
+
+        public void add(String term, int docFreq) {
+            if (minTerm == null) {
+                minTerm = term;
+            }
+            maxTerm = term;
+            histogram.add(docFreq);
+            offer(topTerms, term, docFreq);
+        }
+
+        public StringFieldStats build() {
+            final PriorityQueue<TermWithFreq<String>> queue = new PriorityQueue<TermWithFreq<String>>(topTerms);
+            final int k = queue.size();
+            final String[] terms = new String[k];
+            final int[] docFreqs = new int[k];
+            for (int i = k - 1; i >= 0; --i) {
+                final TermWithFreq<String> term = queue.poll();
+                terms[i] = term.term;
+                docFreqs[i] = term.docFreq;
+            }
+            return new StringFieldStats(histogram.numTerms, histogram.totalDocFreq, histogram.buckets.clone(), minTerm, maxTerm, terms, docFreqs);
+        }
+    }
+
+    private static final class HistogramBuilder {
+        private final long[] buckets = new long[NUM_HISTOGRAM_BUCKETS];
+        private long numTerms = 0;
+        private long totalDocFreq = 0;
+
+        void add(int docFreq) {
+            numTerms++;
+            totalDocFreq += docFreq;
+            buckets[Math.max(0, 31 - Integer.numberOfLeadingZeros(docFreq))]++;
+        }
+    }
+
+    private static final class TermWithFreq<T> implements Comparable<TermWithFreq<T>> {
+        private final T term;
+        private final int docFreq;
+
+        private TermWithFreq(T term, int docFreq) {
+            this.term = term;
+            this.docFreq = docFreq;
+        }
+
+        @Override
+        public int compareTo(TermWithFreq<T> o) {
+            return Ints.compare(docFreq, o.docFreq);
+        }
+    }
+}
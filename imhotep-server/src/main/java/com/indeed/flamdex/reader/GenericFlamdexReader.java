@@ -136,6 +136,7 @@ public final class GenericFlamdexReader implements FlamdexReader {
         final FlamdexMetadata metadata = FlamdexMetadata.readMetadata(directory);
         switch (metadata.getFormatVersion()) {
             case 0 : return SimpleFlamdexReader.open(directory);
+            case 3 : return SimpleFlamdexReader.open(directory);
             case 1 : throw new UnsupportedOperationException("pfordelta is no longer supported");
             case 2 : 
                 final File indexDir = dir.loadDirectory();
@@ -234,7 +235,7 @@ public final class GenericFlamdexReader implements FlamdexReader {
 
     public StringValueLookup getStringLookup(final String field) throws FlamdexOutOfMemoryException {
         try {
-            return FieldCacher.newStringValueLookup(field, this, directory);
+            return FieldCacher.newStringValueLookup(field, this);
         } catch (IOException e) {
             throw Throwables.propagate(e);
         }
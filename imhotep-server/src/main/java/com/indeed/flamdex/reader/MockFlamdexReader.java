@@ -306,6 +306,13 @@ public class MockFlamdexReader implements FlamdexReader {
             }
         }
 
+        @Override
+        public void lookupRange(int start, long[] values, int n) {
+            for (int i = 0; i < n; ++i) {
+                values[i] = lookup[start + i];
+            }
+        }
+
         @Override
         public long memoryUsed() {
             return 0L;
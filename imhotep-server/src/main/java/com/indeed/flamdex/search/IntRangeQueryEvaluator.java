@@ -18,6 +18,7 @@ import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
+import com.indeed.flamdex.fieldcache.ZoneMap;
 import com.indeed.flamdex.query.Term;
 
 /**
@@ -57,17 +58,18 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
             if (startVal <= metric.getMin() && endVal >= metric.getMax()) {
                 return;
             }
-            final int[] docBuf = new int[BUFFER_SIZE];
+            final ZoneMap zoneMap = ZoneMap.of(metric);
+            if (zoneMap != null) {
+                zoneMapAnd(metric, zoneMap, startVal, endVal, bitSet);
+                return;
+            }
             final long[] valueBuf = new long[BUFFER_SIZE];
             int lastDoc = 0;
             for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
                 final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
+                metric.lookupRange(docStart, valueBuf, n);
                 for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
+                    final int doc = docStart + i;
                     final long val = valueBuf[i];
                     if (val >= startVal && val <= endVal) {
                         if (lastDoc != doc) {
@@ -86,17 +88,18 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
             if (startVal <= metric.getMin() && endVal > metric.getMax()) {
                 return;
             }
-            final int[] docBuf = new int[BUFFER_SIZE];
+            final ZoneMap zoneMap = ZoneMap.of(metric);
+            if (zoneMap != null) {
+                zoneMapAnd(metric, zoneMap, startVal, endVal - 1, bitSet);
+                return;
+            }
             final long[] valueBuf = new long[BUFFER_SIZE];
             int lastDoc = 0;
             for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
                 final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
+                metric.lookupRange(docStart, valueBuf, n);
                 for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
+                    final int doc = docStart + i;
                     final long val = valueBuf[i];
                     if (val >= startVal && val < endVal) {
                         if (lastDoc != doc) {
@@ -131,16 +134,17 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
                 bitSet.setAll();
                 return;
             }
-            final int[] docBuf = new int[BUFFER_SIZE];
+            final ZoneMap zoneMap = ZoneMap.of(metric);
+            if (zoneMap != null) {
+                zoneMapOr(metric, zoneMap, startVal, endVal, bitSet);
+                return;
+            }
             final long[] valueBuf = new long[BUFFER_SIZE];
             for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
                 final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
+                metric.lookupRange(docStart, valueBuf, n);
                 for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
+                    final int doc = docStart + i;
                     final long val = valueBuf[i];
                     if (val >= startVal && val <= endVal) {
                         bitSet.set(doc);
@@ -155,16 +159,17 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
                 bitSet.setAll();
                 return;
             }
-            final int[] docBuf = new int[BUFFER_SIZE];
+            final ZoneMap zoneMap = ZoneMap.of(metric);
+            if (zoneMap != null) {
+                zoneMapOr(metric, zoneMap, startVal, endVal - 1, bitSet);
+                return;
+            }
             final long[] valueBuf = new long[BUFFER_SIZE];
             for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
                 final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
+                metric.lookupRange(docStart, valueBuf, n);
                 for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
+                    final int doc = docStart + i;
                     final long val = valueBuf[i];
                     if (val >= startVal && val < endVal) {
                         bitSet.set(doc);
@@ -192,17 +197,18 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
                 bitSet.setAll();
                 return;
             }
-            final int[] docBuf = new int[BUFFER_SIZE];
+            final ZoneMap zoneMap = ZoneMap.of(metric);
+            if (zoneMap != null) {
+                zoneMapNot(metric, zoneMap, startVal, endVal, bitSet);
+                return;
+            }
             final long[] valueBuf = new long[BUFFER_SIZE];
             int lastDoc = 0;
             for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
                 final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
+                metric.lookupRange(docStart, valueBuf, n);
                 for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
+                    final int doc = docStart + i;
                     final long val = valueBuf[i];
                     if (val >= startVal && val <= endVal) {
                         if (lastDoc != doc) {
@@ -219,17 +225,18 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
                 bitSet.setAll();
                 return;
             }
-            final int[] docBuf = new int[BUFFER_SIZE];
+            final ZoneMap zoneMap = ZoneMap.of(metric);
+            if (zoneMap != null) {
+                zoneMapNot(metric, zoneMap, startVal, endVal - 1, bitSet);
+                return;
+            }
             final long[] valueBuf = new long[BUFFER_SIZE];
             int lastDoc = 0;
             for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
                 final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
+                metric.lookupRange(docStart, valueBuf, n);
                 for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
+                    final int doc = docStart + i;
                     final long val = valueBuf[i];
                     if (val >= startVal && val < endVal) {
                         if (lastDoc != doc) {
@@ -243,4 +250,72 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
             bitSet.setRange(lastDoc, numDocs);
         }
     }
+
+    // the zoneMap* methods only look up the values of blocks that are partly inside [min, max], max is inclusive
+
+    private static void zoneMapAnd(IntValueLookup metric, ZoneMap zoneMap, long min, long max, FastBitSet bitSet) {
+        final long[] valueBuf = new long[BUFFER_SIZE];
+        for (int block = 0; block < zoneMap.getNumBlocks(); ++block) {
+            final int blockStart = zoneMap.getBlockStart(block);
+            final int blockEnd = zoneMap.getBlockEnd(block);
+            if (zoneMap.isDisjoint(block, min, max)) {
+                bitSet.clearRange(blockStart, blockEnd);
+            } else if (!zoneMap.isContained(block, min, max)) {
+                for (int docStart = blockStart; docStart < blockEnd; docStart += BUFFER_SIZE) {
+                    final int n = Math.min(blockEnd, docStart + BUFFER_SIZE) - docStart;
+                    metric.lookupRange(docStart, valueBuf, n);
+                    for (int i = 0; i < n; ++i) {
+                        final long val = valueBuf[i];
+                        if (val < min || val > max) {
+                            bitSet.clear(docStart + i);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void zoneMapOr(IntValueLookup metric, ZoneMap zoneMap, long min, long max, FastBitSet bitSet) {
+        final long[] valueBuf = new long[BUFFER_SIZE];
+        for (int block = 0; block < zoneMap.getNumBlocks(); ++block) {
+            final int blockStart = zoneMap.getBlockStart(block);
+            final int blockEnd = zoneMap.getBlockEnd(block);
+            if (zoneMap.isContained(block, min, max)) {
+                bitSet.setRange(blockStart, blockEnd);
+            } else if (!zoneMap.isDisjoint(block, min, max)) {
+                for (int docStart = blockStart; docStart < blockEnd; docStart += BUFFER_SIZE) {
+                    final int n = Math.min(blockEnd, docStart + BUFFER_SIZE) - docStart;
+                    metric.lookupRange(docStart, valueBuf, n);
+                    for (int i = 0; i < n; ++i) {
+                        final long val = valueBuf[i];
+                        if (val >= min && val <= max) {
+                            bitSet.set(docStart + i);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void zoneMapNot(IntValueLookup metric, ZoneMap zoneMap, long min, long max, FastBitSet bitSet) {
+        final long[] valueBuf = new long[BUFFER_SIZE];
+        for (int block = 0; block < zoneMap.getNumBlocks(); ++block) {
+            final int blockStart = zoneMap.getBlockStart(block);
+            final int blockEnd = zoneMap.getBlockEnd(block);
+            if (zoneMap.isDisjoint(block, min, max)) {
+                bitSet.setRange(blockStart, blockEnd);
+            } else if (zoneMap.isContained(block, min, max)) {
+                bitSet.clearRange(blockStart, blockEnd);
+            } else {
+                for (int docStart = blockStart; docStart < blockEnd; docStart += BUFFER_SIZE) {
+                    final int n = Math.min(blockEnd, docStart + BUFFER_SIZE) - docStart;
+                    metric.lookupRange(docStart, valueBuf, n);
+                    for (int i = 0; i < n; ++i) {
+                        final long val = valueBuf[i];
+                        bitSet.set(docStart + i, val < min || val > max);
+                    }
+                }
+            }
+        }
+    }
 }
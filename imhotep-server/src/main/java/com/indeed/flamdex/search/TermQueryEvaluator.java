@@ -13,9 +13,11 @@
  */
  package com.indeed.flamdex.search;
 
+import com.indeed.flamdex.api.BitmapDocIdStream;
 import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.api.SeekableDocIdStream;
 import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.api.TermIterator;
 import com.indeed.flamdex.datastruct.FastBitSet;
@@ -26,6 +28,11 @@ import com.indeed.flamdex.query.Term;
  * @author jsgroth
  */
 class TermQueryEvaluator implements QueryEvaluator {
+    // seek through the postings instead of reading all of them when the term has this many docs per set bit
+    private static final int SEEK_RATIO = 16;
+
+    private static final int BITMAP_BUFFER_SIZE = 1024;
+
     private final Term term;
 
     TermQueryEvaluator(Term term) {
@@ -76,6 +83,22 @@ class TermQueryEvaluator implements QueryEvaluator {
 
     private void internalAnd(TermIterator iterator, DocIdStream docIdStream, FastBitSet bitSet) {
         docIdStream.reset(iterator);
+        if (isBitmap(docIdStream)) {
+            final BitmapDocIdStream bitmapStream = (BitmapDocIdStream) docIdStream;
+            final long[] words = new long[BITMAP_BUFFER_SIZE];
+            int start = 0;
+            while (true) {
+                final int n = bitmapStream.fillBitmapWords(words);
+                bitSet.andWords(start, words, n);
+                start += n;
+                if (n < words.length) break;
+            }
+            return;
+        }
+        if (docIdStream instanceof SeekableDocIdStream && bitSet.cardinality() < iterator.docFreq() / SEEK_RATIO) {
+            seekingAnd((SeekableDocIdStream) docIdStream, bitSet);
+            return;
+        }
         final int[] docIdBuffer = new int[64];
         int lastDoc = 0;
         while (true) {
@@ -90,6 +113,29 @@ class TermQueryEvaluator implements QueryEvaluator {
         bitSet.clearRange(lastDoc, bitSet.size());
     }
 
+    private static void seekingAnd(SeekableDocIdStream docIdStream, FastBitSet bitSet) {
+        final int[] docIdBuffer = new int[64];
+        int n = 0;
+        int i = 0;
+        final FastBitSet.IntIterator bits = bitSet.iterator();
+        while (bits.next()) {
+            final int doc = bits.getValue();
+            if (doc >= bitSet.size()) break;
+            if (i == n || docIdBuffer[n - 1] < doc) {
+                if (!docIdStream.advance(doc)) {
+                    bitSet.clearRange(doc, bitSet.size());
+                    return;
+                }
+                n = docIdStream.fillDocIdBuffer(docIdBuffer);
+                i = 0;
+            }
+            while (docIdBuffer[i] < doc) ++i;
+            if (docIdBuffer[i] != doc) {
+                bitSet.clear(doc);
+            }
+        }
+    }
+
     @Override
     public void or(FlamdexReader r, FastBitSet bitSet, FastBitSetPooler bitSetPooler) {
         final DocIdStream docIdStream = r.getDocIdStream();
@@ -132,6 +178,18 @@ class TermQueryEvaluator implements QueryEvaluator {
 
     private void internalOr(TermIterator iterator, DocIdStream docIdStream, FastBitSet bitSet) {
         docIdStream.reset(iterator);
+        if (isBitmap(docIdStream)) {
+            final BitmapDocIdStream bitmapStream = (BitmapDocIdStream) docIdStream;
+            final long[] words = new long[BITMAP_BUFFER_SIZE];
+            int start = 0;
+            while (true) {
+                final int n = bitmapStream.fillBitmapWords(words);
+                bitSet.orWords(start, words, n);
+                start += n;
+                if (n < words.length) break;
+            }
+            return;
+        }
         final int[] docIdBuffer = new int[64];
         while (true) {
             final int n = docIdStream.fillDocIdBuffer(docIdBuffer);
@@ -186,6 +244,18 @@ class TermQueryEvaluator implements QueryEvaluator {
 
     private void internalNot(TermIterator iterator, DocIdStream docIdStream, FastBitSet bitSet) {
         docIdStream.reset(iterator);
+        if (isBitmap(docIdStream)) {
+            final BitmapDocIdStream bitmapStream = (BitmapDocIdStream) docIdStream;
+            final long[] words = new long[BITMAP_BUFFER_SIZE];
+            int start = 0;
+            while (true) {
+                final int n = bitmapStream.fillBitmapWords(words);
+                bitSet.setWordsInverted(start, words, n);
+                start += n;
+                if (n < words.length) break;
+            }
+            return;
+        }
         final int[] docIdBuffer = new int[64];
         int lastDoc = 0;
         while (true) {
@@ -200,4 +270,8 @@ class TermQueryEvaluator implements QueryEvaluator {
         }
         bitSet.setRange(lastDoc, bitSet.size());
     }
+
+    private static boolean isBitmap(DocIdStream docIdStream) {
+        return docIdStream instanceof BitmapDocIdStream && ((BitmapDocIdStream) docIdStream).isBitmap();
+    }
 }
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.simple;
+
+import com.indeed.util.core.reference.SharedReference;
+import com.indeed.flamdex.api.BitmapDocIdStream;
+import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.SeekableDocIdStream;
+import com.indeed.flamdex.api.TermIterator;
+import com.indeed.util.mmap.DirectMemory;
+import com.indeed.util.mmap.MMapBuffer;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link DocIdStream} over docs files written as {@link BlockPostings}
+ */
+final class BlockDocIdStream implements SeekableDocIdStream, BitmapDocIdStream {
+    private static final Logger log = Logger.getLogger(BlockDocIdStream.class);
+
+    public static final int BUFFER_SIZE = 8192;
+
+    private final MapCache mapCache;
+    private final int numDocs;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+    private long bufferOffset;
+    private int bufferLen;
+    private int bufferPtr;
+
+    private final long[] words = new long[2 * 31 + 1];
+    private final int[] block = new int[BlockPostings.BLOCK_SIZE];
+    private int blockPtr;
+    private int blockLen;
+
+    private DirectMemory memory;
+    private SharedReference<MMapBuffer> file;
+    private int fullBlocksRemaining;
+    private int tailRemaining;
+    private int lastDoc;
+
+    private int groupBlocksRemaining;
+    private int groupEndDoc;
+    private int groupLength;
+
+    private boolean bitmap;
+    // index of the next word to read, the current word is wordIndex - 1
+    private int wordIndex;
+    private int wordsRemaining;
+    private long currentWord;
+
+    private String currentFileOpen;
+
+    BlockDocIdStream(MapCache mapCache, int numDocs) {
+        this.mapCache = mapCache;
+        this.numDocs = numDocs;
+        bufferOffset = 0L;
+        bufferLen = 0;
+        bufferPtr = 0;
+    }
+
+    @Override
+    public void reset(TermIterator term) {
+        if (!(term instanceof SimpleTermIterator)) throw new IllegalArgumentException("invalid term iterator");
+
+        try {
+            internalReset((SimpleTermIterator)term);
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void internalReset(SimpleTermIterator term) throws IOException {
+        final String filename = term.getFilename();
+        if (!filename.equals(currentFileOpen)) {
+
+            if (file != null) file.close();
+            file = mapCache.copyOrOpen(filename);
+
+            memory = file.get().memory();
+            currentFileOpen = filename;
+            // to force a refill
+            bufferOffset = 0L;
+            bufferLen = 0;
+            bufferPtr = 0;
+        }
+
+        final long offset = term.getOffset();
+        if (offset >= bufferOffset && offset < bufferOffset + bufferLen) {
+            bufferPtr = (int) (offset - bufferOffset);
+        } else {
+            refillBuffer(offset);
+        }
+
+        final int docFreq = term.docFreq();
+        bitmap = BlockPostings.isBitmap(docFreq, numDocs);
+        wordIndex = 0;
+        wordsRemaining = bitmap ? BlockPostings.numBitmapWords(numDocs) : 0;
+        currentWord = 0L;
+        fullBlocksRemaining = docFreq / BlockPostings.BLOCK_SIZE;
+        tailRemaining = docFreq % BlockPostings.BLOCK_SIZE;
+        blockPtr = 0;
+        blockLen = 0;
+        lastDoc = 0;
+        groupBlocksRemaining = 0;
+    }
+
+    @Override
+    public int fillDocIdBuffer(int[] docIdBuffer) {
+        try {
+            if (bitmap) {
+                return fillFromBitmap(docIdBuffer);
+            }
+            int n = 0;
+            while (n < docIdBuffer.length) {
+                if (blockPtr == blockLen && !decodeNextBlock()) {
+                    break;
+                }
+                final int count = Math.min(docIdBuffer.length - n, blockLen - blockPtr);
+                for (int i = 0; i < count; ++i) {
+                    lastDoc += block[blockPtr++];
+                    docIdBuffer[n++] = lastDoc;
+                }
+            }
+            return n;
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int fillFromBitmap(int[] docIdBuffer) throws IOException {
+        int n = 0;
+        while (n < docIdBuffer.length) {
+            while (currentWord == 0) {
+                if (wordsRemaining == 0) return n;
+                currentWord = readWord();
+            }
+            docIdBuffer[n++] = ((wordIndex - 1) << 6) + Long.numberOfTrailingZeros(currentWord);
+            currentWord &= currentWord - 1;
+        }
+        return n;
+    }
+
+    @Override
+    public boolean isBitmap() {
+        return bitmap;
+    }
+
+    @Override
+    public int fillBitmapWords(long[] words) {
+        if (!bitmap) throw new IllegalStateException("current term is not a bitmap");
+        try {
+            final int n = Math.min(words.length, wordsRemaining);
+            for (int i = 0; i < n; ++i) {
+                words[i] = readWord();
+            }
+            currentWord = 0L;
+            return n;
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean advance(int target) {
+        try {
+            if (bitmap) {
+                return advanceBitmap(target);
+            }
+            while (true) {
+                while (blockPtr < blockLen) {
+                    final int doc = lastDoc + block[blockPtr];
+                    if (doc >= target) return true;
+                    lastDoc = doc;
+                    ++blockPtr;
+                }
+                while (fullBlocksRemaining > 0 && groupBlocksRemaining == 0) {
+                    readSkip();
+                    if (groupEndDoc >= target) break;
+                    skipBytes(groupLength);
+                    lastDoc = groupEndDoc;
+                    fullBlocksRemaining -= groupBlocksRemaining;
+                    groupBlocksRemaining = 0;
+                }
+                if (!decodeNextBlock()) return false;
+            }
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private boolean advanceBitmap(int target) throws IOException {
+        final int targetWord = target >>> 6;
+        if (targetWord >= wordIndex) {
+            final int skip = targetWord - wordIndex;
+            if (skip >= wordsRemaining) {
+                wordsRemaining = 0;
+                currentWord = 0L;
+                return false;
+            }
+            skipBytes(8 * skip);
+            wordIndex += skip;
+            wordsRemaining -= skip;
+            currentWord = readWord();
+        }
+        if (targetWord == wordIndex - 1) {
+            currentWord &= -1L << target;
+        }
+        while (currentWord == 0) {
+            if (wordsRemaining == 0) return false;
+            currentWord = readWord();
+        }
+        return true;
+    }
+
+    private boolean decodeNextBlock() throws IOException {
+        if (fullBlocksRemaining > 0) {
+            if (groupBlocksRemaining == 0) {
+                readSkip();
+            }
+            if (bufferLen - bufferPtr < BlockPostings.MAX_BLOCK_BYTES && bufferOffset + bufferLen < memory.length()) {
+                refillBuffer(bufferOffset + bufferPtr);
+            }
+            bufferPtr = BlockPostings.readBlock(byteBuffer, bufferPtr, words, block);
+            blockLen = BlockPostings.BLOCK_SIZE;
+            --fullBlocksRemaining;
+            --groupBlocksRemaining;
+        } else if (tailRemaining > 0) {
+            for (int i = 0; i < tailRemaining; ++i) {
+                block[i] = readVInt();
+            }
+            blockLen = tailRemaining;
+            tailRemaining = 0;
+        } else {
+            return false;
+        }
+        blockPtr = 0;
+        return true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+        } catch (IOException e) {
+            log.error("error closing file", e);
+        }
+    }
+
+    private long readWord() throws IOException {
+        if (bufferLen - bufferPtr < 8) refillBuffer(bufferOffset + bufferPtr);
+        final long word = byteBuffer.getLong(bufferPtr);
+        bufferPtr += 8;
+        ++wordIndex;
+        --wordsRemaining;
+        return word;
+    }
+
+    private void readSkip() throws IOException {
+        groupEndDoc = lastDoc + readVInt();
+        groupLength = readVInt();
+        groupBlocksRemaining = Math.min(fullBlocksRemaining, BlockPostings.BLOCKS_PER_SKIP);
+    }
+
+    private void skipBytes(int n) throws IOException {
+        if (bufferLen - bufferPtr >= n) {
+            bufferPtr += n;
+        } else {
+            refillBuffer(bufferOffset + bufferPtr + n);
+        }
+    }
+
+    private int readVInt() throws IOException {
+        int ret = 0;
+        int shift = 0;
+        do {
+            if (bufferPtr == bufferLen) refillBuffer(bufferOffset + bufferLen);
+            byte b = buffer[bufferPtr++];
+            ret |= ((b & 0x7F) << shift);
+            if (b >= 0) return ret;
+            shift += 7;
+        } while (true);
+    }
+
+    private void refillBuffer(long offset) throws IOException {
+        bufferLen = (int)Math.min(buffer.length, memory.length() - offset);
+        if (bufferLen > 0) {
+            memory.getBytes(offset, buffer, 0, bufferLen);
+        }
+        bufferOffset = offset;
+        bufferPtr = 0;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.simple;
+
+import com.indeed.flamdex.utils.FlamdexUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Postings encoding of {@link SimpleFlamdexWriter#BLOCK_POSTINGS_FORMAT_VERSION} shards. Every full block of
+ * {@link #BLOCK_SIZE} doc deltas of a term is stored PForDelta style:
+ * <pre>
+ * byte    bit width b
+ * byte    number of exceptions
+ * vint    base, the smallest delta in the block
+ * long[2b] delta - base for every doc, bit packed b bits per doc, little endian
+ * for every exception: byte index, vint (delta - base) &gt;&gt;&gt; b
+ * </pre>
+ * b is chosen to minimize the size of the block, so a few large gaps become exceptions instead of widening every
+ * slot. Full blocks are grouped {@link #BLOCKS_PER_SKIP} at a time (the last group of a term may be shorter) and
+ * every group starts with a skip entry:
+ * <pre>
+ * vint    last doc of the group - last doc before the group
+ * vint    length of the group's blocks in bytes
+ * </pre>
+ * so a reader seeking forward can step over a whole group without decoding it. The last docFreq % BLOCK_SIZE
+ * deltas of a term are written as vints like in format 0.
+ * <p>
+ * Terms matching at least 1 / {@link #BITMAP_DENSITY} of the docs are instead stored as a bitmap of
+ * (numDocs + 63) / 64 little endian longs with bit doc &amp; 63 of long doc / 64 set for every doc, which is never
+ * larger than a byte per doc. Whether a term is a bitmap follows from its docFreq, so the terms file is unchanged.
+ */
+final class BlockPostings {
+    static final int BLOCK_SIZE = 128;
+
+    static final int BLOCKS_PER_SKIP = 8;
+
+    static final int BITMAP_DENSITY = 8;
+
+    // header, 31 bit packed values and an exception for every doc
+    static final int MAX_BLOCK_BYTES = 2 + 5 + 16 * 31 + BLOCK_SIZE * 6;
+
+    private BlockPostings() {
+    }
+
+    static boolean isBitmap(long docFreq, long numDocs) {
+        return docFreq * BITMAP_DENSITY >= numDocs;
+    }
+
+    static int numBitmapWords(long numDocs) {
+        return (int) ((numDocs + 63) >>> 6);
+    }
+
+    /**
+     * writes the postings of a term
+     *
+     * @param docs the docs of the term in ascending order
+     * @return the number of bytes written
+     */
+    static long writePostings(int[] docs, int docFreq, long numDocs, OutputStream out) throws IOException {
+        if (isBitmap(docFreq, numDocs)) {
+            return writeBitmap(docs, docFreq, numDocs, out);
+        }
+        long bytesWritten = 0;
+        final int numFullBlocks = docFreq / BLOCK_SIZE;
+        final int[] deltas = new int[BLOCK_SIZE];
+        final ByteArrayOutputStream group = numFullBlocks > 0 ? new ByteArrayOutputStream(BLOCKS_PER_SKIP * MAX_BLOCK_BYTES) : null;
+        int numGroupBlocks = 0;
+        int groupStartDoc = 0;
+        int lastDoc = 0;
+        int d = 0;
+        for (int b = 0; b < numFullBlocks; ++b) {
+            for (int i = 0; i < BLOCK_SIZE; ++i, ++d) {
+                deltas[i] = docs[d] - lastDoc;
+                lastDoc = docs[d];
+            }
+            writeBlock(deltas, group);
+            if (++numGroupBlocks == BLOCKS_PER_SKIP || b == numFullBlocks - 1) {
+                bytesWritten += FlamdexUtils.writeVLong(lastDoc - groupStartDoc, out);
+                bytesWritten += FlamdexUtils.writeVLong(group.size(), out);
+                group.writeTo(out);
+                bytesWritten += group.size();
+                group.reset();
+                numGroupBlocks = 0;
+                groupStartDoc = lastDoc;
+            }
+        }
+        for (; d < docFreq; ++d) {
+            bytesWritten += FlamdexUtils.writeVLong(docs[d] - lastDoc, out);
+            lastDoc = docs[d];
+        }
+        return bytesWritten;
+    }
+
+    private static long writeBitmap(int[] docs, int docFreq, long numDocs, OutputStream out) throws IOException {
+        final long[] words = new long[numBitmapWords(numDocs)];
+        for (int i = 0; i < docFreq; ++i) {
+            words[docs[i] >>> 6] |= 1L << docs[i];
+        }
+        for (final long word : words) {
+            for (int k = 0; k < 8; ++k) {
+                out.write((int) (word >>> (8 * k)));
+            }
+        }
+        return 8L * words.length;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private static int writeBlock(int[] deltas, OutputStream out) throws IOException {
+        int base = Integer.MAX_VALUE;
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            base = Math.min(base, deltas[i]);
+        }
+        final int[] adjusted = new int[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            adjusted[i] = deltas[i] - base;
+        }
+        final int bitWidth = chooseBitWidth(adjusted);
+        int numExceptions = 0;
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            if ((adjusted[i] >>> bitWidth) != 0) ++numExceptions;
+        }
+
+        int bytesWritten = 2;
+        out.write(bitWidth);
+        out.write(numExceptions);
+        bytesWritten += FlamdexUtils.writeVLong(base, out);
+
+        final long mask = (1L << bitWidth) - 1;
+        final long[] words = new long[2 * bitWidth + 2];
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            final long value = adjusted[i] & mask;
+            final int bitPos = i * bitWidth;
+            final int shift = bitPos & 63;
+            words[bitPos >>> 6] |= value << shift;
+            // the two shifts leave the upper word untouched when shift is 0
+            words[(bitPos >>> 6) + 1] |= (value >>> 1) >>> (63 - shift);
+        }
+        for (int w = 0; w < 2 * bitWidth; ++w) {
+            final long word = words[w];
+            for (int k = 0; k < 8; ++k) {
+                out.write((int) (word >>> (8 * k)));
+            }
+        }
+        bytesWritten += 16 * bitWidth;
+
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            final int high = adjusted[i] >>> bitWidth;
+            if (high != 0) {
+                out.write(i);
+                bytesWritten += 1 + FlamdexUtils.writeVLong(high, out);
+            }
+        }
+        return bytesWritten;
+    }
+
+    private static int chooseBitWidth(int[] adjusted) {
+        // docs are non-negative ints so 31 bits always suffice
+        int bestBitWidth = 31;
+        int bestCost = Integer.MAX_VALUE;
+        for (int bitWidth = 0; bitWidth <= 31; ++bitWidth) {
+            int cost = 16 * bitWidth;
+            for (int i = 0; i < BLOCK_SIZE && cost < bestCost; ++i) {
+                final int high = adjusted[i] >>> bitWidth;
+                if (high != 0) {
+                    cost += 1 + vIntSize(high);
+                }
+            }
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestBitWidth = bitWidth;
+            }
+        }
+        return bestBitWidth;
+    }
+
+    private static int vIntSize(int i) {
+        return (32 - Integer.numberOfLeadingZeros(i) + 6) / 7;
+    }
+
+    /**
+     * decodes the block at pos into BLOCK_SIZE deltas
+     *
+     * @param in a little endian buffer with at least {@link #MAX_BLOCK_BYTES} bytes after pos, or the whole block
+     * @param words scratch space of at least 63 longs
+     * @return the position after the block
+     */
+    static int readBlock(ByteBuffer in, int pos, long[] words, int[] deltas) {
+        final int bitWidth = in.get(pos++);
+        final int numExceptions = in.get(pos++) & 0xFF;
+        int base = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = in.get(pos++);
+            base |= (b & 0x7F) << shift;
+            if (b >= 0) break;
+        }
+
+        final int numWords = 2 * bitWidth;
+        for (int w = 0; w < numWords; ++w) {
+            words[w] = in.getLong(pos);
+            pos += 8;
+        }
+        words[numWords] = 0;
+        final long mask = (1L << bitWidth) - 1;
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            final int bitPos = i * bitWidth;
+            final int word = bitPos >>> 6;
+            final int shift = bitPos & 63;
+            final long value = (words[word] >>> shift) | ((words[word + 1] << 1) << (63 - shift));
+            deltas[i] = (int) (value & mask) + base;
+        }
+
+        for (int e = 0; e < numExceptions; ++e) {
+            final int index = in.get(pos++) & 0xFF;
+            int high = 0;
+            for (int shift = 0; ; shift += 7) {
+                final byte b = in.get(pos++);
+                high |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            deltas[index] += high << bitWidth;
+        }
+        return pos;
+    }
+}
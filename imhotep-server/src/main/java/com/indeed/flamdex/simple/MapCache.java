@@ -18,7 +18,6 @@ import com.indeed.imhotep.io.caching.CachedFile;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.core.reference.SharedReference;
 import com.indeed.util.mmap.MMapBuffer;
-
 import org.apache.log4j.Logger;
 
 import java.io.Closeable;
@@ -26,39 +25,88 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 
 /**
  * @author jplaisance
+ *
+ * Mappings are registered with a {@link MappingManager}, which may unmap the ones that aren't in use to keep the
+ * process within its mapping budget. They are mapped again on the next {@link #copyOrOpen}.
  */
 public final class MapCache implements Closeable {
 
     private static final Logger log = Logger.getLogger(MapCache.class);
 
-    private final Map<String, SharedReference<MMapBuffer>> mappingCache = Maps.newHashMap();
+    private final MappingManager manager;
+
+    /**
+     * guarded by this, the manager is only called without holding it
+     */
+    final Map<String, MappingManager.Mapping> mappings = Maps.newHashMap();
 
-    public MapCache() {}
+    public MapCache() {
+        this(MappingManager.getInstance());
+    }
 
-    public synchronized SharedReference<MMapBuffer> copyOrOpen(String filename) throws IOException {
-        SharedReference<MMapBuffer> reference = mappingCache.get(filename);
-        if (reference == null) {
-            final File file;
-            final MMapBuffer mmapBuf;
-            final CachedFile cf = CachedFile.create(filename);
+    MapCache(MappingManager manager) {
+        this.manager = manager;
+    }
 
-            file = cf.loadFile();
-            mmapBuf = new MMapBuffer(file, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
-            reference = SharedReference.create(mmapBuf);
-            mappingCache.put(filename, reference);
+    public SharedReference<MMapBuffer> copyOrOpen(String filename) throws IOException {
+        MappingManager.Mapping mapping;
+        SharedReference<MMapBuffer> copy;
+        synchronized (this) {
+            mapping = mappings.get(filename);
+            copy = mapping != null ? mapping.reference.copy() : null;
+        }
+        if (copy != null) {
+            manager.touch(mapping);
+            return copy;
         }
-        return reference.copy();
+        // files may have to be fetched before they can be mapped, so this is done without holding the lock
+        final File file = CachedFile.create(filename).loadFile();
+        final MMapBuffer mmapBuf = new MMapBuffer(file, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+        final MappingManager.Mapping created = manager.newMapping(this, filename, mmapBuf);
+        // copied before the manager sees it, so it isn't idle
+        final SharedReference<MMapBuffer> createdCopy = created.reference.copy();
+        manager.add(created);
+        synchronized (this) {
+            mapping = mappings.get(filename);
+            if (mapping == null) {
+                mappings.put(filename, created);
+                return createdCopy;
+            }
+            copy = mapping.reference.copy();
+        }
+        // another thread mapped it first
+        Closeables2.closeQuietly(createdCopy, log);
+        manager.remove(created);
+        manager.touch(mapping);
+        return copy;
+    }
+
+    /**
+     * drops the mapping if this cache holds the only reference to it, called by the manager
+     */
+    synchronized boolean removeIfIdle(MappingManager.Mapping mapping) {
+        if (mappings.get(mapping.filename) != mapping || mapping.reference.getRefCount() != 1) {
+            return false;
+        }
+        mappings.remove(mapping.filename);
+        return true;
     }
 
     @Override
-    public synchronized void close() throws IOException {
-        for (Map.Entry<String, SharedReference<MMapBuffer>> entry : mappingCache.entrySet()) {
-            Closeables2.closeQuietly(entry.getValue(), log);
+    public void close() throws IOException {
+        final List<MappingManager.Mapping> toRemove;
+        synchronized (this) {
+            toRemove = new ArrayList<MappingManager.Mapping>(mappings.values());
+            mappings.clear();
+        }
+        for (final MappingManager.Mapping mapping : toRemove) {
+            manager.remove(mapping);
         }
     }
 }
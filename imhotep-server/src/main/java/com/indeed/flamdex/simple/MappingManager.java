@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.simple;
+
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.reference.SharedReference;
+import com.indeed.util.mmap.MMapBuffer;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the files mapped by all {@link MapCache}s in the process. If -Dflamdex.mmap.maxfiles or
+ * -Dflamdex.mmap.maxbytes is set, mapping a file first unmaps the least recently used mappings that no iterator or
+ * stream holds a reference to until the process is back within the budget. Mappings that are in use are never
+ * unmapped, so the budget can be exceeded while they are. Without a budget only the counters are kept, so opening
+ * files never takes the manager's lock.
+ *
+ * The LRU order is guarded by the manager's monitor. Evicting takes a {@link MapCache}'s monitor while holding the
+ * manager's, so caches must not call the manager while holding their own.
+ */
+public final class MappingManager {
+    private static final Logger log = Logger.getLogger(MappingManager.class);
+
+    private static final MappingManager INSTANCE = new MappingManager(
+            Integer.getInteger("flamdex.mmap.maxfiles", Integer.MAX_VALUE),
+            Long.getLong("flamdex.mmap.maxbytes", Long.MAX_VALUE));
+
+    private final int maxMappedFiles;
+    private final long maxMappedBytes;
+    private final boolean hasBudget;
+
+    /**
+     * mappings held by a {@link MapCache}, least recently used first, empty if there is no budget
+     */
+    private final LinkedHashMap<Mapping, Mapping> lru = new LinkedHashMap<Mapping, Mapping>(16, 0.75f, true);
+
+    /**
+     * files that are actually mapped, including the ones that were dropped by their cache but are still referenced
+     */
+    private final AtomicInteger mappedFiles = new AtomicInteger();
+    private final AtomicLong mappedBytes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    MappingManager(int maxMappedFiles, long maxMappedBytes) {
+        this.maxMappedFiles = maxMappedFiles;
+        this.maxMappedBytes = maxMappedBytes;
+        hasBudget = maxMappedFiles != Integer.MAX_VALUE || maxMappedBytes != Long.MAX_VALUE;
+    }
+
+    public static MappingManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * counts the newly mapped buffer, which is unmapped once its reference and all copies are closed
+     */
+    Mapping newMapping(MapCache owner, String filename, final MMapBuffer buffer) {
+        final long length = buffer.memory().length();
+        mappedFiles.incrementAndGet();
+        mappedBytes.addAndGet(length);
+        final SharedReference<MMapBuffer> reference = SharedReference.create(buffer, new Closeable() {
+            @Override
+            public void close() throws IOException {
+                try {
+                    buffer.close();
+                } finally {
+                    mappedFiles.decrementAndGet();
+                    mappedBytes.addAndGet(-length);
+                }
+            }
+        });
+        return new Mapping(owner, filename, reference, length);
+    }
+
+    /**
+     * makes the mapping evictable, unmapping idle mappings first if the process is over its budget. The caller has
+     * to hold a copy of the mapping's reference so that it isn't evicted right away.
+     */
+    void add(Mapping mapping) {
+        if (!hasBudget) return;
+        final List<Mapping> evicted;
+        synchronized (this) {
+            evicted = evictIdle();
+            lru.put(mapping, mapping);
+        }
+        for (final Mapping m : evicted) {
+            Closeables2.closeQuietly(m.reference, log);
+        }
+    }
+
+    void touch(Mapping mapping) {
+        if (!hasBudget) return;
+        synchronized (this) {
+            lru.get(mapping);
+        }
+    }
+
+    /**
+     * forgets the mapping, which is unmapped once nothing references it anymore
+     */
+    void remove(Mapping mapping) {
+        if (hasBudget) {
+            synchronized (this) {
+                lru.remove(mapping);
+            }
+        }
+        Closeables2.closeQuietly(mapping.reference, log);
+    }
+
+    private List<Mapping> evictIdle() {
+        int files = mappedFiles.get();
+        long bytes = mappedBytes.get();
+        final List<Mapping> evicted = new ArrayList<Mapping>();
+        for (final Iterator<Mapping> it = lru.keySet().iterator(); it.hasNext() && (files > maxMappedFiles || bytes > maxMappedBytes); ) {
+            final Mapping mapping = it.next();
+            if (mapping.owner.removeIfIdle(mapping)) {
+                it.remove();
+                evicted.add(mapping);
+                files--;
+                bytes -= mapping.length;
+            }
+        }
+        evictions.addAndGet(evicted.size());
+        return evicted;
+    }
+
+    public int getMappedFiles() {
+        return mappedFiles.get();
+    }
+
+    public long getMappedBytes() {
+        return mappedBytes.get();
+    }
+
+    /**
+     * @return the number of idle mappings unmapped to stay within the budget
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    static final class Mapping {
+        final MapCache owner;
+        final String filename;
+        final SharedReference<MMapBuffer> reference;
+        final long length;
+
+        private Mapping(MapCache owner, String filename, SharedReference<MMapBuffer> reference, long length) {
+            this.owner = owner;
+            this.filename = filename;
+            this.reference = reference;
+            this.length = length;
+        }
+    }
+}
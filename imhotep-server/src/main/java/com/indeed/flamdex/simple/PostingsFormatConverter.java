@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.simple;
+
+import com.indeed.flamdex.fieldcache.FieldCacheMetadata;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * Rewrites a simple flamdex shard with its postings in another format, e.g. to convert existing shards to
+ * {@link SimpleFlamdexWriter#BLOCK_POSTINGS_FORMAT_VERSION} or back.
+ *
+ * usage: PostingsFormatConverter inputDir outputDir formatVersion
+ */
+public final class PostingsFormatConverter {
+    private static final Logger log = Logger.getLogger(PostingsFormatConverter.class);
+
+    private PostingsFormatConverter() {
+    }
+
+    public static void convert(String inputDirectory, String outputDirectory, int formatVersion) throws IOException {
+        // field caches don't depend on the postings format, so they're written again if the input had them
+        final boolean writeFieldCaches = !FieldCacheMetadata.readSelections(inputDirectory).isEmpty();
+        final SimpleFlamdexReader reader = SimpleFlamdexReader.open(inputDirectory, new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
+        try {
+            final SimpleFlamdexWriter writer = new SimpleFlamdexWriter(outputDirectory, reader.getNumDocs(), true, true, writeFieldCaches, formatVersion);
+            SimpleFlamdexWriter.writeFlamdex(reader, writer);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("usage: PostingsFormatConverter inputDir outputDir formatVersion");
+            System.exit(1);
+        }
+        final long start = System.currentTimeMillis();
+        convert(args[0], args[1], Integer.parseInt(args[2]));
+        log.info("converted " + args[0] + " to format " + args[2] + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+}
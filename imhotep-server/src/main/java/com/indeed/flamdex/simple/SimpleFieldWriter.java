@@ -13,8 +13,18 @@
  */
  package com.indeed.flamdex.simple;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
 import com.indeed.flamdex.utils.FlamdexUtils;
-
+import com.indeed.util.core.io.Closeables2;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -22,10 +32,18 @@ import java.io.OutputStream;
  * @author jsgroth
  */
 abstract class SimpleFieldWriter {
+    private static final Logger log = Logger.getLogger(SimpleFieldWriter.class);
+
     protected final OutputStream termsOutput;
     protected final OutputStream docsOutput;
     protected final long numDocs;
 
+    // hash the bytes as they go to the files so the content hashes don't have to read them back
+    private final HashingOutputStream termsHashing;
+    private final HashingOutputStream docsHashing;
+    private HashCode termsHash = null;
+    private HashCode docsHash = null;
+
     private long lastOffsetWritten = 0L;
 
     private long currentTermOffset = 0L;
@@ -37,10 +55,24 @@ abstract class SimpleFieldWriter {
     private boolean nextTermCalled = false;
     private boolean nextDocCalled = false;
 
-    protected SimpleFieldWriter(OutputStream termsOutput, OutputStream docsOutput, long numDocs) {
-        this.termsOutput = termsOutput;
-        this.docsOutput = docsOutput;
+    // docs of the current term if postings are written as BlockPostings, null for vlong postings
+    private final IntArrayList termDocs;
+
+    protected SimpleFieldWriter(File termsFile, File docsFile, long numDocs, boolean blockPostings) throws FileNotFoundException {
+        final FileOutputStream termsFileOutput = new FileOutputStream(termsFile);
+        final FileOutputStream docsFileOutput;
+        try {
+            docsFileOutput = new FileOutputStream(docsFile);
+        } catch (FileNotFoundException e) {
+            Closeables2.closeQuietly(termsFileOutput, log);
+            throw e;
+        }
+        this.termsHashing = new HashingOutputStream(Hashing.murmur3_128(), termsFileOutput);
+        this.docsHashing = new HashingOutputStream(Hashing.murmur3_128(), docsFileOutput);
+        this.termsOutput = new BufferedOutputStream(termsHashing, 65536);
+        this.docsOutput = new BufferedOutputStream(docsHashing, 65536);
         this.numDocs = numDocs;
+        this.termDocs = blockPostings ? new IntArrayList() : null;
     }
 
     protected void internalNextTerm() throws IOException {
@@ -72,12 +104,21 @@ abstract class SimpleFieldWriter {
         nextDocCalled = true;
 
         final long docDelta = doc - lastDocWritten;
-        docsBytesWritten += FlamdexUtils.writeVLong(docDelta, docsOutput);
+        if (termDocs != null) {
+            // the encoding depends on the docFreq so it is written in writeTerm
+            termDocs.add(doc);
+        } else {
+            docsBytesWritten += FlamdexUtils.writeVLong(docDelta, docsOutput);
+        }
         lastDocWritten = doc;
         ++currentTermDocFreq;
     }
 
     protected void writeTerm() throws IOException {
+        if (termDocs != null && !termDocs.isEmpty()) {
+            docsBytesWritten += BlockPostings.writePostings(termDocs.elements(), termDocs.size(), numDocs, docsOutput);
+            termDocs.clear();
+        }
         if (currentTermDocFreq == 0) return;
 
         writeTermDelta();
@@ -87,18 +128,41 @@ abstract class SimpleFieldWriter {
         lastOffsetWritten = currentTermOffset;
 
         FlamdexUtils.writeVLong(currentTermDocFreq, termsOutput);
+
+        termWritten((int) currentTermDocFreq);
     }
 
     protected abstract void writeTermDelta() throws IOException;
 
+    /**
+     * called after each term with at least one doc is written
+     */
+    protected abstract void termWritten(int docFreq);
+
     protected abstract void writeBTreeIndex() throws IOException;
 
     public void close() throws IOException {
         writeTerm();
         termsOutput.close();
         docsOutput.close();
+        termsHash = termsHashing.hash();
+        docsHash = docsHashing.hash();
         if (nextTermCalled) {
             writeBTreeIndex();
         }
     }
+
+    /**
+     * @return the murmur3_128 hash of the terms file, null until the writer is closed
+     */
+    HashCode getTermsHash() {
+        return termsHash;
+    }
+
+    /**
+     * @return the murmur3_128 hash of the docs file, null until the writer is closed
+     */
+    HashCode getDocsHash() {
+        return docsHash;
+    }
 }
@@ -13,12 +13,16 @@
  */
  package com.indeed.flamdex.simple;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.indeed.util.io.BufferedFileDataInputStream;
 import com.indeed.util.io.BufferedFileDataOutputStream;
 import com.indeed.flamdex.MemoryFlamdex;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.utils.FlamdexSort;
 import com.indeed.flamdex.writer.FlamdexDocWriter;
 import com.indeed.flamdex.writer.FlamdexDocument;
 import com.indeed.flamdex.writer.FlamdexWriter;
@@ -27,8 +31,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * @author jsgroth
@@ -37,9 +50,18 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
     private final String outputDirectory;
     private final int docBufferSize;
     private final int mergeFactor;
+    private final int mergeThreads;
+    private final List<String> sortFields;
 
     private final List<List<File>> segmentsOnDisk;
 
+    // null if buffers are flushed on the thread adding documents
+    private final ExecutorService flushExecutor;
+    private final Semaphore inFlightSegments;
+    private final Deque<Future<?>> pendingFlushes = new ArrayDeque<Future<?>>();
+    // set by the first background flush that fails, after which the queued flushes do nothing
+    private volatile Throwable flushFailure = null;
+
     private MemoryFlamdex currentBuffer = new MemoryFlamdex();
     private String currentSegment = "_0";
 
@@ -49,9 +71,21 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
         this.outputDirectory = outputDirectory;
         this.docBufferSize = config.getDocBufferSize();
         this.mergeFactor = config.getMergeFactor();
+        this.mergeThreads = config.getMergeThreads();
+        this.sortFields = config.getSortFields();
 
         segmentsOnDisk = Lists.newArrayList();
         segmentsOnDisk.add(new ArrayList<File>());
+
+        if (config.getMaxInFlightSegments() > 0) {
+            // one thread so that segments are written and merged in the order their documents were added
+            flushExecutor = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SimpleFlamdexDocWriter-flush-%d").build());
+            inFlightSegments = new Semaphore(config.getMaxInFlightSegments());
+        } else {
+            flushExecutor = null;
+            inFlightSegments = null;
+        }
     }
 
     private static void createOutputDir(String outputDirectory) throws IOException {
@@ -66,19 +100,82 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
 
     @Override
     public void addDocument(FlamdexDocument doc) throws IOException {
+        checkFlushFailure();
         currentBuffer.addDocument(doc);
         if (currentBuffer.getNumDocs() == docBufferSize) {
-            flush();
+            if (flushExecutor != null) {
+                submitFlush(currentBuffer);
+            } else {
+                flush(currentBuffer);
+            }
             currentBuffer = new MemoryFlamdex();
         }
     }
 
-    private void flush() throws IOException {
-        if (currentBuffer.getNumDocs() == 0) return;
+    private void submitFlush(final MemoryFlamdex buffer) throws IOException {
+        checkPendingFlushes(false);
+        try {
+            // blocks once too many buffers are waiting to be written
+            inFlightSegments.acquire();
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        }
+        try {
+            pendingFlushes.add(flushExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    try {
+                        // the failed flush left the segments in an unknown state, so nothing can be written after it
+                        if (flushFailure == null) {
+                            flush(buffer);
+                        }
+                    } catch (Throwable t) {
+                        flushFailure = t;
+                        Throwables.propagateIfInstanceOf(t, IOException.class);
+                        throw Throwables.propagate(t);
+                    } finally {
+                        inFlightSegments.release();
+                    }
+                    return null;
+                }
+            }));
+        } catch (RuntimeException e) {
+            inFlightSegments.release();
+            throw e;
+        }
+    }
+
+    private void checkFlushFailure() throws IOException {
+        final Throwable t = flushFailure;
+        if (t != null) {
+            throw new IOException("a background flush failed", t);
+        }
+    }
+
+    /**
+     * rethrows the failure of any finished flush
+     *
+     * @param waitForAll if true waits for all pending flushes to finish
+     */
+    private void checkPendingFlushes(boolean waitForAll) throws IOException {
+        while (!pendingFlushes.isEmpty() && (waitForAll || pendingFlushes.peek().isDone())) {
+            try {
+                pendingFlushes.poll().get();
+            } catch (InterruptedException e) {
+                throw Throwables.propagate(e);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+    }
+
+    private void flush(MemoryFlamdex buffer) throws IOException {
+        if (buffer.getNumDocs() == 0) return;
 
         final File outFile = new File(outputDirectory, currentSegment);
         final BufferedFileDataOutputStream out = new BufferedFileDataOutputStream(outFile, ByteOrder.nativeOrder(), 65536);
-        currentBuffer.write(out);
+        buffer.write(out);
         out.close();
 
         segmentsOnDisk.get(0).add(outFile);
@@ -103,8 +200,9 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
 
             final File mergeDir = new File(outputDirectory, currentSegment);
             currentSegment = nextSegmentDirectory(currentSegment);
-            final FlamdexWriter w = new SimpleFlamdexWriter(mergeDir.getAbsolutePath(), numDocs, true, false);
-            SimpleFlamdexWriter.merge(readers, w);
+            final FlamdexWriter w = new SimpleFlamdexWriter(mergeDir.getAbsolutePath(), numDocs, true, false, false, SimpleFlamdexWriter.FORMAT_VERSION, false);
+            // first level segments are read with streaming readers, which can only be merged one field at a time
+            SimpleFlamdexWriter.merge(readers, w, i == 0 ? 1 : mergeThreads);
             w.close();
 
             for (final FlamdexReader reader : readers) {
@@ -127,7 +225,16 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
 
     @Override
     public void close() throws IOException {
-        flush();
+        if (flushExecutor != null) {
+            try {
+                checkPendingFlushes(true);
+                // the failure may already have been thrown from addDocument
+                checkFlushFailure();
+            } finally {
+                flushExecutor.shutdownNow();
+            }
+        }
+        flush(currentBuffer);
         long numDocs = 0;
         final List<FlamdexReader> allReaders = Lists.newArrayList();
         for (final File file : Iterables.concat(Lists.reverse(segmentsOnDisk.subList(1, segmentsOnDisk.size())))) {
@@ -141,8 +248,11 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
             numDocs += reader.getNumDocs();
         }
 
-        final FlamdexWriter w = new SimpleFlamdexWriter(outputDirectory, numDocs, true, true);
-        SimpleFlamdexWriter.merge(allReaders, w);
+        final boolean sort = !sortFields.isEmpty() && numDocs > 0;
+        final File mergeDir = sort ? new File(outputDirectory, currentSegment) : new File(outputDirectory);
+        // when sorting this is only an intermediate index
+        final FlamdexWriter w = new SimpleFlamdexWriter(mergeDir.getAbsolutePath(), numDocs, true, !sort, false, SimpleFlamdexWriter.FORMAT_VERSION, !sort);
+        SimpleFlamdexWriter.merge(allReaders, w, segmentsOnDisk.get(0).isEmpty() ? mergeThreads : 1);
         w.close();
 
         for (final FlamdexReader reader : allReaders) {
@@ -152,6 +262,17 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
         for (final File file : Iterables.concat(segmentsOnDisk)) {
             rmrf(file);
         }
+
+        if (sort) {
+            final SimpleFlamdexReader reader = SimpleFlamdexReader.open(mergeDir.getAbsolutePath(), new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
+            try {
+                final int[] oldDocIdToNewDocId = FlamdexSort.getSortedDocIdMapping(reader, sortFields);
+                FlamdexSort.sort(reader, new SimpleFlamdexWriter(outputDirectory, numDocs, true, true), oldDocIdToNewDocId);
+            } finally {
+                reader.close();
+            }
+            rmrf(mergeDir);
+        }
     }
 
     private static String nextSegmentDirectory(String s) {
@@ -176,6 +297,9 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
     public static class Config {
         private int docBufferSize = 500;
         private int mergeFactor = 100;
+        private int mergeThreads = 1;
+        private int maxInFlightSegments = 0;
+        private List<String> sortFields = Collections.emptyList();
 
         public int getDocBufferSize() {
             return docBufferSize;
@@ -185,6 +309,18 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
             return mergeFactor;
         }
 
+        public int getMergeThreads() {
+            return mergeThreads;
+        }
+
+        public int getMaxInFlightSegments() {
+            return maxInFlightSegments;
+        }
+
+        public List<String> getSortFields() {
+            return sortFields;
+        }
+
         public Config setDocBufferSize(int docBufferSize) {
             this.docBufferSize = docBufferSize;
             return this;
@@ -194,6 +330,33 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
             this.mergeFactor = mergeFactor;
             return this;
         }
+
+        /**
+         * @param mergeThreads number of fields merged concurrently when merging segments that are already on disk
+         */
+        public Config setMergeThreads(int mergeThreads) {
+            this.mergeThreads = mergeThreads;
+            return this;
+        }
+
+        /**
+         * @param maxInFlightSegments if greater than 0, full buffers are written and merged on a background thread
+         *                            while documents are added to a new buffer, and addDocument blocks when this
+         *                            many full buffers are waiting to be written
+         */
+        public Config setMaxInFlightSegments(int maxInFlightSegments) {
+            this.maxInFlightSegments = maxInFlightSegments;
+            return this;
+        }
+
+        /**
+         * @param sortFields if not empty, close renumbers the docs ordered by these fields as described in
+         *                   {@link FlamdexSort#getSortedDocIdMapping}, so that similar docs get nearby doc ids
+         */
+        public Config setSortFields(List<String> sortFields) {
+            this.sortFields = ImmutableList.copyOf(sortFields);
+            return this;
+        }
     }
 
     private static void rmrf(final File file) throws IOException {
@@ -13,6 +13,9 @@
  */
  package com.indeed.flamdex.simple;
 
+import com.indeed.flamdex.fieldcache.FieldCacheMetadata;
+import com.indeed.flamdex.reader.FlamdexStats;
+
 import java.io.File;
 import java.io.FileFilter;
 
@@ -24,14 +27,19 @@ public class SimpleFlamdexFileFilter implements FileFilter {
     public boolean accept(File pathname) {
         final String name = pathname.getName();
         if ("metadata.txt".equals(name)) return true;
+        if (FieldCacheMetadata.FILENAME.equals(name)) return true;
+        if (FlamdexStats.FILENAME.equals(name)) return true;
         if (name.startsWith("fld-")) {
             if (name.endsWith(".intterms")) return true;
             if (name.endsWith(".strterms")) return true;
             if (name.endsWith(".intdocs")) return true;
             if (name.endsWith(".strdocs")) return true;
+            if (name.endsWith(".strdict")) return true;
+            if (name.endsWith(".zonemap")) return true;
             if (name.endsWith(".intindex") && pathname.isDirectory()) return true;
             if (name.endsWith(".intindex64") && pathname.isDirectory()) return true;
             if (name.endsWith(".strindex") && pathname.isDirectory()) return true;
+            if (name.endsWith("cache") && pathname.isFile()) return true;
         }
         return false;
     }
@@ -24,25 +24,36 @@ import com.indeed.flamdex.api.GenericRawStringTermDocIterator;
 import com.indeed.flamdex.api.IntTermDocIterator;
 import com.indeed.flamdex.api.RawFlamdexReader;
 import com.indeed.flamdex.api.RawStringTermDocIterator;
+import com.indeed.flamdex.fieldcache.FieldCacheMetadata;
+import com.indeed.flamdex.fieldcache.FieldCacher;
 import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIterator;
 import com.indeed.flamdex.reader.FlamdexMetadata;
+import com.indeed.flamdex.reader.FlamdexStats;
+import com.indeed.flamdex.reader.FlamdexStatsSource;
 import com.indeed.flamdex.utils.FlamdexUtils;
 import com.indeed.imhotep.io.caching.CachedFile;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * @author jsgroth
 */
-public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFlamdexReader {
+public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFlamdexReader, FlamdexStatsSource {
     private final Collection<String> intFields;
     private final Collection<String> stringFields;
     private final MapCache mapCache = new MapCache();
+    private final boolean blockPostings;
+
+    private boolean statsLoaded = false;
+    private FlamdexStats stats;
 
     private static final boolean useNativeDocIdStream;
 
@@ -56,10 +67,30 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
                                   Collection<String> intFields,
                                   Collection<String> stringFields,
                                   boolean useMMapMetrics) {
-        super(directory, numDocs, useMMapMetrics);
+        this(directory, numDocs, intFields, stringFields, useMMapMetrics, Collections.<String, FieldCacher.Selection>emptyMap());
+    }
+
+    protected SimpleFlamdexReader(String directory,
+                                  int numDocs,
+                                  Collection<String> intFields,
+                                  Collection<String> stringFields,
+                                  boolean useMMapMetrics,
+                                  Map<String, FieldCacher.Selection> precomputedCachers) {
+        this(directory, numDocs, intFields, stringFields, useMMapMetrics, precomputedCachers, SimpleFlamdexWriter.FORMAT_VERSION);
+    }
+
+    protected SimpleFlamdexReader(String directory,
+                                  int numDocs,
+                                  Collection<String> intFields,
+                                  Collection<String> stringFields,
+                                  boolean useMMapMetrics,
+                                  Map<String, FieldCacher.Selection> precomputedCachers,
+                                  int formatVersion) {
+        super(directory, numDocs, useMMapMetrics, precomputedCachers);
 
         this.intFields = intFields;
         this.stringFields = stringFields;
+        this.blockPostings = formatVersion == SimpleFlamdexWriter.BLOCK_POSTINGS_FORMAT_VERSION;
     }
 
     public static SimpleFlamdexReader open(String directory) throws IOException {
@@ -74,7 +105,8 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
             buildIntBTrees(directory, Lists.newArrayList(intFields));
             buildStringBTrees(directory, Lists.newArrayList(stringFields));
         }
-        return new SimpleFlamdexReader(directory, metadata.numDocs, intFields, stringFields, config.useMMapMetrics);
+        final Map<String, FieldCacher.Selection> precomputedCachers = FieldCacheMetadata.readSelections(directory);
+        return new SimpleFlamdexReader(directory, metadata.numDocs, intFields, stringFields, config.useMMapMetrics, precomputedCachers, metadata.formatVersion);
     }
 
     protected static Collection<String> scan(final String directory, final String ending) throws IOException {
@@ -102,6 +134,9 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
 
     @Override
     public DocIdStream getDocIdStream() {
+        if (blockPostings) {
+            return new BlockDocIdStream(mapCache, numDocs);
+        }
         return useNativeDocIdStream ? new NativeDocIdStream(mapCache) : new SimpleDocIdStream(mapCache);
     }
 
@@ -134,8 +169,12 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
         if (CachedFile.create(termsFilename).length() == 0L) {
             return new NullStringTermIterator(docsFilename);
         }
+        final String dictionaryFilename = CachedFile.buildPath(directory, StringTermDictionary.getFilename(field));
         final String indexFilename = CachedFile.buildPath(directory, "fld-"+field+".strindex");
         try {
+            if (CachedFile.create(dictionaryFilename).exists()) {
+                return new StringTermDictionaryIterator(mapCache, dictionaryFilename, docsFilename);
+            }
             return new SimpleStringTermIteratorImpl(mapCache, termsFilename, docsFilename, indexFilename);
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -150,7 +189,7 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
     @Override
     public IntTermDocIterator getIntTermDocIterator(final String field) {
         final SimpleIntTermIterator termIterator = getIntTermIterator(field);
-        if (useNativeDocIdStream && CachedFile.create(termIterator.getFilename()).length() > 0) {
+        if (useNativeDocIdStream && !blockPostings && CachedFile.create(termIterator.getFilename()).length() > 0) {
             try {
                 return new NativeIntTermDocIterator(termIterator, mapCache);
             } catch (IOException e) {
@@ -164,7 +203,7 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
     @Override
     public RawStringTermDocIterator getStringTermDocIterator(final String field) {
         final SimpleStringTermIterator termIterator = getStringTermIterator(field);
-        if (useNativeDocIdStream && CachedFile.create(termIterator.getFilename()).length() > 0) {
+        if (useNativeDocIdStream && !blockPostings && CachedFile.create(termIterator.getFilename()).length() > 0) {
             try {
                 return new NativeStringTermDocIterator(termIterator, mapCache);
             } catch (IOException e) {
@@ -190,6 +229,22 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
         return intFields;
     }
 
+    /**
+     * @return the stats written with the shard, loaded on first use, or null if it has none
+     */
+    @Override
+    public synchronized @Nullable FlamdexStats getFlamdexStats() {
+        if (!statsLoaded) {
+            try {
+                stats = FlamdexStats.read(directory, numDocs);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+            statsLoaded = true;
+        }
+        return stats;
+    }
+
     @Override
     public void close() throws IOException {
         mapCache.close();
@@ -208,7 +263,8 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
     protected static void buildStringBTrees(final String directory, final List<String> stringFields) throws IOException {
         for (final String stringField : stringFields) {
             final File btreeDir = new File(Files.buildPath(directory, "fld-" + stringField + ".strindex"));
-            if (!btreeDir.exists()) {
+            final File dictionary = new File(Files.buildPath(directory, StringTermDictionary.getFilename(stringField)));
+            if (!btreeDir.exists() && !dictionary.exists()) {
                 SimpleFlamdexWriter.writeStringBTree(directory, stringField, btreeDir);
             }
         }
@@ -14,11 +14,15 @@
  package com.indeed.flamdex.simple;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
 import com.google.common.collect.AbstractIterator;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.CountingInputStream;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.indeed.util.core.sort.Quicksortable;
 import com.indeed.util.core.sort.Quicksortables;
 import com.indeed.util.io.Files;
@@ -27,8 +31,15 @@ import com.indeed.util.serialization.StringSerializer;
 import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.fieldcache.FieldCacheMetadata;
+import com.indeed.flamdex.fieldcache.FieldCacher;
+import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIterator;
+import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIteratorImpl;
+import com.indeed.flamdex.fieldcache.ZoneMap;
 import com.indeed.flamdex.reader.FlamdexMetadata;
+import com.indeed.flamdex.reader.FlamdexStats;
 import com.indeed.flamdex.utils.FlamdexUtils;
 import com.indeed.flamdex.writer.FlamdexWriter;
 import com.indeed.flamdex.writer.IntFieldWriter;
@@ -42,6 +53,7 @@ import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectHeapSemiIndirectPriorityQueue;
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nullable;
 import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.File;
@@ -54,11 +66,18 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author jsgroth
@@ -68,6 +87,12 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
 
     public static final int FORMAT_VERSION = 0;
 
+    /**
+     * same files as {@link #FORMAT_VERSION} but postings are written as {@link BlockPostings} and string fields get
+     * a {@link StringTermDictionary} instead of a btree
+     */
+    public static final int BLOCK_POSTINGS_FORMAT_VERSION = 3;
+
     private static final int DOC_ID_BUFFER_SIZE = 32;
 
     private static final int BLOCK_SIZE = 64;    
@@ -76,9 +101,17 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
     private long maxDocs;
 
     private final boolean writeBTreesOnClose;
+    private final boolean writeFieldCaches;
+    private final boolean writeStats;
+    private final int formatVersion;
 
     private final Set<String> intFields;
     private final Set<String> stringFields;
+    private final Set<String> writtenFields = new HashSet<String>();
+    // the last writer opened for each field, which wrote the field's current files
+    private final Map<String, SimpleIntFieldWriter> intFieldWriters = new HashMap<String, SimpleIntFieldWriter>();
+    private final Map<String, SimpleStringFieldWriter> stringFieldWriters = new HashMap<String, SimpleStringFieldWriter>();
+    private final FieldCacheMetadata fieldCacheMetadata;
 
     public SimpleFlamdexWriter(String outputDirectory, long numDocs) throws IOException {
         this(outputDirectory, numDocs, true, true);
@@ -89,10 +122,42 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
     }
 
     public SimpleFlamdexWriter(String outputDirectory, long numDocs, boolean create, boolean writeBTreesOnClose) throws IOException {
+        this(outputDirectory, numDocs, create, writeBTreesOnClose, false);
+    }
+
+    /**
+     * @param writeFieldCaches if true, close() also writes an mmappable field cache of the chosen width for every
+     *                         int field, so that readers don't have to build them on first use, along with its
+     *                         {@link ZoneMap}
+     */
+    public SimpleFlamdexWriter(String outputDirectory, long numDocs, boolean create, boolean writeBTreesOnClose, boolean writeFieldCaches) throws IOException {
+        this(outputDirectory, numDocs, create, writeBTreesOnClose, writeFieldCaches, FORMAT_VERSION);
+    }
+
+    /**
+     * @param formatVersion {@link #FORMAT_VERSION} or {@link #BLOCK_POSTINGS_FORMAT_VERSION}, only used if create is
+     *                      true since fields added to an existing index are written in that index's format
+     */
+    public SimpleFlamdexWriter(String outputDirectory, long numDocs, boolean create, boolean writeBTreesOnClose, boolean writeFieldCaches, int formatVersion) throws IOException {
+        this(outputDirectory, numDocs, create, writeBTreesOnClose, writeFieldCaches, formatVersion, true);
+    }
+
+    /**
+     * @param writeStats if true and create is true, close() writes the {@link FlamdexStats} collected by the field
+     *                   writers. Writers of temporary indexes such as intermediate merges should pass false. Indexes
+     *                   that are added to keep their stats up to date regardless.
+     */
+    public SimpleFlamdexWriter(String outputDirectory, long numDocs, boolean create, boolean writeBTreesOnClose, boolean writeFieldCaches, int formatVersion, boolean writeStats) throws IOException {
+        if (formatVersion != FORMAT_VERSION && formatVersion != BLOCK_POSTINGS_FORMAT_VERSION) {
+            throw new IllegalArgumentException("unsupported format version " + formatVersion);
+        }
         this.outputDirectory = outputDirectory;
         this.maxDocs = numDocs;
         this.writeBTreesOnClose = writeBTreesOnClose;
+        this.writeFieldCaches = writeFieldCaches;
+        this.writeStats = create && writeStats;
         if (create) {
+            this.formatVersion = formatVersion;
             if (new File(outputDirectory).exists()) {
                 deleteIndex(outputDirectory);
             } else if (!new File(outputDirectory).mkdirs()) {
@@ -100,13 +165,17 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
             }
             intFields = new HashSet<String>();
             stringFields = new HashSet<String>();
+            fieldCacheMetadata = new FieldCacheMetadata();
         } else {
             final FlamdexMetadata metadata = FlamdexMetadata.readMetadata(outputDirectory);
             if (metadata.numDocs != numDocs) {
                 throw new IllegalArgumentException("numDocs (" + numDocs + ") does not match numDocs in existing index (" + metadata.numDocs + ")");
             }
+            this.formatVersion = metadata.formatVersion;
             intFields = new HashSet<String>(metadata.intFields);
             stringFields = new HashSet<String>(metadata.stringFields);
+            final FieldCacheMetadata existingFieldCaches = FieldCacheMetadata.readMetadata(outputDirectory);
+            fieldCacheMetadata = existingFieldCaches != null ? existingFieldCaches : new FieldCacheMetadata();
         }
     }
     
@@ -129,7 +198,10 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
             throw new IllegalArgumentException("already added int field "+field);
         }
         intFields.add(field);
-        return SimpleIntFieldWriter.open(outputDirectory, field, maxDocs, writeBTreesOnClose);
+        writtenFields.add(field);
+        final SimpleIntFieldWriter writer = SimpleIntFieldWriter.open(outputDirectory, field, maxDocs, writeBTreesOnClose, formatVersion == BLOCK_POSTINGS_FORMAT_VERSION);
+        intFieldWriters.put(field, writer);
+        return writer;
     }
 
     @Override
@@ -142,7 +214,12 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
             throw new IllegalArgumentException("already added string field "+field);
         }
         stringFields.add(field);
-        return SimpleStringFieldWriter.open(outputDirectory, field, maxDocs, writeBTreesOnClose);
+        // int metrics can be read from string fields, so their caches are invalidated too
+        writtenFields.add(field);
+        final boolean blockPostings = formatVersion == BLOCK_POSTINGS_FORMAT_VERSION;
+        final SimpleStringFieldWriter writer = SimpleStringFieldWriter.open(outputDirectory, field, maxDocs, writeBTreesOnClose, blockPostings, blockPostings);
+        stringFieldWriters.put(field, writer);
+        return writer;
     }
 
     @Override
@@ -153,8 +230,102 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
         final List<String> stringFieldsList = new ArrayList<String>(stringFields);
         Collections.sort(stringFieldsList);
 
-        final FlamdexMetadata metadata = new FlamdexMetadata((int)maxDocs, intFieldsList, stringFieldsList, FORMAT_VERSION);
+        final FlamdexMetadata metadata = new FlamdexMetadata((int)maxDocs, intFieldsList, stringFieldsList, formatVersion);
         FlamdexMetadata.writeMetadata(outputDirectory, metadata);
+
+        writeStats();
+
+        for (final String field : writtenFields) {
+            FieldCacher.deleteMMapFieldCaches(field, outputDirectory);
+            ZoneMap.delete(outputDirectory, field);
+            fieldCacheMetadata.remove(field);
+            fieldCacheMetadata.putContentHash(field, hashField(field));
+        }
+        writtenFields.clear();
+        intFieldWriters.clear();
+        stringFieldWriters.clear();
+        if (writeFieldCaches) {
+            writeFieldCaches(intFieldsList);
+        }
+        FieldCacheMetadata.writeMetadata(outputDirectory, fieldCacheMetadata);
+    }
+
+    /**
+     * writes the stats the field writers collected, or updates an existing index's stats with them. Fields that
+     * weren't written can't be filled in without scanning them, so an existing index without stats keeps having none.
+     */
+    private void writeStats() throws IOException {
+        final FlamdexStats stats;
+        if (writeStats) {
+            stats = new FlamdexStats((int) maxDocs);
+        } else {
+            if (writtenFields.isEmpty()) return;
+            stats = FlamdexStats.read(outputDirectory, (int) maxDocs);
+            if (stats == null) return;
+        }
+        for (final Map.Entry<String, SimpleIntFieldWriter> entry : intFieldWriters.entrySet()) {
+            stats.putIntFieldStats(entry.getKey(), entry.getValue().getStats());
+        }
+        for (final Map.Entry<String, SimpleStringFieldWriter> entry : stringFieldWriters.entrySet()) {
+            stats.putStringFieldStats(entry.getKey(), entry.getValue().getStats());
+        }
+        FlamdexStats.write(outputDirectory, stats);
+    }
+
+    /**
+     * hashes everything a metric on the field is built from, so fields with equal hashes have identical lookups
+     */
+    private String hashField(String field) throws IOException {
+        final Hasher hasher = Hashing.murmur3_128().newHasher().putLong(maxDocs);
+        putFileHashes(hasher, intFieldWriters.get(field), SimpleIntFieldWriter.getTermsFilename(field), SimpleIntFieldWriter.getDocsFilename(field));
+        putFileHashes(hasher, stringFieldWriters.get(field), SimpleStringFieldWriter.getTermsFilename(field), SimpleStringFieldWriter.getDocsFilename(field));
+        return hasher.hash().toString();
+    }
+
+    /**
+     * uses the hashes the writer computed while writing the files, only files it didn't write are read back
+     */
+    private void putFileHashes(Hasher hasher, @Nullable SimpleFieldWriter writer, String termsFilename, String docsFilename) throws IOException {
+        if (writer != null && writer.getTermsHash() != null) {
+            hasher.putString(termsFilename, Charsets.UTF_8).putBytes(writer.getTermsHash().asBytes());
+            hasher.putString(docsFilename, Charsets.UTF_8).putBytes(writer.getDocsHash().asBytes());
+            return;
+        }
+        for (final String filename : new String[] { termsFilename, docsFilename }) {
+            final File file = new File(outputDirectory, filename);
+            if (file.exists()) {
+                hasher.putString(filename, Charsets.UTF_8);
+                hasher.putBytes(com.google.common.io.Files.hash(file, Hashing.murmur3_128()).asBytes());
+            }
+        }
+    }
+
+    private void writeFieldCaches(List<String> fields) throws IOException {
+        final boolean allowEncoded = FieldCacher.encodedMetricsEnabled();
+        final Map<String, FieldCacher.Selection> existing = fieldCacheMetadata.toSelections();
+        final SimpleFlamdexReader reader = SimpleFlamdexReader.open(outputDirectory, new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
+        try {
+            for (final String field : fields) {
+                if (existing.containsKey(field)) continue;
+                final FieldCacher.Selection selection = FieldCacher.selectCacherForField(field, reader, allowEncoded);
+                final UnsortedIntTermDocIterator iterator = UnsortedIntTermDocIteratorImpl.create(reader, field);
+                final IntValueLookup lookup;
+                try {
+                    lookup = selection.newMMapFieldCache(iterator, reader.getNumDocs(), field, outputDirectory);
+                } finally {
+                    iterator.close();
+                }
+                try {
+                    ZoneMap.build(lookup, reader.getNumDocs()).write(outputDirectory, field);
+                } finally {
+                    lookup.close();
+                }
+                fieldCacheMetadata.put(field, selection);
+                log.debug("wrote " + selection.getCacher() + " field cache for " + field);
+            }
+        } finally {
+            reader.close();
+        }
     }
 
     public static void writeIntBTree(String directory, String intField, File btreeDir) throws IOException {
@@ -333,36 +504,105 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
     }
 
     public static void merge(FlamdexReader[] readers, FlamdexWriter w) throws IOException {
-        final DocIdStream[] docIdStreams = new DocIdStream[readers.length];
+        merge(readers, w, 1);
+    }
+
+    public static void merge(Collection<? extends FlamdexReader> readers, FlamdexWriter w, int numThreads) throws IOException {
+        merge(readers.toArray(new FlamdexReader[readers.size()]), w, numThreads);
+    }
+
+    /**
+     * @param numThreads number of fields to merge at once, each with its own doc id streams and buffers. Readers
+     *                   have to support iterating several fields at the same time, which streaming readers like
+     *                   {@link com.indeed.flamdex.MemoryFlamdex#streamer} don't, so those need a numThreads of 1.
+     */
+    public static void merge(final FlamdexReader[] readers, final FlamdexWriter w, int numThreads) throws IOException {
         final int[] segmentStartDocs = new int[readers.length];
         int totalNumDocs = 0;
         for (int i = 0; i < readers.length; ++i) {
-            docIdStreams[i] = readers[i].getDocIdStream();
             segmentStartDocs[i] = totalNumDocs;
             totalNumDocs += readers[i].getNumDocs();
         }
 
         log.info("merging " + readers.length + " readers with a total of " + totalNumDocs + " docs");
 
-        final int[] indexBuf = new int[readers.length];
-        final int[] docIdBuf = new int[64];
-
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
         for (final String intField : mergeIntFields(readers)) {
-            final IntFieldWriter ifw = w.getIntFieldWriter(intField);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    final IntFieldWriter ifw;
+                    synchronized (w) {
+                        ifw = w.getIntFieldWriter(intField);
+                    }
+                    mergeIntField(readers, segmentStartDocs, intField, ifw);
+                    return null;
+                }
+            });
+        }
+        for (final String stringField : mergeStringFields(readers)) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    final StringFieldWriter sfw;
+                    synchronized (w) {
+                        sfw = w.getStringFieldWriter(stringField);
+                    }
+                    mergeStringField(readers, segmentStartDocs, stringField, sfw);
+                    return null;
+                }
+            });
+        }
 
-            final IntTermIteratorWrapper[] iterators = new IntTermIteratorWrapper[readers.length];
-            final IndirectPriorityQueue<IntTermIteratorWrapper> pq = new ObjectHeapSemiIndirectPriorityQueue<IntTermIteratorWrapper>(iterators, iterators.length);
-            for (int i = 0; i < readers.length; ++i) {
-                if (!readers[i].getIntFields().contains(intField)) continue;
-                final IntTermIterator it = readers[i].getIntTermIterator(intField);
-                if (it.next()) {
-                    iterators[i] = new IntTermIteratorWrapper(it, i);
-                    pq.enqueue(i);
-                } else {
-                    it.close();
+        if (numThreads <= 1 || tasks.size() <= 1) {
+            for (final Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw Throwables.propagate(e);
                 }
             }
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, tasks.size()),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("FlamdexMerge-%d").build());
+        try {
+            for (final Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void mergeIntField(FlamdexReader[] readers, int[] segmentStartDocs, String intField, IntFieldWriter ifw) throws IOException {
+        final DocIdStream[] docIdStreams = new DocIdStream[readers.length];
+        final int[] indexBuf = new int[readers.length];
+        final int[] docIdBuf = new int[64];
+
+        final IntTermIteratorWrapper[] iterators = new IntTermIteratorWrapper[readers.length];
+        final IndirectPriorityQueue<IntTermIteratorWrapper> pq = new ObjectHeapSemiIndirectPriorityQueue<IntTermIteratorWrapper>(iterators, iterators.length);
+        for (int i = 0; i < readers.length; ++i) {
+            if (!readers[i].getIntFields().contains(intField)) continue;
+            final IntTermIterator it = readers[i].getIntTermIterator(intField);
+            if (it.next()) {
+                iterators[i] = new IntTermIteratorWrapper(it, i);
+                docIdStreams[i] = readers[i].getDocIdStream();
+                pq.enqueue(i);
+            } else {
+                it.close();
+            }
+        }
 
+        try {
             while (!pq.isEmpty()) {
                 final long term = iterators[pq.first()].it.term();
                 int numIndexes = 0;
@@ -397,24 +637,31 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
             }
 
             ifw.close();
+        } finally {
+            closeAll(docIdStreams);
         }
+    }
 
-        for (final String stringField : mergeStringFields(readers)) {
-            final StringFieldWriter sfw = w.getStringFieldWriter(stringField);
+    private static void mergeStringField(FlamdexReader[] readers, int[] segmentStartDocs, String stringField, StringFieldWriter sfw) throws IOException {
+        final DocIdStream[] docIdStreams = new DocIdStream[readers.length];
+        final int[] indexBuf = new int[readers.length];
+        final int[] docIdBuf = new int[64];
 
-            final StringTermIteratorWrapper[] iterators = new StringTermIteratorWrapper[readers.length];
-            final IndirectPriorityQueue<StringTermIteratorWrapper> pq = new ObjectHeapSemiIndirectPriorityQueue<StringTermIteratorWrapper>(iterators, iterators.length);
-            for (int i = 0; i < readers.length; ++i) {
-                if (!readers[i].getStringFields().contains(stringField)) continue;
-                final StringTermIterator it = readers[i].getStringTermIterator(stringField);
-                if (it.next()) {
-                    iterators[i] = new StringTermIteratorWrapper(it, i);
-                    pq.enqueue(i);
-                } else {
-                    it.close();
-                }
+        final StringTermIteratorWrapper[] iterators = new StringTermIteratorWrapper[readers.length];
+        final IndirectPriorityQueue<StringTermIteratorWrapper> pq = new ObjectHeapSemiIndirectPriorityQueue<StringTermIteratorWrapper>(iterators, iterators.length);
+        for (int i = 0; i < readers.length; ++i) {
+            if (!readers[i].getStringFields().contains(stringField)) continue;
+            final StringTermIterator it = readers[i].getStringTermIterator(stringField);
+            if (it.next()) {
+                iterators[i] = new StringTermIteratorWrapper(it, i);
+                docIdStreams[i] = readers[i].getDocIdStream();
+                pq.enqueue(i);
+            } else {
+                it.close();
             }
+        }
 
+        try {
             while (!pq.isEmpty()) {
                 final String term = iterators[pq.first()].it.term();
                 int numIndexes = 0;
@@ -449,10 +696,16 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
             }
 
             sfw.close();
+        } finally {
+            closeAll(docIdStreams);
         }
+    }
 
+    private static void closeAll(DocIdStream[] docIdStreams) {
         for (final DocIdStream dis : docIdStreams) {
-            dis.close();
+            if (dis != null) {
+                dis.close();
+            }
         }
     }
 
@@ -13,16 +13,13 @@
  */
  package com.indeed.flamdex.simple;
 
-import com.indeed.util.io.Files;
+import com.indeed.flamdex.reader.FlamdexStats;
 import com.indeed.flamdex.utils.FlamdexUtils;
 import com.indeed.flamdex.writer.IntFieldWriter;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 
 /**
  * @author jsgroth
@@ -36,8 +33,10 @@ final class SimpleIntFieldWriter extends SimpleFieldWriter implements IntFieldWr
     private boolean hasCurrentTerm = false;
     private long currentTerm;
 
-    private SimpleIntFieldWriter(String outputDirectory, String field, boolean writeBTreesOnClose, OutputStream termsOutput, OutputStream docsOutput, long numDocs) {
-        super(termsOutput, docsOutput, numDocs);
+    private final FlamdexStats.IntFieldStatsBuilder stats = new FlamdexStats.IntFieldStatsBuilder();
+
+    private SimpleIntFieldWriter(String outputDirectory, String field, boolean writeBTreesOnClose, long numDocs, boolean blockPostings) throws FileNotFoundException {
+        super(new File(outputDirectory, getTermsFilename(field)), new File(outputDirectory, getDocsFilename(field)), numDocs, blockPostings);
         this.outputDirectory = outputDirectory;
         this.field = field;
         this.writeBTreesOnClose = writeBTreesOnClose;
@@ -52,9 +51,14 @@ final class SimpleIntFieldWriter extends SimpleFieldWriter implements IntFieldWr
     }
 
     public static SimpleIntFieldWriter open(String outputDirectory, String field, long numDocs, boolean writeBTreesOnClose) throws FileNotFoundException {
-        final OutputStream termsOutput = new BufferedOutputStream(new FileOutputStream(Files.buildPath(outputDirectory, getTermsFilename(field))), 65536);
-        final OutputStream docsOutput = new BufferedOutputStream(new FileOutputStream(Files.buildPath(outputDirectory, getDocsFilename(field))), 65536);
-        return new SimpleIntFieldWriter(outputDirectory, field, writeBTreesOnClose, termsOutput, docsOutput, numDocs);
+        return open(outputDirectory, field, numDocs, writeBTreesOnClose, false);
+    }
+
+    /**
+     * @param blockPostings if true the docs file is written as {@link BlockPostings}
+     */
+    public static SimpleIntFieldWriter open(String outputDirectory, String field, long numDocs, boolean writeBTreesOnClose, boolean blockPostings) throws FileNotFoundException {
+        return new SimpleIntFieldWriter(outputDirectory, field, writeBTreesOnClose, numDocs, blockPostings);
     }
 
     /**
@@ -80,6 +84,18 @@ final class SimpleIntFieldWriter extends SimpleFieldWriter implements IntFieldWr
         lastTermWritten = currentTerm;
     }
 
+    @Override
+    protected void termWritten(int docFreq) {
+        stats.add(currentTerm, docFreq);
+    }
+
+    /**
+     * @return the stats of the terms written so far
+     */
+    FlamdexStats.IntFieldStats getStats() {
+        return stats.build();
+    }
+
     @Override
     protected void writeBTreeIndex() throws IOException {
         if (writeBTreesOnClose) {
@@ -14,16 +14,13 @@
  package com.indeed.flamdex.simple;
 
 import com.google.common.base.Charsets;
-import com.indeed.util.io.Files;
+import com.indeed.flamdex.reader.FlamdexStats;
 import com.indeed.flamdex.utils.FlamdexUtils;
 import com.indeed.flamdex.writer.StringFieldWriter;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 
 /**
  * @author jsgroth
@@ -32,15 +29,19 @@ class SimpleStringFieldWriter extends SimpleFieldWriter implements StringFieldWr
     private final String outputDirectory;
     private final String field;
     private final boolean writeBTreesOnClose;
+    private final boolean writeTermDictionary;
 
     private byte[] lastWrittenTermBytes = new byte[0];
     private String currentTerm = null;
 
-    private SimpleStringFieldWriter(String outputDirectory, String field, boolean writeBTreesOnClose, OutputStream termsOutput, OutputStream docsOutput, long numDocs) {
-        super(termsOutput, docsOutput, numDocs);
+    private final FlamdexStats.StringFieldStatsBuilder stats = new FlamdexStats.StringFieldStatsBuilder();
+
+    private SimpleStringFieldWriter(String outputDirectory, String field, boolean writeBTreesOnClose, long numDocs, boolean blockPostings, boolean writeTermDictionary) throws FileNotFoundException {
+        super(new File(outputDirectory, getTermsFilename(field)), new File(outputDirectory, getDocsFilename(field)), numDocs, blockPostings);
         this.outputDirectory = outputDirectory;
         this.field = field;
         this.writeBTreesOnClose = writeBTreesOnClose;
+        this.writeTermDictionary = writeTermDictionary;
     }
 
     public static String getTermsFilename(String field) {
@@ -52,9 +53,23 @@ class SimpleStringFieldWriter extends SimpleFieldWriter implements StringFieldWr
     }
 
     public static SimpleStringFieldWriter open(String outputDirectory, String field, long numDocs, boolean writeBTreesOnClose) throws FileNotFoundException {
-        final OutputStream termsOutput = new BufferedOutputStream(new FileOutputStream(Files.buildPath(outputDirectory, getTermsFilename(field))), 65536);
-        final OutputStream docsOutput = new BufferedOutputStream(new FileOutputStream(Files.buildPath(outputDirectory, getDocsFilename(field))), 65536);
-        return new SimpleStringFieldWriter(outputDirectory, field, writeBTreesOnClose, termsOutput, docsOutput, numDocs);
+        return open(outputDirectory, field, numDocs, writeBTreesOnClose, false);
+    }
+
+    /**
+     * @param blockPostings if true the docs file is written as {@link BlockPostings}
+     */
+    public static SimpleStringFieldWriter open(String outputDirectory, String field, long numDocs, boolean writeBTreesOnClose, boolean blockPostings) throws FileNotFoundException {
+        return open(outputDirectory, field, numDocs, writeBTreesOnClose, blockPostings, false);
+    }
+
+    /**
+     * @param writeTermDictionary if true a {@link StringTermDictionary} is written on close instead of the btree
+     */
+    public static SimpleStringFieldWriter open(String outputDirectory, String field, long numDocs, boolean writeBTreesOnClose, boolean blockPostings, boolean writeTermDictionary) throws FileNotFoundException {
+        // a dictionary left from a previous version of the field would be preferred over the new terms by readers
+        new File(outputDirectory, StringTermDictionary.getFilename(field)).delete();
+        return new SimpleStringFieldWriter(outputDirectory, field, writeBTreesOnClose, numDocs, blockPostings, writeTermDictionary);
     }
 
     /**
@@ -86,9 +101,23 @@ class SimpleStringFieldWriter extends SimpleFieldWriter implements StringFieldWr
         lastWrittenTermBytes = currentTermBytes;
     }
 
+    @Override
+    protected void termWritten(int docFreq) {
+        stats.add(currentTerm, docFreq);
+    }
+
+    /**
+     * @return the stats of the terms written so far
+     */
+    FlamdexStats.StringFieldStats getStats() {
+        return stats.build();
+    }
+
     @Override
     protected void writeBTreeIndex() throws IOException {
-        if (writeBTreesOnClose) {
+        if (writeTermDictionary) {
+            StringTermDictionary.write(outputDirectory, field);
+        } else if (writeBTreesOnClose) {
             SimpleFlamdexWriter.writeStringBTree(outputDirectory, field, new File(outputDirectory, "fld-" + field + ".strindex"));
         }
     }
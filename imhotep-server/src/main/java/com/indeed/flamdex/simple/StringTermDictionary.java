@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.simple;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.LittleEndianDataOutputStream;
+import com.indeed.flamdex.utils.FlamdexUtils;
+import com.indeed.util.io.Files;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * String term dictionary that can be binary searched in place, used instead of the .strindex btree. Terms are
+ * front coded in blocks of {@link #TERMS_PER_BLOCK}, with the first term of every block stored in full:
+ * <pre>
+ * for every block, for every term in the block:
+ *     vint     length of the prefix shared with the previous term in the block, 0 for the first term
+ *     vint     suffix length
+ *     byte[]   suffix
+ *     vlong    doc offset, absolute for the first term in the block and a delta from the previous term otherwise
+ *     vint     docFreq
+ * long[]   file offset of every block
+ * long     file offset of the block offsets
+ * long     number of terms
+ * int      terms per block
+ * </pre>
+ * All fixed width values are little endian.
+ */
+final class StringTermDictionary {
+    static final int TERMS_PER_BLOCK = 32;
+
+    static final int FOOTER_SIZE = 8 + 8 + 4;
+
+    private StringTermDictionary() {
+    }
+
+    static String getFilename(String field) {
+        return "fld-" + field + ".strdict";
+    }
+
+    /**
+     * builds the dictionary of a string field from its .strterms file
+     */
+    static void write(String directory, String field) throws IOException {
+        final String termsFilename = Files.buildPath(directory, SimpleStringFieldWriter.getTermsFilename(field));
+        if (!new File(termsFilename).exists() || new File(termsFilename).length() == 0L) return;
+        final File outputFile = new File(directory, getFilename(field));
+        final File tmpFile = new File(directory, getFilename(field) + ".tmp");
+
+        final InputStream termsIn = new BufferedInputStream(new FileInputStream(termsFilename), 65536);
+        try {
+            final CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+            final LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(counter);
+            try {
+                final LongArrayList blockOffsets = new LongArrayList();
+                byte[] term = new byte[16];
+                int termLen = 0;
+                byte[] lastWritten = new byte[16];
+                int lastWrittenLen = 0;
+                long docOffset = 0L;
+                long lastWrittenDocOffset = 0L;
+                long numTerms = 0;
+                while (true) {
+                    final int removeLen;
+                    try {
+                        removeLen = (int) FlamdexUtils.readVLong(termsIn);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    final int newLen = (int) FlamdexUtils.readVLong(termsIn);
+                    final int prefixLen = termLen - removeLen;
+                    if (prefixLen + newLen > term.length) {
+                        term = Arrays.copyOf(term, Math.max(prefixLen + newLen, 2 * term.length));
+                    }
+                    ByteStreams.readFully(termsIn, term, prefixLen, newLen);
+                    termLen = prefixLen + newLen;
+                    docOffset += FlamdexUtils.readVLong(termsIn);
+                    final long docFreq = FlamdexUtils.readVLong(termsIn);
+
+                    final int sharedLen;
+                    final long writtenDocOffset;
+                    if (numTerms % TERMS_PER_BLOCK == 0) {
+                        blockOffsets.add(counter.getCount());
+                        sharedLen = 0;
+                        writtenDocOffset = docOffset;
+                    } else {
+                        sharedLen = getPrefixLen(lastWritten, lastWrittenLen, term, termLen);
+                        writtenDocOffset = docOffset - lastWrittenDocOffset;
+                    }
+                    FlamdexUtils.writeVLong(sharedLen, out);
+                    FlamdexUtils.writeVLong(termLen - sharedLen, out);
+                    out.write(term, sharedLen, termLen - sharedLen);
+                    FlamdexUtils.writeVLong(writtenDocOffset, out);
+                    FlamdexUtils.writeVLong(docFreq, out);
+
+                    if (termLen > lastWritten.length) {
+                        lastWritten = new byte[term.length];
+                    }
+                    System.arraycopy(term, 0, lastWritten, 0, termLen);
+                    lastWrittenLen = termLen;
+                    lastWrittenDocOffset = docOffset;
+                    ++numTerms;
+                }
+
+                final long indexOffset = counter.getCount();
+                for (int i = 0; i < blockOffsets.size(); ++i) {
+                    out.writeLong(blockOffsets.getLong(i));
+                }
+                out.writeLong(indexOffset);
+                out.writeLong(numTerms);
+                out.writeInt(TERMS_PER_BLOCK);
+            } finally {
+                out.close();
+            }
+        } finally {
+            termsIn.close();
+        }
+        if (!tmpFile.renameTo(outputFile)) {
+            throw new IOException("unable to rename " + tmpFile + " to " + outputFile);
+        }
+    }
+
+    private static int getPrefixLen(byte[] a, int aLen, byte[] b, int bLen) {
+        final int n = Math.min(aLen, bLen);
+        for (int i = 0; i < n; ++i) {
+            if (a[i] != b[i]) return i;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.simple;
+
+import com.google.common.base.Charsets;
+import com.indeed.util.core.reference.SharedReference;
+import com.indeed.util.mmap.DirectMemory;
+import com.indeed.util.mmap.MMapBuffer;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * {@link SimpleStringTermIterator} over a {@link StringTermDictionary}. Terms are decoded straight from the mapped
+ * file into a reused buffer, so iterating with {@link #termStringBytes()} doesn't allocate, and reset binary
+ * searches the first terms of the blocks.
+ */
+final class StringTermDictionaryIterator implements SimpleStringTermIterator {
+    private static final Logger log = Logger.getLogger(StringTermDictionaryIterator.class);
+
+    private final String docsFilename;
+    private final SharedReference<MMapBuffer> file;
+    private final DirectMemory memory;
+
+    private final long indexOffset;
+    private final long numTerms;
+    private final int termsPerBlock;
+    private final int numBlocks;
+
+    private long position;
+    // index of the current term, -1 before the first one
+    private long termIndex;
+
+    private byte[] termBytes = new byte[100];
+    private int termLength;
+    private long termOffset;
+    private int termDocFreq;
+    private String termString;
+
+    private boolean bufferNext = false;
+    private boolean closed = false;
+
+    StringTermDictionaryIterator(MapCache mapCache, String filename, String docsFilename) throws IOException {
+        this.docsFilename = docsFilename;
+        file = mapCache.copyOrOpen(filename);
+        memory = file.get().memory();
+
+        final long footer = memory.length() - StringTermDictionary.FOOTER_SIZE;
+        indexOffset = memory.getLong(footer);
+        numTerms = memory.getLong(footer + 8);
+        termsPerBlock = memory.getInt(footer + 16);
+        numBlocks = (int) ((numTerms + termsPerBlock - 1) / termsPerBlock);
+
+        seekToBlock(0);
+    }
+
+    @Override
+    public void reset(String term) {
+        int lo = 0;
+        int hi = numBlocks - 1;
+        // find the last block whose first term is <= term
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            seekToBlock(mid);
+            readTerm();
+            if (term().compareTo(term) <= 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        seekToBlock(lo);
+        while (next() && term().compareTo(term) < 0) {}
+        bufferNext = true;
+    }
+
+    private void seekToBlock(int block) {
+        position = numBlocks > 0 ? memory.getLong(indexOffset + 8L * block) : indexOffset;
+        termIndex = (long) block * termsPerBlock - 1;
+        bufferNext = false;
+    }
+
+    @Override
+    public boolean next() {
+        if (bufferNext) {
+            bufferNext = false;
+            return termIndex < numTerms;
+        }
+        if (termIndex + 1 >= numTerms) {
+            termIndex = numTerms;
+            return false;
+        }
+        readTerm();
+        return true;
+    }
+
+    private void readTerm() {
+        final boolean firstInBlock = (termIndex + 1) % termsPerBlock == 0;
+        final int prefixLength = readVInt();
+        final int suffixLength = readVInt();
+        final int length = prefixLength + suffixLength;
+        if (length > termBytes.length) {
+            termBytes = Arrays.copyOf(termBytes, Math.max(length, 2 * termBytes.length));
+        }
+        memory.getBytes(position, termBytes, prefixLength, suffixLength);
+        position += suffixLength;
+        termLength = length;
+        termString = null;
+
+        final long offset = readVLong();
+        termOffset = firstInBlock ? offset : termOffset + offset;
+        termDocFreq = readVInt();
+        ++termIndex;
+    }
+
+    @Override
+    public String term() {
+        if (termString == null) {
+            termString = new String(termBytes, 0, termLength, Charsets.UTF_8);
+        }
+        return termString;
+    }
+
+    @Override
+    public byte[] termStringBytes() {
+        return termBytes;
+    }
+
+    @Override
+    public int termStringLength() {
+        return termLength;
+    }
+
+    @Override
+    public int docFreq() {
+        return termDocFreq;
+    }
+
+    @Override
+    public String getFilename() {
+        return docsFilename;
+    }
+
+    @Override
+    public long getOffset() {
+        return termOffset;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                log.error("error closing file", e);
+            }
+            closed = true;
+        }
+    }
+
+    private int readVInt() {
+        return (int) readVLong();
+    }
+
+    private long readVLong() {
+        long ret = 0L;
+        int shift = 0;
+        do {
+            final byte b = memory.getByte(position++);
+            ret |= ((b & 0x7FL) << shift);
+            if (b >= 0) return ret;
+            shift += 7;
+        } while (true);
+    }
+}
@@ -13,6 +13,7 @@
  */
  package com.indeed.flamdex.utils;
 
+import com.indeed.util.core.sort.Quicksortable;
 import com.indeed.util.core.sort.Quicksortables;
 import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexReader;
@@ -22,13 +23,17 @@ import com.indeed.flamdex.writer.FlamdexWriter;
 import com.indeed.flamdex.writer.IntFieldWriter;
 import com.indeed.flamdex.writer.StringFieldWriter;
 import com.indeed.util.core.sort.RadixSort;
+import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * @author jsgroth
  */
 public class FlamdexSort {
+    private static final Logger log = Logger.getLogger(FlamdexSort.class);
+
     private static final int MAGIC_SORTING_NUMBER = 50000;    
 
     // this method DOES close the FlamdexWriter upon completion
@@ -44,7 +49,7 @@ public class FlamdexSort {
         final DocIdStream dis = r.getDocIdStream();
 
         for (final String intField : intFields) {
-            System.out.println("intField:"+intField);
+            log.debug("sorting int field " + intField);
             final IntTermIterator iter = r.getIntTermIterator(intField);
             final IntFieldWriter ifw = w.getIntFieldWriter(intField);
             while (iter.next()) {
@@ -68,7 +73,7 @@ public class FlamdexSort {
         }
 
         for (final String stringField : stringFields) {
-            System.out.println("stringField:"+stringField);
+            log.debug("sorting string field " + stringField);
             final StringTermIterator iter = r.getStringTermIterator(stringField);
             final StringFieldWriter sfw = w.getStringFieldWriter(stringField);
             while (iter.next()) {
@@ -94,4 +99,106 @@ public class FlamdexSort {
         dis.close();        
         w.close();
     }
+
+    /**
+     * orders docs by their terms in sortFields, earlier fields first and the original doc id last. Int fields
+     * compare by a doc's smallest term and string fields by the position of a doc's first term in the field, docs
+     * without a term in the field come after the others.
+     *
+     * @return oldDocIdToNewDocId to pass to {@link #sort(FlamdexReader, FlamdexWriter, int[])}
+     */
+    public static int[] getSortedDocIdMapping(FlamdexReader r, List<String> sortFields) {
+        final int numDocs = r.getNumDocs();
+        final long[][] keys = new long[sortFields.size()][];
+        final boolean[][] hasKeys = new boolean[sortFields.size()][];
+        final DocIdStream dis = r.getDocIdStream();
+        try {
+            for (int k = 0; k < keys.length; ++k) {
+                keys[k] = new long[numDocs];
+                hasKeys[k] = new boolean[numDocs];
+                getSortKeys(r, sortFields.get(k), dis, keys[k], hasKeys[k]);
+            }
+        } finally {
+            dis.close();
+        }
+
+        final int[] newDocIdToOldDocId = new int[numDocs];
+        for (int i = 0; i < numDocs; ++i) {
+            newDocIdToOldDocId[i] = i;
+        }
+        Quicksortables.sort(new Quicksortable() {
+            @Override
+            public void swap(int i, int j) {
+                Quicksortables.swap(newDocIdToOldDocId, i, j);
+            }
+
+            @Override
+            public int compare(int i, int j) {
+                final int di = newDocIdToOldDocId[i];
+                final int dj = newDocIdToOldDocId[j];
+                for (int k = 0; k < keys.length; ++k) {
+                    final boolean[] hasKey = hasKeys[k];
+                    if (hasKey[di] != hasKey[dj]) {
+                        return hasKey[di] ? -1 : 1;
+                    }
+                    final long[] key = keys[k];
+                    if (key[di] != key[dj]) {
+                        return key[di] < key[dj] ? -1 : 1;
+                    }
+                }
+                return di < dj ? -1 : di > dj ? 1 : 0;
+            }
+        }, numDocs);
+
+        final int[] oldDocIdToNewDocId = new int[numDocs];
+        for (int i = 0; i < numDocs; ++i) {
+            oldDocIdToNewDocId[newDocIdToOldDocId[i]] = i;
+        }
+        return oldDocIdToNewDocId;
+    }
+
+    /**
+     * sets keys[doc] to the doc's key and hasKey[doc] to true for every doc with a term in the field
+     */
+    private static void getSortKeys(FlamdexReader r, String field, DocIdStream dis, long[] keys, boolean[] hasKey) {
+        final int[] docIdBuffer = new int[64];
+        if (r.getIntFields().contains(field)) {
+            final IntTermIterator iter = r.getIntTermIterator(field);
+            try {
+                while (iter.next()) {
+                    dis.reset(iter);
+                    setKeys(dis, docIdBuffer, keys, hasKey, iter.term());
+                }
+            } finally {
+                iter.close();
+            }
+        } else if (r.getStringFields().contains(field)) {
+            final StringTermIterator iter = r.getStringTermIterator(field);
+            try {
+                long ordinal = 0;
+                while (iter.next()) {
+                    dis.reset(iter);
+                    setKeys(dis, docIdBuffer, keys, hasKey, ordinal++);
+                }
+            } finally {
+                iter.close();
+            }
+        } else {
+            throw new IllegalArgumentException("unknown sort field " + field);
+        }
+    }
+
+    private static void setKeys(DocIdStream dis, int[] docIdBuffer, long[] keys, boolean[] hasKey, long key) {
+        while (true) {
+            final int n = dis.fillDocIdBuffer(docIdBuffer);
+            for (int i = 0; i < n; ++i) {
+                final int doc = docIdBuffer[i];
+                if (!hasKey[doc] || key < keys[doc]) {
+                    keys[doc] = key;
+                    hasKey[doc] = true;
+                }
+            }
+            if (n < docIdBuffer.length) break;
+        }
+    }
 }
@@ -15,25 +15,35 @@
 
 import com.indeed.util.core.threads.ThreadSafeBitSet;
 import com.indeed.util.core.io.Closeables2;
+import com.indeed.flamdex.api.BitmapDocIdStream;
 import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
 import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.MMapFastBitSet;
+import com.indeed.flamdex.fieldcache.DictionaryIntValueLookup;
+import com.indeed.flamdex.fieldcache.MMapDictionaryIntValueLookup;
+import com.indeed.flamdex.fieldcache.MMapPackedIntValueLookup;
+import com.indeed.flamdex.fieldcache.PackedIntValueLookup;
+import com.indeed.flamdex.fieldcache.ParallelFieldCacheBuilder;
 import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIterator;
 import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIteratorImpl;
+import com.indeed.flamdex.reader.FlamdexStats;
 import com.indeed.util.io.VIntUtils;
 import com.indeed.util.mmap.ByteArray;
 import com.indeed.util.mmap.CharArray;
+import com.indeed.util.mmap.DirectMemory;
 import com.indeed.util.mmap.IntArray;
 import com.indeed.util.mmap.LongArray;
 import com.indeed.util.mmap.MMapBuffer;
 import com.indeed.util.mmap.ShortArray;
 import dk.brics.automaton.Automaton;
 import dk.brics.automaton.RegExp;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nullable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
@@ -41,6 +51,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * @author jsgroth
@@ -391,6 +402,334 @@ public class FlamdexUtils {
         return cache;
     }
 
+    public static long[] cacheLongField(FlamdexReader reader, String field, ParallelFieldCacheBuilder builder) {
+        final long[] cache = new long[reader.getNumDocs()];
+        builder.fill(reader, field, new ParallelFieldCacheBuilder.DocValueWriter() {
+            @Override
+            public void set(int doc, long value) {
+                cache[doc] = value;
+            }
+        });
+        return cache;
+    }
+
+    public static MMapBuffer cacheLongFieldToFile(FlamdexReader reader, String field, File file, ParallelFieldCacheBuilder builder) throws IOException {
+        final int numDocs = reader.getNumDocs();
+        final MMapBuffer buffer = new MMapBuffer(file, 0L, 8L * numDocs, FileChannel.MapMode.READ_WRITE, ByteOrder.LITTLE_ENDIAN);
+        final LongArray array = buffer.memory().longArray(0, numDocs);
+        return fillFile(buffer, reader, field, builder, new ParallelFieldCacheBuilder.DocValueWriter() {
+            @Override
+            public void set(int doc, long value) {
+                array.set(doc, value);
+            }
+        });
+    }
+
+    public static int[] cacheIntField(FlamdexReader reader, String field, ParallelFieldCacheBuilder builder) {
+        final int[] cache = new int[reader.getNumDocs()];
+        builder.fill(reader, field, new ParallelFieldCacheBuilder.DocValueWriter() {
+            @Override
+            public void set(int doc, long value) {
+                cache[doc] = (int) value;
+            }
+        });
+        return cache;
+    }
+
+    public static MMapBuffer cacheIntFieldToFile(FlamdexReader reader, String field, File file, ParallelFieldCacheBuilder builder) throws IOException {
+        final int numDocs = reader.getNumDocs();
+        final MMapBuffer buffer = new MMapBuffer(file, 0L, 4L * numDocs, FileChannel.MapMode.READ_WRITE, ByteOrder.LITTLE_ENDIAN);
+        final IntArray array = buffer.memory().intArray(0, numDocs);
+        return fillFile(buffer, reader, field, builder, new ParallelFieldCacheBuilder.DocValueWriter() {
+            @Override
+            public void set(int doc, long value) {
+                array.set(doc, (int) value);
+            }
+        });
+    }
+
+    public static char[] cacheCharField(FlamdexReader reader, String field, ParallelFieldCacheBuilder builder) {
+        final char[] cache = new char[reader.getNumDocs()];
+        builder.fill(reader, field, new ParallelFieldCacheBuilder.DocValueWriter() {
+            @Override
+            public void set(int doc, long value) {
+                cache[doc] = (char) value;
+            }
+        });
+        return cache;
+    }
+
+    public static MMapBuffer cacheCharFieldToFile(FlamdexReader reader, String field, File file, ParallelFieldCacheBuilder builder) throws IOException {
+        final int numDocs = reader.getNumDocs();
+        final MMapBuffer buffer = new MMapBuffer(file, 0L, 2L * numDocs, FileChannel.MapMode.READ_WRITE, ByteOrder.LITTLE_ENDIAN);
+        final CharArray array = buffer.memory().charArray(0, numDocs);
+        return fillFile(buffer, reader, field, builder, new ParallelFieldCacheBuilder.DocValueWriter() {
+            @Override
+            public void set(int doc, long value) {
+                array.set(doc, (char) value);
+            }
+        });
+    }
+
+    public static short[] cacheShortField(FlamdexReader reader, String field, ParallelFieldCacheBuilder builder) {
+        final short[] cache = new short[reader.getNumDocs()];
+        builder.fill(reader, field, new ParallelFieldCacheBuilder.DocValueWriter() {
+            @Override
+            public void set(int doc, long value) {
+                cache[doc] = (short) value;
+            }
+        });
+        return cache;
+    }
+
+    public static MMapBuffer cacheShortFieldToFile(FlamdexReader reader, String field, File file, ParallelFieldCacheBuilder builder) throws IOException {
+        final int numDocs = reader.getNumDocs();
+        final MMapBuffer buffer = new MMapBuffer(file, 0L, 2L * numDocs, FileChannel.MapMode.READ_WRITE, ByteOrder.LITTLE_ENDIAN);
+        final ShortArray array = buffer.memory().shortArray(0, numDocs);
+        return fillFile(buffer, reader, field, builder, new ParallelFieldCacheBuilder.DocValueWriter() {
+            @Override
+            public void set(int doc, long value) {
+                array.set(doc, (short) value);
+            }
+        });
+    }
+
+    public static byte[] cacheByteField(FlamdexReader reader, String field, ParallelFieldCacheBuilder builder) {
+        final byte[] cache = new byte[reader.getNumDocs()];
+        builder.fill(reader, field, new ParallelFieldCacheBuilder.DocValueWriter() {
+            @Override
+            public void set(int doc, long value) {
+                cache[doc] = (byte) value;
+            }
+        });
+        return cache;
+    }
+
+    public static MMapBuffer cacheByteFieldToFile(FlamdexReader reader, String field, File file, ParallelFieldCacheBuilder builder) throws IOException {
+        final int numDocs = reader.getNumDocs();
+        final MMapBuffer buffer = new MMapBuffer(file, 0L, (long) numDocs, FileChannel.MapMode.READ_WRITE, ByteOrder.LITTLE_ENDIAN);
+        final ByteArray array = buffer.memory().byteArray(0, numDocs);
+        return fillFile(buffer, reader, field, builder, new ParallelFieldCacheBuilder.DocValueWriter() {
+            @Override
+            public void set(int doc, long value) {
+                array.set(doc, (byte) value);
+            }
+        });
+    }
+
+    private static MMapBuffer fillFile(MMapBuffer buffer, FlamdexReader reader, String field, ParallelFieldCacheBuilder builder, ParallelFieldCacheBuilder.DocValueWriter writer) throws IOException {
+        try {
+            builder.fill(reader, field, writer);
+            buffer.sync(0, buffer.memory().length());
+        } catch (RuntimeException e) {
+            Closeables2.closeQuietly(buffer, LOG);
+            throw e;
+        } catch (IOException e) {
+            Closeables2.closeQuietly(buffer, LOG);
+            throw e;
+        }
+        return buffer;
+    }
+
+    /**
+     * Docs without a term read as 0, so unless every doc has a term 0 must be representable, i.e. min <= 0 and
+     * -min fits in bits.
+     */
+    public static long[] cachePackedField(UnsortedIntTermDocIterator iterator, int numDocs, long min, int bits) {
+        final int[] docIdBuf = new int[BUFFER_SIZE];
+
+        final long[] cache = new long[PackedIntValueLookup.numWords(numDocs, bits)];
+        if (min != 0) {
+            for (int doc = 0; doc < numDocs; ++doc) {
+                PackedIntValueLookup.set(cache, bits, min, doc, 0);
+            }
+        }
+        while (iterator.nextTerm()) {
+            final long term = iterator.term();
+            while (true) {
+                final int n = iterator.nextDocs(docIdBuf);
+                for (int i = 0; i < n; ++i) {
+                    PackedIntValueLookup.set(cache, bits, min, docIdBuf[i], term);
+                }
+                if (n < BUFFER_SIZE) break;
+            }
+        }
+
+        return cache;
+    }
+
+    public static MMapBuffer cachePackedFieldToFile(UnsortedIntTermDocIterator iterator, int numDocs, long min, long max, int bits, File file) throws IOException {
+        final int[] docIdBuf = new int[BUFFER_SIZE];
+
+        final long length = MMapPackedIntValueLookup.fileLength(numDocs, bits);
+        final MMapBuffer buffer = new MMapBuffer(file, 0L, length, FileChannel.MapMode.READ_WRITE, ByteOrder.LITTLE_ENDIAN);
+        try {
+            final DirectMemory memory = buffer.memory();
+            memory.putLong(0, min);
+            memory.putLong(8, max);
+            memory.putInt(16, bits);
+            if (min != 0) {
+                for (int doc = 0; doc < numDocs; ++doc) {
+                    MMapPackedIntValueLookup.set(memory, bits, min, doc, 0);
+                }
+            }
+            while (iterator.nextTerm()) {
+                final long term = iterator.term();
+                while (true) {
+                    final int n = iterator.nextDocs(docIdBuf);
+                    for (int i = 0; i < n; ++i) {
+                        MMapPackedIntValueLookup.set(memory, bits, min, docIdBuf[i], term);
+                    }
+                    if (n < docIdBuf.length) {
+                        break;
+                    }
+                }
+            }
+            buffer.sync(0, length);
+        } catch (RuntimeException e) {
+            Closeables2.closeQuietly(buffer, LOG);
+            throw e;
+        } catch (IOException e) {
+            Closeables2.closeQuietly(buffer, LOG);
+            throw e;
+        }
+
+        return buffer;
+    }
+
+    /**
+     * @param numTerms the number of distinct terms in the field, counting 0 whether or not it is a term
+     */
+    public static DictionaryIntValueLookup cacheDictionaryField(UnsortedIntTermDocIterator iterator, int numDocs, int numTerms) {
+        final int[] docIdBuf = new int[BUFFER_SIZE];
+
+        final long[] dictionary = new long[numTerms];
+        final Long2IntOpenHashMap termToOrdinal = new Long2IntOpenHashMap(numTerms);
+        termToOrdinal.defaultReturnValue(-1);
+        // ordinal 0 is 0 until the dictionary is sorted, which is what docs without a term need
+        termToOrdinal.put(0L, 0);
+        int size = 1;
+        final boolean wide = DictionaryIntValueLookup.ordinalWidth(numTerms) > 1;
+        final byte[] byteOrdinals = wide ? null : new byte[numDocs];
+        final char[] charOrdinals = wide ? new char[numDocs] : null;
+        while (iterator.nextTerm()) {
+            final long term = iterator.term();
+            int ordinal = termToOrdinal.get(term);
+            if (ordinal < 0) {
+                if (size == numTerms) {
+                    throw new IllegalStateException("more than " + numTerms + " terms");
+                }
+                ordinal = size++;
+                dictionary[ordinal] = term;
+                termToOrdinal.put(term, ordinal);
+            }
+            while (true) {
+                final int n = iterator.nextDocs(docIdBuf);
+                for (int i = 0; i < n; ++i) {
+                    if (wide) {
+                        charOrdinals[docIdBuf[i]] = (char) ordinal;
+                    } else {
+                        byteOrdinals[docIdBuf[i]] = (byte) ordinal;
+                    }
+                }
+                if (n < BUFFER_SIZE) break;
+            }
+        }
+
+        final long[] sortedDictionary = Arrays.copyOf(dictionary, size);
+        final int[] remap = sortDictionary(sortedDictionary);
+        for (int doc = 0; doc < numDocs; ++doc) {
+            if (wide) {
+                charOrdinals[doc] = (char) remap[charOrdinals[doc]];
+            } else {
+                byteOrdinals[doc] = (byte) remap[byteOrdinals[doc] & 0xFF];
+            }
+        }
+        return wide ? new DictionaryIntValueLookup(sortedDictionary, charOrdinals) : new DictionaryIntValueLookup(sortedDictionary, byteOrdinals);
+    }
+
+    public static MMapBuffer cacheDictionaryFieldToFile(UnsortedIntTermDocIterator iterator, int numDocs, int numTerms, File file) throws IOException {
+        final int[] docIdBuf = new int[BUFFER_SIZE];
+
+        final int width = DictionaryIntValueLookup.ordinalWidth(numTerms);
+        final long ordinalsOffset = MMapDictionaryIntValueLookup.ordinalsOffset(numTerms);
+        final long length = ordinalsOffset + (long) numDocs * width;
+        final MMapBuffer buffer = new MMapBuffer(file, 0L, length, FileChannel.MapMode.READ_WRITE, ByteOrder.LITTLE_ENDIAN);
+        try {
+            final DirectMemory memory = buffer.memory();
+            final long[] dictionary = new long[numTerms];
+            final Long2IntOpenHashMap termToOrdinal = new Long2IntOpenHashMap(numTerms);
+            termToOrdinal.defaultReturnValue(-1);
+            termToOrdinal.put(0L, 0);
+            int size = 1;
+            while (iterator.nextTerm()) {
+                final long term = iterator.term();
+                int ordinal = termToOrdinal.get(term);
+                if (ordinal < 0) {
+                    if (size == numTerms) {
+                        throw new IllegalStateException("more than " + numTerms + " terms");
+                    }
+                    ordinal = size++;
+                    dictionary[ordinal] = term;
+                    termToOrdinal.put(term, ordinal);
+                }
+                while (true) {
+                    final int n = iterator.nextDocs(docIdBuf);
+                    for (int i = 0; i < n; ++i) {
+                        if (width == 1) {
+                            memory.putByte(ordinalsOffset + docIdBuf[i], (byte) ordinal);
+                        } else {
+                            memory.putChar(ordinalsOffset + 2L * docIdBuf[i], (char) ordinal);
+                        }
+                    }
+                    if (n < docIdBuf.length) {
+                        break;
+                    }
+                }
+            }
+
+            final long[] sortedDictionary = Arrays.copyOf(dictionary, size);
+            final int[] remap = sortDictionary(sortedDictionary);
+            for (int doc = 0; doc < numDocs; ++doc) {
+                if (width == 1) {
+                    final long address = ordinalsOffset + doc;
+                    memory.putByte(address, (byte) remap[memory.getByte(address) & 0xFF]);
+                } else {
+                    final long address = ordinalsOffset + 2L * doc;
+                    memory.putChar(address, (char) remap[memory.getChar(address)]);
+                }
+            }
+            memory.putInt(0, size);
+            memory.putInt(4, width);
+            memory.putInt(8, numTerms);
+            for (int i = 0; i < size; ++i) {
+                memory.putLong(MMapDictionaryIntValueLookup.HEADER_SIZE + 8L * i, sortedDictionary[i]);
+            }
+            buffer.sync(0, length);
+        } catch (RuntimeException e) {
+            Closeables2.closeQuietly(buffer, LOG);
+            throw e;
+        } catch (IOException e) {
+            Closeables2.closeQuietly(buffer, LOG);
+            throw e;
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Sorts terms in place and returns the new position of each term
+     */
+    private static int[] sortDictionary(long[] terms) {
+        final long[] unsorted = terms.clone();
+        Arrays.sort(terms);
+        final int[] remap = new int[terms.length];
+        for (int i = 0; i < unsorted.length; ++i) {
+            remap[i] = Arrays.binarySearch(terms, unsorted[i]);
+        }
+        return remap;
+    }
+
     public static String[] cacheStringField(String field, FlamdexReader reader) {
         final int[] docIdBuf = new int[BUFFER_SIZE];
 
@@ -460,6 +799,10 @@ public class FlamdexUtils {
     }
 
     public static long[] getMinMaxTerm(String field, FlamdexReader r) {
+        final FlamdexStats.IntFieldStats stats = getIntFieldStats(r, field);
+        if (stats != null) {
+            return new long[]{stats.getMinTerm(), stats.getMaxTerm()};
+        }
         final IntTermIterator iterator = r.getIntTermIterator(field);
         long minTerm = Long.MAX_VALUE;
         long maxTerm = Long.MIN_VALUE;
@@ -514,6 +857,10 @@ public class FlamdexUtils {
     }
 
     private static void fillBitSet(DocIdStream dis, ThreadSafeBitSet ret) {
+        if (dis instanceof BitmapDocIdStream && ((BitmapDocIdStream) dis).isBitmap()) {
+            fillBitSetFromBitmap((BitmapDocIdStream) dis, ret);
+            return;
+        }
         final int[] docIdBuffer = new int[64];
         while (true) {
             final int n = dis.fillDocIdBuffer(docIdBuffer);
@@ -524,6 +871,23 @@ public class FlamdexUtils {
         }
     }
 
+    private static void fillBitSetFromBitmap(BitmapDocIdStream dis, ThreadSafeBitSet ret) {
+        final long[] words = new long[1024];
+        int base = 0;
+        while (true) {
+            final int n = dis.fillBitmapWords(words);
+            for (int i = 0; i < n; ++i) {
+                long word = words[i];
+                while (word != 0) {
+                    ret.set(base + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+                base += 64;
+            }
+            if (n < words.length) break;
+        }
+    }
+
     public static ThreadSafeBitSet cacheHasStringTerm(final String field, final String term, final FlamdexReader reader) {
         final ThreadSafeBitSet ret = new ThreadSafeBitSet(reader.getNumDocs());
         final StringTermIterator iter = reader.getStringTermIterator(field);
@@ -580,7 +944,27 @@ public class FlamdexUtils {
         }
     }
 
+    /**
+     * @return the stats written with r's shard for the int field, or null if there are none
+     */
+    public static @Nullable FlamdexStats.IntFieldStats getIntFieldStats(final FlamdexReader r, final String field) {
+        final FlamdexStats stats = FlamdexStats.of(r);
+        return stats != null ? stats.getIntFieldStats(field) : null;
+    }
+
+    /**
+     * @return the stats written with r's shard for the string field, or null if there are none
+     */
+    public static @Nullable FlamdexStats.StringFieldStats getStringFieldStats(final FlamdexReader r, final String field) {
+        final FlamdexStats stats = FlamdexStats.of(r);
+        return stats != null ? stats.getStringFieldStats(field) : null;
+    }
+
     public static long getIntTotalDocFreq(final FlamdexReader r, final String field) {
+        final FlamdexStats.IntFieldStats stats = getIntFieldStats(r, field);
+        if (stats != null) {
+            return stats.getTotalDocFreq();
+        }
         final IntTermIterator iter = r.getIntTermIterator(field);
         long totalDocFreq = 0L;
         try {
@@ -594,6 +978,10 @@ public class FlamdexUtils {
     }
 
     public static long getStringTotalDocFreq(final FlamdexReader r, final String field) {
+        final FlamdexStats.StringFieldStats stats = getStringFieldStats(r, field);
+        if (stats != null) {
+            return stats.getTotalDocFreq();
+        }
         final StringTermIterator iter = r.getStringTermIterator(field);
         long totalDocFreq = 0L;
         try {
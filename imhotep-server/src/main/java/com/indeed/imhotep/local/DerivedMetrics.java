@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.api.StringTermDocIterator;
+import com.indeed.flamdex.fieldcache.ByteArrayIntValueLookup;
+import com.indeed.flamdex.fieldcache.IntArrayIntValueLookup;
+import com.indeed.flamdex.utils.FlamdexUtils;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.threads.ThreadSafeBitSet;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Metrics that are computed from a shard's postings rather than read from a field cache, e.g. "regex field:pattern".
+ * They only depend on the shard, so {@link com.indeed.imhotep.service.CachedFlamdexReader} loads them through its
+ * metric cache, keyed by {@link #normalize(String)}, and shares them between sessions.
+ */
+public final class DerivedMetrics {
+    private static final Logger log = Logger.getLogger(DerivedMetrics.class);
+
+    private static final int BUFFER_SIZE = 2048;
+
+    private static final String decimalPattern = "-?[0-9]*\\.?[0-9]+";
+
+    private static final Pattern floatScalePattern =
+            Pattern.compile("floatscale\\s+(\\w+)\\s*\\*\\s*(" + decimalPattern + ")\\s*\\+\\s*("
+                    + decimalPattern + ")");
+
+    private DerivedMetrics() {
+    }
+
+    /**
+     * @return the canonical form of statName, or null if statName is not a derived metric
+     * @throws IllegalArgumentException if statName is a malformed derived metric
+     */
+    public static @Nullable String normalize(String statName) {
+        if (statName.startsWith("hasstr ")) {
+            final String[] split = splitFieldAndTerm(statName, 7);
+            return "hasstr " + split[0] + ":" + split[1];
+        } else if (statName.startsWith("hasint ")) {
+            final String[] split = splitFieldAndTerm(statName, 7);
+            return "hasint " + split[0] + ":" + Integer.parseInt(split[1]);
+        } else if (statName.startsWith("regex ")) {
+            final String[] split = splitFieldAndTerm(statName, 6);
+            return "regex " + split[0] + ":" + split[1];
+        } else if (statName.startsWith("inttermcount ")) {
+            return "inttermcount " + statName.substring(13).trim();
+        } else if (statName.startsWith("strtermcount ")) {
+            return "strtermcount " + statName.substring(13).trim();
+        } else if (statName.startsWith("floatscale ")) {
+            final Matcher matcher = floatScalePattern.matcher(statName);
+            // accepted format is 'floatscale field*scale+offset' (or just look
+            // at the pattern)
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("invalid floatscale metric: " + statName);
+            }
+            try {
+                return "floatscale " + matcher.group(1) + "*" + canonicalDecimal(matcher.group(2))
+                        + "+" + canonicalDecimal(matcher.group(3));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid offset or scale constant for metric: "
+                        + statName, e);
+            }
+        }
+        return null;
+    }
+
+    public static boolean isDerivedMetric(String metric) {
+        return metric.startsWith("hasstr ")
+                || metric.startsWith("hasint ")
+                || metric.startsWith("regex ")
+                || metric.startsWith("inttermcount ")
+                || metric.startsWith("strtermcount ")
+                || metric.startsWith("floatscale ");
+    }
+
+    private static String[] splitFieldAndTerm(String statName, int prefixLength) {
+        final String[] split = statName.substring(prefixLength).trim().split(":", 2);
+        if (split.length < 2) {
+            throw new IllegalArgumentException("invalid " + statName.substring(0, prefixLength - 1) + " metric: " + statName);
+        }
+        return split;
+    }
+
+    private static String canonicalDecimal(String decimal) {
+        return new BigDecimal(decimal).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * @param metric a metric in the form returned by {@link #normalize(String)}
+     */
+    public static long memoryRequired(FlamdexReader reader, String metric) {
+        final int numDocs = reader.getNumDocs();
+        if (metric.startsWith("inttermcount ") || metric.startsWith("strtermcount ")) {
+            return numDocs;
+        } else if (metric.startsWith("floatscale ")) {
+            return 4L * numDocs;
+        }
+        return bitSetMemoryUsage(numDocs);
+    }
+
+    private static long bitSetMemoryUsage(int numDocs) {
+        return numDocs / 8 + ((numDocs % 8) != 0 ? 1 : 0);
+    }
+
+    /**
+     * @param metric a metric in the form returned by {@link #normalize(String)}
+     * @return a lookup whose memoryUsed() matches {@link #memoryRequired(FlamdexReader, String)}
+     */
+    public static IntValueLookup load(FlamdexReader reader, String metric) {
+        if (metric.startsWith("hasstr ")) {
+            final String[] split = splitFieldAndTerm(metric, 7);
+            return new ThreadSafeBitSetIntValueLookup(FlamdexUtils.cacheHasStringTerm(split[0], split[1], reader),
+                                                      bitSetMemoryUsage(reader.getNumDocs()));
+        } else if (metric.startsWith("hasint ")) {
+            final String[] split = splitFieldAndTerm(metric, 7);
+            return new ThreadSafeBitSetIntValueLookup(FlamdexUtils.cacheHasIntTerm(split[0], Integer.parseInt(split[1]), reader),
+                                                      bitSetMemoryUsage(reader.getNumDocs()));
+        } else if (metric.startsWith("regex ")) {
+            final String[] split = splitFieldAndTerm(metric, 6);
+            return new ThreadSafeBitSetIntValueLookup(FlamdexUtils.cacheRegex(split[0], split[1], reader),
+                                                      bitSetMemoryUsage(reader.getNumDocs()));
+        } else if (metric.startsWith("inttermcount ")) {
+            return intTermCountLookup(reader, metric.substring(13));
+        } else if (metric.startsWith("strtermcount ")) {
+            return stringTermCountLookup(reader, metric.substring(13));
+        } else if (metric.startsWith("floatscale ")) {
+            final Matcher matcher = floatScalePattern.matcher(metric);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("invalid floatscale metric: " + metric);
+            }
+            return scaledFloatLookup(reader, matcher.group(1),
+                                     Double.parseDouble(matcher.group(2)), Double.parseDouble(matcher.group(3)));
+        }
+        throw new IllegalArgumentException("not a derived metric: " + metric);
+    }
+
+    private static IntValueLookup intTermCountLookup(final FlamdexReader reader, final String field) {
+        final byte[] array = new byte[reader.getNumDocs()];
+        final int[] docIdBuf = new int[BUFFER_SIZE];
+
+        final IntTermIterator iterator = reader.getIntTermIterator(field);
+        try {
+            final DocIdStream docIdStream = reader.getDocIdStream();
+            try {
+                while (iterator.next()) {
+                    docIdStream.reset(iterator);
+                    while (true) {
+                        final int n = docIdStream.fillDocIdBuffer(docIdBuf);
+                        for (int i = 0; i < n; ++i) {
+                            final int doc = docIdBuf[i];
+                            if (array[doc] != (byte) 255) {
+                                ++array[doc];
+                            }
+                        }
+                        if (n < BUFFER_SIZE) {
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                docIdStream.close();
+            }
+        } finally {
+            iterator.close();
+        }
+
+        return new ByteArrayIntValueLookup(array, 0, 255);
+    }
+
+    private static IntValueLookup stringTermCountLookup(final FlamdexReader reader, final String field) {
+        final byte[] array = new byte[reader.getNumDocs()];
+        final int[] docIdBuf = new int[BUFFER_SIZE];
+
+        final StringTermDocIterator iterator = reader.getStringTermDocIterator(field);
+        try {
+            while (iterator.nextTerm()) {
+                while (true) {
+                    final int n = iterator.fillDocIdBuffer(docIdBuf);
+                    for (int i = 0; i < n; ++i) {
+                        final int doc = docIdBuf[i];
+                        if (array[doc] != (byte) 255) {
+                            ++array[doc];
+                        }
+                    }
+                    if (n < BUFFER_SIZE) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            Closeables2.closeQuietly(iterator, log);
+        }
+
+        return new ByteArrayIntValueLookup(array, 0, 255);
+    }
+
+    private static IntValueLookup scaledFloatLookup(final FlamdexReader reader, final String field, double scale, double offset) {
+        final int[] array = new int[reader.getNumDocs()];
+        final int[] docIdBuf = new int[BUFFER_SIZE];
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        final StringTermDocIterator iterator = reader.getStringTermDocIterator(field);
+        try {
+            while (iterator.nextTerm()) {
+                final String term = iterator.term();
+                int number;
+                try {
+                    final double termFloat = Double.parseDouble(term);
+                    number = (int) Math.round(termFloat * scale + offset);
+                } catch (NumberFormatException e) {
+                    number = 0;
+                }
+
+                min = Math.min(min, number);
+                max = Math.max(max, number);
+
+                while (true) {
+                    final int n = iterator.fillDocIdBuffer(docIdBuf);
+                    for (int i = 0; i < n; i++) {
+                        final int doc = docIdBuf[i];
+                        array[doc] = number;
+                    }
+                    if (n < BUFFER_SIZE) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            Closeables2.closeQuietly(iterator, log);
+        }
+
+        return new IntArrayIntValueLookup(array, min, max);
+    }
+
+    private static final class ThreadSafeBitSetIntValueLookup implements IntValueLookup {
+        private ThreadSafeBitSet bitSet;
+        private final long memoryUsage;
+
+        private ThreadSafeBitSetIntValueLookup(ThreadSafeBitSet bitSet, long memoryUsage) {
+            this.bitSet = bitSet;
+            this.memoryUsage = memoryUsage;
+        }
+
+        @Override
+        public long getMin() {
+            return 0;
+        }
+
+        @Override
+        public long getMax() {
+            return 1;
+        }
+
+        @Override
+        public void lookup(int[] docIds, long[] values, int n) {
+            for (int i = 0; i < n; ++i) {
+                values[i] = bitSet.get(docIds[i]) ? 1 : 0;
+            }
+        }
+
+        @Override
+        public void lookupRange(int start, long[] values, int n) {
+            for (int i = 0; i < n; ++i) {
+                values[i] = bitSet.get(start + i) ? 1 : 0;
+            }
+        }
+
+        @Override
+        public long memoryUsed() {
+            return memoryUsage;
+        }
+
+        @Override
+        public void close() {
+            bitSet = null;
+        }
+    }
+}
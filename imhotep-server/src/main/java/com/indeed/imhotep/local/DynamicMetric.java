@@ -17,37 +17,112 @@ import java.io.Serializable;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.primitives.Ints;
+import com.google.common.primitives.Shorts;
+import com.google.common.primitives.SignedBytes;
 import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 
+/**
+ * Per document int values that a session can update. Values are stored in the narrowest of byte, short and int
+ * that holds all of them, and the storage is widened when an update produces a value that doesn't fit.
+ * Updates saturate at the int range.
+ */
 @VisibleForTesting
 public class DynamicMetric implements IntValueLookup, Serializable {
-    private static final long serialVersionUID = 1L;
-    private final int[] values;
+    private static final long serialVersionUID = 2L;
+
+    private final int size;
+    // exactly one of these is non-null, depending on width
+    private byte[] byteValues;
+    private short[] shortValues;
+    private int[] intValues;
+    private int width;
+
+    private transient long[] buffer;
 
     public DynamicMetric(int size) {
-        this.values = new int[size];
+        this.size = size;
+        this.byteValues = new byte[size];
+        this.width = 1;
+    }
+
+    /**
+     * @return the memory used by a newly created DynamicMetric of the given size
+     */
+    public static long memoryRequired(int size) {
+        return size;
     }
 
     @Override
     public long getMin() {
-        return Ints.min(values);
+        switch (width) {
+            case 1:
+                return SignedBytes.min(byteValues);
+            case 2:
+                return Shorts.min(shortValues);
+            default:
+                return Ints.min(intValues);
+        }
     }
 
     @Override
     public long getMax() {
-        return Ints.max(values);
+        switch (width) {
+            case 1:
+                return SignedBytes.max(byteValues);
+            case 2:
+                return Shorts.max(shortValues);
+            default:
+                return Ints.max(intValues);
+        }
     }
 
     @Override
     public void lookup(int[] docIds, long[] values, int n) {
-        for (int i = 0; i < n; i++) {
-            values[i] = this.values[docIds[i]];
+        switch (width) {
+            case 1:
+                for (int i = 0; i < n; i++) {
+                    values[i] = byteValues[docIds[i]];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < n; i++) {
+                    values[i] = shortValues[docIds[i]];
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    values[i] = intValues[docIds[i]];
+                }
+                break;
+        }
+    }
+
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        switch (width) {
+            case 1:
+                for (int i = 0; i < n; i++) {
+                    values[i] = byteValues[start + i];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < n; i++) {
+                    values[i] = shortValues[start + i];
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    values[i] = intValues[start + i];
+                }
+                break;
         }
     }
 
     @Override
     public long memoryUsed() {
-        return 4L * values.length;
+        return (long) width * size;
     }
 
     @Override
@@ -55,24 +130,173 @@ public class DynamicMetric implements IntValueLookup, Serializable {
         // simply popping this from the metric stack doesn't have any effect
     }
 
-    public void add(int doc, int delta) {
-        // TODO optimize this to remove branches
-        final long newValue = (long) values[doc] + (long) delta;
-        if (newValue < Integer.MIN_VALUE) {
-            values[doc] = Integer.MIN_VALUE;
-        } else if (newValue > Integer.MAX_VALUE) {
-            values[doc] = Integer.MAX_VALUE;
-        } else {
-            values[doc] = (int) newValue;
+    /**
+     * Adds deltas[i] to the value of docIds[i] for the first n docIds. The docIds must be distinct.
+     * @param memory where the extra memory is claimed from if the values have to be widened
+     */
+    public void add(int[] docIds, int[] deltas, int n, MemoryReserver memory) throws ImhotepOutOfMemoryException {
+        final long[] sums = buffer(n);
+        lookup(docIds, sums, n);
+        addSaturated(sums, deltas, n);
+        ensureWidth(sums, n, memory);
+        switch (width) {
+            case 1:
+                for (int i = 0; i < n; i++) {
+                    byteValues[docIds[i]] = (byte) sums[i];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < n; i++) {
+                    shortValues[docIds[i]] = (short) sums[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    intValues[docIds[i]] = (int) sums[i];
+                }
+                break;
+        }
+    }
+
+    /**
+     * Adds deltas[i] to the value of doc start + i for i in [0, n).
+     * @param memory where the extra memory is claimed from if the values have to be widened
+     */
+    public void addRange(int start, int[] deltas, int n, MemoryReserver memory) throws ImhotepOutOfMemoryException {
+        final long[] sums = buffer(n);
+        lookupRange(start, sums, n);
+        addSaturated(sums, deltas, n);
+        ensureWidth(sums, n, memory);
+        switch (width) {
+            case 1:
+                for (int i = 0; i < n; i++) {
+                    byteValues[start + i] = (byte) sums[i];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < n; i++) {
+                    shortValues[start + i] = (short) sums[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    intValues[start + i] = (int) sums[i];
+                }
+                break;
         }
     }
-    
-    public void set(int doc, int value) {
-        values[doc] = value;
+
+    /**
+     * Single value version of {@link #add(int[], int[], int, MemoryReserver)}.
+     */
+    public void add(int doc, int delta, MemoryReserver memory) throws ImhotepOutOfMemoryException {
+        set(doc, (int) saturate((long) lookupSingleVal(doc) + delta), memory);
+    }
+
+    /**
+     * @param memory where the extra memory is claimed from if the values have to be widened
+     */
+    public void set(int doc, int value, MemoryReserver memory) throws ImhotepOutOfMemoryException {
+        ensureRange(value, value, memory);
+        switch (width) {
+            case 1:
+                byteValues[doc] = (byte) value;
+                break;
+            case 2:
+                shortValues[doc] = (short) value;
+                break;
+            default:
+                intValues[doc] = value;
+                break;
+        }
     }
 
     public int lookupSingleVal(int docId) {
-        return this.values[docId];
+        switch (width) {
+            case 1:
+                return byteValues[docId];
+            case 2:
+                return shortValues[docId];
+            default:
+                return intValues[docId];
+        }
+    }
+
+    private long[] buffer(int n) {
+        if (buffer == null || buffer.length < n) {
+            buffer = new long[n];
+        }
+        return buffer;
     }
 
-}
\ No newline at end of file
+    private static void addSaturated(long[] sums, int[] deltas, int n) {
+        for (int i = 0; i < n; i++) {
+            sums[i] = saturate(sums[i] + deltas[i]);
+        }
+    }
+
+    private static long saturate(long value) {
+        return Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    private static int widthFor(long min, long max) {
+        if (min >= Byte.MIN_VALUE && max <= Byte.MAX_VALUE) {
+            return 1;
+        }
+        if (min >= Short.MIN_VALUE && max <= Short.MAX_VALUE) {
+            return 2;
+        }
+        return 4;
+    }
+
+    private void ensureWidth(long[] values, int n, MemoryReserver memory) throws ImhotepOutOfMemoryException {
+        long min = 0;
+        long max = 0;
+        for (int i = 0; i < n; i++) {
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        ensureRange(min, max, memory);
+    }
+
+    /**
+     * Widens the storage so it holds every value in [min, max], claiming the extra memory from memory. Updates that
+     * touch many documents call this with a bound on their results first, so running out of memory leaves the
+     * values unchanged instead of partially updated.
+     */
+    public void ensureRange(long min, long max, MemoryReserver memory) throws ImhotepOutOfMemoryException {
+        if (width == 4) {
+            return;
+        }
+        final int newWidth = widthFor(saturate(min), saturate(max));
+        if (newWidth <= width) {
+            return;
+        }
+        final long oldMemoryUsed = memoryUsed();
+        if (!memory.claimMemory((long) newWidth * size)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        widen(newWidth);
+        memory.releaseMemory(oldMemoryUsed);
+    }
+
+    private void widen(int newWidth) {
+        if (newWidth <= width) {
+            return;
+        }
+        if (newWidth == 2) {
+            shortValues = new short[size];
+            for (int i = 0; i < size; i++) {
+                shortValues[i] = byteValues[i];
+            }
+        } else {
+            intValues = new int[size];
+            for (int i = 0; i < size; i++) {
+                intValues[i] = lookupSingleVal(i);
+            }
+            shortValues = null;
+        }
+        byteValues = null;
+        width = newWidth;
+    }
+}
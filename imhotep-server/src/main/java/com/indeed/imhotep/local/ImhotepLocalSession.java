@@ -30,16 +30,16 @@ import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
 import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.RawFlamdexReader;
-import com.indeed.flamdex.api.StringTermDocIterator;
 import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.api.StringValueLookup;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
-import com.indeed.flamdex.fieldcache.ByteArrayIntValueLookup;
-import com.indeed.flamdex.fieldcache.IntArrayIntValueLookup;
+import com.indeed.flamdex.fieldcache.OrdinalStringValueLookup;
+import com.indeed.flamdex.fieldcache.ZoneMap;
 import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
 import com.indeed.flamdex.reader.FlamdexMetadata;
+import com.indeed.flamdex.reader.FlamdexStats;
 import com.indeed.flamdex.search.FlamdexSearcher;
 import com.indeed.flamdex.simple.SimpleFlamdexReader;
 import com.indeed.flamdex.simple.SimpleFlamdexWriter;
@@ -48,9 +48,11 @@ import com.indeed.imhotep.AbstractImhotepSession;
 import com.indeed.imhotep.FTGSSplitter;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.HyperLogLog;
 import com.indeed.imhotep.ImhotepMemoryPool;
 import com.indeed.imhotep.MemoryReservationContext;
 import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.QuantileSketch;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.TermCount;
@@ -87,6 +89,7 @@ import com.indeed.imhotep.metrics.ShiftLeftAndDivide;
 import com.indeed.imhotep.metrics.Subtraction;
 import com.indeed.imhotep.protobuf.QueryMessage;
 import com.indeed.imhotep.service.CachedFlamdexReader;
+import com.indeed.imhotep.service.MetricCache;
 import com.indeed.imhotep.service.RawCachedFlamdexReader;
 import com.indeed.util.core.Pair;
 import com.indeed.util.core.Throwables2;
@@ -105,6 +108,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -122,13 +126,12 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * This class isn't even close to remotely thread safe, do not use it
@@ -181,6 +184,8 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
 
     Map<Pair<String, Boolean>, FastBitSet> fieldZeroDocBitsets;
 
+    private final List<CachedInterleavedMetrics> interleavedMetrics = Lists.newArrayList();
+
     private final Exception constructorStackTrace;
 
     private final File optimizationLog;
@@ -278,7 +283,8 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         newShardDir = new File(tempIdxDir, newShardName);
         newShardDir.mkdir();
 
-        return new SimpleFlamdexWriter(newShardDir.getCanonicalPath(), maxDocs);
+        // the optimized shard only lives as long as the session, so it doesn't get stats
+        return new SimpleFlamdexWriter(newShardDir.getCanonicalPath(), maxDocs, true, true, false, SimpleFlamdexWriter.FORMAT_VERSION, false);
     }
 
     /* wrapper for SimpleFlamdexReader which deletes the on disk data on close() */
@@ -529,24 +535,33 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 if (oldMetric == null) {
                     oldMetric = new DynamicMetric(numOldDocs);
                 }
+                /* the rebuilt metric is claimed here, and set() claims any widening */
+                if (!memory.claimMemory(oldMetric.memoryUsed())) {
+                    throw new ImhotepOutOfMemoryException();
+                }
                 for (int i = 0; i < numNewDocs; i++) {
                     int oldId = newToOldIdMapping[i];
                     int value = newMetric.lookupSingleVal(i);
-                    oldMetric.set(oldId, value);
+                    oldMetric.set(oldId, value, memory);
                 }
 
                 oldMetrics.put(e.getKey(), oldMetric);
             }
+            /* metrics rebuilt for an intermediate optimization are no longer needed */
+            if (newMetrics != this.dynamicMetrics) {
+                for (DynamicMetric dm : newMetrics.values()) {
+                    memory.releaseMemory(dm.memoryUsed());
+                }
+            }
             numNewDocs = numOldDocs;
             newMetrics = oldMetrics;
         }
 
         /* adjust the memory tracking */
-        for (DynamicMetric dm : this.dynamicMetrics.values()) {
-            memory.releaseMemory(dm.memoryUsed());
-        }
-        for (DynamicMetric dm : newMetrics.values()) {
-            memory.claimMemory(dm.memoryUsed());
+        if (newMetrics != this.dynamicMetrics) {
+            for (DynamicMetric dm : this.dynamicMetrics.values()) {
+                memory.releaseMemory(dm.memoryUsed());
+            }
         }
         this.dynamicMetrics = newMetrics;
 
@@ -736,8 +751,22 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 return valueRef[0];
             }
 
+            // consecutive docs often have the same term, so remember the last one per field rather than decoding it again
+            final int[] lastOrdinals = new int[stringValueLookups.length];
+            final String[] lastStrings = new String[stringValueLookups.length];
+
             public String getString(final int index) {
-                return stringValueLookups[index].getString(docId);
+                final StringValueLookup lookup = stringValueLookups[index];
+                if (!(lookup instanceof OrdinalStringValueLookup)) {
+                    return lookup.getString(docId);
+                }
+                final OrdinalStringValueLookup ordinalLookup = (OrdinalStringValueLookup) lookup;
+                final int ordinal = ordinalLookup.getOrdinal(docId);
+                if (lastStrings[index] == null || ordinal != lastOrdinals[index]) {
+                    lastStrings[index] = ordinalLookup.getTerm(ordinal);
+                    lastOrdinals[index] = ordinal;
+                }
+                return lastStrings[index];
             }
 
             public void close() throws IOException {
@@ -1389,6 +1418,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
     public List<TermCount> approximateTopTerms(String field, boolean isIntField, int k) {
         k = Math.min(k, 1000);
 
+        final List<TermCount> storedTopTerms = storedTopTerms(field, isIntField, k);
+        if (storedTopTerms != null) {
+            return storedTopTerms;
+        }
+
         if (isIntField) {
             final PriorityQueue<IntTermWithFreq> pq =
                     new ObjectHeapPriorityQueue<IntTermWithFreq>(k, INT_FREQ_COMPARATOR);
@@ -1448,6 +1482,149 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         }
     }
 
+    /**
+     * @return the k most frequent terms of field from the stats written with the shard, or null if there are no
+     *         stats for it or they don't keep k terms
+     */
+    private @Nullable List<TermCount> storedTopTerms(String field, boolean isIntField, int k) {
+        if (isIntField) {
+            final FlamdexStats.IntFieldStats stats = FlamdexUtils.getIntFieldStats(flamdexReader, field);
+            if (stats == null || !stats.hasTopTerms(k)) {
+                return null;
+            }
+            final int n = Math.min(k, stats.getNumTopTerms());
+            final List<TermCount> ret = Lists.newArrayListWithCapacity(n);
+            for (int i = 0; i < n; i++) {
+                ret.add(new TermCount(new Term(field, true, stats.getTopTerm(i), ""), stats.getTopTermDocFreq(i)));
+            }
+            return ret;
+        } else {
+            final FlamdexStats.StringFieldStats stats = FlamdexUtils.getStringFieldStats(flamdexReader, field);
+            if (stats == null || !stats.hasTopTerms(k)) {
+                return null;
+            }
+            final int n = Math.min(k, stats.getNumTopTerms());
+            final List<TermCount> ret = Lists.newArrayListWithCapacity(n);
+            for (int i = 0; i < n; i++) {
+                ret.add(new TermCount(new Term(field, false, 0, stats.getTopTerm(i)), stats.getTopTermDocFreq(i)));
+            }
+            return ret;
+        }
+    }
+
+    @Override
+    public synchronized HyperLogLog[] getGroupDistinctCounts(String field, boolean isIntField, int precision) throws ImhotepOutOfMemoryException {
+        final int numGroups = docIdToGroup.getNumGroups();
+        final long memoryUsage = numGroups * HyperLogLog.memoryRequired(precision);
+        if (!memory.claimMemory(memoryUsage)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        try {
+            final HyperLogLog[] sketches = new HyperLogLog[numGroups];
+            for (int group = 0; group < numGroups; group++) {
+                sketches[group] = new HyperLogLog(precision);
+            }
+            try (final DocIdStream docIdStream = flamdexReader.getDocIdStream()) {
+                if (isIntField) {
+                    try (final IntTermIterator iter = flamdexReader.getIntTermIterator(field)) {
+                        while (iter.next()) {
+                            docIdStream.reset(iter);
+                            addTermToGroupSketches(docIdStream, HyperLogLog.hashIntTerm(iter.term()), sketches);
+                        }
+                    }
+                } else {
+                    try (final StringTermIterator iter = flamdexReader.getStringTermIterator(field)) {
+                        while (iter.next()) {
+                            docIdStream.reset(iter);
+                            addTermToGroupSketches(docIdStream, HyperLogLog.hashStringTerm(iter.term()), sketches);
+                        }
+                    }
+                }
+            }
+            return sketches;
+        } finally {
+            memory.releaseMemory(memoryUsage);
+        }
+    }
+
+    private void addTermToGroupSketches(DocIdStream docIdStream, long hash, HyperLogLog[] sketches) {
+        while (true) {
+            final int n = docIdStream.fillDocIdBuffer(docIdBuf);
+            docIdToGroup.fillDocGrpBuffer(docIdBuf, docGroupBuffer, n);
+            for (int i = 0; i < n; ++i) {
+                final int group = docGroupBuffer[i];
+                // adding the same hash to a sketch twice is a no-op so there is no need to dedupe groups
+                if (group != 0) {
+                    sketches[group].addHash(hash);
+                }
+            }
+            if (n < docIdBuf.length) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public synchronized QuantileSketch[] getGroupPercentiles(int stat) throws ImhotepOutOfMemoryException {
+        if (stat < 0 || stat >= numStats) {
+            throw new IllegalArgumentException("invalid stat index: " + stat
+                    + ", must be between [0," + numStats + ")");
+        }
+        final int numGroups = docIdToGroup.getNumGroups();
+        // sketches grow as values are added, so memory is claimed as it is allocated
+        long memoryUsage = 0;
+        try {
+            final QuantileSketch[] sketches = new QuantileSketch[numGroups];
+            long allocated = 0;
+            for (int group = 0; group < numGroups; group++) {
+                sketches[group] = new QuantileSketch();
+                allocated += sketches[group].memoryUsage();
+            }
+            memoryUsage = claimSketchGrowth(memoryUsage, allocated);
+            final IntValueLookup lookup = statLookup[stat];
+            final int numDocs = docIdToGroup.size();
+            for (int doc = 0; doc < numDocs; doc += BUFFER_SIZE) {
+                final int n = Math.min(BUFFER_SIZE, numDocs - doc);
+                docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
+
+                int numNonZero = 0;
+                for (int i = 0; i < n; ++i) {
+                    final int group = docGroupBuffer[i];
+                    if (group != 0) {
+                        docIdBuf[numNonZero] = doc + i;
+                        docGroupBuffer[numNonZero++] = group;
+                    }
+                }
+                if (numNonZero == 0) {
+                    continue;
+                }
+
+                if (numNonZero == n) {
+                    lookup.lookupRange(doc, valBuf, n);
+                } else {
+                    lookup.lookup(docIdBuf, valBuf, numNonZero);
+                }
+                for (int i = 0; i < numNonZero; ++i) {
+                    final QuantileSketch sketch = sketches[docGroupBuffer[i]];
+                    final long before = sketch.memoryUsage();
+                    sketch.update(valBuf[i]);
+                    allocated += sketch.memoryUsage() - before;
+                }
+                memoryUsage = claimSketchGrowth(memoryUsage, allocated);
+            }
+            return sketches;
+        } finally {
+            memory.releaseMemory(memoryUsage);
+        }
+    }
+
+    private long claimSketchGrowth(long claimed, long allocated) throws ImhotepOutOfMemoryException {
+        if (allocated > claimed && !memory.claimMemory(allocated - claimed)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        return Math.max(claimed, allocated);
+    }
+
     private static final Comparator<IntTermWithFreq> INT_FREQ_COMPARATOR =
             new Comparator<IntTermWithFreq>() {
                 @Override
@@ -1583,7 +1760,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 continue;
             }
 
-            lookup.lookup(docIdBuf, valBuf, numNonZero);
+            if (numNonZero == n) {
+                lookup.lookupRange(doc, valBuf, n);
+            } else {
+                lookup.lookup(docIdBuf, valBuf, numNonZero);
+            }
 
             if (noGutters) {
                 internalMetricRegroupNoGutters(min, max, intervalSize, numBuckets, numNonZero);
@@ -1671,8 +1852,13 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                     continue;
                 }
 
-                xLookup.lookup(docIdBuf, valBuf, numNonZero);
-                yLookup.lookup(docIdBuf, yValBuf, numNonZero);
+                if (numNonZero == n) {
+                    xLookup.lookupRange(doc, valBuf, n);
+                    yLookup.lookupRange(doc, yValBuf, n);
+                } else {
+                    xLookup.lookup(docIdBuf, valBuf, numNonZero);
+                    yLookup.lookup(docIdBuf, yValBuf, numNonZero);
+                }
 
                 for (int i = 0; i < numNonZero; ++i) {
                     final long xVal = valBuf[i];
@@ -1731,12 +1917,29 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         }
         docIdToGroup = GroupLookupFactory.resize(docIdToGroup, docIdToGroup.getNumGroups(), memory);
         final IntValueLookup lookup = statLookup[stat];
+        final ZoneMap zoneMap = ZoneMap.of(lookup);
 
         final int numDocs = docIdToGroup.size();
         for (int doc = 0; doc < numDocs; doc += BUFFER_SIZE) {
 
             final int n = Math.min(BUFFER_SIZE, numDocs - doc);
 
+            boolean allInRange = false;
+            boolean noneInRange = false;
+            if (zoneMap != null) {
+                allInRange = true;
+                noneInRange = true;
+                final int lastBlock = (doc + n - 1) >> ZoneMap.BLOCK_SHIFT;
+                for (int block = doc >> ZoneMap.BLOCK_SHIFT; block <= lastBlock; ++block) {
+                    allInRange &= zoneMap.isContained(block, min, max);
+                    noneInRange &= zoneMap.isDisjoint(block, min, max);
+                }
+                if (negate ? noneInRange : allInRange) {
+                    // every doc passes the filter
+                    continue;
+                }
+            }
+
             docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
 
             int numNonZero = 0;
@@ -1752,7 +1955,18 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 continue;
             }
 
-            lookup.lookup(docIdBuf, valBuf, numNonZero);
+            if (negate ? allInRange : noneInRange) {
+                // no doc passes the filter so there is no need to look up values
+                Arrays.fill(docGroupBuffer, 0, numNonZero, 0);
+                docIdToGroup.batchSet(docIdBuf, docGroupBuffer, numNonZero);
+                continue;
+            }
+
+            if (numNonZero == n) {
+                lookup.lookupRange(doc, valBuf, n);
+            } else {
+                lookup.lookup(docIdBuf, valBuf, numNonZero);
+            }
 
             for (int i = 0; i < numNonZero; ++i) {
                 final long val = valBuf[i];
@@ -1777,7 +1991,6 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                                     groupStats[stat],
                                     docIdToGroup,
                                     docGroupBuffer,
-                                    docIdBuf,
                                     valBuf);
             needToReCalcGroupStats[stat] = false;
         }
@@ -1812,65 +2025,15 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         }
     }
 
-    private static final String decimalPattern = "-?[0-9]*\\.?[0-9]+";
-
-    private static final Pattern floatScalePattern =
-            Pattern.compile("floatscale\\s+(\\w+)\\s*\\*\\s*(" + decimalPattern + ")\\s*\\+\\s*("
-                    + decimalPattern + ")");
-
     @Override
     public synchronized int pushStat(String statName) throws ImhotepOutOfMemoryException {
         if (numStats == MAX_NUMBER_STATS) {
             throw new IllegalArgumentException("Maximum number of stats exceeded");
         }
 
-        if (statName.startsWith("hasstr ")) {
-            final String s = statName.substring(7).trim();
-            final String[] split = s.split(":", 2);
-            if (split.length < 2) {
-                throw new IllegalArgumentException("invalid hasstr metric: " + statName);
-            }
-            statLookup[numStats] = hasStringTermFilter(split[0], split[1]);
-        } else if (statName.startsWith("hasint ")) {
-            final String s = statName.substring(7).trim();
-            final String[] split = s.split(":", 2);
-            if (split.length < 2) {
-                throw new IllegalArgumentException("invalid hasint metric: " + statName);
-            }
-            statLookup[numStats] = hasIntTermFilter(split[0], Integer.parseInt(split[1]));
-        } else if (statName.startsWith("regex ")) {
-            final String s = statName.substring(6).trim();
-            final String[] split = s.split(":", 2);
-            if (split.length < 2) {
-                throw new IllegalArgumentException("invalid regex metric: " + statName);
-            }
-            statLookup[numStats] = hasRegexFilter(split[0], split[1]);
-        } else if (statName.startsWith("inttermcount ")) {
-            final String field = statName.substring(13).trim();
-            statLookup[numStats] = intTermCountLookup(field);
-        } else if (statName.startsWith("strtermcount ")) {
-            final String field = statName.substring(13).trim();
-            statLookup[numStats] = stringTermCountLookup(field);
-        } else if (statName.startsWith("floatscale ")) {
-            final Matcher matcher = floatScalePattern.matcher(statName);
-            // accepted format is 'floatscale field*scale+offset' (or just look
-            // at the pattern)
-            if (!matcher.matches()) {
-                throw new IllegalArgumentException("invalid floatscale metric: " + statName);
-            }
-
-            final String field = matcher.group(1);
-            final double scale;
-            final double offset;
-            try {
-                scale = Double.parseDouble(matcher.group(2));
-                offset = Double.parseDouble(matcher.group(3));
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException("invalid offset or scale constant for metric: "
-                        + statName, e);
-            }
-
-            statLookup[numStats] = scaledFloatLookup(field, scale, offset);
+        final String derivedMetric = DerivedMetrics.normalize(statName);
+        if (derivedMetric != null) {
+            statLookup[numStats] = derivedMetricLookup(derivedMetric);
         } else if (statName.startsWith("dynamic ")) {
             final String name = statName.substring(8).trim();
             final DynamicMetric metric = getDynamicMetrics().get(name);
@@ -1906,11 +2069,13 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             for (int i = 0; i < count; i++) {
                 originals[i] = statLookup[start + i];
             }
-            final IntValueLookup[] cached =
-                    new CachedInterleavedMetrics(memory, flamdexReader.getNumDocs(), originals).getLookups();
+            // the interleaved metrics take ownership of the originals and close them once fully copied
+            final CachedInterleavedMetrics interleaved =
+                    new CachedInterleavedMetrics(memory, flamdexReader.getNumDocs(), originals);
+            interleavedMetrics.add(interleaved);
+            final IntValueLookup[] cached = interleaved.getLookups();
 
             for (int i = 0; i < count; i++) {
-                statLookup[start + i].close();
                 statLookup[start + i] = cached[i];
             }
 
@@ -2157,25 +2322,54 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         if (getDynamicMetrics().containsKey(name)) {
             throw new RuntimeException("dynamic metric \"" + name + "\" already exists");
         }
-        if (!memory.claimMemory(flamdexReader.getNumDocs() * 4L)) {
+        if (!memory.claimMemory(DynamicMetric.memoryRequired(flamdexReader.getNumDocs()))) {
             throw new ImhotepOutOfMemoryException();
         }
         getDynamicMetrics().put(name, new DynamicMetric(flamdexReader.getNumDocs()));
     }
 
+    /**
+     * Interleaved metrics are copied lazily, so any that may read a dynamic metric have to be copied in full
+     * before the dynamic metric changes.
+     */
+    private void fillInterleavedMetrics() {
+        for (final Iterator<CachedInterleavedMetrics> iter = interleavedMetrics.iterator(); iter.hasNext(); ) {
+            final CachedInterleavedMetrics interleaved = iter.next();
+            if (interleaved.isReleased()) {
+                iter.remove();
+            } else {
+                interleaved.fillRemaining();
+            }
+        }
+    }
+
     @Override
     public synchronized void updateDynamicMetric(String name, int[] deltas) throws ImhotepOutOfMemoryException {
         final DynamicMetric metric = getDynamicMetrics().get(name);
         if (metric == null) {
             throw new RuntimeException("dynamic metric \"" + name + "\" does not exist");
         }
+        fillInterleavedMetrics();
 
+        // groups past the end of deltas are left unchanged
+        final int[] groupToDelta = Arrays.copyOf(deltas, Math.max(deltas.length, docIdToGroup.getNumGroups()));
+        // every doc gets exactly one delta, so widen once up front rather than partway through the update
+        long minDelta = 0;
+        long maxDelta = 0;
+        for (int group = 0; group < docIdToGroup.getNumGroups(); group++) {
+            minDelta = Math.min(minDelta, groupToDelta[group]);
+            maxDelta = Math.max(maxDelta, groupToDelta[group]);
+        }
+        metric.ensureRange(metric.getMin() + minDelta, metric.getMax() + maxDelta, memory);
+        final int[] deltaBuf = new int[BUFFER_SIZE];
         final int numDocs = flamdexReader.getNumDocs();
-        for (int doc = 0; doc < numDocs; doc++) {
-            final int group = docIdToGroup.get(doc);
-            if (group >= 0 && group < deltas.length) {
-                metric.add(doc, deltas[group]);
+        for (int start = 0; start < numDocs; start += BUFFER_SIZE) {
+            final int n = Math.min(BUFFER_SIZE, numDocs - start);
+            docIdToGroup.fillDocGrpBufferSequential(start, docGroupBuffer, n);
+            for (int i = 0; i < n; i++) {
+                deltaBuf[i] = groupToDelta[docGroupBuffer[i]];
             }
+            metric.addRange(start, deltaBuf, n, memory);
         }
 
         // pessimistically recompute all stats -- other metrics may indirectly
@@ -2189,12 +2383,15 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
     @Override
     public synchronized void conditionalUpdateDynamicMetric(String name,
                                                             final RegroupCondition[] conditions,
-                                                            final int[] deltas) {
+                                                            final int[] deltas)
+            throws ImhotepOutOfMemoryException {
         validateConditionalUpdateDynamicMetricInput(conditions, deltas);
         final DynamicMetric metric = getDynamicMetrics().get(name);
         if (metric == null) {
             throw new RuntimeException("dynamic metric \"" + name + "\" does not exist");
         }
+        fillInterleavedMetrics();
+        ensureRangeForConditions(metric, deltas, null, Integer.MAX_VALUE);
 
         final List<Integer> indexes = Lists.newArrayList();
         for (int i = 0; i < conditions.length; i++) {
@@ -2209,6 +2406,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                         return Pair.of(conditions[index].field, conditions[index].intType);
                     }
                 });
+        final int[] deltaBuf = new int[BUFFER_SIZE];
         for (Pair<String, Boolean> field : fieldIndexMap.keySet()) {
             final String fieldName = field.getFirst();
             final boolean fieldIsIntType = field.getSecond();
@@ -2229,11 +2427,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 final IntTermIterator termIterator = flamdexReader.getIntTermIterator(fieldName);
                 for (int index : indices) {
                     final long term = conditions[index].intTerm;
-                    final int delta = deltas[index];
                     termIterator.reset(term);
                     if (termIterator.next() && termIterator.term() == term) {
                         docIdStream.reset(termIterator);
-                        adjustDeltas(metric, docIdStream, delta);
+                        Arrays.fill(deltaBuf, deltas[index]);
+                        adjustDeltas(metric, docIdStream, deltaBuf);
                     }
                 }
             } else {
@@ -2241,11 +2439,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                         flamdexReader.getStringTermIterator(fieldName);
                 for (int index : indices) {
                     final String term = conditions[index].stringTerm;
-                    final int delta = deltas[index];
                     termIterator.reset(term);
                     if (termIterator.next() && termIterator.term().equals(term)) {
                         docIdStream.reset(termIterator);
-                        adjustDeltas(metric, docIdStream, delta);
+                        Arrays.fill(deltaBuf, deltas[index]);
+                        adjustDeltas(metric, docIdStream, deltaBuf);
                     }
                 }
             }
@@ -2265,7 +2463,8 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         }
     }
 
-    public void groupConditionalUpdateDynamicMetric(String name, int[] groups, RegroupCondition[] conditions, int[] deltas) {
+    public void groupConditionalUpdateDynamicMetric(String name, int[] groups, RegroupCondition[] conditions, int[] deltas)
+            throws ImhotepOutOfMemoryException {
         if (groups.length != conditions.length) {
             throw new IllegalArgumentException("groups and conditions must be the same length");
         }
@@ -2274,9 +2473,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         if (metric == null) {
             throw new RuntimeException("dynamic metric \"" + name + "\" does not exist");
         }
+        fillInterleavedMetrics();
         final IntArrayList groupsSet = new IntArrayList();
-        final FastBitSet groupsWithCurrentTerm = new FastBitSet(docIdToGroup.getNumGroups());
+        // only groups with a condition on the current term have a non-zero delta
         final int[] groupToDelta = new int[docIdToGroup.getNumGroups()];
+        final int[] deltaBuf = new int[BUFFER_SIZE];
         final Map<String, Long2ObjectMap<Pair<IntArrayList, IntArrayList>>> intFields = Maps.newHashMap();
         final Map<String, Map<String, Pair<IntArrayList, IntArrayList>>> stringFields = Maps.newHashMap();
         for (int i = 0; i < groups.length; i++) {
@@ -2310,6 +2511,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             groupDeltas.getFirst().add(groups[i]);
             groupDeltas.getSecond().add(deltas[i]);
         }
+        ensureRangeForConditions(metric, deltas, groups, groupToDelta.length);
         final DocIdStream docIdStream = flamdexReader.getDocIdStream();
         IntTermIterator intTermIterator = null;
         StringTermIterator stringTermIterator = null;
@@ -2320,7 +2522,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 intTermIterator = flamdexReader.getIntTermIterator(field);
                 for (Long2ObjectMap.Entry<Pair<IntArrayList, IntArrayList>> entry2 : termToGroupDeltas.long2ObjectEntrySet()) {
                     for (int i = 0; i < groupsSet.size(); i++) {
-                        groupsWithCurrentTerm.clear(groupsSet.getInt(i));
+                        groupToDelta[groupsSet.getInt(i)] = 0;
                     }
                     groupsSet.clear();
                     final long term = entry2.getLongKey();
@@ -2329,7 +2531,6 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                     final IntArrayList termDeltas = groupDeltas.getSecond();
                     for (int i = 0; i < termGroups.size(); i++) {
                         final int group = termGroups.getInt(i);
-                        groupsWithCurrentTerm.set(group);
                         groupToDelta[group] = termDeltas.getInt(i);
                         groupsSet.add(group);
                     }
@@ -2337,7 +2538,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                     if (!intTermIterator.next()) continue;
                     if (intTermIterator.term() != term) continue;
                     docIdStream.reset(intTermIterator);
-                    updateDocsWithTermDynamicMetric(metric, groupsWithCurrentTerm, groupToDelta, docIdStream);
+                    updateDocsWithTermDynamicMetric(metric, groupToDelta, deltaBuf, docIdStream);
                 }
                 intTermIterator.close();
             }
@@ -2347,7 +2548,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 stringTermIterator = flamdexReader.getStringTermIterator(field);
                 for (Map.Entry<String, Pair<IntArrayList, IntArrayList>> entry2 : termToGroupDeltas.entrySet()) {
                     for (int i = 0; i < groupsSet.size(); i++) {
-                        groupsWithCurrentTerm.clear(groupsSet.getInt(i));
+                        groupToDelta[groupsSet.getInt(i)] = 0;
                     }
                     groupsSet.clear();
                     final String term = entry2.getKey();
@@ -2356,7 +2557,6 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                     final IntArrayList termDeltas = groupDeltas.getSecond();
                     for (int i = 0; i < termGroups.size(); i++) {
                         final int group = termGroups.getInt(i);
-                        groupsWithCurrentTerm.set(group);
                         groupToDelta[group] = termDeltas.getInt(i);
                         groupsSet.add(group);
                     }
@@ -2364,7 +2564,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                     if (!stringTermIterator.next()) continue;
                     if (!stringTermIterator.term().equals(term)) continue;
                     docIdStream.reset(stringTermIterator);
-                    updateDocsWithTermDynamicMetric(metric, groupsWithCurrentTerm, groupToDelta, docIdStream);
+                    updateDocsWithTermDynamicMetric(metric, groupToDelta, deltaBuf, docIdStream);
                 }
                 stringTermIterator.close();
             }
@@ -2374,32 +2574,48 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 needToReCalcGroupStats[i] = true;
                 groupStats[i] = clearAndResize(groupStats[i], docIdToGroup.getNumGroups(), memory);
             }
-        } catch (ImhotepOutOfMemoryException e) {
-            throw Throwables.propagate(e);
         } finally {
             Closeables2.closeAll(log, docIdStream, intTermIterator, stringTermIterator);
         }
     }
 
-    private void updateDocsWithTermDynamicMetric(DynamicMetric metric, FastBitSet groupsWithCurrentTerm, int[] groupToDelta, DocIdStream docIdStream) {
+    /**
+     * A doc matches each condition at most once, so its value can move by at most the sum of the deltas in either
+     * direction. Widening for that bound up front means the update can't run out of memory partway through.
+     */
+    private void ensureRangeForConditions(DynamicMetric metric, int[] deltas, int[] groups, int numGroups)
+            throws ImhotepOutOfMemoryException {
+        long negative = 0;
+        long positive = 0;
+        for (int i = 0; i < deltas.length; i++) {
+            if (groups != null && groups[i] >= numGroups) {
+                continue;
+            }
+            if (deltas[i] < 0) {
+                negative += deltas[i];
+            } else {
+                positive += deltas[i];
+            }
+        }
+        metric.ensureRange(metric.getMin() + negative, metric.getMax() + positive, memory);
+    }
+
+    private void updateDocsWithTermDynamicMetric(DynamicMetric metric, int[] groupToDelta, int[] deltaBuf, DocIdStream docIdStream) throws ImhotepOutOfMemoryException {
         while (true) {
             final int n = docIdStream.fillDocIdBuffer(docIdBuf);
             docIdToGroup.fillDocGrpBuffer(docIdBuf, docGroupBuffer, n);
             for (int i = 0; i < n; i++) {
-                if (groupsWithCurrentTerm.get(docGroupBuffer[i])) {
-                    metric.add(docIdBuf[i], groupToDelta[docGroupBuffer[i]]);
-                }
+                deltaBuf[i] = groupToDelta[docGroupBuffer[i]];
             }
+            metric.add(docIdBuf, deltaBuf, n, memory);
             if (n < docIdBuf.length) break;
         }
     }
 
-    private synchronized void adjustDeltas(DynamicMetric metric, DocIdStream docIdStream, int delta) {
+    private synchronized void adjustDeltas(DynamicMetric metric, DocIdStream docIdStream, int[] deltaBuf) throws ImhotepOutOfMemoryException {
         while (true) {
             final int n = docIdStream.fillDocIdBuffer(docIdBuf);
-            for (int i = 0; i < n; i++) {
-                metric.add(docIdBuf[i], delta);
-            }
+            metric.add(docIdBuf, deltaBuf, n, memory);
             if (n != docIdBuf.length) {
                 break;
             }
@@ -2537,17 +2753,16 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                                                 long[] groupStats,
                                                 GroupLookup docIdToGroup,
                                                 int[] docGrpBuffer,
-                                                int[] docIdBuf,
                                                 long[] valBuf) {
         // populate new group stats
         final int numDocs = docIdToGroup.size();
         for (int start = 0; start < numDocs; start += BUFFER_SIZE) {
             final int n = Math.min(BUFFER_SIZE, numDocs - start);
+            docIdToGroup.fillDocGrpBufferSequential(start, docGrpBuffer, n);
+            statLookup.lookupRange(start, valBuf, n);
             for (int i = 0; i < n; i++) {
-                docIdBuf[i] = start + i;
+                groupStats[docGrpBuffer[i]] += valBuf[i];
             }
-            docIdToGroup.fillDocGrpBuffer(docIdBuf, docGrpBuffer, n);
-            updateGroupStatsDocIdBuf(statLookup, groupStats, docGrpBuffer, docIdBuf, valBuf, n);
         }
     }
 
@@ -2892,195 +3107,30 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         }
     }
 
-    private IntValueLookup hasIntTermFilter(final String field, final long term) throws ImhotepOutOfMemoryException {
-        final long memoryUsage = getBitSetMemoryUsage();
-
-        if (!memory.claimMemory(memoryUsage)) {
-            throw new ImhotepOutOfMemoryException();
-        }
-
-        return new BitSetIntValueLookup(FlamdexUtils.cacheHasIntTerm(field, term, flamdexReader),
-                                        memoryUsage);
-    }
-
-    private IntValueLookup hasStringTermFilter(final String field, final String term) throws ImhotepOutOfMemoryException {
-        final long memoryUsage = getBitSetMemoryUsage();
-
-        if (!memory.claimMemory(memoryUsage)) {
-            throw new ImhotepOutOfMemoryException();
-        }
-
-        return new BitSetIntValueLookup(
-                                        FlamdexUtils.cacheHasStringTerm(field, term, flamdexReader),
-                                        memoryUsage);
-    }
-
-    private IntValueLookup hasRegexFilter(String field, String regex) throws ImhotepOutOfMemoryException {
-        final long memoryUsage = getBitSetMemoryUsage();
-
-        if (!memory.claimMemory(memoryUsage)) {
-            throw new ImhotepOutOfMemoryException();
-        }
-
-        return new BitSetIntValueLookup(
-                FlamdexUtils.cacheRegex(field, regex, flamdexReader),
-                memoryUsage
-        );
-    }
-
-    private IntValueLookup intTermCountLookup(final String field) throws ImhotepOutOfMemoryException {
-        final long memoryUsage = flamdexReader.getNumDocs();
-
-        if (!memory.claimMemory(memoryUsage)) {
-            throw new ImhotepOutOfMemoryException();
-        }
-
-        final byte[] array = new byte[flamdexReader.getNumDocs()];
-
-        final IntTermIterator iterator = flamdexReader.getIntTermIterator(field);
-        try {
-            final DocIdStream docIdStream = flamdexReader.getDocIdStream();
+    private IntValueLookup derivedMetricLookup(final String metric) throws ImhotepOutOfMemoryException {
+        // a caching reader shares derived metrics between sessions on the same shard
+        if (flamdexReader instanceof MetricCache) {
             try {
-                while (iterator.next()) {
-                    docIdStream.reset(iterator);
-                    while (true) {
-                        final int n = docIdStream.fillDocIdBuffer(docIdBuf);
-                        for (int i = 0; i < n; ++i) {
-                            final int doc = docIdBuf[i];
-                            if (array[doc] != (byte) 255) {
-                                ++array[doc];
-                            }
-                        }
-                        if (n < BUFFER_SIZE) {
-                            break;
-                        }
-                    }
-                }
-            } finally {
-                docIdStream.close();
-            }
-        } finally {
-            iterator.close();
-        }
-
-        return new MemoryReservingIntValueLookupWrapper(new ByteArrayIntValueLookup(array, 0, 255));
-    }
-
-    private IntValueLookup stringTermCountLookup(final String field) throws ImhotepOutOfMemoryException {
-        final long memoryUsage = flamdexReader.getNumDocs();
-
-        if (!memory.claimMemory(memoryUsage)) {
-            throw new ImhotepOutOfMemoryException();
-        }
-
-        final byte[] array = new byte[flamdexReader.getNumDocs()];
-
-        final StringTermDocIterator iterator = flamdexReader.getStringTermDocIterator(field);
-        try {
-            while (iterator.nextTerm()) {
-                while (true) {
-                    final int n = iterator.fillDocIdBuffer(docIdBuf);
-                    for (int i = 0; i < n; ++i) {
-                        final int doc = docIdBuf[i];
-                        if (array[doc] != (byte) 255) {
-                            ++array[doc];
-                        }
-                    }
-                    if (n < BUFFER_SIZE) {
-                        break;
-                    }
-                }
+                return flamdexReader.getMetric(metric);
+            } catch (FlamdexOutOfMemoryException e) {
+                throw new ImhotepOutOfMemoryException(e);
             }
-        } finally {
-            Closeables2.closeQuietly(iterator, log);
         }
 
-        return new MemoryReservingIntValueLookupWrapper(new ByteArrayIntValueLookup(array, 0, 255));
-    }
-
-    private IntValueLookup scaledFloatLookup(final String field, double scale, double offset) throws ImhotepOutOfMemoryException {
-        final long memoryUsage = 4 * flamdexReader.getNumDocs();
+        final long memoryUsage = DerivedMetrics.memoryRequired(flamdexReader, metric);
 
         if (!memory.claimMemory(memoryUsage)) {
             throw new ImhotepOutOfMemoryException();
         }
 
-        final int[] array = new int[flamdexReader.getNumDocs()];
-        int min = Integer.MAX_VALUE;
-        int max = Integer.MIN_VALUE;
-        final StringTermDocIterator iterator = flamdexReader.getStringTermDocIterator(field);
+        final IntValueLookup lookup;
         try {
-            while (iterator.nextTerm()) {
-                final String term = iterator.term();
-                int number;
-                try {
-                    final double termFloat = Double.parseDouble(term);
-                    number = (int) Math.round(termFloat * scale + offset);
-                } catch (NumberFormatException e) {
-                    number = 0;
-                }
-
-                min = Math.min(min, number);
-                max = Math.max(max, number);
-
-                while (true) {
-                    final int n = iterator.fillDocIdBuffer(docIdBuf);
-                    for (int i = 0; i < n; i++) {
-                        final int doc = docIdBuf[i];
-                        array[doc] = number;
-                    }
-                    if (n < BUFFER_SIZE) {
-                        break;
-                    }
-                }
-            }
-        } finally {
-            Closeables2.closeQuietly(iterator, log);
-        }
-
-        return new MemoryReservingIntValueLookupWrapper(new IntArrayIntValueLookup(array, min, max));
-    }
-
-    private int getBitSetMemoryUsage() {
-        return flamdexReader.getNumDocs() / 8 + ((flamdexReader.getNumDocs() % 8) != 0 ? 1 : 0);
-    }
-
-    private class BitSetIntValueLookup implements IntValueLookup {
-        private ThreadSafeBitSet bitSet;
-        private final long memoryUsage;
-
-        private BitSetIntValueLookup(ThreadSafeBitSet bitSet, long memoryUsage) {
-            this.bitSet = bitSet;
-            this.memoryUsage = memoryUsage;
-        }
-
-        @Override
-        public long getMin() {
-            return 0;
-        }
-
-        @Override
-        public long getMax() {
-            return 1;
-        }
-
-        @Override
-        public void lookup(int[] docIds, long[] values, int n) {
-            for (int i = 0; i < n; ++i) {
-                values[i] = bitSet.get(docIds[i]) ? 1 : 0;
-            }
-        }
-
-        @Override
-        public long memoryUsed() {
-            return 0;
-        }
-
-        @Override
-        public void close() {
-            bitSet = null;
+            lookup = DerivedMetrics.load(flamdexReader, metric);
+        } catch (RuntimeException e) {
             memory.releaseMemory(memoryUsage);
+            throw e;
         }
+        return new MemoryReservingIntValueLookupWrapper(lookup);
     }
 
     private final class MemoryReservingIntValueLookupWrapper implements IntValueLookup {
@@ -3105,6 +3155,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             lookup.lookup(docIds, values, n);
         }
 
+        @Override
+        public void lookupRange(final int start, final long[] values, final int n) {
+            lookup.lookupRange(start, values, n);
+        }
+
         @Override
         public long memoryUsed() {
             return lookup.memoryUsed();
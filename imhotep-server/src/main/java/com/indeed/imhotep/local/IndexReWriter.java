@@ -262,12 +262,7 @@ public class IndexReWriter {
          * remap the dynamic metrics
          */
 
-        /* allocate the new DynamicMetrics */
-        /* all session have the same # of dynamic metrics */
-        int nDynMetrics = sessions.get(0).getDynamicMetrics().size();
-        if (!memory.claimMemory((nTotalDocs * 4L) * nDynMetrics)) {
-            throw new ImhotepOutOfMemoryException();
-        }
+        /* allocate the new DynamicMetrics, which claim more memory as they widen */
         final Map<String, DynamicMetric> newDynMetrics = Maps.newHashMap();
         for (int i = 0; i < sessions.size(); i++) {
             ImhotepLocalSession s = sessions.get(i);
@@ -277,13 +272,16 @@ public class IndexReWriter {
                 DynamicMetric oldDM = e.getValue();
                 DynamicMetric newDM = newDynMetrics.get(e.getKey());
                 if (newDM == null) {
+                    if (!memory.claimMemory(DynamicMetric.memoryRequired(newNumDocs))) {
+                        throw new ImhotepOutOfMemoryException();
+                    }
                     newDM = new DynamicMetric(newNumDocs);
                 }
                 for (int j = 0; j < gl.size(); j++) {
                     int docId = mapping[j + offset];
                     if (docId == -1)
                         continue;
-                    newDM.add(docId, oldDM.lookupSingleVal(j));
+                    newDM.add(docId, oldDM.lookupSingleVal(j), memory);
                 }
                 newDynMetrics.put(e.getKey(), newDM);
             }
@@ -49,6 +49,14 @@ public abstract class AbstractBinaryOperator implements IntValueLookup {
         combine(values, buffer, n);
     }
 
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        if (buffer.length < n) buffer = new long[n];
+        a.lookupRange(start, values, n);
+        b.lookupRange(start, buffer, n);
+        combine(values, buffer, n);
+    }
+
     protected abstract void combine(long[] values, long[] buffer, int n);
 
     @Override
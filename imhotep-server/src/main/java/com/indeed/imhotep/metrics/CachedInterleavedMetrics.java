@@ -16,17 +16,47 @@
 import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.imhotep.MemoryReserver;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.mmap.DirectMemory;
+import com.indeed.util.mmap.NativeBuffer;
+import org.apache.log4j.Logger;
 
+import java.nio.ByteOrder;
 import java.util.BitSet;
 
 /**
+ * Caches several metrics in one off-heap buffer with the values for a document stored next to each other.
+ * Each metric is stored in the narrowest of 1, 2, 4 or 8 bytes that holds its values. Derived metrics only
+ * report an estimate of their bounds, so every metric is scanned once up front for its real min and max. Values
+ * are then copied from the original lookups one block of documents at a time, the first time a document in the block is
+ * looked up, so the original lookups are kept open until every block has been filled or this is released.
+ *
  * @author dwahler
  */
 public class CachedInterleavedMetrics {
+    private static final Logger log = Logger.getLogger(CachedInterleavedMetrics.class);
+
+    private static final int BLOCK_SHIFT = 13;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
     private final MemoryReserver memory;
 
     private final int numDocs, stride;
-    private long[] interleavedData;
+    private final int rowSize;
+    private final int[] widths;
+    private final int[] offsets;
+    private final long[] mins;
+    private final long[] maxes;
+    private final long memoryUsage;
+
+    private NativeBuffer buffer;
+    private DirectMemory data;
+
+    private IntValueLookup[] originals;
+    private final BitSet filledBlocks;
+    private final int numBlocks;
+    private int numFilledBlocks = 0;
+    private long[] valBuffer;
 
     private final BitSet closed;
     private boolean released;
@@ -36,90 +66,280 @@ public class CachedInterleavedMetrics {
         this.numDocs = numDocs;
         this.stride = lookups.length;
 
-        if (!memory.claimMemory(numDocs * 8L * stride)) {
+        valBuffer = new long[BLOCK_SIZE];
+        mins = new long[stride];
+        maxes = new long[stride];
+        for (int i = 0; i < stride; i++) {
+            scanBounds(i, lookups[i]);
+        }
+
+        widths = new int[stride];
+        offsets = new int[stride];
+        int rowSize = 0;
+        // lay out wider columns first so every value is aligned to its width within a row
+        for (final int width : new int[] { 8, 4, 2, 1 }) {
+            for (int i = 0; i < stride; i++) {
+                if (widthFor(mins[i], maxes[i]) == width) {
+                    widths[i] = width;
+                    offsets[i] = rowSize;
+                    rowSize += width;
+                }
+            }
+        }
+        this.rowSize = rowSize;
+
+        memoryUsage = (long) numDocs * rowSize + BLOCK_SIZE * 8L;
+        if (!memory.claimMemory(memoryUsage)) {
             throw new ImhotepOutOfMemoryException();
         }
-        interleavedData = new long[numDocs * stride];
-        fillValues(lookups);
+        buffer = new NativeBuffer((long) numDocs * rowSize, ByteOrder.LITTLE_ENDIAN);
+        data = buffer.memory();
+
+        originals = lookups.clone();
+        numBlocks = (numDocs + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+        filledBlocks = new BitSet(numBlocks);
+        if (numBlocks == 0) {
+            closeOriginals();
+        }
 
         closed = new BitSet(stride);
     }
 
+    private void scanBounds(int column, IntValueLookup lookup) {
+        if (numDocs == 0) {
+            mins[column] = lookup.getMin();
+            maxes[column] = lookup.getMax();
+            return;
+        }
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int start = 0; start < numDocs; start += BLOCK_SIZE) {
+            final int n = Math.min(BLOCK_SIZE, numDocs - start);
+            lookup.lookupRange(start, valBuffer, n);
+            for (int i = 0; i < n; i++) {
+                min = Math.min(min, valBuffer[i]);
+                max = Math.max(max, valBuffer[i]);
+            }
+        }
+        mins[column] = min;
+        maxes[column] = max;
+    }
+
+    private static int widthFor(long min, long max) {
+        if (min >= Byte.MIN_VALUE && max <= Byte.MAX_VALUE) {
+            return 1;
+        } else if (min >= Short.MIN_VALUE && max <= Short.MAX_VALUE) {
+            return 2;
+        } else if (min >= Integer.MIN_VALUE && max <= Integer.MAX_VALUE) {
+            return 4;
+        }
+        return 8;
+    }
+
     public IntValueLookup[] getLookups() {
         final IntValueLookup[] result = new IntValueLookup[stride];
         for (int i = 0; i < stride; i++) {
-            result[i] = new InterleavedLookup(i);
+            result[i] = new InterleavedLookup(i, mins[i], maxes[i]);
         }
         return result;
     }
 
-    private void fillValues(IntValueLookup... lookups) {
-        final int BUFFER_SIZE = 8192;
-        final int[] idBuffer = new int[BUFFER_SIZE];
-        final long[] valBuffer = new long[BUFFER_SIZE];
+    /**
+     * Copies every block that has not been looked up yet, after which the original lookups are closed.
+     * Callers must do this before changing anything the original lookups read from.
+     */
+    public synchronized void fillRemaining() {
+        if (released) {
+            return;
+        }
+        for (int block = filledBlocks.nextClearBit(0); block < numBlocks; block = filledBlocks.nextClearBit(block + 1)) {
+            fillBlock(block);
+        }
+    }
 
-        for (int start = 0; start < numDocs; start += BUFFER_SIZE) {
-            final int end = Math.min(numDocs, start+BUFFER_SIZE);
-            final int n = end-start;
-            for (int i = 0; i < n; i++) {
-                idBuffer[i] = start + i;
+    public synchronized boolean isReleased() {
+        return released;
+    }
+
+    private synchronized void ensureFilled(int[] docIds, int n) {
+        if (numFilledBlocks == numBlocks) {
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            final int block = docIds[i] >>> BLOCK_SHIFT;
+            if (!filledBlocks.get(block)) {
+                fillBlock(block);
             }
+        }
+    }
 
-            for (int offset = 0; offset < lookups.length; offset++) {
-                lookups[offset].lookup(idBuffer, valBuffer, n);
-                for (int i = 0; i < n; i++) {
-                    interleavedData[(i+start)*stride+offset] = valBuffer[i];
-                }
+    private synchronized void ensureFilled(int start, int n) {
+        if (numFilledBlocks == numBlocks || n <= 0) {
+            return;
+        }
+        final int lastBlock = (start + n - 1) >>> BLOCK_SHIFT;
+        for (int block = start >>> BLOCK_SHIFT; block <= lastBlock; block++) {
+            if (!filledBlocks.get(block)) {
+                fillBlock(block);
             }
         }
     }
 
-    private void closeLookup(int offset) {
+    private void fillBlock(int block) {
+        final int start = block << BLOCK_SHIFT;
+        final int n = Math.min(BLOCK_SIZE, numDocs - start);
+
+        for (int column = 0; column < stride; column++) {
+            originals[column].lookupRange(start, valBuffer, n);
+            long address = (long) start * rowSize + offsets[column];
+            switch (widths[column]) {
+                case 1:
+                    for (int i = 0; i < n; i++, address += rowSize) {
+                        data.putByte(address, (byte) valBuffer[i]);
+                    }
+                    break;
+                case 2:
+                    for (int i = 0; i < n; i++, address += rowSize) {
+                        data.putShort(address, (short) valBuffer[i]);
+                    }
+                    break;
+                case 4:
+                    for (int i = 0; i < n; i++, address += rowSize) {
+                        data.putInt(address, (int) valBuffer[i]);
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < n; i++, address += rowSize) {
+                        data.putLong(address, valBuffer[i]);
+                    }
+                    break;
+            }
+        }
+
+        filledBlocks.set(block);
+        numFilledBlocks++;
+        if (numFilledBlocks == numBlocks) {
+            closeOriginals();
+        }
+    }
+
+    private void closeOriginals() {
+        if (originals == null) {
+            return;
+        }
+        for (final IntValueLookup original : originals) {
+            original.close();
+        }
+        originals = null;
+        valBuffer = null;
+    }
+
+    private synchronized void closeLookup(int offset) {
         closed.set(offset);
         if (closed.nextClearBit(0) == stride && !released) {
             // all lookups are closed; release memory from pool
             released = true;
-            interleavedData = null;
-            memory.releaseMemory(numDocs * 8L * stride);
+            closeOriginals();
+            data = null;
+            Closeables2.closeQuietly(buffer, log);
+            buffer = null;
+            memory.releaseMemory(memoryUsage);
         }
     }
 
     private class InterleavedLookup implements IntValueLookup {
-        private final int offset;
+        private final int column;
+        private final long min;
+        private final long max;
 
-        private InterleavedLookup(int offset) {
-            this.offset = offset;
+        private InterleavedLookup(int column, long min, long max) {
+            this.column = column;
+            this.min = min;
+            this.max = max;
         }
 
         @Override
         public long getMin() {
-            return Long.MIN_VALUE; // TODO compute this
+            return min;
         }
 
         @Override
         public long getMax() {
-            return Long.MAX_VALUE; // TODO compute this;
+            return max;
         }
 
         @Override
         public void lookup(int[] docIds, long[] values, int n) {
-            final long[] interleavedData = CachedInterleavedMetrics.this.interleavedData;
-            final int stride = CachedInterleavedMetrics.this.stride;
-            final int offset = this.offset;
+            ensureFilled(docIds, n);
 
-            for (int i = 0; i < n; i++) {
-                values[i] = interleavedData[docIds[i]*stride + offset];
+            final DirectMemory data = CachedInterleavedMetrics.this.data;
+            final long rowSize = CachedInterleavedMetrics.this.rowSize;
+            final int offset = offsets[column];
+
+            switch (widths[column]) {
+                case 1:
+                    for (int i = 0; i < n; i++) {
+                        values[i] = data.getByte(docIds[i] * rowSize + offset);
+                    }
+                    break;
+                case 2:
+                    for (int i = 0; i < n; i++) {
+                        values[i] = data.getShort(docIds[i] * rowSize + offset);
+                    }
+                    break;
+                case 4:
+                    for (int i = 0; i < n; i++) {
+                        values[i] = data.getInt(docIds[i] * rowSize + offset);
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < n; i++) {
+                        values[i] = data.getLong(docIds[i] * rowSize + offset);
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        public void lookupRange(int start, long[] values, int n) {
+            ensureFilled(start, n);
+
+            final DirectMemory data = CachedInterleavedMetrics.this.data;
+            final long rowSize = CachedInterleavedMetrics.this.rowSize;
+            long address = start * rowSize + offsets[column];
+
+            switch (widths[column]) {
+                case 1:
+                    for (int i = 0; i < n; i++, address += rowSize) {
+                        values[i] = data.getByte(address);
+                    }
+                    break;
+                case 2:
+                    for (int i = 0; i < n; i++, address += rowSize) {
+                        values[i] = data.getShort(address);
+                    }
+                    break;
+                case 4:
+                    for (int i = 0; i < n; i++, address += rowSize) {
+                        values[i] = data.getInt(address);
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < n; i++, address += rowSize) {
+                        values[i] = data.getLong(address);
+                    }
+                    break;
             }
         }
 
         @Override
         public long memoryUsed() {
-            return numDocs * 8L;
+            return (long) numDocs * widths[column];
         }
 
         @Override
         public void close() {
-            closeLookup(offset);
+            closeLookup(column);
         }
     }
 }
@@ -40,15 +40,11 @@ public class CachedMetric implements IntValueLookup {
 
     private void fillValues(IntValueLookup original) {
         final int BUFFER_SIZE = 8192;
-        final int[] idBuffer = new int[BUFFER_SIZE];
         final long[] valBuffer = new long[BUFFER_SIZE];
 
         for (int start = 0; start < values.length; start += BUFFER_SIZE) {
             final int end = Math.min(values.length, start+BUFFER_SIZE), n = end-start;
-            for (int i = 0; i < n; i++) {
-                idBuffer[i] = start + i;
-            }
-            original.lookup(idBuffer, valBuffer, n);
+            original.lookupRange(start, valBuffer, n);
             System.arraycopy(valBuffer, 0, values, start, n);
         }
 
@@ -73,6 +69,11 @@ public class CachedMetric implements IntValueLookup {
         }
     }
 
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        System.arraycopy(this.values, start, values, 0, n);
+    }
+
     @Override
     public long memoryUsed() {
         return 8L * values.length;
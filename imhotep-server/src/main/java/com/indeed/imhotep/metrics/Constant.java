@@ -42,6 +42,11 @@ public class Constant implements IntValueLookup {
         Arrays.fill(values, 0, n, val);
     }
 
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        Arrays.fill(values, 0, n, val);
+    }
+
     @Override
     public long memoryUsed() {
         return 0L;
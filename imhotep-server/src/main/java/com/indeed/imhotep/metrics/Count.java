@@ -26,6 +26,11 @@ public class Count implements IntValueLookup {
         Arrays.fill(values, 0, n, 1);
     }
 
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        Arrays.fill(values, 0, n, 1);
+    }
+
     @Override
     public long getMin() {
         return 1;
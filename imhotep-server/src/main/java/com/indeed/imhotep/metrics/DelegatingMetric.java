@@ -41,6 +41,11 @@ public class DelegatingMetric implements IntValueLookup {
         inner.lookup(docIds, values, n);
     }
 
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        inner.lookupRange(start, values, n);
+    }
+
     @Override
     public long memoryUsed() {
         return 0;
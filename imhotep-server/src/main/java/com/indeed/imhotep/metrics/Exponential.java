@@ -41,6 +41,16 @@ public class Exponential implements IntValueLookup {
     @Override
     public void lookup(int[] docIds, long[] values, int n) {
         operand.lookup(docIds, values, n);
+        transform(values, n);
+    }
+
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        operand.lookupRange(start, values, n);
+        transform(values, n);
+    }
+
+    private void transform(long[] values, int n) {
         for (int i = 0; i < n; i++) {
             double x = values[i] / (double) scaleFactor;
             double result = Math.exp(x);
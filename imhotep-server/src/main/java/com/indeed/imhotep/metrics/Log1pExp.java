@@ -41,6 +41,16 @@ public class Log1pExp implements IntValueLookup {
     @Override
     public void lookup(int[] docIds, long[] values, int n) {
         operand.lookup(docIds, values, n);
+        transform(values, n);
+    }
+
+    @Override
+    public void lookupRange(int start, long[] values, int n) {
+        operand.lookupRange(start, values, n);
+        transform(values, n);
+    }
+
+    private void transform(long[] values, int n) {
         for (int i = 0; i < n; i++) {
             final double x = values[i] / (double) scaleFactor;
             final double result;
@@ -23,7 +23,9 @@ import com.indeed.util.core.reference.SharedReference;
 import com.indeed.imhotep.DatasetInfo;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.HyperLogLog;
 import com.indeed.imhotep.ImhotepStatusDump;
+import com.indeed.imhotep.QuantileSketch;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.ShardInfo;
@@ -402,6 +404,24 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
         });
     }
 
+    @Override
+    public HyperLogLog[] handleGetGroupDistinctCounts(String sessionId, final String field, final boolean isIntField, final int precision) throws ImhotepOutOfMemoryException {
+        return doWithSession(sessionId, new ThrowingFunction<ImhotepSession, HyperLogLog[], ImhotepOutOfMemoryException>() {
+            public HyperLogLog[] apply(final ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.getGroupDistinctCounts(field, isIntField, precision);
+            }
+        });
+    }
+
+    @Override
+    public QuantileSketch[] handleGetGroupPercentiles(String sessionId, final int stat) throws ImhotepOutOfMemoryException {
+        return doWithSession(sessionId, new ThrowingFunction<ImhotepSession, QuantileSketch[], ImhotepOutOfMemoryException>() {
+            public QuantileSketch[] apply(final ImhotepSession session) throws ImhotepOutOfMemoryException {
+                return session.getGroupPercentiles(stat);
+            }
+        });
+    }
+
     @Override
     public int handlePushStat(final String sessionId, final String metric) throws ImhotepOutOfMemoryException {
         return doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Integer, ImhotepOutOfMemoryException>() {
@@ -455,9 +475,9 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
     }
 
     @Override
-    public void handleConditionalUpdateDynamicMetric(String sessionId, final String dynamicMetricName, final RegroupCondition[] conditions, final int[] deltas) {
-        doWithSession(sessionId, new Function<ImhotepSession, Void>() {
-            public Void apply(final ImhotepSession session) {
+    public void handleConditionalUpdateDynamicMetric(String sessionId, final String dynamicMetricName, final RegroupCondition[] conditions, final int[] deltas) throws ImhotepOutOfMemoryException {
+        doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Void, ImhotepOutOfMemoryException>() {
+            public Void apply(final ImhotepSession session) throws ImhotepOutOfMemoryException {
                 session.conditionalUpdateDynamicMetric(dynamicMetricName, conditions, deltas);
                 return null;
             }
@@ -465,9 +485,9 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
     }
 
     @Override
-    public void handleGroupConditionalUpdateDynamicMetric(String sessionId, final String dynamicMetricName, final int[] groups, final RegroupCondition[] conditions, final int[] deltas) {
-        doWithSession(sessionId, new Function<ImhotepSession, Void>() {
-            public Void apply(final ImhotepSession session) {
+    public void handleGroupConditionalUpdateDynamicMetric(String sessionId, final String dynamicMetricName, final int[] groups, final RegroupCondition[] conditions, final int[] deltas) throws ImhotepOutOfMemoryException {
+        doWithSession(sessionId, new ThrowingFunction<ImhotepSession, Void, ImhotepOutOfMemoryException>() {
+            public Void apply(final ImhotepSession session) throws ImhotepOutOfMemoryException {
                 session.groupConditionalUpdateDynamicMetric(dynamicMetricName, groups, conditions, deltas);
                 return null;
             }
@@ -17,6 +17,7 @@ import com.google.common.base.Function;
 import com.indeed.util.core.Either;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.core.reference.ReloadableSharedReference;
+import com.indeed.flamdex.AbstractFlamdexReader;
 import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
@@ -26,15 +27,23 @@ import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.StringTermDocIterator;
 import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.api.StringValueLookup;
+import com.indeed.flamdex.fieldcache.FieldCacheMetadata;
+import com.indeed.flamdex.fieldcache.ZoneMap;
+import com.indeed.flamdex.fieldcache.ZoneMappedIntValueLookup;
+import com.indeed.flamdex.reader.FlamdexStats;
+import com.indeed.flamdex.reader.FlamdexStatsSource;
 import com.indeed.imhotep.ImhotepMemoryCache;
 import com.indeed.imhotep.ImhotepStatusDump;
 import com.indeed.imhotep.MemoryReservationContext;
 import com.indeed.imhotep.MetricKey;
+import com.indeed.imhotep.local.DerivedMetrics;
 import org.apache.log4j.Logger;
 
 import javax.annotation.Nullable;
 import java.io.Closeable;
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -47,9 +56,14 @@ import static com.indeed.util.core.Either.Right;
 /**
  * @author jsgroth
  */
-public class CachedFlamdexReader implements FlamdexReader, MetricCache {
+public class CachedFlamdexReader implements FlamdexReader, MetricCache, FlamdexStatsSource {
     private static final Logger log = Logger.getLogger(CachedFlamdexReader.class);
 
+    /**
+     * if set, every cached metric carries a {@link ZoneMap} so that range filters can skip whole blocks of docs
+     */
+    private static final boolean BUILD_ZONE_MAPS = System.getProperty("flamdex.zonemaps") != null;
+
     private final @Nullable MemoryReservationContext memory;
 
     private final @Nullable Closeable readLockRef;
@@ -58,6 +72,18 @@ public class CachedFlamdexReader implements FlamdexReader, MetricCache {
 
     private final MetricCache metricCache;
 
+    private final @Nullable String indexName;
+
+    private final @Nullable MetricAccessStats accessStats;
+
+    private final @Nullable String shardName;
+
+    /**
+     * content hashes of the wrapped shard's fields, lookups of these fields are cached by hash rather than by shard so
+     * that a new version of the shard can reuse them if the field didn't change
+     */
+    private final Map<String, String> contentHashes;
+
     private final Map<String, Long> intDocFreqCache = new ConcurrentHashMap<String, Long>();
     private final Map<String, Long> stringDocFreqCache = new ConcurrentHashMap<String, Long>();
 
@@ -67,34 +93,53 @@ public class CachedFlamdexReader implements FlamdexReader, MetricCache {
                                   final @Nullable String indexName,
                                   final @Nullable String shardName,
                                   final @Nullable ImhotepMemoryCache<MetricKey, IntValueLookup> freeCache) {
+        this(memory, wrapped, readLockRef, indexName, shardName, freeCache, null);
+    }
+
+    /**
+     * @param accessStats if not null, every {@link #getMetric} call is counted against indexName
+     */
+    public CachedFlamdexReader(final MemoryReservationContext memory,
+                                  final FlamdexReader wrapped,
+                                  final @Nullable Closeable readLockRef,
+                                  final @Nullable String indexName,
+                                  final @Nullable String shardName,
+                                  final @Nullable ImhotepMemoryCache<MetricKey, IntValueLookup> freeCache,
+                                  final @Nullable MetricAccessStats accessStats) {
         //closer will free these in the opposite order that they are added
         this.memory = memory;
+        this.indexName = indexName;
+        this.accessStats = accessStats;
         this.readLockRef = readLockRef;
         this.wrapped = wrapped;
+        this.shardName = shardName;
+        this.contentHashes = readContentHashes(wrapped);
         metricCache = new MetricCacheImpl(
                 new Function<String, Either<FlamdexOutOfMemoryException, IntValueLookup>>() {
                     @Override
                     public Either<FlamdexOutOfMemoryException, IntValueLookup> apply(final String metric) {
                         if (freeCache != null) {
-                            final IntValueLookup intValueLookup = freeCache.tryRemove(new MetricKey(indexName, shardName, metric));
+                            final IntValueLookup intValueLookup = freeCache.tryRemove(metricKey(metric));
                             if (intValueLookup != null) {
                                 memory.dehoist(intValueLookup.memoryUsed());
                                 return Right.of(intValueLookup);
                             }
                         }
-                        final long memoryUsed = wrapped.memoryRequired(metric);
+                        final long memoryUsed = memoryRequired(wrapped, metric);
                         if (!memory.claimMemory(memoryUsed)) {
                             return Left.of(new FlamdexOutOfMemoryException());
                         }
                         final IntValueLookup lookup;
                         try {
-                            lookup = wrapped.getMetric(metric);
+                            lookup = loadMetric(wrapped, metric);
                             if (lookup.memoryUsed() != memoryUsed) {
                                 log.error("FlamdexReader.memoryUsed("+metric+"):"+memoryUsed+" does not match lookup.memoryUsed(): "+lookup.memoryUsed());
                                 if (memoryUsed > lookup.memoryUsed()) {
                                     memory.releaseMemory(memoryUsed - lookup.memoryUsed());
-                                } else {
-                                    memory.claimMemory(lookup.memoryUsed() - memoryUsed);
+                                } else if (!memory.claimMemory(lookup.memoryUsed() - memoryUsed)) {
+                                    Closeables2.closeQuietly(lookup, log);
+                                    memory.releaseMemory(memoryUsed);
+                                    return Left.of(new FlamdexOutOfMemoryException());
                                 }
                             }
                         } catch (RuntimeException e) {
@@ -113,14 +158,40 @@ public class CachedFlamdexReader implements FlamdexReader, MetricCache {
                         if (freeCache == null) {
                             memory.releaseMemory(metric.getValue());
                         } else {
-                            freeCache.put(new MetricKey(indexName, shardName, metric.getKey()), metric.getValue());
+                            final IntValueLookup previous = freeCache.put(metricKey(metric.getKey()), metric.getValue());
                             memory.hoist(metric.getValue().memoryUsed());
+                            if (previous != null) {
+                                // another version of this shard released an identical lookup first
+                                memory.dehoist(previous.memoryUsed());
+                                memory.releaseMemory(previous);
+                            }
                         }
                     }
                 }
         );
     }
 
+    private static Map<String, String> readContentHashes(final FlamdexReader reader) {
+        final String directory = reader.getDirectory();
+        if (directory == null) {
+            return Collections.emptyMap();
+        }
+        try {
+            return FieldCacheMetadata.readContentHashes(directory);
+        } catch (IOException e) {
+            log.warn("unable to read field content hashes in " + directory, e);
+            return Collections.emptyMap();
+        }
+    }
+
+    private MetricKey metricKey(final String metric) {
+        final String contentHash = contentHashes.get(metric);
+        if (contentHash != null) {
+            return new MetricKey(indexName, "content:" + contentHash, metric);
+        }
+        return new MetricKey(indexName, shardName, metric);
+    }
+
     @Override
     public Collection<String> getIntFields() {
         return wrapped.getIntFields();
@@ -186,6 +257,11 @@ public class CachedFlamdexReader implements FlamdexReader, MetricCache {
         return docFreq;
     }
 
+    @Override
+    public @Nullable FlamdexStats getFlamdexStats() {
+        return FlamdexStats.of(wrapped);
+    }
+
     @Override
     public Collection<String> getAvailableMetrics() {
         return wrapped.getAvailableMetrics();
@@ -193,9 +269,20 @@ public class CachedFlamdexReader implements FlamdexReader, MetricCache {
 
     @Override
     public IntValueLookup getMetric(String metric) throws FlamdexOutOfMemoryException {
+        if (accessStats != null && indexName != null) {
+            accessStats.recordAccess(indexName, metric);
+        }
         return metricCache.getMetric(metric);
     }
 
+    /**
+     * loads metric without counting it as an access, and releases it straight away so that it ends up in the free
+     * cache if there is one
+     */
+    public void preloadMetric(String metric) throws FlamdexOutOfMemoryException {
+        Closeables2.closeQuietly(metricCache.getMetric(metric), log);
+    }
+
     //string lookups are always mmapped so it's not as big of a deal to not cache the references
     public StringValueLookup getStringLookup(final String field) throws FlamdexOutOfMemoryException {
         return wrapped.getStringLookup(field);
@@ -213,7 +300,34 @@ public class CachedFlamdexReader implements FlamdexReader, MetricCache {
 
     @Override
     public long memoryRequired(String metric) {
-        return wrapped.memoryRequired(metric);
+        return memoryRequired(wrapped, metric);
+    }
+
+    private static long memoryRequired(final FlamdexReader reader, final String metric) {
+        final long zoneMapMemory = BUILD_ZONE_MAPS && !hasStoredZoneMap(reader, metric) ? ZoneMap.memoryRequired(reader.getNumDocs()) : 0;
+        if (DerivedMetrics.isDerivedMetric(metric)) {
+            return DerivedMetrics.memoryRequired(reader, metric) + zoneMapMemory;
+        }
+        return reader.memoryRequired(metric) + zoneMapMemory;
+    }
+
+    /**
+     * zone maps are only written along with precomputed field caches, whose lookups come with them. Any other
+     * reader gets its zone map built by {@link #loadMetric}, so the memory for it has to be reserved.
+     */
+    private static boolean hasStoredZoneMap(final FlamdexReader reader, final String metric) {
+        return reader instanceof AbstractFlamdexReader && ((AbstractFlamdexReader) reader).hasStoredZoneMap(metric);
+    }
+
+    private static IntValueLookup loadMetric(final FlamdexReader reader, final String metric) throws FlamdexOutOfMemoryException {
+        final IntValueLookup lookup;
+        if (DerivedMetrics.isDerivedMetric(metric)) {
+            lookup = DerivedMetrics.load(reader, metric);
+        } else {
+            lookup = reader.getMetric(metric);
+        }
+        // lookups of precomputed caches may already carry the zone map that was written with them
+        return BUILD_ZONE_MAPS && ZoneMap.of(lookup) == null ? new ZoneMappedIntValueLookup(lookup, reader.getNumDocs()) : lookup;
     }
 
     @Override
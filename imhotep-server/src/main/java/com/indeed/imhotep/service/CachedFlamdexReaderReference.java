@@ -24,10 +24,13 @@ import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.StringTermDocIterator;
 import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.api.StringValueLookup;
+import com.indeed.flamdex.reader.FlamdexStats;
+import com.indeed.flamdex.reader.FlamdexStatsSource;
 import com.indeed.imhotep.ImhotepStatusDump;
 
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nullable;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
@@ -35,7 +38,7 @@ import java.util.Set;
 /**
  * @author jplaisance
  */
-public class CachedFlamdexReaderReference implements FlamdexReader, MetricCache {
+public class CachedFlamdexReaderReference implements FlamdexReader, MetricCache, FlamdexStatsSource {
 
     private static final Logger log = Logger.getLogger(CachedFlamdexReaderReference.class);
 
@@ -106,6 +109,11 @@ public class CachedFlamdexReaderReference implements FlamdexReader, MetricCache
         return reader.getStringTotalDocFreq(field);
     }
 
+    @Override
+    public @Nullable FlamdexStats getFlamdexStats() {
+        return FlamdexStats.of(reader);
+    }
+
     @Override
     public Collection<String> getAvailableMetrics() {
         return reader.getAvailableMetrics();
@@ -31,6 +31,7 @@ import com.indeed.util.varexport.VarExporter;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.RawFlamdexReader;
+import com.indeed.flamdex.simple.MappingManager;
 import com.indeed.imhotep.CachedMemoryReserver;
 import com.indeed.imhotep.DatasetInfo;
 import com.indeed.imhotep.ImhotepMemoryCache;
@@ -134,6 +135,8 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
         this.flamdexReaderFactory = flamdexReaderFactory;
         if (useCache) {
             freeCache = new ImhotepMemoryCache<MetricKey, IntValueLookup>();
+            // only the daemon's cache is exported, caches built elsewhere would replace its values
+            VarExporter.forNamespace(ImhotepMemoryCache.class.getSimpleName()).includeInGlobal().export(freeCache, "");
             memory = new CachedMemoryReserver(new ImhotepMemoryPool(memoryCapacity), freeCache);
         } else {
             freeCache = null;
@@ -520,7 +523,9 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
             }
         }
 
-        return new ImhotepStatusDump(usedMemory, totalMemory, openSessions, shards);
+        final MappingManager mappingManager = MappingManager.getInstance();
+        return new ImhotepStatusDump(usedMemory, totalMemory, openSessions, shards,
+                mappingManager.getMappedFiles(), mappingManager.getMappedBytes(), mappingManager.getEvictions());
     }
 
     @Override
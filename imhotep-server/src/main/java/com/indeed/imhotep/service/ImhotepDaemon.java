@@ -21,10 +21,13 @@ import com.google.common.collect.UnmodifiableIterator;
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
 import com.indeed.imhotep.DatasetInfo;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.HyperLogLog;
 import com.indeed.imhotep.ImhotepStatusDump;
+import com.indeed.imhotep.QuantileSketch;
 import com.indeed.imhotep.ShardInfo;
 import com.indeed.imhotep.TermCount;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
@@ -508,6 +511,30 @@ public class ImhotepDaemon {
                             );
                             sendResponse(responseBuilder.addAllTopTerms(ImhotepDaemonMarshaller.marshalTermCountList(topTerms)).build(), os);
                             break;
+                        case GET_GROUP_DISTINCT_COUNTS: {
+                                final HyperLogLog[] sketches = service.handleGetGroupDistinctCounts(
+                                        protoRequest.getSessionId(),
+                                        protoRequest.getField(),
+                                        protoRequest.getIsIntField(),
+                                        protoRequest.getSketchPrecision()
+                                );
+                                for (final HyperLogLog sketch : sketches) {
+                                    responseBuilder.addGroupSketch(ByteString.copyFrom(sketch.toBytes()));
+                                }
+                                sendResponse(responseBuilder.build(), os);
+                                break;
+                            }
+                        case GET_GROUP_PERCENTILES: {
+                                final QuantileSketch[] sketches = service.handleGetGroupPercentiles(
+                                        protoRequest.getSessionId(),
+                                        protoRequest.getStat()
+                                );
+                                for (final QuantileSketch sketch : sketches) {
+                                    responseBuilder.addGroupSketch(ByteString.copyFrom(sketch.toBytes()));
+                                }
+                                sendResponse(responseBuilder.build(), os);
+                                break;
+                            }
                         case SHUTDOWN:
                             if (protoRequest.hasSessionId() && "magicshutdownid".equals(protoRequest.getSessionId())) {
                                 log.info("shutdown signal received, shutting down the JVM");
@@ -652,7 +679,7 @@ public class ImhotepDaemon {
     public static void main(String[] args) throws IOException {
         if (args.length < 1) {
             System.err.println("ARGS: shardDir tempDir [--port port] [--memory memory] "
-                    + "[--zknodes zknodes] [--zkport zkport] [--lazyLoadProps <properties file>]");
+                    + "[--zknodes zknodes] [--zkport zkport] [--lazyLoadProps <properties file>] [--cache [--warmMetrics]]");
             System.exit(1);
         }
 
@@ -661,6 +688,7 @@ public class ImhotepDaemon {
         int port = 9000;
         long memoryCapacityInMB = 1024;
         boolean useCache = false;
+        boolean warmMetrics = false;
         boolean lazyLoadFiles = false;
         String cachingConfigFile = null;
         boolean shutdown = false;
@@ -679,6 +707,8 @@ public class ImhotepDaemon {
                 zkPath = args[++i];
             } else if (args[i].equals("--cache")) {
                 useCache = true;
+            } else if (args[i].equals("--warmMetrics")) {
+                warmMetrics = true;
             } else if (args[i].equals("--lazyLoadProps")) {
                 ++i;
                 cachingConfigFile = args[i];
@@ -699,7 +729,8 @@ public class ImhotepDaemon {
                  lazyLoadFiles,
                  cachingConfigFile,
                  zkNodes,
-                 zkPath);
+                 zkPath,
+                 new LocalImhotepServiceConfig().setMetricWarmupEnabled(warmMetrics));
         }
     }
 
@@ -723,6 +754,20 @@ public class ImhotepDaemon {
                             String cachingConfigFile,
                             String zkNodes,
                             String zkPath) throws IOException {
+        main(shardsDirectory, tempDirectory, port, memoryCapacityInMB, useCache, lazyLoadFiles, cachingConfigFile,
+             zkNodes, zkPath, new LocalImhotepServiceConfig());
+    }
+
+    public static void main(String shardsDirectory,
+                            String tempDirectory,
+                            int port,
+                            long memoryCapacityInMB,
+                            boolean useCache,
+                            boolean lazyLoadFiles,
+                            String cachingConfigFile,
+                            String zkNodes,
+                            String zkPath,
+                            LocalImhotepServiceConfig config) throws IOException {
         ImhotepDaemon daemon = null;
         try {
             daemon = newImhotepDaemon(shardsDirectory,
@@ -733,7 +778,8 @@ public class ImhotepDaemon {
                                       lazyLoadFiles,
                                       cachingConfigFile,
                                       zkNodes,
-                                      zkPath);
+                                      zkPath,
+                                      config);
             daemon.run();
         } finally {
             if (daemon != null) {
@@ -750,7 +796,8 @@ public class ImhotepDaemon {
                                           boolean lazyLoadFiles,
                                           String cachingConfigFile,
                                           String zkNodes,
-                                          String zkPath) throws IOException {
+                                          String zkPath,
+                                          LocalImhotepServiceConfig config) throws IOException {
         final ImhotepServiceCore localService;
 
         if (lazyLoadFiles) {
@@ -759,13 +806,13 @@ public class ImhotepDaemon {
                     new CachingLocalImhotepServiceCore(shardsDirectory, shardTempDir,
                                                        memoryCapacityInMB * 1024 * 1024, useCache,
                                                        new GenericFlamdexReaderSource(),
-                                                       new LocalImhotepServiceConfig());
+                                                       config);
         } else {
             localService =
                     new LocalImhotepServiceCore(shardsDirectory, shardTempDir,
                                                 memoryCapacityInMB * 1024 * 1024, useCache,
                                                 new GenericFlamdexReaderSource(),
-                                                new LocalImhotepServiceConfig());
+                                                config);
         }
         final ServerSocket ss = new ServerSocket(port);
         final String myHostname = InetAddress.getLocalHost().getCanonicalHostName();
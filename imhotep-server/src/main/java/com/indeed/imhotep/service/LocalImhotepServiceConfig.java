@@ -21,6 +21,11 @@
 public final class LocalImhotepServiceConfig {
     private int updateShardsFrequencySeconds = 120;
     private int heartBeatCheckFrequencySeconds = 60;
+    private String metricAccessStatsFile = null;
+    private boolean metricWarmupEnabled = false;
+    private int metricWarmupThreads = 1;
+    private int metricWarmupMetricsPerDataset = 20;
+    private double metricWarmupMemoryFraction = 0.5;
 
     public int getUpdateShardsFrequencySeconds() {
         return updateShardsFrequencySeconds;
@@ -30,6 +35,39 @@ public final class LocalImhotepServiceConfig {
         return heartBeatCheckFrequencySeconds;
     }
 
+    /**
+     * file the per dataset metric access counts are kept in across restarts, null to not keep them
+     */
+    public String getMetricAccessStatsFile() {
+        return metricAccessStatsFile;
+    }
+
+    /**
+     * whether the most accessed metrics are loaded in the background after shards are loaded, which only has an
+     * effect when the metric cache is enabled
+     */
+    public boolean isMetricWarmupEnabled() {
+        return metricWarmupEnabled;
+    }
+
+    /**
+     * threads used to load metrics in the background after shards are loaded
+     */
+    public int getMetricWarmupThreads() {
+        return metricWarmupThreads;
+    }
+
+    public int getMetricWarmupMetricsPerDataset() {
+        return metricWarmupMetricsPerDataset;
+    }
+
+    /**
+     * background loading stops once this fraction of the memory limit is in use
+     */
+    public double getMetricWarmupMemoryFraction() {
+        return metricWarmupMemoryFraction;
+    }
+
     public LocalImhotepServiceConfig setUpdateShardsFrequencySeconds(int updateShardsFrequencySeconds) {
         this.updateShardsFrequencySeconds = updateShardsFrequencySeconds;
         return this;
@@ -39,4 +77,29 @@ public final class LocalImhotepServiceConfig {
         this.heartBeatCheckFrequencySeconds = heartBeatCheckFrequencySeconds;
         return this;
     }
+
+    public LocalImhotepServiceConfig setMetricAccessStatsFile(String metricAccessStatsFile) {
+        this.metricAccessStatsFile = metricAccessStatsFile;
+        return this;
+    }
+
+    public LocalImhotepServiceConfig setMetricWarmupEnabled(boolean metricWarmupEnabled) {
+        this.metricWarmupEnabled = metricWarmupEnabled;
+        return this;
+    }
+
+    public LocalImhotepServiceConfig setMetricWarmupThreads(int metricWarmupThreads) {
+        this.metricWarmupThreads = metricWarmupThreads;
+        return this;
+    }
+
+    public LocalImhotepServiceConfig setMetricWarmupMetricsPerDataset(int metricWarmupMetricsPerDataset) {
+        this.metricWarmupMetricsPerDataset = metricWarmupMetricsPerDataset;
+        return this;
+    }
+
+    public LocalImhotepServiceConfig setMetricWarmupMemoryFraction(double metricWarmupMemoryFraction) {
+        this.metricWarmupMemoryFraction = metricWarmupMemoryFraction;
+        return this;
+    }
 }
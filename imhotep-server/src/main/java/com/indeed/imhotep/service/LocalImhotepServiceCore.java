@@ -13,6 +13,7 @@
  */
  package com.indeed.imhotep.service;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
@@ -32,6 +33,7 @@ import com.indeed.util.varexport.VarExporter;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.RawFlamdexReader;
+import com.indeed.flamdex.simple.MappingManager;
 import com.indeed.imhotep.CachedMemoryReserver;
 import com.indeed.imhotep.DatasetInfo;
 import com.indeed.imhotep.ImhotepMemoryCache;
@@ -49,6 +51,7 @@ import com.indeed.imhotep.local.ImhotepLocalSession;
 
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -95,6 +98,10 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
 
     private final FlamdexReaderSource flamdexReaderFactory;
 
+    private final MetricAccessStats accessStats;
+    private final @Nullable File accessStatsFile;
+    private final @Nullable MetricWarmer metricWarmer;
+
     // these maps will not be modified but the references will periodically be
     // swapped
     private volatile Map<String, Map<String, AtomicSharedReference<Shard>>> shards;
@@ -135,12 +142,28 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         this.shardTempDirectory = shardTempDir;
 
         this.flamdexReaderFactory = flamdexReaderFactory;
+        if (config.getMetricAccessStatsFile() != null) {
+            accessStatsFile = new File(config.getMetricAccessStatsFile());
+            accessStats = MetricAccessStats.load(accessStatsFile);
+        } else {
+            accessStatsFile = null;
+            accessStats = new MetricAccessStats();
+        }
         if (useCache) {
             freeCache = new ImhotepMemoryCache<MetricKey, IntValueLookup>();
-            memory = new CachedMemoryReserver(new ImhotepMemoryPool(memoryCapacity), freeCache);
+            // only the daemon's cache is exported, caches built elsewhere would replace its values
+            VarExporter.forNamespace(ImhotepMemoryCache.class.getSimpleName()).includeInGlobal().export(freeCache, "");
+            final CachedMemoryReserver cachedMemory = new CachedMemoryReserver(new ImhotepMemoryPool(memoryCapacity), freeCache);
+            memory = cachedMemory;
+            // warmed metrics are only kept around in the free cache
+            metricWarmer = config.isMetricWarmupEnabled() && config.getMetricWarmupThreads() > 0
+                    ? new MetricWarmer(accessStats, cachedMemory, config.getMetricWarmupThreads(),
+                                       config.getMetricWarmupMetricsPerDataset(), config.getMetricWarmupMemoryFraction())
+                    : null;
         } else {
             freeCache = null;
             memory = new ImhotepMemoryPool(memoryCapacity);
+            metricWarmer = null;
         }
 
         sessionManager = new LocalSessionManager();
@@ -149,6 +172,7 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
             clearTempDir(shardTempDir);
         }
         updateShards();
+        warmMetrics();
 
         executor =
                 Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
@@ -189,11 +213,29 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         public void run() {
             try {
                 updateShards();
+                warmMetrics();
             } catch (RuntimeException e) {
                 log.error("error updating shards", e);
             } catch (IOException e) {
                 log.error("error updating shards", e);
             }
+            saveAccessStats();
+        }
+    }
+
+    private void warmMetrics() {
+        if (metricWarmer != null) {
+            metricWarmer.warm(shards);
+        }
+    }
+
+    private void saveAccessStats() {
+        if (accessStatsFile != null) {
+            try {
+                accessStats.save(accessStatsFile);
+            } catch (IOException e) {
+                log.error("error saving metric access stats to " + accessStatsFile, e);
+            }
         }
     }
 
@@ -221,6 +263,11 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         return sessionManager;
     }
 
+    @VisibleForTesting
+    @Nullable ImhotepMemoryCache<MetricKey, IntValueLookup> getFreeCache() {
+        return freeCache;
+    }
+
     private void clearTempDir(String directory) throws IOException {
         final File tmpDir = new File(directory);
 
@@ -331,14 +378,16 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                                                                               (RawFlamdexReader) flamdex,
                                                                               copy, dataset,
                                                                               shardDir.getName(),
-                                                                              freeCache);
+                                                                              freeCache,
+                                                                              accessStats);
                                         } else {
                                             return new CachedFlamdexReader(
                                                                            new MemoryReservationContext(
                                                                                                         memory),
                                                                            flamdex, copy, dataset,
                                                                            shardDir.getName(),
-                                                                           freeCache);
+                                                                           freeCache,
+                                                                           accessStats);
                                         }
                                     }
                                 };
@@ -543,7 +592,9 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
             }
         }
 
-        return new ImhotepStatusDump(usedMemory, totalMemory, openSessions, shards);
+        final MappingManager mappingManager = MappingManager.getInstance();
+        return new ImhotepStatusDump(usedMemory, totalMemory, openSessions, shards,
+                mappingManager.getMappedFiles(), mappingManager.getMappedBytes(), mappingManager.getEvictions());
     }
 
     @Override
@@ -672,6 +723,10 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         executor.shutdownNow();
         shardReload.shutdown();
         heartBeat.shutdown();
+        if (metricWarmer != null) {
+            metricWarmer.close();
+        }
+        saveAccessStats();
     }
 
     @Export(name = "loaded-shard-count", doc = "number of loaded shards for each dataset", expand = true)
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts metric loads per dataset so that the most used metrics can be loaded ahead of the first query after a
+ * shard is loaded. Counts can be saved to and loaded from a file so that they survive restarts.
+ */
+public final class MetricAccessStats {
+    private static final Logger log = Logger.getLogger(MetricAccessStats.class);
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> counts = Maps.newConcurrentMap();
+
+    public void recordAccess(String dataset, String metric) {
+        ConcurrentMap<String, AtomicLong> datasetCounts = counts.get(dataset);
+        if (datasetCounts == null) {
+            final ConcurrentMap<String, AtomicLong> newCounts = Maps.newConcurrentMap();
+            datasetCounts = counts.putIfAbsent(dataset, newCounts);
+            if (datasetCounts == null) {
+                datasetCounts = newCounts;
+            }
+        }
+        AtomicLong count = datasetCounts.get(metric);
+        if (count == null) {
+            final AtomicLong newCount = new AtomicLong();
+            count = datasetCounts.putIfAbsent(metric, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    public long getAccessCount(String dataset, String metric) {
+        final Map<String, AtomicLong> datasetCounts = counts.get(dataset);
+        if (datasetCounts == null) {
+            return 0;
+        }
+        final AtomicLong count = datasetCounts.get(metric);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return up to limit metrics of the dataset, most accessed first
+     */
+    public List<String> getHottestMetrics(String dataset, int limit) {
+        final Map<String, AtomicLong> datasetCounts = counts.get(dataset);
+        if (datasetCounts == null) {
+            return Collections.emptyList();
+        }
+        final List<Map.Entry<String, Long>> entries = Lists.newArrayList();
+        for (final Map.Entry<String, AtomicLong> entry : datasetCounts.entrySet()) {
+            entries.add(Maps.immutableEntry(entry.getKey(), entry.getValue().get()));
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                return Long.compare(o2.getValue(), o1.getValue());
+            }
+        });
+        final List<String> ret = Lists.newArrayList();
+        for (int i = 0; i < Math.min(limit, entries.size()); i++) {
+            ret.add(entries.get(i).getKey());
+        }
+        return ret;
+    }
+
+    /**
+     * writes to a temp file first so that a crash while saving doesn't lose the previous counts
+     */
+    public void save(File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            for (final Map.Entry<String, ConcurrentMap<String, AtomicLong>> datasetEntry : counts.entrySet()) {
+                for (final Map.Entry<String, AtomicLong> entry : datasetEntry.getValue().entrySet()) {
+                    out.writeBoolean(true);
+                    out.writeUTF(datasetEntry.getKey());
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().get());
+                }
+            }
+            out.writeBoolean(false);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            if (!tmp.delete()) {
+                log.error("unable to delete file " + tmp);
+            }
+            throw new IOException("unable to rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * @return the counts saved in file, or as many of them as could be read if the file is missing or damaged
+     */
+    public static MetricAccessStats load(File file) {
+        final MetricAccessStats ret = new MetricAccessStats();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            final int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                log.warn("ignoring metric access stats in " + file + " with unknown version " + version);
+                return ret;
+            }
+            while (in.readBoolean()) {
+                final String dataset = in.readUTF();
+                final String metric = in.readUTF();
+                final long count = in.readLong();
+                ret.recordAccess(dataset, metric);
+                ret.counts.get(dataset).get(metric).set(count);
+            }
+        } catch (FileNotFoundException e) {
+            log.info("no metric access stats in " + file);
+        } catch (IOException e) {
+            log.warn("unable to read metric access stats from " + file, e);
+        } finally {
+            Closeables2.closeQuietly(in, log);
+        }
+        return ret;
+    }
+}
@@ -27,6 +27,8 @@ import com.indeed.util.core.reference.ReloadableSharedReference;
 import com.indeed.util.core.reference.SharedReference;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.fieldcache.ZoneMap;
+import com.indeed.flamdex.fieldcache.ZoneMapped;
 import com.indeed.imhotep.ImhotepStatusDump;
 import org.apache.log4j.Logger;
 
@@ -127,7 +129,7 @@ public final class MetricCacheImpl implements MetricCache {
         }
     }
 
-    private static final class CachedIntValueLookup implements IntValueLookup {
+    private static final class CachedIntValueLookup implements IntValueLookup, ZoneMapped {
         private final SharedReference<IntValueLookup> reference;
         private final IntValueLookup metric;
 
@@ -136,6 +138,11 @@ public final class MetricCacheImpl implements MetricCache {
             metric = reference.get();
         }
 
+        @Override
+        public @Nullable ZoneMap getZoneMap() {
+            return ZoneMap.of(metric);
+        }
+
         @Override
         public long getMin() {
             return metric.getMin();
@@ -151,6 +158,11 @@ public final class MetricCacheImpl implements MetricCache {
             metric.lookup(docIds, values, n);
         }
 
+        @Override
+        public void lookupRange(final int start, final long[] values, final int n) {
+            metric.lookupRange(start, values, n);
+        }
+
         @Override
         public long memoryUsed() {
             return metric.memoryUsed();
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
+import com.indeed.imhotep.CachedMemoryReserver;
+import com.indeed.imhotep.io.Shard;
+import com.indeed.imhotep.local.DerivedMetrics;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.reference.AtomicSharedReference;
+import com.indeed.util.core.reference.SharedReference;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the most accessed metrics of newly loaded shards in the background so that the first query after a shard
+ * reload or restart doesn't have to build them. Loaded metrics are closed straight away, which leaves them in the
+ * free metric cache for the next session to pick up, so this only does anything when that cache is enabled.
+ *
+ * Metrics are loaded by a few low priority threads, most accessed first, and only while the memory in use plus the
+ * metric's size stays under a fraction of the daemon's memory, so warming never evicts anything a query needs.
+ */
+public final class MetricWarmer implements Closeable {
+    private static final Logger log = Logger.getLogger(MetricWarmer.class);
+
+    private final MetricAccessStats accessStats;
+    private final CachedMemoryReserver memory;
+    private final int metricsPerDataset;
+    private final double memoryFraction;
+    private final ThreadPoolExecutor executor;
+
+    /** index directories of the shards that have already been queued */
+    private final Set<String> warmedShards = Sets.newHashSet();
+
+    public MetricWarmer(MetricAccessStats accessStats,
+                        CachedMemoryReserver memory,
+                        int numThreads,
+                        int metricsPerDataset,
+                        double memoryFraction) {
+        this.accessStats = accessStats;
+        this.memory = memory;
+        this.metricsPerDataset = metricsPerDataset;
+        this.memoryFraction = memoryFraction;
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true)
+                                          .setPriority(Thread.MIN_PRIORITY)
+                                          .setNameFormat("MetricWarmer-%d")
+                                          .build());
+    }
+
+    /**
+     * queues the hottest metrics of every shard that hasn't been warmed yet
+     */
+    public synchronized void warm(Map<String, Map<String, AtomicSharedReference<Shard>>> shards) {
+        final Set<String> currentShards = Sets.newHashSet();
+        for (final Map.Entry<String, Map<String, AtomicSharedReference<Shard>>> datasetEntry : shards.entrySet()) {
+            final String dataset = datasetEntry.getKey();
+            final List<String> metrics = accessStats.getHottestMetrics(dataset, metricsPerDataset);
+            for (final AtomicSharedReference<Shard> shardRef : datasetEntry.getValue().values()) {
+                final SharedReference<Shard> copy = shardRef.getCopy();
+                if (copy == null) {
+                    continue;
+                }
+                try {
+                    final Shard shard = copy.get();
+                    final String indexDir = shard.getIndexDir();
+                    currentShards.add(indexDir);
+                    if (!warmedShards.add(indexDir)) {
+                        continue;
+                    }
+                    for (final String metric : metrics) {
+                        if (DerivedMetrics.isDerivedMetric(metric) || shard.getAvailableMetrics().contains(metric)) {
+                            executor.execute(new WarmTask(shardRef, indexDir, metric, accessStats.getAccessCount(dataset, metric)));
+                        }
+                    }
+                } catch (IOException e) {
+                    log.warn("unable to warm shard", e);
+                } finally {
+                    Closeables2.closeQuietly(copy, log);
+                }
+            }
+        }
+        warmedShards.retainAll(currentShards);
+    }
+
+    private boolean hasRoomFor(long memoryRequired) {
+        return memory.usedMemory() + memory.cachedMemory() + memoryRequired <= memoryFraction * memory.totalMemory();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private final class WarmTask implements Runnable, Comparable<WarmTask> {
+        private final AtomicSharedReference<Shard> shardRef;
+        private final String indexDir;
+        private final String metric;
+        private final long accessCount;
+
+        private WarmTask(AtomicSharedReference<Shard> shardRef, String indexDir, String metric, long accessCount) {
+            this.shardRef = shardRef;
+            this.indexDir = indexDir;
+            this.metric = metric;
+            this.accessCount = accessCount;
+        }
+
+        @Override
+        public int compareTo(WarmTask o) {
+            return Long.compare(o.accessCount, accessCount);
+        }
+
+        @Override
+        public void run() {
+            final SharedReference<Shard> shardCopy = shardRef.getCopy();
+            if (shardCopy == null) {
+                return;
+            }
+            SharedReference<CachedFlamdexReader> readerRef = null;
+            try {
+                final Shard shard = shardCopy.get();
+                if (!shard.getIndexDir().equals(indexDir)) {
+                    // replaced by a newer version since this was queued, which gets its own tasks
+                    return;
+                }
+                readerRef = shard.getRef();
+                if (readerRef == null) {
+                    return;
+                }
+                final CachedFlamdexReader reader = readerRef.get();
+                if (reader.getLoadedMetrics().contains(metric)) {
+                    return;
+                }
+                if (!hasRoomFor(reader.memoryRequired(metric))) {
+                    log.debug("not enough free memory to warm " + metric + " in " + indexDir);
+                    return;
+                }
+                reader.preloadMetric(metric);
+            } catch (FlamdexOutOfMemoryException e) {
+                log.debug("out of memory warming " + metric + " in " + indexDir);
+            } catch (IOException e) {
+                log.warn("error warming " + metric + " in " + indexDir, e);
+            } catch (RuntimeException e) {
+                log.warn("error warming " + metric + " in " + indexDir, e);
+            } finally {
+                if (readerRef != null) {
+                    Closeables2.closeQuietly(readerRef, log);
+                }
+                Closeables2.closeQuietly(shardCopy, log);
+            }
+        }
+    }
+}
@@ -40,7 +40,19 @@ public final class RawCachedFlamdexReader extends CachedFlamdexReader implements
             final String shardName,
             final ImhotepMemoryCache<MetricKey, IntValueLookup> freeCache
     ) {
-        super(memory, wrapped, readLockRef, indexName, shardName, freeCache);
+        this(memory, wrapped, readLockRef, indexName, shardName, freeCache, null);
+    }
+
+    public RawCachedFlamdexReader(
+            final MemoryReservationContext memory,
+            final RawFlamdexReader wrapped,
+            final @Nullable Closeable readLockRef,
+            final String indexName,
+            final String shardName,
+            final ImhotepMemoryCache<MetricKey, IntValueLookup> freeCache,
+            final @Nullable MetricAccessStats accessStats
+    ) {
+        super(memory, wrapped, readLockRef, indexName, shardName, freeCache, accessStats);
     }
 
     @Override
@@ -0,0 +1,16 @@
+#define _DEFAULT_SOURCE
+#include <errno.h>
+#include <stdint.h>
+#include <sys/mman.h>
+#include <unistd.h>
+#include "com_indeed_flamdex_fieldcache_NativeMemoryAdvice.h"
+
+JNIEXPORT jint JNICALL Java_com_indeed_flamdex_fieldcache_NativeMemoryAdvice_madvise(JNIEnv* env, jclass class, jlong address, jlong length, jint advice) {
+	const uintptr_t page_size = (uintptr_t)sysconf(_SC_PAGESIZE);
+	const uintptr_t start = (uintptr_t)address & ~(page_size - 1);
+	const uintptr_t end = (uintptr_t)address + (uintptr_t)length;
+	if (madvise((void*)start, end - start, advice) != 0) {
+		return errno;
+	}
+	return 0;
+}
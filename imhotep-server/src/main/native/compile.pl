@@ -3,3 +3,5 @@
 `gcc -shared -W1,-soname,libvarint.so.1 -o libvarint.so.1.0.1 com_indeed_flamdex_simple_NativeDocIdBuffer.o varintdecode.o`;
 `/usr/local/gcc-4.7.1/bin/gcc -I$ENV{'JAVA_HOME'}/include/ -I$ENV{'JAVA_HOME'}/include/linux/ -c -std=c99 -msse2 -DLIBDIVIDE_USE_SSE2 -O3 -funroll-loops -fPIC com_indeed_imhotep_local_NativeMetricRegroupInternals.c metricregroup.c`;
 `/usr/local/gcc-4.7.1/bin/gcc -shared -o libmetricregroup.so.1.0.1 com_indeed_imhotep_local_NativeMetricRegroupInternals.o metricregroup.o`;
+`gcc -I$ENV{'JAVA_HOME'}/include/ -I$ENV{'JAVA_HOME'}/include/linux/ -c -std=c99 -O2 -fPIC com_indeed_flamdex_fieldcache_NativeMemoryAdvice.c`;
+`gcc -shared -o libmadvise.so.1.0.1 com_indeed_flamdex_fieldcache_NativeMemoryAdvice.o`;
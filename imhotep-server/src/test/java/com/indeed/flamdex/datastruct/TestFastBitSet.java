@@ -90,6 +90,23 @@ public class TestFastBitSet extends TestCase {
         }
     }
 
+    public void testSetWordsInverted() {
+        final FastBitSet bs = new FastBitSet(100);
+        bs.setWordsInverted(0, new long[] { 1L, 0L }, 2);
+        assertFalse(bs.get(0));
+        for (int i = 1; i < 100; ++i) {
+            assertTrue(bs.get(i));
+        }
+        assertEquals(99, bs.cardinality());
+        // nothing past the end of the set is returned
+        final FastBitSet.IntIterator iterator = bs.iterator();
+        int last = -1;
+        while (iterator.next()) {
+            last = iterator.getValue();
+        }
+        assertEquals(99, last);
+    }
+
     public void testIterator() {
         FastBitSet bitSet = new FastBitSet(1024*1024);
         Random r = new Random();
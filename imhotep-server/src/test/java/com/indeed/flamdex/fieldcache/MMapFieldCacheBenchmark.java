@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.util.mmap.MMapBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Compares sorted sparse lookups against an mmapped int field cache with and without MADV_WILLNEED for the
+ * upcoming window and with transparent huge pages. Each mode maps a fresh copy of the cache, so to measure cold
+ * reads run with a file larger than the page cache or drop caches before each run.
+ *
+ * usage: MMapFieldCacheBenchmark numDocs selectivity [window]
+ */
+public class MMapFieldCacheBenchmark {
+    private static final int BUFFER_SIZE = 4096;
+
+    public static void main(String[] args) throws IOException {
+        final int numDocs = Integer.parseInt(args[0]);
+        final double selectivity = Double.parseDouble(args[1]);
+        final long window = args.length > 2 ? Long.parseLong(args[2]) : MMapPrefetcher.DEFAULT_WINDOW;
+
+        System.out.println("libmadvise available: " + NativeMemoryAdvice.isAvailable());
+        final int[] docIds = selectDocs(numDocs, selectivity, new Random(0));
+        for (final String mode : new String[] { "plain", "willneed", "hugepages", "hugepages+willneed" }) {
+            final File cacheFile = writeCache(numDocs);
+            try {
+                benchmark(mode, cacheFile, numDocs, docIds, window);
+            } finally {
+                // noinspection ResultOfMethodCallIgnored
+                cacheFile.delete();
+            }
+        }
+    }
+
+    private static int[] selectDocs(int numDocs, double selectivity, Random rand) {
+        final int[] buf = new int[numDocs];
+        int n = 0;
+        for (int doc = 0; doc < numDocs; ++doc) {
+            if (rand.nextDouble() < selectivity) {
+                buf[n++] = doc;
+            }
+        }
+        final int[] ret = new int[n];
+        System.arraycopy(buf, 0, ret, 0, n);
+        return ret;
+    }
+
+    private static File writeCache(int numDocs) throws IOException {
+        final File cacheFile = File.createTempFile("fld-bench", ".intcache");
+        final MMapBuffer buffer = new MMapBuffer(cacheFile, 0, 4L * numDocs, FileChannel.MapMode.READ_WRITE, ByteOrder.LITTLE_ENDIAN);
+        try {
+            for (int doc = 0; doc < numDocs; ++doc) {
+                buffer.memory().putInt(4L * doc, doc * 31);
+            }
+            buffer.sync(0, 4L * numDocs);
+        } finally {
+            buffer.close();
+        }
+        return cacheFile;
+    }
+
+    private static void benchmark(String mode, File cacheFile, int numDocs, int[] docIds, long window) throws IOException {
+        final MMapBuffer buffer = new MMapBuffer(cacheFile, FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
+        final long address = buffer.memory().getAddress();
+        final long length = buffer.memory().length();
+        if (mode.startsWith("hugepages")) {
+            NativeMemoryAdvice.hugePages(address, length);
+        }
+        final MMapPrefetcher prefetcher = mode.endsWith("willneed") ? new MMapPrefetcher(address, length, 4, window) : null;
+        final IntValueLookup lookup = new MMapIntArrayIntValueLookup(buffer, numDocs);
+        try {
+            final int[] docIdBuf = new int[BUFFER_SIZE];
+            final long[] values = new long[BUFFER_SIZE];
+            long sum = 0;
+            long elapsed = -System.nanoTime();
+            for (int off = 0; off < docIds.length; off += BUFFER_SIZE) {
+                final int n = Math.min(BUFFER_SIZE, docIds.length - off);
+                System.arraycopy(docIds, off, docIdBuf, 0, n);
+                if (prefetcher != null) {
+                    prefetcher.prefetch(docIdBuf[0], docIdBuf[n - 1]);
+                }
+                lookup.lookup(docIdBuf, values, n);
+                for (int i = 0; i < n; ++i) {
+                    sum += values[i];
+                }
+            }
+            elapsed += System.nanoTime();
+            System.out.println("meaninglessVariable="+sum);
+            System.out.println("time for "+mode+": "+elapsed / 1000000+"ms for "+docIds.length+" lookups");
+        } finally {
+            lookup.close();
+        }
+    }
+}
@@ -13,6 +13,7 @@
  */
  package com.indeed.flamdex.fieldcache;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.common.primitives.Longs;
 import com.indeed.util.io.Files;
@@ -27,8 +28,12 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -106,11 +111,249 @@ public class TestFieldCacher {
         }
     }
 
+    @Test
+    public void testParallelBuild() throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final ParallelFieldCacheBuilder builder = new ParallelFieldCacheBuilder(executor, 4);
+            runParallelTest(builder, FieldCacher.LONG, Long.MIN_VALUE, Long.MAX_VALUE);
+            runParallelTest(builder, FieldCacher.INT, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            runParallelTest(builder, FieldCacher.CHAR, 0, 65535);
+            runParallelTest(builder, FieldCacher.SHORT, Short.MIN_VALUE, Short.MAX_VALUE);
+            runParallelTest(builder, FieldCacher.BYTE, 0, 255);
+            runParallelTest(builder, FieldCacher.SIGNED_BYTE, Byte.MIN_VALUE, Byte.MAX_VALUE);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void runParallelTest(ParallelFieldCacheBuilder builder, FieldCacher fieldCacher, long min, long max) throws IOException {
+        assertTrue(fieldCacher.supportsParallelBuild());
+        final int numDocs = 1000;
+        final long[] cache = new long[numDocs];
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("f"), Collections.<String>emptyList(), Arrays.asList("f"), numDocs);
+        for (int doc = 0; doc < numDocs; ++doc) {
+            final int choice = rand.nextInt(10);
+            cache[doc] = choice == 0 ? min : choice == 1 ? max : min + (long) (rand.nextDouble() * ((double) max - min));
+        }
+        final int missingDoc = rand.nextInt(numDocs);
+        cache[missingDoc] = 0;
+        addTerms(r, cache, missingDoc);
+
+        final IntValueLookup ivl = fieldCacher.newFieldCache("f", r, builder);
+        assertEquals(fieldCacher.memoryRequired(numDocs), ivl.memoryUsed());
+        verifyCache(cache, ivl);
+
+        final String tempDir = Files.getTempDirectory("asdf", "");
+        for (int x = 0; x < 2; ++x) {
+            final IntValueLookup mmivl = fieldCacher.newMMapFieldCache("f", r, tempDir, builder);
+            verifyCache(cache, mmivl);
+            mmivl.close();
+        }
+        Files.delete(tempDir);
+    }
+
+    @Test
+    public void testPackedSelection() throws IOException {
+        final int numDocs = 1000;
+        final long[] cache = new long[numDocs];
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("f"), Collections.<String>emptyList(), Arrays.asList("f"), numDocs);
+        for (int doc = 0; doc < numDocs; ++doc) {
+            cache[doc] = 1000000 + doc;
+        }
+        addTerms(r, cache, null);
+
+        final FieldCacher.Selection selection = FieldCacher.selectCacherForField("f", r, true);
+        assertEquals(FieldCacher.PACKED, selection.getCacher());
+        // docs without a term read as 0, so the range is [0, 1000999] which takes 20 bits per doc plus a word of padding
+        assertEquals(8L * ((numDocs * 20 + 63) / 64 + 1), selection.memoryRequired(numDocs));
+        assertEquals(FieldCacher.INT, FieldCacher.selectCacherForField("f", r, false).getCacher());
+        verifySelection(cache, r, selection);
+
+        // same range with a doc actually missing
+        final MockFlamdexReader sparse = new MockFlamdexReader(Arrays.asList("f"), Collections.<String>emptyList(), Arrays.asList("f"), numDocs);
+        cache[17] = 0;
+        addTerms(sparse, cache, 17);
+        final FieldCacher.Selection sparseSelection = FieldCacher.selectCacherForField("f", sparse, true);
+        assertEquals(FieldCacher.PACKED, sparseSelection.getCacher());
+        assertEquals(8L * ((numDocs * 20 + 63) / 64 + 1), sparseSelection.memoryRequired(numDocs));
+        verifySelection(cache, sparse, sparseSelection);
+    }
+
+    @Test
+    public void testDictionarySelection() throws IOException {
+        final int numDocs = 1000;
+        final long[] ids = new long[300];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = rand.nextLong();
+        }
+        for (final int numTerms : new int[] { 10, ids.length }) {
+            final long[] cache = new long[numDocs];
+            final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("f"), Collections.<String>emptyList(), Arrays.asList("f"), numDocs);
+            for (int doc = 0; doc < numDocs; ++doc) {
+                cache[doc] = ids[doc % numTerms];
+            }
+            cache[3] = 0;
+            addTerms(r, cache, 3);
+
+            final FieldCacher.Selection selection = FieldCacher.selectCacherForField("f", r, true);
+            assertEquals(FieldCacher.DICTIONARY, selection.getCacher());
+            // the dictionary gets 0 for the doc without a term
+            assertEquals(numTerms + 1, selection.getNumTerms());
+            final int width = numTerms + 1 <= 256 ? 1 : 2;
+            assertEquals(8L * (numTerms + 1) + width * numDocs, selection.memoryRequired(numDocs));
+            verifySelection(cache, r, selection);
+
+            final UnsortedIntTermDocIterator iterator = UnsortedIntTermDocIteratorImpl.create(r, "f");
+            final OrdinalIntValueLookup ordinals = (OrdinalIntValueLookup) selection.newFieldCache(iterator, numDocs);
+            iterator.close();
+            final int[] docIds = new int[numDocs];
+            for (int doc = 0; doc < numDocs; ++doc) {
+                docIds[doc] = doc;
+            }
+            final int[] docOrdinals = new int[numDocs];
+            ordinals.lookupOrdinals(docIds, docOrdinals, numDocs);
+            for (int doc = 0; doc < numDocs; ++doc) {
+                assertEquals(cache[doc], ordinals.getTerm(docOrdinals[doc]));
+            }
+            for (int i = 1; i < ordinals.getNumTerms(); ++i) {
+                assertTrue(ordinals.getTerm(i - 1) < ordinals.getTerm(i));
+            }
+
+            // without a selection the number of terms is unknown, so it falls back to packing the full range
+            final IntValueLookup fallback = FieldCacher.DICTIONARY.newFieldCache("f", r);
+            assertEquals(FieldCacher.PACKED.memoryRequired(numDocs), FieldCacher.DICTIONARY.memoryRequired(numDocs));
+            assertEquals(FieldCacher.DICTIONARY.memoryRequired(numDocs), fallback.memoryUsed());
+            verifyCache(cache, fallback);
+        }
+    }
+
+    @Test
+    public void testEncodedMetricsProperty() {
+        try {
+            assertTrue(FieldCacher.encodedMetricsEnabled());
+            System.setProperty("flamdex.packed.fieldcache", "false");
+            assertFalse(FieldCacher.encodedMetricsEnabled());
+            // the new name wins over the old one
+            System.setProperty("flamdex.encoded.metrics", "true");
+            assertTrue(FieldCacher.encodedMetricsEnabled());
+            System.clearProperty("flamdex.packed.fieldcache");
+            System.setProperty("flamdex.encoded.metrics", "false");
+            assertFalse(FieldCacher.encodedMetricsEnabled());
+        } finally {
+            System.clearProperty("flamdex.packed.fieldcache");
+            System.clearProperty("flamdex.encoded.metrics");
+        }
+    }
+
+    @Test
+    public void testPackedRoundTrip() throws IOException {
+        final int numDocs = 500;
+        for (int bits = 1; bits <= 64; ++bits) {
+            final long mask = -1L >>> (64 - bits);
+            final long min = bits == 64 ? Long.MIN_VALUE : -rand.nextInt(1 << Math.min(bits - 1, 20));
+            final long max = min + mask;
+            final long[] cache = new long[numDocs];
+            final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("f"), Collections.<String>emptyList(), Arrays.asList("f"), numDocs);
+            final int missingDoc = rand.nextInt(numDocs);
+            for (int doc = 0; doc < numDocs; ++doc) {
+                final long value = rand.nextInt(4) == 0 ? (rand.nextBoolean() ? min : max) : min + (rand.nextLong() & mask);
+                cache[doc] = doc == missingDoc ? 0 : value;
+            }
+            addTerms(r, cache, missingDoc);
+            verifySelection(cache, r, new FieldCacher.Selection(FieldCacher.PACKED, min, max, 0));
+        }
+    }
+
+    private static void addTerms(MockFlamdexReader r, long[] cache, Integer missingDoc) {
+        final Map<Long, List<Integer>> termToDocs = new TreeMap<Long, List<Integer>>();
+        for (int doc = 0; doc < cache.length; ++doc) {
+            if (missingDoc != null && doc == missingDoc) continue;
+            if (!termToDocs.containsKey(cache[doc])) {
+                termToDocs.put(cache[doc], new ArrayList<Integer>());
+            }
+            termToDocs.get(cache[doc]).add(doc);
+        }
+        for (final Map.Entry<Long, List<Integer>> entry : termToDocs.entrySet()) {
+            r.addIntTerm("f", entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Test
+    public void testFrontCodedStringValueLookup() throws IOException {
+        final int numDocs = 1000;
+        final MockFlamdexReader r = new MockFlamdexReader(Collections.<String>emptyList(), Arrays.asList("s"), Collections.<String>emptyList(), numDocs);
+        final TreeMap<String, List<Integer>> termToDocs = new TreeMap<String, List<Integer>>();
+        final StringBuilder longTerm = new StringBuilder();
+        for (int i = 0; i < 300; ++i) {
+            longTerm.append('x');
+        }
+        for (int i = 0; i < 300; ++i) {
+            termToDocs.put(String.format("prefix-%04d", i * 7), new ArrayList<Integer>());
+        }
+        termToDocs.put(longTerm.toString(), new ArrayList<Integer>());
+        termToDocs.put(longTerm + "\u00e9\u4e2d", new ArrayList<Integer>());
+        final List<String> terms = new ArrayList<String>(termToDocs.keySet());
+        final String[] expected = new String[numDocs];
+        for (int doc = 0; doc < numDocs; ++doc) {
+            // every tenth doc has no term
+            if (doc % 10 == 0) {
+                expected[doc] = "";
+                continue;
+            }
+            expected[doc] = terms.get(rand.nextInt(terms.size()));
+            termToDocs.get(expected[doc]).add(doc);
+        }
+        for (final Map.Entry<String, List<Integer>> entry : termToDocs.entrySet()) {
+            r.addStringTerm("s", entry.getKey(), entry.getValue());
+        }
+
+        final OrdinalStringValueLookup lookup = FieldCacher.newFrontCodedStringValueLookup("s", r);
+        assertEquals(terms.size() + 1, lookup.getNumTerms());
+        assertEquals(longTerm.length() + 5, lookup.getMaxTermLength());
+        final byte[] buffer = new byte[lookup.getMaxTermLength()];
+        for (int doc = 0; doc < numDocs; ++doc) {
+            assertEquals(expected[doc], lookup.getString(doc));
+            final int ordinal = lookup.getOrdinal(doc);
+            assertEquals(doc % 10 == 0 ? 0 : terms.indexOf(expected[doc]) + 1, ordinal);
+            final int length = lookup.getTermBytes(ordinal, buffer);
+            assertEquals(expected[doc], new String(buffer, 0, length, Charsets.UTF_8));
+        }
+        for (int ordinal = 1; ordinal < lookup.getNumTerms(); ++ordinal) {
+            assertEquals(terms.get(ordinal - 1), lookup.getTerm(ordinal));
+        }
+        lookup.close();
+    }
+
+    private static void verifySelection(long[] cache, MockFlamdexReader r, FieldCacher.Selection selection) throws IOException {
+        UnsortedIntTermDocIterator iterator = UnsortedIntTermDocIteratorImpl.create(r, "f");
+        final IntValueLookup ivl = selection.newFieldCache(iterator, r.getNumDocs());
+        iterator.close();
+        assertEquals(selection.memoryRequired(r.getNumDocs()), ivl.memoryUsed());
+        verifyCache(cache, ivl);
+
+        final String tempDir = Files.getTempDirectory("asdf", "");
+        for (int x = 0; x < 2; ++x) {
+            iterator = UnsortedIntTermDocIteratorImpl.create(r, "f");
+            final IntValueLookup mmivl = selection.newMMapFieldCache(iterator, r.getNumDocs(), "f", tempDir);
+            iterator.close();
+            verifyCache(cache, mmivl);
+            mmivl.close();
+        }
+        Files.delete(tempDir);
+    }
+
     private static void verifyCache(long[] cache, IntValueLookup ivl) {
-        int[] docIds = new int[10];
-        for (int j = 0; j < 10; ++j) docIds[j] = j;
-        long[] values = new long[10];
-        ivl.lookup(docIds, values, 10);
+        final int numDocs = cache.length;
+        int[] docIds = new int[numDocs];
+        for (int j = 0; j < numDocs; ++j) docIds[j] = j;
+        long[] values = new long[numDocs];
+        ivl.lookup(docIds, values, numDocs);
         assertEquals(Longs.asList(cache), Longs.asList(values));
+        for (int start = 0; start < Math.min(numDocs, 10); ++start) {
+            final long[] rangeValues = new long[numDocs - start];
+            ivl.lookupRange(start, rangeValues, rangeValues.length);
+            assertEquals(Longs.asList(cache).subList(start, numDocs), Longs.asList(rangeValues));
+        }
     }
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestMMapPrefetcher {
+    @Test
+    public void testAdvisesOncePerWindow() {
+        final MMapPrefetcher prefetcher = new MMapPrefetcher(0, 4L * 1000000, 4, 4096);
+        prefetcher.prefetch(0, 99);
+        assertEquals(1, prefetcher.getNumAdvised());
+        // still inside the advised window of 400 + 4096 bytes
+        prefetcher.prefetch(100, 999);
+        assertEquals(1, prefetcher.getNumAdvised());
+        prefetcher.prefetch(1000, 1299);
+        assertEquals(2, prefetcher.getNumAdvised());
+        // unsorted lookups are not advised
+        prefetcher.prefetch(5000, 4000);
+        assertEquals(2, prefetcher.getNumAdvised());
+    }
+
+    @Test
+    public void testRestartsWhenMovingBackwards() {
+        final MMapPrefetcher prefetcher = new MMapPrefetcher(0, 4L * 1000000, 4, 4096);
+        prefetcher.prefetch(500000, 500099);
+        prefetcher.prefetch(0, 99);
+        assertEquals(2, prefetcher.getNumAdvised());
+        prefetcher.prefetch(100, 199);
+        assertEquals(2, prefetcher.getNumAdvised());
+    }
+
+    @Test
+    public void testStopsAtEndOfMapping() {
+        final MMapPrefetcher prefetcher = new MMapPrefetcher(0, 4L * 1000, 4, 1 << 20);
+        prefetcher.prefetch(0, 9);
+        prefetcher.prefetch(10, 999);
+        assertEquals(1, prefetcher.getNumAdvised());
+    }
+}
@@ -17,18 +17,22 @@ import com.google.common.collect.Sets;
 import com.indeed.flamdex.MakeAFlamdex;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.datastruct.MockFastBitSetPooler;
+import com.indeed.flamdex.fieldcache.ZoneMappedIntValueLookup;
 import com.indeed.flamdex.query.BooleanOp;
 import com.indeed.flamdex.query.Term;
 import com.indeed.flamdex.reader.MockFlamdexReader;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -505,4 +509,60 @@ public class TestQueryEvaluator {
         evaluator.and(r, bitSet, pooler);
         assertEquals(0, bitSet.cardinality());
     }
+
+    @Test
+    public void testZoneMappedRangeQuery() throws FlamdexOutOfMemoryException {
+        final int numDocs = 5000;
+        final MockFlamdexReader plain = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(), Arrays.asList("if1"), numDocs);
+        final MockFlamdexReader zoneMapped = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(), Arrays.asList("if1"), numDocs) {
+            @Override
+            public IntValueLookup getMetric(String metric) throws FlamdexOutOfMemoryException {
+                return new ZoneMappedIntValueLookup(super.getMetric(metric), getNumDocs());
+            }
+        };
+        // mostly increasing values so that most blocks are entirely inside or outside of a range
+        for (long term = 0; term < numDocs / 100; ++term) {
+            final List<Integer> docs = new ArrayList<Integer>();
+            for (int doc = (int) term * 100; doc < (term + 1) * 100; ++doc) {
+                if (doc != 2500) {
+                    docs.add(doc);
+                }
+            }
+            plain.addIntTerm("if1", term, docs);
+            zoneMapped.addIntTerm("if1", term, docs);
+        }
+        plain.addIntTerm("if1", 1000, 2500);
+        zoneMapped.addIntTerm("if1", 1000, 2500);
+
+        final Random rand = new Random(0);
+        final long[][] ranges = { {0, 10}, {5, 35}, {24, 26}, {20, 1000}, {1000, 1001}, {49, 1000} };
+        for (final long[] range : ranges) {
+            for (final boolean inclusive : new boolean[] { false, true }) {
+                final QueryEvaluator evaluator = new IntRangeQueryEvaluator(new Term("if1", true, range[0], null), new Term("if1", true, range[1], null), inclusive);
+                final FastBitSet expected = new FastBitSet(numDocs);
+                final FastBitSet actual = new FastBitSet(numDocs);
+                for (int doc = 0; doc < numDocs; ++doc) {
+                    final boolean bit = rand.nextBoolean();
+                    expected.set(doc, bit);
+                    actual.set(doc, bit);
+                }
+                evaluator.and(plain, expected, pooler);
+                evaluator.and(zoneMapped, actual, pooler);
+                assertBitSetsEqual(expected, actual);
+                evaluator.or(plain, expected, pooler);
+                evaluator.or(zoneMapped, actual, pooler);
+                assertBitSetsEqual(expected, actual);
+                evaluator.not(plain, expected, pooler);
+                evaluator.not(zoneMapped, actual, pooler);
+                assertBitSetsEqual(expected, actual);
+            }
+        }
+    }
+
+    private static void assertBitSetsEqual(FastBitSet expected, FastBitSet actual) {
+        assertEquals(expected.cardinality(), actual.cardinality());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.get(i), actual.get(i));
+        }
+    }
 }
@@ -13,26 +13,46 @@
  */
  package com.indeed.flamdex.simple;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.indeed.util.core.threads.ThreadSafeBitSet;
 import com.indeed.util.io.Files;
 import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.IntTermIterator;
 import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.RawStringTermDocIterator;
+import com.indeed.flamdex.api.SeekableDocIdStream;
 import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.datastruct.FastBitSet;
+import com.indeed.flamdex.fieldcache.FieldCacheMetadata;
+import com.indeed.flamdex.fieldcache.FieldCacher;
+import com.indeed.flamdex.fieldcache.ZoneMap;
+import com.indeed.flamdex.query.BooleanOp;
+import com.indeed.flamdex.query.Query;
+import com.indeed.flamdex.query.Term;
+import com.indeed.flamdex.reader.FlamdexMetadata;
+import com.indeed.flamdex.reader.FlamdexStats;
+import com.indeed.flamdex.search.FlamdexSearcher;
+import com.indeed.flamdex.utils.FlamdexUtils;
 import com.indeed.flamdex.writer.IntFieldWriter;
 import com.indeed.flamdex.writer.StringFieldWriter;
 import junit.framework.TestCase;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * @author jsgroth
@@ -147,6 +167,501 @@ public class SimpleFlamdexTest extends TestCase {
         return cache;
     }
 
+    @Test
+    public void testPrecomputedFieldCaches() throws IOException, FlamdexOutOfMemoryException {
+        final String dir = Files.getTempDirectory("flamdex-test", "foo");
+        try {
+            final SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, 10L, true, true, true);
+            final long[] wide = new long[10];
+            final IntFieldWriter wideWriter = w.getIntFieldWriter("wide");
+            for (int doc = 0; doc < 10; ++doc) {
+                wide[doc] = 1000000000000L + doc;
+                wideWriter.nextTerm(wide[doc]);
+                wideWriter.nextDoc(doc);
+            }
+            wideWriter.close();
+            final long[] narrow = new long[10];
+            final IntFieldWriter narrowWriter = w.getIntFieldWriter("narrow");
+            narrowWriter.nextTerm(100);
+            for (int doc = 0; doc < 10; doc += 2) {
+                narrowWriter.nextDoc(doc);
+                narrow[doc] = 100;
+            }
+            narrowWriter.close();
+            w.close();
+
+            final Map<String, FieldCacher.Selection> selections = FieldCacheMetadata.readSelections(dir);
+            assertEquals(2, selections.size());
+            assertEquals(FieldCacher.BYTE, selections.get("narrow").getCacher());
+            assertTrue(new File(dir, "fld-narrow.bytecache").exists());
+
+            SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            // only the stored zone maps are loaded
+            assertEquals(ZoneMap.memoryRequired(10), r.memoryRequired("wide"));
+            assertMetricEquals(wide, r, "wide");
+            assertEquals(ZoneMap.memoryRequired(10), r.memoryRequired("narrow"));
+            assertMetricEquals(narrow, r, "narrow");
+            final IntValueLookup wideLookup = r.getMetric("wide");
+            assertEquals(r.memoryRequired("wide"), wideLookup.memoryUsed());
+            final ZoneMap zoneMap = ZoneMap.of(wideLookup);
+            assertNotNull(zoneMap);
+            assertEquals(1, zoneMap.getNumBlocks());
+            assertEquals(wide[0], zoneMap.getBlockMin(0));
+            assertEquals(wide[9], zoneMap.getBlockMax(0));
+            wideLookup.close();
+            r.close();
+
+            // rewriting a field drops its cache
+            r = SimpleFlamdexReader.open(dir);
+            SimpleFlamdexWriter.addField(dir, "narrow", r, wide);
+            r.close();
+            assertFalse(new File(dir, "fld-narrow.bytecache").exists());
+            assertFalse(new File(dir, ZoneMap.getFilename("narrow")).exists());
+            assertTrue(new File(dir, ZoneMap.getFilename("wide")).exists());
+            assertEquals(Collections.singleton("wide"), FieldCacheMetadata.readSelections(dir).keySet());
+            r = SimpleFlamdexReader.open(dir, new SimpleFlamdexReader.Config().setUseMMapMetrics(false));
+            assertTrue(r.memoryRequired("narrow") > 0);
+            assertMetricEquals(wide, r, "narrow");
+            assertTrue(r.hasStoredZoneMap("wide"));
+
+            // a zone map file next to a field that isn't precomputed, or written for other docs, isn't loaded
+            com.google.common.io.Files.copy(new File(dir, ZoneMap.getFilename("wide")), new File(dir, ZoneMap.getFilename("narrow")));
+            final IntValueLookup staleLookup = r.getMetric("wide");
+            ZoneMap.build(staleLookup, 5).write(dir, "wide");
+            staleLookup.close();
+            r.close();
+            r = SimpleFlamdexReader.open(dir);
+            assertFalse(r.hasStoredZoneMap("narrow"));
+            assertFalse(r.hasStoredZoneMap("wide"));
+            assertEquals(0, r.memoryRequired("wide"));
+            final IntValueLookup unzoned = r.getMetric("wide");
+            assertNull(ZoneMap.of(unzoned));
+            assertEquals(0, unzoned.memoryUsed());
+            unzoned.close();
+            r.close();
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testBlockPostings() throws IOException {
+        final String dir = Files.getTempDirectory("flamdex-test", "blockpostings");
+        final String convertedDir = Files.getTempDirectory("flamdex-test", "converted");
+        try {
+            final int numDocs = 100000;
+            final int[] docFreqs = { 1, 127, 128, 129, 1000, 5000, 100000 };
+            final int[][] postings = new int[docFreqs.length][];
+            for (int t = 0; t < docFreqs.length; ++t) {
+                postings[t] = randomPostings(docFreqs[t], numDocs);
+            }
+
+            final SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, numDocs, true, true, false, SimpleFlamdexWriter.BLOCK_POSTINGS_FORMAT_VERSION);
+            final IntFieldWriter ifw = w.getIntFieldWriter("if1");
+            final StringFieldWriter sfw = w.getStringFieldWriter("sf1");
+            for (int t = 0; t < postings.length; ++t) {
+                ifw.nextTerm(t);
+                sfw.nextTerm("term" + t);
+                for (final int doc : postings[t]) {
+                    ifw.nextDoc(doc);
+                    sfw.nextDoc(doc);
+                }
+            }
+            ifw.close();
+            sfw.close();
+            w.close();
+            assertEquals(SimpleFlamdexWriter.BLOCK_POSTINGS_FORMAT_VERSION, FlamdexMetadata.readMetadata(dir).getFormatVersion());
+            assertPostingsEqual(postings, dir);
+
+            PostingsFormatConverter.convert(dir, convertedDir, SimpleFlamdexWriter.FORMAT_VERSION);
+            assertEquals(SimpleFlamdexWriter.FORMAT_VERSION, FlamdexMetadata.readMetadata(convertedDir).getFormatVersion());
+            assertPostingsEqual(postings, convertedDir);
+        } finally {
+            Files.delete(dir);
+            Files.delete(convertedDir);
+        }
+    }
+
+    @Test
+    public void testBlockPostingsAdvance() throws IOException {
+        final String dir = Files.getTempDirectory("flamdex-test", "advance");
+        try {
+            final int numDocs = 200000;
+            final int[][] postings = { randomPostings(20, numDocs), randomPostings(100000, numDocs), randomPostings(3000, numDocs), randomPostings(20000, numDocs) };
+            final SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, numDocs, true, true, false, SimpleFlamdexWriter.BLOCK_POSTINGS_FORMAT_VERSION);
+            final IntFieldWriter ifw = w.getIntFieldWriter("if1");
+            for (int t = 0; t < postings.length; ++t) {
+                ifw.nextTerm(t);
+                for (final int doc : postings[t]) {
+                    ifw.nextDoc(doc);
+                }
+            }
+            ifw.close();
+            w.close();
+
+            final SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            try {
+                final SeekableDocIdStream dis = (SeekableDocIdStream) r.getDocIdStream();
+                final IntTermIterator it = r.getIntTermIterator("if1");
+                final int[] buf = new int[3];
+                for (int t = 1; t < postings.length; ++t) {
+                    it.reset(t);
+                    assertTrue(it.next());
+                    dis.reset(it);
+                    int target = 0;
+                    int lastReturned = -1;
+                    while (true) {
+                        target += rand.nextInt(5000);
+                        int expected = Arrays.binarySearch(postings[t], Math.max(target, lastReturned + 1));
+                        if (expected < 0) expected = -expected - 1;
+                        if (expected == postings[t].length) {
+                            assertFalse(dis.advance(target));
+                            assertEquals(0, dis.fillDocIdBuffer(buf));
+                            break;
+                        }
+                        assertTrue(dis.advance(target));
+                        final int n = dis.fillDocIdBuffer(buf);
+                        assertTrue(n > 0);
+                        for (int i = 0; i < n; ++i) {
+                            assertEquals(postings[t][expected + i], buf[i]);
+                        }
+                        lastReturned = buf[n - 1];
+                    }
+                }
+                it.close();
+                dis.close();
+
+                final Query query = Query.newBooleanQuery(BooleanOp.AND, Arrays.asList(
+                        Query.newTermQuery(new Term("if1", true, 0, "")),
+                        Query.newTermQuery(new Term("if1", true, 1, ""))));
+                final FastBitSet bitSet = new FlamdexSearcher(r).search(query);
+                final Set<Integer> dense = Sets.newHashSet(Ints.asList(postings[1]));
+                for (int doc = 0; doc < numDocs; ++doc) {
+                    final boolean expected = Arrays.binarySearch(postings[0], doc) >= 0 && dense.contains(doc);
+                    assertEquals(expected, bitSet.get(doc));
+                }
+            } finally {
+                r.close();
+            }
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testBitmapPostings() throws IOException {
+        final String dir = Files.getTempDirectory("flamdex-test", "bitmap");
+        try {
+            final int numDocs = 10000;
+            // the first two terms are dense enough to be stored as bitmaps
+            final int[][] postings = { randomPostings(9000, numDocs), randomPostings(1250, numDocs), randomPostings(1000, numDocs) };
+            final SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, numDocs, true, true, false, SimpleFlamdexWriter.BLOCK_POSTINGS_FORMAT_VERSION);
+            final StringFieldWriter sfw = w.getStringFieldWriter("sf1");
+            for (int t = 0; t < postings.length; ++t) {
+                sfw.nextTerm("term" + t);
+                for (final int doc : postings[t]) {
+                    sfw.nextDoc(doc);
+                }
+            }
+            sfw.close();
+            w.close();
+
+            final SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            try {
+                final FlamdexSearcher searcher = new FlamdexSearcher(r);
+                for (int t = 0; t < postings.length; ++t) {
+                    final Query termQuery = Query.newTermQuery(new Term("sf1", false, 0, "term" + t));
+                    final Query otherQuery = Query.newTermQuery(new Term("sf1", false, 0, "term" + ((t + 1) % postings.length)));
+                    final int[] other = postings[(t + 1) % postings.length];
+                    final FastBitSet or = searcher.search(Query.newBooleanQuery(BooleanOp.OR, Arrays.asList(termQuery, otherQuery)));
+                    final FastBitSet and = searcher.search(Query.newBooleanQuery(BooleanOp.AND, Arrays.asList(otherQuery, termQuery)));
+                    final FastBitSet not = searcher.search(Query.newBooleanQuery(BooleanOp.NOT, Arrays.asList(termQuery)));
+                    final ThreadSafeBitSet cached = FlamdexUtils.cacheHasStringTerm("sf1", "term" + t, r);
+                    for (int doc = 0; doc < numDocs; ++doc) {
+                        final boolean inTerm = Arrays.binarySearch(postings[t], doc) >= 0;
+                        final boolean inOther = Arrays.binarySearch(other, doc) >= 0;
+                        assertEquals(inTerm || inOther, or.get(doc));
+                        assertEquals(inTerm && inOther, and.get(doc));
+                        assertEquals(!inTerm, not.get(doc));
+                        assertEquals(inTerm, cached.get(doc));
+                    }
+                    // numDocs isn't a multiple of 64, so the last word of the negation must be masked
+                    final FastBitSet.IntIterator notDocs = not.iterator();
+                    while (notDocs.next()) {
+                        assertTrue(notDocs.getValue() < numDocs);
+                    }
+                }
+
+                final DocIdStream dis = r.getDocIdStream();
+                final StringTermIterator sit = r.getStringTermIterator("sf1");
+                for (int t = 0; t < postings.length; ++t) {
+                    assertTrue(sit.next());
+                    dis.reset(sit);
+                    assertTrue(Arrays.equals(postings[t], readDocs(dis, postings[t].length)));
+                }
+                sit.close();
+                dis.close();
+            } finally {
+                r.close();
+            }
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testStats() throws IOException {
+        final String dir = Files.getTempDirectory("flamdex-test", "stats");
+        final String tempDir = Files.getTempDirectory("flamdex-test", "stats");
+        try {
+            final int numDocs = 1000;
+            final SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, numDocs);
+            // term t is in docs [0, t * 5), so larger terms are more frequent
+            final IntFieldWriter ifw = w.getIntFieldWriter("if1");
+            for (int t = 1; t <= 150; ++t) {
+                ifw.nextTerm(t - 20);
+                for (int doc = 0; doc < t * 5 && doc < numDocs; ++doc) {
+                    ifw.nextDoc(doc);
+                }
+            }
+            ifw.close();
+            final StringFieldWriter sfw = w.getStringFieldWriter("sf1");
+            sfw.nextTerm("a");
+            sfw.nextDoc(3);
+            sfw.nextTerm("b");
+            for (int doc = 0; doc < 10; ++doc) {
+                sfw.nextDoc(doc);
+            }
+            sfw.close();
+            w.close();
+            assertTrue(new File(dir, FlamdexStats.FILENAME).exists());
+
+            SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            final FlamdexStats stats = FlamdexStats.of(r);
+            assertNotNull(stats);
+            final FlamdexStats.IntFieldStats intStats = stats.getIntFieldStats("if1");
+            assertEquals(150, intStats.getNumTerms());
+            assertEquals(-19, intStats.getMinTerm());
+            assertEquals(130, intStats.getMaxTerm());
+            long totalDocFreq = 0;
+            for (int t = 1; t <= 150; ++t) {
+                totalDocFreq += Math.min(t * 5, numDocs);
+            }
+            assertEquals(totalDocFreq, intStats.getTotalDocFreq());
+            assertEquals(totalDocFreq, r.getIntTotalDocFreq("if1"));
+            assertTrue(Arrays.equals(new long[]{-19, 130}, FlamdexUtils.getMinMaxTerm("if1", r)));
+            long histogramTerms = 0;
+            for (final long count : intStats.getDocFreqHistogram()) {
+                histogramTerms += count;
+            }
+            assertEquals(150, histogramTerms);
+            assertEquals(FlamdexStats.TOP_TERMS, intStats.getNumTopTerms());
+            assertTrue(intStats.hasTopTerms(10));
+            assertFalse(intStats.hasTopTerms(FlamdexStats.TOP_TERMS + 1));
+            for (int i = 0; i < intStats.getNumTopTerms(); ++i) {
+                assertTrue(intStats.getTopTermDocFreq(i) >= 255);
+                if (i > 0) {
+                    assertTrue(intStats.getTopTermDocFreq(i) <= intStats.getTopTermDocFreq(i - 1));
+                }
+            }
+            assertEquals(130, intStats.getTopTerm(0));
+            // the stats collected while writing match the terms that were written
+            final long[] histogram = new long[FlamdexStats.NUM_HISTOGRAM_BUCKETS];
+            for (int t = 1; t <= 150; ++t) {
+                histogram[31 - Integer.numberOfLeadingZeros(Math.min(t * 5, numDocs))]++;
+            }
+            assertTrue(Arrays.equals(histogram, intStats.getDocFreqHistogram()));
+            for (int i = 0; i < intStats.getNumTopTerms(); ++i) {
+                assertEquals(130 - i, intStats.getTopTerm(i));
+                assertEquals((150 - i) * 5, intStats.getTopTermDocFreq(i));
+            }
+
+            final FlamdexStats.StringFieldStats stringStats = stats.getStringFieldStats("sf1");
+            assertEquals(2, stringStats.getNumTerms());
+            assertEquals(11, r.getStringTotalDocFreq("sf1"));
+            assertEquals("a", stringStats.getMinTerm());
+            assertEquals("b", stringStats.getMaxTerm());
+            assertTrue(stringStats.hasTopTerms(1000));
+            assertEquals("b", stringStats.getTopTerm(0));
+            assertEquals(10, stringStats.getTopTermDocFreq(0));
+            assertEquals("a", stringStats.getTopTerm(1));
+            assertNull(stats.getIntFieldStats("sf1"));
+
+            // adding a field to the shard updates the stats of that field only
+            final long[] values = new long[numDocs];
+            values[7] = 5;
+            SimpleFlamdexWriter.addField(dir, "if2", r, values);
+            r.close();
+            r = SimpleFlamdexReader.open(dir);
+            final FlamdexStats updated = FlamdexStats.of(r);
+            assertEquals(2, updated.getIntFieldStats("if2").getNumTerms());
+            assertEquals(numDocs, r.getIntTotalDocFreq("if2"));
+            assertEquals(150, updated.getIntFieldStats("if1").getNumTerms());
+            r.close();
+
+            // stats for another number of docs are ignored
+            assertNull(FlamdexStats.read(dir, numDocs + 1));
+
+            // temporary indexes don't get stats
+            final SimpleFlamdexWriter temp = new SimpleFlamdexWriter(tempDir, numDocs, true, true, false, SimpleFlamdexWriter.FORMAT_VERSION, false);
+            final IntFieldWriter tempField = temp.getIntFieldWriter("if1");
+            tempField.nextTerm(1);
+            tempField.nextDoc(0);
+            tempField.close();
+            temp.close();
+            assertFalse(new File(tempDir, FlamdexStats.FILENAME).exists());
+        } finally {
+            Files.delete(dir);
+            Files.delete(tempDir);
+        }
+    }
+
+    @Test
+    public void testStringTermDictionary() throws IOException {
+        final String dir = Files.getTempDirectory("flamdex-test", "strdict");
+        try {
+            final int numDocs = 1000;
+            final TreeSet<String> terms = Sets.newTreeSet();
+            while (terms.size() < 500) {
+                final int len = rand.nextInt(12);
+                final StringBuilder sb = new StringBuilder("prefix");
+                for (int i = 0; i < len; ++i) {
+                    sb.append(rand.nextInt(10) == 0 ? '\u00e9' : (char) ('a' + rand.nextInt(4)));
+                }
+                terms.add(sb.toString());
+            }
+            final List<String> termList = Lists.newArrayList(terms);
+            final int[][] postings = new int[termList.size()][];
+            final SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, numDocs, true, true, false, SimpleFlamdexWriter.BLOCK_POSTINGS_FORMAT_VERSION);
+            final StringFieldWriter sfw = w.getStringFieldWriter("sf1");
+            for (int t = 0; t < termList.size(); ++t) {
+                postings[t] = randomPostings(1 + rand.nextInt(50), numDocs);
+                sfw.nextTerm(termList.get(t));
+                for (final int doc : postings[t]) {
+                    sfw.nextDoc(doc);
+                }
+            }
+            sfw.close();
+            w.close();
+            assertTrue(new File(dir, StringTermDictionary.getFilename("sf1")).exists());
+            assertFalse(new File(dir, "fld-sf1.strindex").exists());
+
+            final SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            try {
+                assertFalse(new File(dir, "fld-sf1.strindex").exists());
+                final SimpleStringTermIterator it = r.getStringTermIterator("sf1");
+                assertTrue(it instanceof StringTermDictionaryIterator);
+                final DocIdStream dis = r.getDocIdStream();
+                for (int t = 0; t < termList.size(); ++t) {
+                    assertTrue(it.next());
+                    assertEquals(termList.get(t), it.term());
+                    assertEquals(termList.get(t), new String(it.termStringBytes(), 0, it.termStringLength(), Charsets.UTF_8));
+                    assertEquals(postings[t].length, it.docFreq());
+                    dis.reset(it);
+                    assertTrue(Arrays.equals(postings[t], readDocs(dis, postings[t].length)));
+                }
+                assertFalse(it.next());
+                assertFalse(it.next());
+
+                final List<String> targets = Lists.newArrayList("", "a", "prefix", "prefixb", "z", termList.get(0), termList.get(termList.size() - 1));
+                for (int i = 0; i < 100; ++i) {
+                    final String term = termList.get(rand.nextInt(termList.size()));
+                    targets.add(term);
+                    targets.add(term + "a");
+                    targets.add(term.substring(0, term.length() - 1));
+                }
+                for (final String target : targets) {
+                    it.reset(target);
+                    final String expected = terms.ceiling(target);
+                    if (expected == null) {
+                        assertFalse(it.next());
+                    } else {
+                        assertTrue(it.next());
+                        assertEquals(expected, it.term());
+                        final int t = termList.indexOf(expected);
+                        dis.reset(it);
+                        assertTrue(Arrays.equals(postings[t], readDocs(dis, postings[t].length)));
+                        if (t + 1 < termList.size()) {
+                            assertTrue(it.next());
+                            assertEquals(termList.get(t + 1), it.term());
+                        }
+                    }
+                }
+                dis.close();
+                it.close();
+            } finally {
+                r.close();
+            }
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    // mostly small gaps with a few large ones so that blocks have exceptions
+    private int[] randomPostings(int docFreq, int numDocs) {
+        final int[] docs = new int[docFreq];
+        int doc = -1;
+        for (int i = 0; i < docFreq; ++i) {
+            final int remaining = numDocs - doc - (docFreq - i);
+            final int maxGap = rand.nextInt(20) == 0 ? remaining : Math.min(remaining, 4);
+            doc += 1 + rand.nextInt(maxGap);
+            docs[i] = doc;
+        }
+        return docs;
+    }
+
+    private static void assertPostingsEqual(int[][] postings, String dir) throws IOException {
+        final SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+        try {
+            final DocIdStream dis = r.getDocIdStream();
+            final IntTermIterator it = r.getIntTermIterator("if1");
+            final StringTermIterator sit = r.getStringTermIterator("sf1");
+            for (int t = 0; t < postings.length; ++t) {
+                assertTrue(it.next());
+                assertEquals(t, it.term());
+                dis.reset(it);
+                assertTrue(Arrays.equals(postings[t], readDocs(dis, postings[t].length)));
+                assertTrue(sit.next());
+                assertEquals("term" + t, sit.term());
+                dis.reset(sit);
+                assertTrue(Arrays.equals(postings[t], readDocs(dis, postings[t].length)));
+            }
+            assertFalse(it.next());
+            assertFalse(sit.next());
+            it.close();
+            sit.close();
+            dis.close();
+        } finally {
+            r.close();
+        }
+    }
+
+    private static int[] readDocs(DocIdStream dis, int docFreq) {
+        // an odd buffer size so that reads don't line up with blocks
+        final int[] buf = new int[100];
+        final int[] docs = new int[docFreq];
+        int n = 0;
+        while (true) {
+            final int count = dis.fillDocIdBuffer(buf);
+            assertTrue(n + count <= docFreq);
+            System.arraycopy(buf, 0, docs, n, count);
+            n += count;
+            if (count < buf.length) break;
+        }
+        assertEquals(docFreq, n);
+        return docs;
+    }
+
+    private static void assertMetricEquals(long[] expected, SimpleFlamdexReader r, String metric) throws FlamdexOutOfMemoryException {
+        final IntValueLookup ivl = r.getMetric(metric);
+        final int[] docIds = new int[r.getNumDocs()];
+        final long[] values = new long[r.getNumDocs()];
+        for (int doc = 0; doc < docIds.length; ++doc) docIds[doc] = doc;
+        ivl.lookup(docIds, values, r.getNumDocs());
+        assertEquals(Longs.asList(expected), Longs.asList(values));
+        ivl.close();
+    }
+
     public void writeAndRead(String dir) throws IOException {
         writeIndex(dir);
 
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.simple;
+
+import com.indeed.util.core.reference.SharedReference;
+import com.indeed.util.io.Files;
+import com.indeed.util.mmap.MMapBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestMappingManager {
+    private String tempDir;
+    private String[] filenames;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.getTempDirectory("flamdex-test", "mappingmanager");
+        filenames = new String[4];
+        for (int i = 0; i < filenames.length; ++i) {
+            final File file = new File(tempDir, "file" + i);
+            com.google.common.io.Files.write(new byte[100], file);
+            filenames[i] = file.getPath();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Files.delete(tempDir);
+    }
+
+    @Test
+    public void testEvictsIdleMappings() throws IOException {
+        final MappingManager manager = new MappingManager(2, Long.MAX_VALUE);
+        final MapCache cache = new MapCache(manager);
+        cache.copyOrOpen(filenames[0]).close();
+        cache.copyOrOpen(filenames[1]).close();
+        assertEquals(2, manager.getMappedFiles());
+        assertEquals(200, manager.getMappedBytes());
+
+        // touching file0 makes file1 the least recently used
+        cache.copyOrOpen(filenames[0]).close();
+        cache.copyOrOpen(filenames[2]).close();
+        assertEquals(2, manager.getMappedFiles());
+        assertEquals(1, manager.getEvictions());
+        assertTrue(cache.mappings.containsKey(filenames[0]));
+        assertFalse(cache.mappings.containsKey(filenames[1]));
+
+        // evicted files are mapped again when needed
+        final SharedReference<MMapBuffer> ref = cache.copyOrOpen(filenames[1]);
+        assertEquals(100, ref.get().memory().length());
+        ref.close();
+        assertEquals(2, manager.getMappedFiles());
+        assertEquals(2, manager.getEvictions());
+
+        cache.close();
+        assertEquals(0, manager.getMappedFiles());
+        assertEquals(0, manager.getMappedBytes());
+    }
+
+    @Test
+    public void testKeepsMappingsInUse() throws IOException {
+        final MappingManager manager = new MappingManager(Integer.MAX_VALUE, 250);
+        final MapCache cache1 = new MapCache(manager);
+        final MapCache cache2 = new MapCache(manager);
+        final SharedReference<MMapBuffer> ref0 = cache1.copyOrOpen(filenames[0]);
+        final SharedReference<MMapBuffer> ref1 = cache2.copyOrOpen(filenames[1]);
+        // nothing is idle, so the budget is exceeded
+        final SharedReference<MMapBuffer> ref2 = cache1.copyOrOpen(filenames[2]);
+        assertEquals(3, manager.getMappedFiles());
+        assertEquals(0, manager.getEvictions());
+
+        ref1.close();
+        cache1.copyOrOpen(filenames[3]).close();
+        assertEquals(1, manager.getEvictions());
+        assertFalse(cache2.mappings.containsKey(filenames[1]));
+        assertEquals(3, manager.getMappedFiles());
+
+        // closing a cache leaves the mappings that are still referenced mapped
+        cache1.close();
+        assertEquals(2, manager.getMappedFiles());
+        assertEquals(0, ref0.get().memory().getByte(99));
+        ref0.close();
+        ref2.close();
+        assertEquals(0, manager.getMappedFiles());
+        cache2.close();
+    }
+
+    @Test
+    public void testWithoutBudget() throws IOException {
+        final MappingManager manager = new MappingManager(Integer.MAX_VALUE, Long.MAX_VALUE);
+        final MapCache cache = new MapCache(manager);
+        for (final String filename : filenames) {
+            cache.copyOrOpen(filename).close();
+        }
+        final SharedReference<MMapBuffer> ref = cache.copyOrOpen(filenames[0]);
+        assertEquals(filenames.length, manager.getMappedFiles());
+        assertEquals(100L * filenames.length, manager.getMappedBytes());
+        assertEquals(0, manager.getEvictions());
+        cache.close();
+        assertEquals(1, manager.getMappedFiles());
+        ref.close();
+        assertEquals(0, manager.getMappedFiles());
+        assertEquals(0, manager.getMappedBytes());
+    }
+}
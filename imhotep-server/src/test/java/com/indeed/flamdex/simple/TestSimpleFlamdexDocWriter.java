@@ -42,13 +42,17 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author jsgroth
@@ -101,9 +105,73 @@ public class TestSimpleFlamdexDocWriter {
         runRandomTest(3);
     }
 
+    @Test
+    public void randomTestWithMergeThreads() throws IOException {
+        runRandomTest(3, 4, 0);
+    }
+
+    @Test
+    public void randomTestWithBackgroundFlushes() throws IOException {
+        runRandomTest(3, 1, 2);
+    }
+
+    @Test
+    public void testSortFields() throws IOException {
+        final Random rand = new Random();
+        final List<FlamdexDocument> docs = Lists.newArrayList();
+        final FlamdexDocWriter w = new SimpleFlamdexDocWriter(tempDir, new SimpleFlamdexDocWriter.Config()
+                .setDocBufferSize(100)
+                .setMergeFactor(3)
+                .setSortFields(Arrays.asList("country", "time")));
+        for (int i = 0; i < 2000; ++i) {
+            final FlamdexDocument doc = new FlamdexDocument();
+            doc.addIntTerm("id", i);
+            doc.addIntTerm("time", rand.nextInt(100));
+            if (rand.nextInt(10) != 0) {
+                doc.addStringTerm("country", "c" + rand.nextInt(5));
+            }
+            w.addDocument(doc);
+            docs.add(doc);
+        }
+        w.close();
+
+        // docs without a country go last, ties keep insertion order
+        final List<FlamdexDocument> expected = Lists.newArrayList(docs);
+        Collections.sort(expected, new Comparator<FlamdexDocument>() {
+            @Override
+            public int compare(FlamdexDocument o1, FlamdexDocument o2) {
+                final List<String> c1 = o1.getStringFields().get("country");
+                final List<String> c2 = o2.getStringFields().get("country");
+                if (c1 == null || c2 == null) {
+                    if (c1 != c2) return c1 == null ? 1 : -1;
+                } else if (!c1.equals(c2)) {
+                    return c1.get(0).compareTo(c2.get(0));
+                }
+                final int cmp = Longs.compare(o1.getIntFields().get("time").getLong(0), o2.getIntFields().get("time").getLong(0));
+                return cmp != 0 ? cmp : Longs.compare(o1.getIntFields().get("id").getLong(0), o2.getIntFields().get("id").getLong(0));
+            }
+        });
+
+        final SimpleFlamdexReader r = SimpleFlamdexReader.open(tempDir);
+        final List<FlamdexDocument> actual = FlamdexReinverter.reinvertInMemory(r);
+        r.close();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.get(i).getIntFields().get("id"), actual.get(i).getIntFields().get("id"));
+        }
+    }
+
     private void runRandomTest(int mergeFactor) throws IOException {
+        runRandomTest(mergeFactor, 1, 0);
+    }
+
+    private void runRandomTest(int mergeFactor, int mergeThreads, int maxInFlightSegments) throws IOException {
         long elapsed = -System.currentTimeMillis();
-        final FlamdexDocWriter w = new SimpleFlamdexDocWriter(tempDir, new SimpleFlamdexDocWriter.Config().setDocBufferSize(100).setMergeFactor(mergeFactor));
+        final FlamdexDocWriter w = new SimpleFlamdexDocWriter(tempDir, new SimpleFlamdexDocWriter.Config()
+                .setDocBufferSize(100)
+                .setMergeFactor(mergeFactor)
+                .setMergeThreads(mergeThreads)
+                .setMaxInFlightSegments(maxInFlightSegments));
 
         final Random rand = new Random();
         final int numDocs = rand.nextInt(20000) + 20000;
@@ -194,6 +262,64 @@ public class TestSimpleFlamdexDocWriter {
         iter.close();
     }
 
+    @Test
+    public void testSortFieldWithMaxValue() throws IOException {
+        final FlamdexDocWriter w = new SimpleFlamdexDocWriter(tempDir, new SimpleFlamdexDocWriter.Config()
+                .setSortFields(Arrays.asList("time")));
+        final long[] times = {-1, Long.MAX_VALUE, 5};
+        for (int i = 0; i < times.length; ++i) {
+            final FlamdexDocument doc = new FlamdexDocument();
+            doc.addIntTerm("id", i);
+            // -1 stands for no time
+            if (times[i] >= 0) {
+                doc.addIntTerm("time", times[i]);
+            }
+            w.addDocument(doc);
+        }
+        w.close();
+
+        // a doc without a term comes after one with the largest possible term
+        final SimpleFlamdexReader r = SimpleFlamdexReader.open(tempDir);
+        final List<FlamdexDocument> actual = FlamdexReinverter.reinvertInMemory(r);
+        r.close();
+        assertEquals(3, actual.size());
+        assertEquals(2, actual.get(0).getIntFields().get("id").getLong(0));
+        assertEquals(1, actual.get(1).getIntFields().get("id").getLong(0));
+        assertEquals(0, actual.get(2).getIntFields().get("id").getLong(0));
+    }
+
+    @Test
+    public void testBackgroundFlushFailure() throws IOException {
+        final String dir = new File(tempDir, "out").getPath();
+        final FlamdexDocWriter w = new SimpleFlamdexDocWriter(dir, new SimpleFlamdexDocWriter.Config()
+                .setDocBufferSize(10)
+                .setMaxInFlightSegments(2));
+        // segments can't be written once the directory is gone
+        Files.delete(dir);
+        final FlamdexDocument doc = new FlamdexDocument();
+        doc.setIntField("if1", Longs.asList(1));
+        boolean failed = false;
+        for (int i = 0; i < 1000000 && !failed; ++i) {
+            try {
+                w.addDocument(doc);
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+        assertTrue(failed);
+        try {
+            w.addDocument(doc);
+            fail("documents are accepted after a failed flush");
+        } catch (IOException expected) {
+        }
+        try {
+            w.close();
+            fail("close succeeded after a failed flush");
+        } catch (IOException expected) {
+        }
+        assertFalse(new File(dir).exists());
+    }
+
     @Test
     public void testEmpty() throws IOException {
         new SimpleFlamdexDocWriter(tempDir, new SimpleFlamdexDocWriter.Config()).close();
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSketches {
+    @Test
+    public void testHyperLogLog() {
+        final HyperLogLog left = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        final HyperLogLog right = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        final HyperLogLog all = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        for (int i = 0; i < 100000; i++) {
+            // overlapping ranges, 150000 distinct terms in total
+            left.addIntTerm(i);
+            right.addIntTerm(i + 50000);
+            all.addIntTerm(i);
+            all.addIntTerm(i + 50000);
+        }
+        assertWithin(100000, left.cardinality(), 0.03);
+
+        left.merge(right);
+        assertEquals(all.cardinality(), left.cardinality());
+        assertWithin(150000, left.cardinality(), 0.03);
+
+        final HyperLogLog copy = HyperLogLog.fromBytes(left.toBytes());
+        assertEquals(left.cardinality(), copy.cardinality());
+    }
+
+    @Test
+    public void testHyperLogLogSmallCardinality() {
+        final HyperLogLog hll = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        assertTrue(hll.isEmpty());
+        assertEquals(0, hll.cardinality());
+        for (int i = 0; i < 3; i++) {
+            hll.addStringTerm("term" + i);
+            hll.addStringTerm("term" + i);
+        }
+        assertEquals(3, hll.cardinality());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHyperLogLogPrecisionMismatch() {
+        new HyperLogLog(10).merge(new HyperLogLog(12));
+    }
+
+    @Test
+    public void testQuantileSketch() {
+        final Random random = new Random(0);
+        final int numValues = 200000;
+        final long[] values = new long[numValues];
+        final QuantileSketch[] shards = new QuantileSketch[4];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new QuantileSketch();
+        }
+        for (int i = 0; i < numValues; i++) {
+            values[i] = random.nextInt(1000000);
+            shards[i % shards.length].update(values[i]);
+        }
+        Arrays.sort(values);
+
+        final QuantileSketch merged = new QuantileSketch();
+        for (final QuantileSketch shard : shards) {
+            merged.merge(QuantileSketch.fromBytes(shard.toBytes()));
+        }
+        assertEquals(numValues, merged.getCount());
+        assertEquals(values[0], merged.getMin());
+        assertEquals(values[numValues - 1], merged.getMax());
+        for (final double fraction : new double[] { 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99 }) {
+            final long estimate = merged.quantile(fraction);
+            final int rank = Math.abs(Arrays.binarySearch(values, estimate));
+            assertEquals(fraction, (double) rank / numValues, 0.02);
+        }
+    }
+
+    @Test
+    public void testQuantileSketchSeed() {
+        final QuantileSketch a = new QuantileSketch(QuantileSketch.DEFAULT_K, 42);
+        final QuantileSketch b = new QuantileSketch(QuantileSketch.DEFAULT_K, 42);
+        final QuantileSketch c = new QuantileSketch(QuantileSketch.DEFAULT_K, 43);
+        for (int i = 0; i < 100000; i++) {
+            a.update(i);
+            b.update(i);
+            c.update(i);
+        }
+        assertTrue(Arrays.equals(a.toBytes(), b.toBytes()));
+        assertFalse(Arrays.equals(a.toBytes(), c.toBytes()));
+    }
+
+    @Test
+    public void testQuantileSketchMemoryUsage() {
+        final QuantileSketch sketch = new QuantileSketch();
+        long previous = sketch.memoryUsage();
+        assertTrue(previous > 0);
+        for (int i = 0; i < 1000000; i++) {
+            sketch.update(i);
+            final long usage = sketch.memoryUsage();
+            assertTrue(usage >= previous);
+            previous = usage;
+        }
+        assertTrue(previous >= 8L * sketch.getRetainedItems());
+
+        final QuantileSketch merged = new QuantileSketch();
+        merged.merge(sketch);
+        merged.merge(QuantileSketch.fromBytes(sketch.toBytes()));
+        assertTrue(merged.memoryUsage() >= 8L * merged.getRetainedItems());
+    }
+
+    private static void assertWithin(long expected, long actual, double relativeError) {
+        assertTrue("expected " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected * relativeError);
+    }
+}
@@ -17,15 +17,20 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.fieldcache.ZoneMappedIntValueLookup;
 import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
 import com.indeed.flamdex.reader.MockFlamdexReader;
 import com.indeed.imhotep.BucketStats;
 import com.indeed.imhotep.GroupMultiRemapRule;
 import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.HyperLogLog;
 import com.indeed.imhotep.ImhotepMemoryPool;
 import com.indeed.imhotep.MemoryReservationContext;
+import com.indeed.imhotep.QuantileSketch;
 import com.indeed.imhotep.QueryRemapRule;
 import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
@@ -194,6 +199,44 @@ public class TestImhotepLocalSession {
         assertEquals(Arrays.asList(3, 1, 3, 0, 0, 2, 3, 1, 0, 4), Ints.asList(docIdToGroup));
     }
 
+    @Test
+    public void testGroupDistinctCounts() throws ImhotepOutOfMemoryException {
+        MockFlamdexReader r = newMetricRegroupTestReader();
+
+        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        HyperLogLog[] distinctCounts = session.getGroupDistinctCounts("if1", true, HyperLogLog.DEFAULT_PRECISION);
+        assertEquals(2, distinctCounts.length);
+        assertEquals(0, distinctCounts[0].cardinality());
+        assertEquals(4, distinctCounts[1].cardinality());
+        assertEquals(1, session.getGroupDistinctCounts("sf1", false, HyperLogLog.DEFAULT_PRECISION)[1].cardinality());
+
+        session.pushStat("if1");
+        session.metricRegroup(0, 0, 20, 5);
+        distinctCounts = session.getGroupDistinctCounts("if1", true, HyperLogLog.DEFAULT_PRECISION);
+        assertEquals(7, distinctCounts.length);
+        for (int group = 1; group < distinctCounts.length; group++) {
+            final long expected = (group == 1 || group == 5) ? 0 : 1;
+            assertEquals(expected, distinctCounts[group].cardinality());
+        }
+    }
+
+    @Test
+    public void testGroupPercentiles() throws ImhotepOutOfMemoryException {
+        MockFlamdexReader r = newMetricRegroupTestReader();
+
+        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        session.pushStat("if1");
+        final QuantileSketch[] percentiles = session.getGroupPercentiles(0);
+        assertEquals(2, percentiles.length);
+        assertEquals(0, percentiles[0].getCount());
+        final QuantileSketch sketch = percentiles[1];
+        assertEquals(10, sketch.getCount());
+        assertEquals(5, sketch.getMin());
+        assertEquals(20, sketch.getMax());
+        assertEquals(5, sketch.quantile(0.5));
+        assertEquals(15, sketch.quantile(0.9));
+    }
+
     private static MockFlamdexReader newMetricRegroupTestReader() {
         MockFlamdexReader r =
                 new MockFlamdexReader(Arrays.asList("if1"), Arrays.asList("sf1"),
@@ -421,6 +464,137 @@ public class TestImhotepLocalSession {
         session.close();
     }
 
+    @Test
+    public void testInterleave() throws ImhotepOutOfMemoryException {
+        FlamdexReader r = new2DMetricRegroupTestReader();
+        ImhotepLocalSession session = new ImhotepLocalSession(r);
+        session.pushStat("if1");
+        session.pushStat("if2");
+        session.pushStat("if3");
+        session.metricRegroup(0, 0, 10, 3);
+        final long[][] expected = new long[3][];
+        for (int stat = 0; stat < 3; stat++) {
+            expected[stat] = session.getGroupStats(stat).clone();
+        }
+
+        assertEquals(3, session.pushStat("interleave 3"));
+        for (int stat = 0; stat < 3; stat++) {
+            assertArrayEquals(expected[stat], session.getGroupStats(stat));
+        }
+        session.pushStat("if3");
+        assertArrayEquals(expected[2], session.getGroupStats(3));
+        session.close();
+    }
+
+    @Test
+    public void testInterleaveBeyondReportedBounds() throws ImhotepOutOfMemoryException {
+        final MockFlamdexReader r = newMetricRegroupTestReader();
+        final ImhotepLocalSession session = new ImhotepLocalSession(r);
+        session.pushStat("if1");
+        session.pushStat("exp 1");
+        // exp reports a max of its scale factor, but e^20 needs a 4 byte column
+        final QuantileSketch expected = session.getGroupPercentiles(0)[1];
+        assertTrue(expected.getMax() > Short.MAX_VALUE);
+
+        session.pushStat("interleave 1");
+        final QuantileSketch actual = session.getGroupPercentiles(0)[1];
+        assertEquals(expected.getMin(), actual.getMin());
+        assertEquals(expected.getMax(), actual.getMax());
+        assertArrayEquals(expected.toBytes(), actual.toBytes());
+        session.close();
+    }
+
+    @Test
+    public void testInterleaveDynamicMetric() throws ImhotepOutOfMemoryException {
+        final FlamdexReader r = MakeAFlamdex.make();
+        final ImhotepLocalSession session = new ImhotepLocalSession(r);
+        session.createDynamicMetric("foo");
+        session.updateDynamicMetric("foo", new int[] { 0, 1 });
+        session.pushStat("dynamic foo");
+        session.pushStat("interleave 1");
+
+        // the interleaved copy keeps the values from when it was pushed
+        session.updateDynamicMetric("foo", new int[] { 0, 1 });
+        assertEquals(Longs.asList(0, 20), Longs.asList(session.getGroupStats(0)));
+        session.pushStat("dynamic foo");
+        assertEquals(Longs.asList(0, 40), Longs.asList(session.getGroupStats(1)));
+        session.close();
+    }
+
+    @Test
+    public void testDynamicMetricWidening() throws ImhotepOutOfMemoryException {
+        final FlamdexReader r = MakeAFlamdex.make();
+        final MemoryReservationContext memory = new MemoryReservationContext(new ImhotepMemoryPool(Long.MAX_VALUE));
+        final ImhotepLocalSession session = new ImhotepLocalSession(r, null, memory, false, null);
+        final long sessionMemory = memory.usedMemory();
+        session.createDynamicMetric("foo");
+        assertEquals(r.getNumDocs(), memory.usedMemory() - sessionMemory);
+        session.pushStat("dynamic foo");
+        final long baseMemory = memory.usedMemory() - r.getNumDocs();
+
+        session.updateDynamicMetric("foo", new int[] { 0, 100 });
+        assertEquals(r.getNumDocs(), memory.usedMemory() - baseMemory);
+        session.updateDynamicMetric("foo", new int[] { 0, 100 });
+        assertEquals(2L * r.getNumDocs(), memory.usedMemory() - baseMemory);
+        assertEquals(Longs.asList(0, 20 * 200), Longs.asList(session.getGroupStats(0)));
+
+        session.updateDynamicMetric("foo", new int[] { 0, Integer.MAX_VALUE });
+        assertEquals(4L * r.getNumDocs(), memory.usedMemory() - baseMemory);
+        session.updateDynamicMetric("foo", new int[] { 0, Integer.MAX_VALUE });
+        // values saturate at the int range
+        assertEquals(Longs.asList(0, 20L * Integer.MAX_VALUE), Longs.asList(session.getGroupStats(0)));
+        session.updateDynamicMetric("foo", new int[] { 0, Integer.MIN_VALUE });
+        assertEquals(Longs.asList(0, -20), Longs.asList(session.getGroupStats(0)));
+
+        session.close();
+        assertEquals(0L, memory.usedMemory());
+    }
+
+    @Test
+    public void testDynamicMetricWideningOutOfMemory() throws ImhotepOutOfMemoryException {
+        final int numDocs = 2 * ImhotepLocalSession.BUFFER_SIZE;
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Arrays.<String>asList(),
+                                                          Arrays.asList("if1"), numDocs);
+        final List<Integer> firstBuffer = Lists.newArrayList();
+        final List<Integer> secondBuffer = Lists.newArrayList();
+        for (int doc = 0; doc < numDocs; doc++) {
+            (doc < ImhotepLocalSession.BUFFER_SIZE ? firstBuffer : secondBuffer).add(doc);
+        }
+        r.addIntTerm("if1", 0, firstBuffer);
+        r.addIntTerm("if1", 1, secondBuffer);
+        final ImhotepMemoryPool pool = new ImhotepMemoryPool(Long.MAX_VALUE / 2);
+        final ImhotepLocalSession session =
+                new ImhotepLocalSession(r, null, new MemoryReservationContext(pool), false, null);
+        session.createDynamicMetric("foo");
+        session.regroup(new GroupRemapRule[] {
+                new GroupRemapRule(1, new RegroupCondition("if1", true, 1, null, false), 1, 2) });
+        // leave enough memory for the byte values but not for widening them
+        assertTrue(pool.claimMemory(pool.totalMemory() - pool.usedMemory() - numDocs));
+
+        // only docs in the second buffer need a wider type
+        try {
+            session.updateDynamicMetric("foo", new int[] { 0, 1, 1000 });
+            fail("expected ImhotepOutOfMemoryException");
+        } catch (ImhotepOutOfMemoryException e) {
+            // expected
+        }
+        try {
+            session.conditionalUpdateDynamicMetric("foo",
+                    new RegroupCondition[] { new RegroupCondition("if1", true, 0, null, false),
+                                             new RegroupCondition("if1", true, 1, null, false) },
+                    new int[] { 1, 1000 });
+            fail("expected ImhotepOutOfMemoryException");
+        } catch (ImhotepOutOfMemoryException e) {
+            // expected
+        }
+        final DynamicMetric metric = session.getDynamicMetrics().get("foo");
+        for (int doc = 0; doc < numDocs; doc++) {
+            assertEquals(0, metric.lookupSingleVal(doc));
+        }
+        assertEquals(numDocs, metric.memoryUsed());
+        session.close();
+    }
+
     @Test
     public void testDynamicMetric() throws ImhotepOutOfMemoryException {
         final FlamdexReader r = MakeAFlamdex.make();
@@ -1949,4 +2123,41 @@ public class TestImhotepLocalSession {
         Assert.assertArrayEquals(new long[]{0, 0}, session.getGroupStats(0));
         session.popStat();
     }
+
+    @Test
+    public void testMetricFilterWithZoneMap() throws ImhotepOutOfMemoryException {
+        final int numDocs = 10000;
+        final MockFlamdexReader plain = new MockFlamdexReader(Arrays.asList("if1"), Arrays.<String>asList(), Arrays.asList("if1"), numDocs);
+        final MockFlamdexReader zoneMapped = new MockFlamdexReader(Arrays.asList("if1"), Arrays.<String>asList(), Arrays.asList("if1"), numDocs) {
+            @Override
+            public IntValueLookup getMetric(String metric) throws FlamdexOutOfMemoryException {
+                return new ZoneMappedIntValueLookup(super.getMetric(metric), getNumDocs());
+            }
+        };
+        for (long term = 0; term < numDocs / 1000; ++term) {
+            final List<Integer> docs = Lists.newArrayList();
+            for (int doc = (int) term * 1000; doc < (term + 1) * 1000; ++doc) {
+                docs.add(doc);
+            }
+            plain.addIntTerm("if1", term, docs);
+            zoneMapped.addIntTerm("if1", term, docs);
+        }
+
+        for (final boolean negate : new boolean[] { false, true }) {
+            final ImhotepLocalSession plainSession = new ImhotepLocalSession(plain);
+            final ImhotepLocalSession zoneMappedSession = new ImhotepLocalSession(zoneMapped);
+            // drop some docs first so that both the sequential and the sparse lookups are exercised
+            final RegroupCondition[] conditions = { new RegroupCondition("if1", true, 7, null, false) };
+            plainSession.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(1, 1, new int[] { 0 }, conditions) });
+            zoneMappedSession.regroup(new GroupMultiRemapRule[] { new GroupMultiRemapRule(1, 1, new int[] { 0 }, conditions) });
+            plainSession.pushStat("if1");
+            zoneMappedSession.pushStat("if1");
+            assertEquals(plainSession.metricFilter(0, 2, 5, negate), zoneMappedSession.metricFilter(0, 2, 5, negate));
+            for (int doc = 0; doc < numDocs; ++doc) {
+                assertEquals(plainSession.docIdToGroup.get(doc), zoneMappedSession.docIdToGroup.get(doc));
+            }
+            plainSession.close();
+            zoneMappedSession.close();
+        }
+    }
 }
@@ -16,18 +16,26 @@
 import com.google.common.collect.Lists;
 import com.google.common.primitives.Longs;
 import com.indeed.util.core.reference.AtomicSharedReference;
+import com.indeed.util.io.Files;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.fieldcache.FieldCacheMetadata;
 import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.flamdex.simple.SimpleFlamdexReader;
+import com.indeed.flamdex.simple.SimpleFlamdexWriter;
+import com.indeed.flamdex.writer.IntFieldWriter;
+import com.indeed.flamdex.writer.StringFieldWriter;
 import com.indeed.imhotep.CachedMemoryReserver;
 import com.indeed.imhotep.ImhotepMemoryCache;
 import com.indeed.imhotep.ImhotepMemoryPool;
 import com.indeed.imhotep.MemoryReservationContext;
 import com.indeed.imhotep.MemoryReserver;
 import com.indeed.imhotep.MetricKey;
+import com.indeed.imhotep.local.DerivedMetrics;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
@@ -202,6 +210,148 @@ public class TestCachedFlamdexReader {
         assertEquals(0L, memory.usedMemory());
     }
 
+    @Test
+    public void testDerivedMetricCaching() throws FlamdexOutOfMemoryException {
+        final ImhotepMemoryCache<MetricKey, IntValueLookup> cache = new ImhotepMemoryCache<MetricKey, IntValueLookup>();
+        final MemoryReserver memory = new CachedMemoryReserver(new ImhotepMemoryPool(Long.MAX_VALUE), cache);
+        final String metric = DerivedMetrics.normalize("hasint  m1:09");
+        assertEquals("hasint m1:9", metric);
+        CachedFlamdexReader cfr = new CachedFlamdexReader(new MemoryReservationContext(memory), new SillyFlamdexReader(), null, "test", "test", cache);
+        IntValueLookup l = cfr.getMetric(metric);
+        assertEquals(1L, memory.usedMemory());
+        final int[] docIds = {0, 1, 2, 3, 4};
+        final long[] values = new long[docIds.length];
+        l.lookup(docIds, values, docIds.length);
+        assertEquals(Arrays.asList(0L, 0L, 1L, 0L, 0L), Longs.asList(values));
+        l.close();
+        assertEquals(0L, memory.usedMemory());
+        assertEquals(1L, cache.memoryUsed());
+        cfr.close();
+
+        // a reader opened later on the same shard picks up the cached lookup
+        cfr = new CachedFlamdexReader(new MemoryReservationContext(memory), new SillyFlamdexReader(), null, "test", "test", cache);
+        l = cfr.getMetric(metric);
+        assertEquals(0L, cache.memoryUsed());
+        assertEquals(1L, memory.usedMemory());
+        assertEquals(Collections.singleton(metric), cfr.getLoadedMetrics());
+        l.close();
+        cfr.close();
+    }
+
+    @Test
+    public void testLookupsSharedAcrossShardVersions() throws FlamdexOutOfMemoryException, IOException {
+        final String oldVersion = Files.getTempDirectory("shard", ".20150101000000");
+        final String newVersion = Files.getTempDirectory("shard", ".20150102000000");
+        try {
+            writeShard(oldVersion, 2);
+            writeShard(newVersion, 3);
+
+            final ImhotepMemoryCache<MetricKey, IntValueLookup> cache = new ImhotepMemoryCache<MetricKey, IntValueLookup>();
+            final ImhotepMemoryPool pool = new ImhotepMemoryPool(Long.MAX_VALUE);
+            final MemoryReserver memory = new CachedMemoryReserver(pool, cache);
+            final CachedFlamdexReader oldReader = openShard(memory, oldVersion, cache);
+            oldReader.getMetric("same").close();
+            oldReader.getMetric("changed").close();
+            oldReader.close();
+            final long lookupSize = pool.usedMemory() / 2;
+            assertEquals(0L, memory.usedMemory());
+            assertEquals(2 * lookupSize, cache.memoryUsed());
+
+            // the unchanged field's lookup is reused, the changed one is loaded again
+            final CachedFlamdexReader newReader = openShard(memory, newVersion, cache);
+            final IntValueLookup same = newReader.getMetric("same");
+            assertEquals(1L, cache.getHits());
+            final IntValueLookup changed = newReader.getMetric("changed");
+            assertEquals(1L, cache.getHits());
+            assertEquals(lookupSize, cache.memoryUsed());
+            final int[] docIds = {0, 1, 2, 3, 4};
+            final long[] values = new long[docIds.length];
+            same.lookup(docIds, values, docIds.length);
+            assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L), Longs.asList(values));
+            changed.lookup(docIds, values, docIds.length);
+            assertEquals(Arrays.asList(0L, 3L, 6L, 9L, 12L), Longs.asList(values));
+
+            // both versions loading the same lookup leaves one copy cached and nothing leaked
+            final CachedFlamdexReader reopened = openShard(memory, oldVersion, cache);
+            reopened.getMetric("same").close();
+            same.close();
+            changed.close();
+            newReader.close();
+            reopened.close();
+            assertEquals(0L, memory.usedMemory());
+            assertEquals(pool.usedMemory(), cache.memoryUsed());
+            assertEquals(3 * lookupSize, cache.memoryUsed());
+        } finally {
+            Files.delete(oldVersion);
+            Files.delete(newVersion);
+        }
+    }
+
+    @Test
+    public void testContentHashOfPartiallyRewrittenField() throws IOException {
+        final String together = Files.getTempDirectory("shard", ".20150101000000");
+        final String separately = Files.getTempDirectory("shard", ".20150102000000");
+        try {
+            SimpleFlamdexWriter w = new SimpleFlamdexWriter(together, 5L, true);
+            writeIntAndStringField(w, true, true);
+            w.close();
+
+            // the string files weren't written by the second writer, so their hashes come from the files
+            w = new SimpleFlamdexWriter(separately, 5L, true);
+            writeIntAndStringField(w, false, true);
+            w.close();
+            w = new SimpleFlamdexWriter(separately, 5L, false);
+            writeIntAndStringField(w, true, false);
+            w.close();
+
+            final String hash = FieldCacheMetadata.readContentHashes(together).get("f");
+            assertNotNull(hash);
+            assertEquals(hash, FieldCacheMetadata.readContentHashes(separately).get("f"));
+        } finally {
+            Files.delete(together);
+            Files.delete(separately);
+        }
+    }
+
+    private static void writeIntAndStringField(SimpleFlamdexWriter w, boolean writeInt, boolean writeString) throws IOException {
+        if (writeInt) {
+            final IntFieldWriter ifw = w.getIntFieldWriter("f");
+            for (int doc = 0; doc < 5; ++doc) {
+                ifw.nextTerm(doc);
+                ifw.nextDoc(doc);
+            }
+            ifw.close();
+        }
+        if (writeString) {
+            final StringFieldWriter sfw = w.getStringFieldWriter("f");
+            for (int doc = 0; doc < 5; ++doc) {
+                sfw.nextTerm("term" + doc);
+                sfw.nextDoc(doc);
+            }
+            sfw.close();
+        }
+    }
+
+    private static void writeShard(String dir, int multiplier) throws IOException {
+        final SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, 5L, true);
+        final IntFieldWriter same = w.getIntFieldWriter("same");
+        final IntFieldWriter changed = w.getIntFieldWriter("changed");
+        for (int doc = 0; doc < 5; ++doc) {
+            same.nextTerm(doc);
+            same.nextDoc(doc);
+            changed.nextTerm(doc * multiplier);
+            changed.nextDoc(doc);
+        }
+        same.close();
+        changed.close();
+        w.close();
+    }
+
+    private static CachedFlamdexReader openShard(MemoryReserver memory, String dir, ImhotepMemoryCache<MetricKey, IntValueLookup> cache) throws IOException {
+        final SimpleFlamdexReader r = SimpleFlamdexReader.open(dir, new SimpleFlamdexReader.Config().setUseMMapMetrics(false));
+        return new CachedFlamdexReader(new MemoryReservationContext(memory), r, null, "test", new File(dir).getName(), cache);
+    }
+
     private static class SillyFlamdexReader extends MockFlamdexReader {
         private SillyFlamdexReader() {
             super(Arrays.asList("m1"), Collections.<String>emptyList(), Arrays.asList("m1"), 5);
@@ -230,6 +380,10 @@ public class TestCachedFlamdexReader {
                     public void lookup(int[] docIds, long[] values, int n) {
                     }
 
+                    @Override
+                    public void lookupRange(int start, long[] values, int n) {
+                    }
+
                     @Override
                     public long memoryUsed() {
                         return 10L;
@@ -261,6 +415,13 @@ public class TestCachedFlamdexReader {
                     }
                 }
 
+                @Override
+                public void lookupRange(int start, long[] values, int n) {
+                    for (int i = 0; i < n; ++i) {
+                        values[i] = lookup[start + i];
+                    }
+                }
+
                 @Override
                 public long memoryUsed() {
                     return 5L;
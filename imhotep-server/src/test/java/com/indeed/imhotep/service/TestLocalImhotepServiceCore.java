@@ -14,8 +14,12 @@
  package com.indeed.imhotep.service;
 
 import com.indeed.util.io.Files;
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.imhotep.ImhotepMemoryCache;
+import com.indeed.imhotep.MetricKey;
 import com.indeed.imhotep.ShardInfo;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 
@@ -37,6 +41,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -178,4 +183,65 @@ public class TestLocalImhotepServiceCore {
             Files.delete(directory);
         }
     }
+
+    @Test
+    public void testMetricWarmup() throws IOException, ImhotepOutOfMemoryException, InterruptedException {
+        final String directory = Files.getTempDirectory("asdf", "");
+        // the first service never releases its shard locks, so the restarted one gets its own copy of the shard
+        final String restartedDirectory = Files.getTempDirectory("asdf", "");
+        final String tempDir = Files.getTempDirectory("asdf", "");
+        for (final String shardsDirectory : Arrays.asList(directory, restartedDirectory)) {
+            final File datasetDir = new File(shardsDirectory, "dataset");
+            datasetDir.mkdir();
+            new File(datasetDir, "shard").mkdir();
+        }
+        final String statsFile = new File(tempDir, "metric-access-stats").getPath();
+        final AtomicInteger metricLoads = new AtomicInteger();
+        final FlamdexReaderSource readerSource = new FlamdexReaderSource() {
+            @Override
+            public FlamdexReader openReader(String directory) throws IOException {
+                final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("if1"), Collections.<String>emptyList(), Arrays.asList("if1"), 10) {
+                    @Override
+                    public IntValueLookup getMetric(String metric) throws FlamdexOutOfMemoryException {
+                        metricLoads.incrementAndGet();
+                        return super.getMetric(metric);
+                    }
+                };
+                r.addIntTerm("if1", 1, Arrays.asList(0, 1, 2));
+                return r;
+            }
+        };
+        final LocalImhotepServiceConfig config = new LocalImhotepServiceConfig().setMetricAccessStatsFile(statsFile)
+                                                                                .setMetricWarmupEnabled(true);
+        try {
+            final LocalImhotepServiceCore service = new LocalImhotepServiceCore(directory, tempDir, 9999999999999L, true, readerSource, config);
+            final String sessionId = service.handleOpenSession("dataset", Arrays.asList("shard"), "", "", 0, 0, false, "", null);
+            service.handlePushStat(sessionId, "if1");
+            service.handleCloseSession(sessionId);
+            service.close();
+            assertEquals(1, metricLoads.get());
+            assertEquals(1, MetricAccessStats.load(new File(statsFile)).getAccessCount("dataset", "if1"));
+
+            // a new daemon loads if1 before anyone asks for it, and the first session then gets it from the free cache
+            metricLoads.set(0);
+            final LocalImhotepServiceCore restarted = new LocalImhotepServiceCore(restartedDirectory, tempDir, 9999999999999L, true, readerSource, config);
+            // the metric is loaded before it is put in the free cache, so wait for the cache entry
+            final ImhotepMemoryCache<MetricKey, IntValueLookup> freeCache = restarted.getFreeCache();
+            for (int i = 0; i < 100 && freeCache.size() == 0; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, freeCache.size());
+            assertEquals(1, metricLoads.get());
+            final String restartedSessionId = restarted.handleOpenSession("dataset", Arrays.asList("shard"), "", "", 0, 0, false, "", null);
+            restarted.handlePushStat(restartedSessionId, "if1");
+            assertEquals(1, freeCache.getHits());
+            assertEquals(1, metricLoads.get());
+            restarted.handleCloseSession(restartedSessionId);
+            restarted.close();
+        } finally {
+            Files.delete(directory);
+            Files.delete(restartedDirectory);
+            Files.delete(tempDir);
+        }
+    }
 }